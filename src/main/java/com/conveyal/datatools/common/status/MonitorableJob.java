@@ -45,7 +45,10 @@ public abstract class MonitorableJob implements Runnable {
         FETCH_SINGLE_FEED,
         MAKE_PROJECT_PUBLIC,
         PROCESS_FEED,
-        MERGE_PROJECT_FEEDS
+        MERGE_PROJECT_FEEDS,
+        RECONCILE_PATTERN,
+        EXPORT_GIS,
+        DUPLICATE_FEED
     }
 
     public MonitorableJob(String owner, String name, JobType type) {
@@ -1,5 +1,8 @@
 package com.conveyal.datatools.editor.controllers;
 
+import com.conveyal.datatools.common.utils.SparkUtils;
+import com.conveyal.datatools.editor.datastore.FeedTx;
+import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.models.transit.GtfsRouteType;
 import com.conveyal.datatools.editor.models.transit.TripDirection;
 import com.conveyal.geojson.GeoJsonModule;
@@ -7,12 +10,29 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.time.LocalDate;
 
 import com.conveyal.datatools.editor.utils.JacksonSerializers;
+import com.conveyal.datatools.manager.utils.json.JsonManager;
+import com.google.common.collect.Iterators;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+import spark.Request;
+import spark.Response;
+
+import static spark.Spark.halt;
 
 public class Base {
     public static ObjectMapper mapper = new ObjectMapper();
@@ -39,4 +59,105 @@ public class Base {
                 mapper.writeValue(jg, pojo);
                 return sw.toString();
     }
-}
\ No newline at end of file
+
+    /**
+     * Halt with a 409 Conflict, for a modification that could not be saved because of conflicting concurrent
+     * modifications (see VersionedDataStore.writeFeed). The response includes the entity as it is currently stored
+     * (retrieved from the feed by the given function), so the client can reapply its changes to it.
+     */
+    public static void haltWithConflict (String feedId, String message, Function<FeedTx, Object> getCurrent) {
+        FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+        ObjectNode body = mapper.createObjectNode();
+        try {
+            body.put("result", "ERR");
+            body.put("message", message);
+            body.put("code", 409);
+            body.set("current", mapper.valueToTree(getCurrent.apply(tx)));
+        } finally {
+            tx.rollbackIfOpen();
+        }
+
+        halt(409, body.toString());
+    }
+
+    /**
+     * Tag the response to a GET request for the data of a feed with the current revision of the feed, and halt with 304
+     * Not Modified if the client already has the response for this revision (i.e. it sent the tag in If-None-Match).
+     * Only for requests whose response depends on nothing but the feed and the request. Called before opening a
+     * transaction: if the feed is modified in between, the response is newer than its tag, and the client fetches it
+     * again next time.
+     */
+    public static void checkETag (Request req, Response res, String feedId) {
+        if (feedId == null)
+            return;
+
+        String etag = "W/\"" + feedId + "-" + VersionedDataStore.getFeedRevision(feedId) + "\"";
+        res.header("ETag", etag);
+
+        String ifNoneMatch = req.headers("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                if (tag.trim().equals(etag) || tag.trim().equals("*"))
+                    halt(304);
+            }
+        }
+    }
+
+    /**
+     * Write the entities in one of the maps of a feed to the response as a JSON array, reading them from the map one at
+     * a time rather than copying the map into a list first, so that the memory used does not depend on the size of the
+     * feed. The map must be read in a transaction that stays open until this returns. Supports these parameters:
+     * limit, the maximum number of entities to return; after, the ID of the last entity of the previous page (entities
+     * are in ID order, so there are no more once a page has fewer than limit entities); and fields, a comma-separated
+     * list of the properties of each entity to return.
+     * @return an empty string, as the response has already been written
+     */
+    public static <T> String writeCollection (Request req, Response res, NavigableMap<String, ? extends T> map,
+                                              JsonManager<T> json) throws IOException {
+        return writeCollection(req, res, map, json, null);
+    }
+
+    /**
+     * As writeCollection above, but the JSON of each entity is modified by the given function (if not null) before it is
+     * written, e.g. to change the representation of a property.
+     */
+    public static <T> String writeCollection (Request req, Response res, NavigableMap<String, ? extends T> map,
+                                              JsonManager<T> json, BiConsumer<? super T, ObjectNode> transform)
+            throws IOException {
+        Integer limit = null;
+        if (req.queryParams("limit") != null) {
+            try {
+                limit = Integer.parseInt(req.queryParams("limit"));
+            } catch (NumberFormatException e) {
+                // handled below
+            }
+
+            if (limit == null || limit < 1)
+                halt(400, SparkUtils.formatJSON("limit must be a positive integer"));
+        }
+
+        String after = req.queryParams("after");
+        Iterator<? extends T> values = (after != null ? map.tailMap(after, false) : map).values().iterator();
+        if (limit != null) values = Iterators.limit(values, limit);
+
+        Set<String> fields = req.queryParams("fields") != null ?
+                new HashSet<>(Arrays.asList(req.queryParams("fields").split(","))) : null;
+
+        res.type("application/json");
+
+        // the filter that gzips the other API responses runs after the response has been written
+        boolean gzip = req.headers("Accept-Encoding") != null && req.headers("Accept-Encoding").contains("gzip");
+        if (gzip) res.header("Content-Encoding", "gzip");
+
+        OutputStream out = res.raw().getOutputStream();
+        if (gzip) out = new GZIPOutputStream(out);
+
+        try {
+            json.writeArray(values, fields, transform, out);
+        } finally {
+            out.close();
+        }
+
+        return "";
+    }
+}
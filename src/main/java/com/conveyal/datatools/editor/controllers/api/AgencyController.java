@@ -8,6 +8,7 @@ import com.conveyal.datatools.editor.models.transit.Agency;
 import com.conveyal.datatools.common.utils.S3Utils;
 import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.HaltException;
@@ -27,9 +28,12 @@ public class AgencyController {
     public static Object getAgency(Request req, Response res) {
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
+
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if(id != null) {
                 if (!tx.agencies.containsKey(id)) {
                     halt(404);
@@ -53,32 +57,33 @@ public class AgencyController {
     }
 
     public static Agency createAgency(Request req, Response res) {
-        Agency agency;
+        Agency agency = null;
         String feedId = req.queryParams("feedId");
         if (feedId == null)
             halt(400, "You must provide a valid feedId");
 
-        FeedTx tx = null;
         try {
             agency = Base.mapper.readValue(req.body(), Agency.class);
-            
-            tx = VersionedDataStore.getFeedTx(feedId);
-            if (tx.agencies.containsKey(agency.id)) {
-                halt(400, "Agency " + agency.id + " already exists");
-            }
-            
-            tx.agencies.put(agency.id, agency);
-            tx.commit();
 
-            return agency;
+            final Agency created = agency;
+            return VersionedDataStore.writeFeed(feedId, tx -> {
+                if (tx.agencies.containsKey(created.id)) {
+                    halt(400, "Agency " + created.id + " already exists");
+                }
+
+                tx.agencies.put(created.id, created);
+                return created;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating agency {}", agency.id, e);
+            final String agencyId = agency.id;
+            Base.haltWithConflict(feedId, "Feed was modified concurrently", tx -> tx.agencies.get(agencyId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -89,66 +94,80 @@ public class AgencyController {
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
 
-        FeedTx tx = null;
         try {
             agency = Base.mapper.readValue(req.body(), Agency.class);
-            
-            tx = VersionedDataStore.getFeedTx(feedId);
-            if(!tx.agencies.containsKey(agency.id)) {
-                halt(400);
-            }
-            
-            tx.agencies.put(id, agency);
-            tx.commit();
 
-            return agency;
+            final Agency updated = agency;
+            return VersionedDataStore.writeFeed(feedId, tx -> {
+                if(!tx.agencies.containsKey(updated.id)) {
+                    halt(400);
+                }
+
+                tx.agencies.put(id, updated);
+                return updated;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to agency {}", id, e);
+            Base.haltWithConflict(feedId, "Agency was modified concurrently", tx -> tx.agencies.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
     public static Agency uploadAgencyBranding(Request req, Response res) {
-        Agency agency;
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
 
-        FeedTx tx = null;
         try {
             if (feedId == null) {
                 halt(400);
             }
-            tx = VersionedDataStore.getFeedTx(feedId);
 
-            if (!tx.agencies.containsKey(id)) {
-                halt(404);
+            FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+            try {
+                if (!tx.agencies.containsKey(id)) {
+                    halt(404);
+                }
+            } finally {
+                tx.rollbackIfOpen();
             }
 
-            agency = tx.agencies.get(id);
-
+            // upload before the write, which may be retried
             String url = S3Utils.uploadBranding(req, id);
 
-            // set agencyBrandingUrl to s3 location
-            agency.agencyBrandingUrl = url;
+            return VersionedDataStore.writeFeed(feedId, wtx -> {
+                if (!wtx.agencies.containsKey(id)) {
+                    halt(404);
+                }
+
+                Agency agency;
+                try {
+                    agency = wtx.agencies.get(id).clone();
+                } catch (CloneNotSupportedException e) {
+                    // not likely
+                    throw new RuntimeException(e);
+                }
 
-            tx.agencies.put(id, agency);
-            tx.commit();
+                // set agencyBrandingUrl to s3 location
+                agency.agencyBrandingUrl = url;
 
-            return agency;
+                wtx.agencies.put(id, agency);
+                return agency;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to agency {}", id, e);
+            Base.haltWithConflict(feedId, "Agency was modified concurrently", tx -> tx.agencies.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -159,39 +178,35 @@ public class AgencyController {
         if (id == null) {
             halt(400);
         }
-        FeedTx tx = null;
 
         try {
             if (feedId == null) {
                 halt(400);
             }
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if(!tx.agencies.containsKey(id)) {
-                halt(400);
-            }
 
-            // ensure that no routes reference agency
-            tx.routes.values().stream().forEach(route -> {
-                if (route.agencyId.equals(id)) {
-                    halt(400, SparkUtils.formatJSON("Cannot delete agency referenced by routes.", 400));
+            return VersionedDataStore.writeFeed(feedId, tx -> {
+                if(!tx.agencies.containsKey(id)) {
+                    halt(400);
                 }
-            });
-
-            Agency agency = tx.agencies.get(id);
 
-            tx.agencies.remove(id);
-            tx.commit();
+                // ensure that no routes reference agency
+                tx.routes.values().stream().forEach(route -> {
+                    if (route.agencyId.equals(id)) {
+                        halt(400, SparkUtils.formatJSON("Cannot delete agency referenced by routes.", 400));
+                    }
+                });
 
-            return agency;
+                return tx.agencies.remove(id);
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting agency {}", id, e);
+            Base.haltWithConflict(feedId, "Agency was modified concurrently", tx -> tx.agencies.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
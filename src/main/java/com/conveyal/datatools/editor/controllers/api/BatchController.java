@@ -0,0 +1,191 @@
+package com.conveyal.datatools.editor.controllers.api;
+
+import com.conveyal.datatools.common.utils.SparkUtils;
+import com.conveyal.datatools.editor.controllers.Base;
+import com.conveyal.datatools.editor.datastore.FeedTx;
+import com.conveyal.datatools.editor.datastore.VersionedDataStore;
+import com.conveyal.datatools.editor.models.transit.Route;
+import com.conveyal.datatools.editor.models.transit.ServiceCalendar;
+import com.conveyal.datatools.editor.models.transit.Stop;
+import com.conveyal.datatools.editor.models.transit.Trip;
+import com.conveyal.datatools.editor.models.transit.TripPattern;
+import com.conveyal.datatools.manager.models.JsonViews;
+import com.conveyal.datatools.manager.utils.json.JsonManager;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static spark.Spark.*;
+
+/**
+ * Apply a list of create, update and delete operations to the entities of a feed in a single transaction, so that bulk
+ * edits (e.g. retiming many trips or moving many stops) take one request and one commit rather than one of each per
+ * entity. The operations are applied in order, with the same checks as the individual endpoints, and if any of them
+ * fails none of them are saved.
+ */
+public class BatchController {
+    public static final JsonManager<Operation> json =
+            new JsonManager<>(Operation.class, JsonViews.UserInterface.class);
+    private static final Logger LOG = LoggerFactory.getLogger(BatchController.class);
+
+    /** The types of entity that can be modified in a batch (given in JSON by name, e.g. "TRIP_PATTERN") */
+    public enum EntityType { STOP, TRIP, TRIP_PATTERN, CALENDAR, ROUTE }
+
+    /** The kinds of operation that can be applied in a batch */
+    public enum OperationType { CREATE, UPDATE, DELETE }
+
+    /** An operation in a batch */
+    public static class Operation {
+        public OperationType op;
+
+        public EntityType type;
+
+        /** the ID of the entity to delete; not needed to create or update an entity, as the entity has its own ID */
+        public String id;
+
+        /** the entity to create or update, in the same form as for the individual endpoints */
+        public JsonNode entity;
+    }
+
+    /**
+     * Apply the operations in the request body, a JSON list of Operations, to the feed given by the feedId parameter.
+     * Returns a list with, for each operation, the entity that was created, updated or deleted.
+     */
+    public static Object applyBatch(Request req, Response res) {
+        String feedId = req.queryParams("feedId");
+
+        if (feedId == null) {
+            halt(400, SparkUtils.formatJSON("Must provide feedId"));
+        }
+
+        if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(feedId))
+            halt(400);
+
+        if (!VersionedDataStore.feedExists(feedId)) {
+            halt(400, SparkUtils.formatJSON("Feed ID (" + feedId + ") does not exist"));
+        }
+
+        try {
+            List<Operation> operations = Base.mapper.readValue(req.body(), new TypeReference<List<Operation>>(){});
+
+            // parse all the entities up front, so that the transaction is not started if any of them are invalid
+            List<Object> entities = new ArrayList<>(operations.size());
+            for (Operation operation : operations) {
+                entities.add(parseEntity(operation, feedId));
+            }
+
+            long startTime = System.currentTimeMillis();
+            List<Object> ret = VersionedDataStore.writeFeed(feedId, tx -> {
+                List<Object> results = new ArrayList<>(operations.size());
+                for (int i = 0; i < operations.size(); i++) {
+                    try {
+                        results.add(apply(req, feedId, tx, operations.get(i), entities.get(i)));
+                    } catch (HaltException e) {
+                        LOG.warn("Batch operation {} of {} on feed {} failed", i + 1, operations.size(), feedId);
+                        throw e;
+                    }
+                }
+                return results;
+            });
+            LOG.info("Applied {} batch operations to feed {} in {} ms", operations.size(), feedId, System.currentTimeMillis() - startTime);
+
+            return ret;
+        } catch (IOException e) {
+            e.printStackTrace();
+            halt(400, SparkUtils.formatJSON("Unable to parse batch operations"));
+        } catch (HaltException e) {
+            LOG.error("Halt encountered", e);
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            halt(400, SparkUtils.formatJSON("Unknown error occurred applying batch operations"));
+        }
+        return null;
+    }
+
+    /**
+     * parse the entity of a create or update operation, which must belong to the given feed, or check that a delete
+     * operation has an ID
+     */
+    private static Object parseEntity (Operation operation, String feedId) throws IOException {
+        if (operation.op == null || operation.type == null) {
+            halt(400, SparkUtils.formatJSON("Batch operations must have an op and a type"));
+        }
+
+        if (operation.op == OperationType.DELETE) {
+            if (operation.id == null) {
+                halt(400, SparkUtils.formatJSON("Delete operations must have an id"));
+            }
+            return null;
+        }
+
+        if (operation.entity == null) {
+            halt(400, SparkUtils.formatJSON("Create and update operations must have an entity"));
+        }
+
+        // the whole batch is applied to the feed given by the feedId parameter, which the user was authorized for
+        if (!feedId.equals(operation.entity.path("feedId").asText(null))) {
+            halt(400, SparkUtils.formatJSON("Batch entities must belong to feed " + feedId));
+        }
+
+        switch (operation.type) {
+            case STOP: return Base.mapper.treeToValue(operation.entity, Stop.class);
+            case TRIP: return Base.mapper.treeToValue(operation.entity, Trip.class);
+            case TRIP_PATTERN: return TripPatternController.readTripPattern(operation.entity);
+            case CALENDAR: return Base.mapper.treeToValue(operation.entity, ServiceCalendar.class);
+            case ROUTE: return Base.mapper.treeToValue(operation.entity, Route.class);
+            default: throw new IllegalArgumentException("Unknown entity type " + operation.type);
+        }
+    }
+
+    /** apply a single operation, returning the entity it created, updated or deleted */
+    private static Object apply (Request req, String feedId, FeedTx tx, Operation operation, Object entity) {
+        switch (operation.type) {
+            case STOP:
+                switch (operation.op) {
+                    case CREATE: return StopController.insertStop(tx, (Stop) entity);
+                    case UPDATE: return StopController.replaceStop(tx, (Stop) entity);
+                    default: return StopController.removeStop(tx, operation.id);
+                }
+            case TRIP:
+                switch (operation.op) {
+                    case CREATE: return TripController.insertTrip(tx, (Trip) entity);
+                    case UPDATE: return TripController.replaceTrip(tx, (Trip) entity);
+                    default: return TripController.removeTrip(tx, operation.id);
+                }
+            case TRIP_PATTERN:
+                switch (operation.op) {
+                    case CREATE: return TripPatternController.insertTripPattern(tx, (TripPattern) entity);
+                    case UPDATE: return TripPatternController.replaceTripPattern(tx, (TripPattern) entity);
+                    default: return TripPatternController.removeTripPattern(tx, operation.id);
+                }
+            case CALENDAR:
+                switch (operation.op) {
+                    case CREATE: return CalendarController.insertCalendar(tx, (ServiceCalendar) entity);
+                    case UPDATE: return CalendarController.replaceCalendar(tx, (ServiceCalendar) entity);
+                    default: return CalendarController.removeCalendar(tx, operation.id);
+                }
+            case ROUTE:
+                Route route = (Route) entity;
+                switch (operation.op) {
+                    case CREATE: return RouteController.insertRoute(tx, route);
+                    case UPDATE: return RouteController.replaceRoute(req, feedId, tx, route.id, route);
+                    default: return RouteController.removeRoute(tx, operation.id);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown entity type " + operation.type);
+        }
+    }
+
+    public static void register (String apiPrefix) {
+        post(apiPrefix + "secure/batch", BatchController::applyBatch, json::write);
+    }
+}
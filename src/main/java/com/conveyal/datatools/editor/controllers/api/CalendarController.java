@@ -3,13 +3,12 @@ package com.conveyal.datatools.editor.controllers.api;
 import com.conveyal.datatools.editor.datastore.FeedTx;
 import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
-import com.google.common.collect.Sets;
 import com.conveyal.datatools.editor.controllers.Base;
 import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.models.transit.ScheduleException;
 import com.conveyal.datatools.editor.models.transit.ServiceCalendar;
 import com.conveyal.datatools.editor.models.transit.ServiceCalendar.ServiceCalendarForPattern;
-import org.mapdb.Fun;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.HaltException;
@@ -23,8 +22,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 
 public class CalendarController {
@@ -41,10 +39,12 @@ public class CalendarController {
             halt(400);
         }
 
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if (id != null) {
                 if (!tx.calendars.containsKey(id)) {
                     halt(404);
@@ -61,18 +61,15 @@ public class CalendarController {
                     halt(404);
                 }
 
-                Set<String> serviceCalendarIds = Sets.newHashSet();
-                serviceCalendarIds.addAll(tx.getTripsByPattern(patternId).stream()
-                        .map(trip -> trip.calendarId)
-                        .collect(Collectors.toList()));
+                Map<String, Long> tripCountByCalendar = tx.getTripCountByCalendarForPattern(patternId);
+                tripCountByCalendar.remove(null);
 
                 Collection<ServiceCalendarForPattern> ret = new HashSet<>();
 
-                for (String calendarId : serviceCalendarIds) {
-                    ServiceCalendar cal = tx.calendars.get(calendarId);
-                    Long count = tx.tripCountByPatternAndCalendar.get(new Fun.Tuple2(patternId, cal.id));
-                    if (count == null) count = 0L;
-                    ret.add(new ServiceCalendarForPattern(cal, tx.tripPatterns.get(patternId), count));
+                for (Map.Entry<String, Long> e : tripCountByCalendar.entrySet()) {
+                    ServiceCalendar cal = tx.calendars.get(e.getKey());
+                    if (cal == null) continue;
+                    ret.add(new ServiceCalendarForPattern(cal, tx.tripPatterns.get(patternId), e.getValue()));
                 }
                 return ret;
             }
@@ -98,8 +95,7 @@ public class CalendarController {
     }
 
     public static ServiceCalendar createCalendar(Request req, Response res) {
-        ServiceCalendar cal;
-        FeedTx tx = null;
+        ServiceCalendar cal = null;
 
         try {
             cal = Base.mapper.readValue(req.body(), ServiceCalendar.class);
@@ -111,38 +107,24 @@ public class CalendarController {
             if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(cal.feedId))
                 halt(400);
 
-            tx = VersionedDataStore.getFeedTx(cal.feedId);
-
-            if (tx.calendars.containsKey(cal.id)) {
-                halt(400);
-            }
-
-            // check if gtfsServiceId is specified, if not create from DB id
-            if(cal.gtfsServiceId == null) {
-                cal.gtfsServiceId = "CAL_" + cal.id.toString();
-            }
-
-            cal.addDerivedInfo(tx);
-
-            tx.calendars.put(cal.id, cal);
-            tx.commit();
-
-            return cal;
+            final ServiceCalendar created = cal;
+            return VersionedDataStore.writeFeed(cal.feedId, tx -> insertCalendar(tx, created));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating calendar {}", cal.id, e);
+            final String calendarId = cal.id;
+            Base.haltWithConflict(cal.feedId, "Feed was modified concurrently", tx -> tx.calendars.get(calendarId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
     public static ServiceCalendar updateCalendar(Request req, Response res) {
-        ServiceCalendar cal;
-        FeedTx tx = null;
+        ServiceCalendar cal = null;
 
         try {
             cal = Base.mapper.readValue(req.body(), ServiceCalendar.class);
@@ -151,30 +133,18 @@ public class CalendarController {
                 halt(400);
             }
 
-            tx = VersionedDataStore.getFeedTx(cal.feedId);
-
-            if (!tx.calendars.containsKey(cal.id)) {
-                halt(400);
-            }
-
-            // check if gtfsServiceId is specified, if not create from DB id
-            if(cal.gtfsServiceId == null) {
-                cal.gtfsServiceId = "CAL_" + cal.id.toString();
-            }
-
-            cal.addDerivedInfo(tx);
-            tx.calendars.put(cal.id, cal);
-            tx.commit();
-
-            return cal;
+            final ServiceCalendar updated = cal;
+            return VersionedDataStore.writeFeed(cal.feedId, tx -> replaceCalendar(tx, updated));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to calendar {}", cal.id, e);
+            final String calendarId = cal.id;
+            Base.haltWithConflict(cal.feedId, "Calendar was modified concurrently", tx -> tx.calendars.get(calendarId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -183,45 +153,82 @@ public class CalendarController {
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
 
-        FeedTx tx = null;
+        if (feedId == null) {
+            halt(400);
+        }
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if (id == null || !tx.calendars.containsKey(id)) {
-                halt(404);
-            }
-
-            // we just don't let you delete calendars unless there are no trips on them
-            Long count = tx.tripCountByCalendar.get(id);
-            if (count != null && count > 0) {
-                halt(400, formatJSON("Cannot delete calendar that is referenced by trips.", 400));
-            }
-
-            // drop this calendar from any schedule exceptions
-            for (ScheduleException ex : tx.getExceptionsByCalendar(id)) {
-                ex.customSchedule.remove(id);
-                tx.exceptions.put(ex.id, ex);
-            }
-            ServiceCalendar cal = tx.calendars.get(id);
-
-            tx.calendars.remove(id);
-
-            tx.commit();
-
-            return cal;
+            return VersionedDataStore.writeFeed(feedId, tx -> removeCalendar(tx, id));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting calendar {}", id, e);
+            Base.haltWithConflict(feedId, "Calendar was modified concurrently", tx -> tx.calendars.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
+    /** add a new calendar to a feed */
+    static ServiceCalendar insertCalendar (FeedTx tx, ServiceCalendar cal) {
+        if (tx.calendars.containsKey(cal.id)) {
+            halt(400);
+        }
+
+        return saveCalendar(tx, cal);
+    }
+
+    /** replace an existing calendar */
+    static ServiceCalendar replaceCalendar (FeedTx tx, ServiceCalendar cal) {
+        if (!tx.calendars.containsKey(cal.id)) {
+            halt(400);
+        }
+
+        return saveCalendar(tx, cal);
+    }
+
+    private static ServiceCalendar saveCalendar (FeedTx tx, ServiceCalendar cal) {
+        // check if gtfsServiceId is specified, if not create from DB id
+        if(cal.gtfsServiceId == null) {
+            cal.gtfsServiceId = "CAL_" + cal.id.toString();
+        }
+
+        cal.addDerivedInfo(tx);
+        tx.calendars.put(cal.id, cal);
+        return cal;
+    }
+
+    /** delete a calendar, which must not be used by any trips, and remove it from any schedule exceptions */
+    static ServiceCalendar removeCalendar (FeedTx tx, String id) {
+        if (id == null || !tx.calendars.containsKey(id)) {
+            halt(404);
+        }
+
+        // we just don't let you delete calendars unless there are no trips on them
+        Long count = tx.tripCountByCalendar.get(id);
+        if (count != null && count > 0) {
+            halt(400, formatJSON("Cannot delete calendar that is referenced by trips.", 400));
+        }
+
+        // drop this calendar from any schedule exceptions
+        for (ScheduleException ex : tx.getExceptionsByCalendar(id)) {
+            try {
+                // don't modify the instance read from the database
+                ex = ex.clone();
+            } catch (CloneNotSupportedException e) {
+                // not likely
+                throw new RuntimeException(e);
+            }
+            ex.customSchedule.remove(id);
+            tx.exceptions.put(ex.id, ex);
+        }
+
+        return tx.calendars.remove(id);
+    }
+
     public static void register (String apiPrefix) {
         get(apiPrefix + "secure/calendar/:id", CalendarController::getCalendar, json::write);
         options(apiPrefix + "secure/calendar", (q, s) -> "");
@@ -0,0 +1,89 @@
+package com.conveyal.datatools.editor.controllers.api;
+
+import com.conveyal.datatools.common.utils.SparkUtils;
+import com.conveyal.datatools.editor.datastore.FeedTx;
+import com.conveyal.datatools.editor.datastore.VersionedDataStore;
+import com.conveyal.datatools.manager.models.JsonViews;
+import com.conveyal.datatools.manager.utils.json.JsonManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+
+import java.util.List;
+
+import static spark.Spark.*;
+
+/**
+ * Lets editor clients keep their copy of a feed up to date by fetching only the entities modified since they last read
+ * it, from the change log of the feed (see FeedTx.getChangesSince), rather than polling whole collections.
+ */
+public class ChangeController {
+    public static final JsonManager<Changes> json =
+            new JsonManager<>(Changes.class, JsonViews.UserInterface.class);
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeController.class);
+
+    /**
+     * Get the modifications made to the feed given by the feedId parameter after the revision given by the since
+     * parameter. Without since, only the current revision is returned, for a client that has just read the feed.
+     */
+    public static Object getChanges(Request req, Response res) {
+        String feedId = req.queryParams("feedId");
+
+        if (feedId == null) {
+            halt(400, SparkUtils.formatJSON("Must provide feedId"));
+        }
+
+        Long since = null;
+        if (req.queryParams("since") != null) {
+            try {
+                since = Long.parseLong(req.queryParams("since"));
+            } catch (NumberFormatException e) {
+                halt(400, SparkUtils.formatJSON("since must be a revision number"));
+            }
+        }
+
+        FeedTx tx = null;
+
+        try {
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+
+            Changes ret = new Changes();
+            ret.revision = tx.getRevision();
+            if (since != null) {
+                ret.changes = tx.getChangesSince(since);
+                ret.reset = ret.changes == null;
+            }
+            return ret;
+        } catch (HaltException e) {
+            LOG.error("Halt encountered", e);
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            halt(400);
+        } finally {
+            if (tx != null) tx.rollbackIfOpen();
+        }
+        return null;
+    }
+
+    /** The modifications made to a feed since a revision */
+    public static class Changes {
+        /** the current revision of the feed; pass this as since in the next request */
+        public long revision;
+
+        /** the modifications made after the requested revision, oldest first, or null if reset is set */
+        public List<FeedTx.Change> changes;
+
+        /**
+         * set if the modifications since the requested revision are no longer known (e.g. the revision is too old, or
+         * a snapshot has been restored since), in which case the client should reload the whole feed
+         */
+        public boolean reset;
+    }
+
+    public static void register (String apiPrefix) {
+        get(apiPrefix + "secure/changes", ChangeController::getChanges, json::write);
+    }
+}
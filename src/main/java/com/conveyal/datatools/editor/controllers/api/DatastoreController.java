@@ -0,0 +1,34 @@
+package com.conveyal.datatools.editor.controllers.api;
+
+import com.conveyal.datatools.editor.datastore.DatabaseMonitor;
+import com.conveyal.datatools.editor.datastore.VersionedDataStore;
+import com.conveyal.datatools.manager.auth.Auth0UserProfile;
+import com.conveyal.datatools.manager.models.JsonViews;
+import com.conveyal.datatools.manager.utils.json.JsonManager;
+import spark.Request;
+import spark.Response;
+
+import static com.conveyal.datatools.common.utils.SparkUtils.haltWithError;
+import static spark.Spark.get;
+
+/**
+ * Monitoring of the editor datastore, for application administrators: transaction timings and conflicts, slow and leaked
+ * transactions, and the open feed databases (see VersionedDataStore.getDatastoreStats).
+ */
+public class DatastoreController {
+    public static JsonManager<DatabaseMonitor.Stats> json =
+            new JsonManager<>(DatabaseMonitor.Stats.class, JsonViews.UserInterface.class);
+
+    public static DatabaseMonitor.Stats getDatastoreStats (Request req, Response res) {
+        Auth0UserProfile userProfile = req.attribute("user");
+        if (!userProfile.canAdministerApplication()) {
+            haltWithError(401, "User not authorized to view datastore statistics");
+        }
+
+        return VersionedDataStore.getDatastoreStats();
+    }
+
+    public static void register (String apiPrefix) {
+        get(apiPrefix + "secure/datastore", DatastoreController::getDatastoreStats, json::write);
+    }
+}
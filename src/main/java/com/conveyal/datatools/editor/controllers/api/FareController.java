@@ -6,6 +6,7 @@ import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.models.transit.Fare;
 import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.HaltException;
@@ -39,10 +40,12 @@ public class FareController {
             halt(400);
         }
 
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if (id != null) {
                 if (!tx.fares.containsKey(id)) {
                     halt(404);
@@ -72,8 +75,7 @@ public class FareController {
     }
 
     public static Object createFare(Request req, Response res) {
-        Fare fare;
-        FeedTx tx = null;
+        Fare fare = null;
 
         try {
             fare = Base.mapper.readValue(req.body(), Fare.class);
@@ -82,35 +84,29 @@ public class FareController {
                 halt(400);
             }
 
-            tx = VersionedDataStore.getFeedTx(fare.feedId);
-
-            if (tx.fares.containsKey(fare.id)) {
-                halt(400);
-            }
-
-            // check if gtfsFareId is specified, if not create from DB id
-            if(fare.gtfsFareId == null) {
-                fare.gtfsFareId = "CAL_" + fare.id.toString();
-            }
-
-            tx.fares.put(fare.id, fare);
-            tx.commit();
+            final Fare created = fare;
+            return VersionedDataStore.writeFeed(fare.feedId, tx -> {
+                if (tx.fares.containsKey(created.id)) {
+                    halt(400);
+                }
 
-            return fare;
+                return saveFare(tx, created);
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating fare {}", fare.id, e);
+            final String fareId = fare.id;
+            Base.haltWithConflict(fare.feedId, "Feed was modified concurrently", tx -> tx.fares.get(fareId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
     public static Fare updateFare(Request req, Response res) {
-        Fare fare;
-        FeedTx tx = null;
+        Fare fare = null;
 
         try {
             fare = Base.mapper.readValue(req.body(), Fare.class);
@@ -119,59 +115,63 @@ public class FareController {
                 halt(400);
             }
 
-            tx = VersionedDataStore.getFeedTx(fare.feedId);
-            if (!tx.fares.containsKey(fare.id)) {
-                halt(400);
-            }
-
-            // check if gtfsFareId is specified, if not create from DB id
-            if(fare.gtfsFareId == null) {
-                fare.gtfsFareId = "CAL_" + fare.id.toString();
-            }
+            final Fare updated = fare;
+            return VersionedDataStore.writeFeed(fare.feedId, tx -> {
+                if (!tx.fares.containsKey(updated.id)) {
+                    halt(400);
+                }
 
-            tx.fares.put(fare.id, fare);
-            tx.commit();
-            return fare;
+                return saveFare(tx, updated);
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to fare {}", fare.id, e);
+            final String fareId = fare.id;
+            Base.haltWithConflict(fare.feedId, "Fare was modified concurrently", tx -> tx.fares.get(fareId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
+    private static Fare saveFare (FeedTx tx, Fare fare) {
+        // check if gtfsFareId is specified, if not create from DB id
+        if(fare.gtfsFareId == null) {
+            fare.gtfsFareId = "CAL_" + fare.id.toString();
+        }
+
+        tx.fares.put(fare.id, fare);
+        return fare;
+    }
+
     public static Object deleteFare(Request req, Response res) {
-        Fare fare;
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
 
-        FeedTx tx = null;
+        if (feedId == null) {
+            halt(400);
+        }
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if (id == null || !tx.fares.containsKey(id)) {
-                tx.rollback();
-                halt(404);
-            }
-            fare = tx.fares.get(id);
-            tx.fares.remove(id);
-            tx.commit();
+            return VersionedDataStore.writeFeed(feedId, tx -> {
+                if (id == null || !tx.fares.containsKey(id)) {
+                    halt(404);
+                }
 
-            return fare;
+                return tx.fares.remove(id);
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting fare {}", id, e);
+            Base.haltWithConflict(feedId, "Fare was modified concurrently", tx -> tx.fares.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
-            if (tx != null) tx.rollbackIfOpen();
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
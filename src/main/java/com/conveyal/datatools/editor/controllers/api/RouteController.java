@@ -18,6 +18,7 @@ import com.conveyal.datatools.editor.models.transit.Trip;
 import com.conveyal.datatools.editor.models.transit.TripPattern;
 import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
+import org.mapdb.TxRollbackException;
 
 import java.util.Collection;
 import java.util.HashSet;
@@ -45,10 +46,12 @@ public class RouteController {
             halt(400);
         }
 
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if (id != null) {
                 if (!tx.routes.containsKey(id)) {
                     halt(400);
@@ -82,8 +85,7 @@ public class RouteController {
     }
 
     public static Route createRoute(Request req, Response res) {
-        Route route;
-        FeedTx tx = null;
+        Route route = null;
         String feedId = req.queryParams("feedId");
 
         if (feedId == null) {
@@ -96,29 +98,18 @@ public class RouteController {
             if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(route.feedId))
                 halt(400);
    
-            tx = VersionedDataStore.getFeedTx(feedId);
-            
-            if (tx.routes.containsKey(route.id)) {
-                halt(400, "Failed to create route with duplicate id");
-            }
-
-            // check if gtfsRouteId is specified, if not create from DB id
-            if(route.gtfsRouteId == null) {
-                route.gtfsRouteId = "ROUTE_" + route.id;
-            }
-            
-            tx.routes.put(route.id, route);
-            tx.commit();
-
-            return route;
+            final Route created = route;
+            return VersionedDataStore.writeFeed(feedId, tx -> insertRoute(tx, created));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating route {}", route.id, e);
+            final String routeId = route.id;
+            Base.haltWithConflict(feedId, "Feed was modified concurrently", tx -> tx.routes.get(routeId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -128,93 +119,75 @@ public class RouteController {
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
 
-        FeedTx tx = null;
         try {
             route = Base.mapper.readValue(req.body(), Route.class);
             if (feedId == null) {
                 halt(400);
             }
-            tx = VersionedDataStore.getFeedTx(feedId);
-            
-            if (!tx.routes.containsKey(id)) {
-                halt(404);
-            }
-
-            Route oldRoute = tx.routes.get(id);
-
-            // if admin-only fields have changed, double check (client should limit this too)
-            // that the user has permission to do so
-            // TODO: notify subscribers if status has changed to PENDING_APPROVAL?
-            if (route.publiclyVisible != oldRoute.publiclyVisible ||
-                    (route.status != oldRoute.status &&
-                            (route.status.equals(StatusType.APPROVED) ||
-                                    oldRoute.status.equals(StatusType.APPROVED)))) {
-                FeedSource feedSource = Persistence.feedSources.getById(feedId);
-                Auth0UserProfile userProfile = req.attribute("user");
-
-                if (!userProfile.canApproveGTFS(feedSource.organizationId(), feedSource.projectId, feedId)) {
-                    halt(403, SparkUtils.formatJSON("User does not have permission to change status of route", 403));
-                }
-            }
-
-            // check if gtfsRouteId is specified, if not create from DB id
-            if(route.gtfsRouteId == null) {
-                route.gtfsRouteId = "ROUTE_" + id;
-            }
-            
-            tx.routes.put(id, route);
-            tx.commit();
-
-            return route;
+            final Route updated = route;
+            return VersionedDataStore.writeFeed(feedId, tx -> replaceRoute(req, feedId, tx, id, updated));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to route {}", id, e);
+            Base.haltWithConflict(feedId, "Route was modified concurrently", tx -> tx.routes.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
     public static Route uploadRouteBranding(Request req, Response res) {
-        Route route;
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
 
-        FeedTx tx = null;
-
         try {
             if (feedId == null) {
                 halt(400);
             }
 
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if (!tx.routes.containsKey(id)) {
-                halt(404);
+            FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+            try {
+                if (!tx.routes.containsKey(id)) {
+                    halt(404);
+                }
+            } finally {
+                tx.rollbackIfOpen();
             }
 
-            route = tx.routes.get(id);
-
+            // upload before the write, which may be retried
             String url = S3Utils.uploadBranding(req, id);
 
-            // set routeBrandingUrl to s3 location
-            route.routeBrandingUrl = url;
+            return VersionedDataStore.writeFeed(feedId, wtx -> {
+                if (!wtx.routes.containsKey(id)) {
+                    halt(404);
+                }
+
+                Route route;
+                try {
+                    route = wtx.routes.get(id).clone();
+                } catch (CloneNotSupportedException e) {
+                    // not likely
+                    throw new RuntimeException(e);
+                }
 
-            tx.routes.put(id, route);
-            tx.commit();
+                // set routeBrandingUrl to s3 location
+                route.routeBrandingUrl = url;
 
-            return route;
+                wtx.routes.put(id, route);
+                return route;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to route {}", id, e);
+            Base.haltWithConflict(feedId, "Route was modified concurrently", tx -> tx.routes.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -229,45 +202,97 @@ public class RouteController {
         if(id == null || feedId == null)
             halt(400);
 
-        FeedTx tx = null;
-        
+        final String routeFeedId = feedId;
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if (!tx.routes.containsKey(id)) {
-                halt(404);
-            }
-            
-            Route r = tx.routes.get(id);
-
-            // delete affected trips
-            Set<Tuple2<String, String>> affectedTrips = tx.tripsByRoute.subSet(new Tuple2(r.id, null), new Tuple2(r.id, Fun.HI));
-            for (Tuple2<String, String> trip : affectedTrips) {
-                tx.trips.remove(trip.b);
-            }
-            
-            // delete affected patterns
-            // note that all the trips on the patterns will have already been deleted above
-            Set<Tuple2<String, String>> affectedPatts = tx.tripPatternsByRoute.subSet(new Tuple2(r.id, null), new Tuple2(r.id, Fun.HI));
-            for (Tuple2<String, String> tp : affectedPatts) {
-                tx.tripPatterns.remove(tp.b);
-            }
-            
-            tx.routes.remove(id);
-            tx.commit();
-            return r; // ok();
+            return VersionedDataStore.writeFeed(feedId, tx -> removeRoute(tx, id));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting route {}", id, e);
+            Base.haltWithConflict(routeFeedId, "Route was modified concurrently", tx -> tx.routes.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(404, e.getMessage());
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
     
+    /** add a new route to a feed */
+    static Route insertRoute (FeedTx tx, Route route) {
+        if (tx.routes.containsKey(route.id)) {
+            halt(400, "Failed to create route with duplicate id");
+        }
+
+        // check if gtfsRouteId is specified, if not create from DB id
+        if(route.gtfsRouteId == null) {
+            route.gtfsRouteId = "ROUTE_" + route.id;
+        }
+
+        tx.routes.put(route.id, route);
+        return route;
+    }
+
+    /**
+     * Replace the route with the given ID. Changing whether the route is publicly visible or approved requires
+     * permission to approve GTFS for the feed.
+     */
+    static Route replaceRoute (Request req, String feedId, FeedTx tx, String id, Route route) {
+        if (!tx.routes.containsKey(id)) {
+            halt(404);
+        }
+
+        Route oldRoute = tx.routes.get(id);
+
+        // if admin-only fields have changed, double check (client should limit this too)
+        // that the user has permission to do so
+        // TODO: notify subscribers if status has changed to PENDING_APPROVAL?
+        if (route.publiclyVisible != oldRoute.publiclyVisible ||
+                (route.status != oldRoute.status &&
+                        (route.status.equals(StatusType.APPROVED) ||
+                                oldRoute.status.equals(StatusType.APPROVED)))) {
+            FeedSource feedSource = Persistence.feedSources.getById(feedId);
+            Auth0UserProfile userProfile = req.attribute("user");
+
+            if (!userProfile.canApproveGTFS(feedSource.organizationId(), feedSource.projectId, feedId)) {
+                halt(403, SparkUtils.formatJSON("User does not have permission to change status of route", 403));
+            }
+        }
+
+        // check if gtfsRouteId is specified, if not create from DB id
+        if(route.gtfsRouteId == null) {
+            route.gtfsRouteId = "ROUTE_" + id;
+        }
+
+        tx.routes.put(id, route);
+        return route;
+    }
+
+    /** delete a route with its trip patterns and trips */
+    static Route removeRoute (FeedTx tx, String id) {
+        if (!tx.routes.containsKey(id)) {
+            halt(404);
+        }
+
+        Route r = tx.routes.get(id);
+
+        // delete affected trips
+        Set<Tuple2<String, String>> affectedTrips = tx.tripsByRoute.subSet(new Tuple2(r.id, null), new Tuple2(r.id, Fun.HI));
+        for (Tuple2<String, String> trip : affectedTrips) {
+            tx.trips.remove(trip.b);
+        }
+
+        // delete affected patterns
+        // note that all the trips on the patterns will have already been deleted above
+        Set<Tuple2<String, String>> affectedPatts = tx.tripPatternsByRoute.subSet(new Tuple2(r.id, null), new Tuple2(r.id, Fun.HI));
+        for (Tuple2<String, String> tp : affectedPatts) {
+            tx.tripPatterns.remove(tp.b);
+        }
+
+        tx.routes.remove(id);
+        return r;
+    }
+
     /** merge route from into route into, for the given agency ID */
     public static Object mergeRoutes (Request req, Response res) {
         String from = req.queryParams("from");
@@ -281,71 +306,72 @@ public class RouteController {
         if (feedId == null || from == null || into == null)
             halt(400);
 
-        final FeedTx tx = VersionedDataStore.getFeedTx(feedId);
-
+        final String routeFeedId = feedId;
         try {
-            // ensure the routes exist
-            if (!tx.routes.containsKey(from) || !tx.routes.containsKey(into)) {
-                halt(400);
-            }
-
-            // retrieveById all the trip patterns for route from
-            // note that we clone them here so we can later modify them
-            Collection<TripPattern> tps = Collections2.transform(
-                    tx.tripPatternsByRoute.subSet(new Tuple2(from, null), new Tuple2(from, Fun.HI)),
-                    // NOTE: this function cannot be replace with lambda due to type issues
-                    new Function<Tuple2<String, String>, TripPattern>() {
-                        @Override
-                        public TripPattern apply(Tuple2<String, String> input) {
-                            try {
-                                return tx.tripPatterns.get(input.b).clone();
-                            } catch (CloneNotSupportedException e) {
-                                // TODO Auto-generated catch block
-                                e.printStackTrace();
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    });
-
-             for (TripPattern tp : tps) {
-                 tp.routeId = into;
-                 tx.tripPatterns.put(tp.id, tp);
-             }
-
-             // now move all the trips
-             Collection<Trip> ts = Collections2.transform(
-                     tx.tripsByRoute.subSet(new Tuple2(from, null), new Tuple2(from, Fun.HI)),
-                     // NOTE: this function cannot be replace with lambda due to type issues
-                     new Function<Tuple2<String, String>, Trip>() {
-                         @Override
-                         public Trip apply(Tuple2<String, String> input) {
-                             try {
-                                return tx.trips.get(input.b).clone();
-                            } catch (CloneNotSupportedException e) {
-                                e.printStackTrace();
-                                throw new RuntimeException(e);
-                            }
-                         }
-                     });
-
-             for (Trip t : ts) {
-                 t.routeId = into;
-                 tx.trips.put(t.id, t);
-             }
-
-             tx.routes.remove(from);
-
-             tx.commit();
-             return true; // ok();
+            return VersionedDataStore.writeFeed(feedId, tx -> mergeRoute(tx, from, into));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications merging route {} into {}", from, into, e);
+            Base.haltWithConflict(routeFeedId, "Routes were modified concurrently", tx -> tx.routes.get(into));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw e;
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
+        return null;
+    }
+
+    /** move the trip patterns and trips of route from to route into, and delete route from */
+    static boolean mergeRoute (FeedTx tx, String from, String into) {
+        // ensure the routes exist
+        if (!tx.routes.containsKey(from) || !tx.routes.containsKey(into)) {
+            halt(400);
+        }
+
+        // retrieveById all the trip patterns for route from
+        // note that we clone them here so we can later modify them
+        Collection<TripPattern> tps = Collections2.transform(
+                tx.tripPatternsByRoute.subSet(new Tuple2(from, null), new Tuple2(from, Fun.HI)),
+                // NOTE: this function cannot be replace with lambda due to type issues
+                new Function<Tuple2<String, String>, TripPattern>() {
+                    @Override
+                    public TripPattern apply(Tuple2<String, String> input) {
+                        try {
+                            return tx.tripPatterns.get(input.b).clone();
+                        } catch (CloneNotSupportedException e) {
+                            // TODO Auto-generated catch block
+                            e.printStackTrace();
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+
+        for (TripPattern tp : tps) {
+            tp.routeId = into;
+            tx.tripPatterns.put(tp.id, tp);
+        }
+
+        // now move all the trips
+        Collection<Trip> ts = Collections2.transform(
+                tx.tripsByRoute.subSet(new Tuple2(from, null), new Tuple2(from, Fun.HI)),
+                // NOTE: this function cannot be replace with lambda due to type issues
+                new Function<Tuple2<String, String>, Trip>() {
+                    @Override
+                    public Trip apply(Tuple2<String, String> input) {
+                        try {
+                            return tx.trips.get(input.b).clone();
+                        } catch (CloneNotSupportedException e) {
+                            e.printStackTrace();
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+
+        for (Trip t : ts) {
+            t.routeId = into;
+            tx.trips.put(t.id, t);
+        }
+
+        tx.routes.remove(from);
+        return true;
     }
 
     public static void register (String apiPrefix) {
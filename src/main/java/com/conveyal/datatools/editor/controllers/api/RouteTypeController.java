@@ -10,6 +10,8 @@ import com.conveyal.datatools.manager.utils.json.JsonManager;
 import spark.Request;
 import spark.Response;
 
+import java.util.Map;
+
 import static spark.Spark.*;
 
 
@@ -20,19 +22,17 @@ public class RouteTypeController {
         String id = req.params("id");
         Object json = null;
         try {
-            GlobalTx tx = VersionedDataStore.getGlobalTx();
+            // route types are cached, so reading them needs no transaction
+            Map<String, RouteType> routeTypes = VersionedDataStore.getRouteTypes();
 
             if(id != null) {
-                if(tx.routeTypes.containsKey(id))
-                    json = Base.toJson(tx.routeTypes.get(id), false);
+                if(routeTypes.containsKey(id))
+                    json = Base.toJson(routeTypes.get(id), false);
                 else
                     halt(404);
-
-                tx.rollback();
             }
             else {
-                json = Base.toJson(tx.routeTypes.values(), false);
-                tx.rollback();
+                json = Base.toJson(routeTypes.values(), false);
             }
         } catch (Exception e) {
             e.printStackTrace();
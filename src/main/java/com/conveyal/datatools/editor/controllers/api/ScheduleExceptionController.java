@@ -9,6 +9,7 @@ import java.util.ArrayList;
 
 import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.HaltException;
@@ -34,10 +35,12 @@ public class ScheduleExceptionController {
             halt(400);
         }
 
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
 
             if (exceptionId != null) {
                 if (!tx.exceptions.containsKey(exceptionId))
@@ -61,9 +64,9 @@ public class ScheduleExceptionController {
     }
     
     public static Object createScheduleException (Request req, Response res) {
-        FeedTx tx = null;
+        ScheduleException ex = null;
         try {
-            ScheduleException ex = Base.mapper.readValue(req.body(), ScheduleException.class);
+            ex = Base.mapper.readValue(req.body(), ScheduleException.class);
 
             if (!VersionedDataStore.feedExists(ex.feedId)) {
                 halt(400);
@@ -72,62 +75,42 @@ public class ScheduleExceptionController {
             if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(ex.feedId))
                 halt(400);
 
-            tx = VersionedDataStore.getFeedTx(ex.feedId);
+            final ScheduleException created = ex;
+            return VersionedDataStore.writeFeed(ex.feedId, tx -> {
+                validateCalendars(tx, created);
 
-            if (ex.customSchedule != null) {
-                for (String cal : ex.customSchedule) {
-                    if (!tx.calendars.containsKey(cal)) {
-                        halt(400);
-                    }
-                }
-            }
-            if (ex.addedService != null) {
-                for (String cal : ex.addedService) {
-                    if (!tx.calendars.containsKey(cal)) {
-                        halt(400);
-                    }
-                }
-            }
-            if (ex.removedService != null) {
-                for (String cal : ex.removedService) {
-                    if (!tx.calendars.containsKey(cal)) {
-                        halt(400);
-                    }
+                if (tx.exceptions.containsKey(created.id)) {
+                    halt(400);
                 }
-            }
-
-            if (tx.exceptions.containsKey(ex.id)) {
-                halt(400);
-            }
-            if (ex.dates != null) {
-                for (LocalDate date : ex.dates) {
-                    if (tx.scheduleExceptionCountByDate.containsKey(date) && tx.scheduleExceptionCountByDate.get(date) > 0) {
-                        halt(400);
+                if (created.dates != null) {
+                    for (LocalDate date : created.dates) {
+                        if (tx.scheduleExceptionCountByDate.containsKey(date) && tx.scheduleExceptionCountByDate.get(date) > 0) {
+                            halt(400);
+                        }
                     }
                 }
-            }
-
-            tx.exceptions.put(ex.id, ex);
 
-            tx.commit();
-
-            return ex;
+                tx.exceptions.put(created.id, created);
+                return created;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating schedule exception {}", ex.id, e);
+            final String exceptionId = ex.id;
+            Base.haltWithConflict(ex.feedId, "Feed was modified concurrently", tx -> tx.exceptions.get(exceptionId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
     
     public static Object updateScheduleException (Request req, Response res) {
-        FeedTx tx = null;
+        ScheduleException ex = null;
         try {
-            ScheduleException ex = Base.mapper.readValue(req.body(), ScheduleException.class);
+            ex = Base.mapper.readValue(req.body(), ScheduleException.class);
 
             if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(ex.feedId))
                 halt(400);
@@ -136,50 +119,55 @@ public class ScheduleExceptionController {
                 halt(400);
             }
 
-            tx = VersionedDataStore.getFeedTx(ex.feedId);
+            final ScheduleException updated = ex;
+            return VersionedDataStore.writeFeed(ex.feedId, tx -> {
+                validateCalendars(tx, updated);
 
-            if (ex.customSchedule != null) {
-                for (String cal : ex.customSchedule) {
-                    if (!tx.calendars.containsKey(cal)) {
-                        halt(400);
-                    }
-                }
-            }
-            if (ex.addedService != null) {
-                for (String cal : ex.addedService) {
-                    if (!tx.calendars.containsKey(cal)) {
-                        halt(400);
-                    }
-                }
-            }
-            if (ex.removedService != null) {
-                for (String cal : ex.removedService) {
-                    if (!tx.calendars.containsKey(cal)) {
-                        halt(400);
-                    }
+                if (!tx.exceptions.containsKey(updated.id)) {
+                    halt(400);
                 }
-            }
-
-            if (!tx.exceptions.containsKey(ex.id)) {
-                halt(400);
-            }
 
-            tx.exceptions.put(ex.id, ex);
-
-            tx.commit();
-
-            return ex;
+                tx.exceptions.put(updated.id, updated);
+                return updated;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to schedule exception {}", ex.id, e);
+            final String exceptionId = ex.id;
+            Base.haltWithConflict(ex.feedId, "Schedule exception was modified concurrently", tx -> tx.exceptions.get(exceptionId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
+
+    /** halt if a schedule exception refers to calendars that do not exist */
+    private static void validateCalendars (FeedTx tx, ScheduleException ex) {
+        if (ex.customSchedule != null) {
+            for (String cal : ex.customSchedule) {
+                if (!tx.calendars.containsKey(cal)) {
+                    halt(400);
+                }
+            }
+        }
+        if (ex.addedService != null) {
+            for (String cal : ex.addedService) {
+                if (!tx.calendars.containsKey(cal)) {
+                    halt(400);
+                }
+            }
+        }
+        if (ex.removedService != null) {
+            for (String cal : ex.removedService) {
+                if (!tx.calendars.containsKey(cal)) {
+                    halt(400);
+                }
+            }
+        }
+    }
     
     public static Object deleteScheduleException (Request req, Response res) {
         String id = req.params("id");
@@ -191,22 +179,19 @@ public class ScheduleExceptionController {
         if (feedId == null) {
             halt(400);
         }
-        FeedTx tx = null;
-        try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-            ScheduleException ex = tx.exceptions.get(id);
-            tx.exceptions.remove(id);
-            tx.commit();
 
-            return ex; // ok();
+        final String exceptionFeedId = feedId;
+        try {
+            return VersionedDataStore.writeFeed(feedId, tx -> tx.exceptions.remove(id));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting schedule exception {}", id, e);
+            Base.haltWithConflict(exceptionFeedId, "Schedule exception was modified concurrently", tx -> tx.exceptions.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
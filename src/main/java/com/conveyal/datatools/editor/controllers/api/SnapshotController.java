@@ -7,7 +7,8 @@ import com.amazonaws.auth.policy.Statement;
 import com.amazonaws.auth.policy.actions.S3Actions;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.conveyal.datatools.editor.controllers.Base;
-import com.conveyal.datatools.editor.datastore.GlobalTx;
+import com.conveyal.datatools.editor.datastore.FeedDiff;
+import com.conveyal.datatools.editor.datastore.FeedSnapshotsTx;
 import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.jobs.ProcessGtfsSnapshotExport;
 import com.conveyal.datatools.editor.jobs.ProcessGtfsSnapshotMerge;
@@ -23,7 +24,6 @@ import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.persistence.FeedStore;
 import com.conveyal.datatools.manager.persistence.Persistence;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
-import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,10 +31,7 @@ import com.conveyal.datatools.editor.utils.JacksonSerializers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import spark.HaltException;
 import spark.Request;
@@ -56,13 +53,12 @@ public class SnapshotController {
         String id = req.params("id");
         String feedId= req.queryParams("feedId");
 
-        GlobalTx gtx = null;
         try {
-            gtx = VersionedDataStore.getGlobalTx();
             if (id != null) {
                 Tuple2<String, Integer> sid = JacksonSerializers.Tuple2IntDeserializer.deserialize(id);
-                if (gtx.snapshots.containsKey(sid))
-                    return gtx.snapshots.get(sid);
+                Snapshot snapshot = Snapshot.get(sid);
+                if (snapshot != null)
+                    return snapshot;
                 else
                     halt(404);
             }
@@ -70,52 +66,35 @@ public class SnapshotController {
                 if (feedId == null)
                     feedId = req.session().attribute("feedId");
 
-                Collection<Snapshot> snapshots;
                 if (feedId == null) {
                     // if it's still null just give them everything
                     // this is used in GTFS Data Manager to retrieveById snapshots in bulk
                     // TODO this allows any authenticated user to fetch GTFS data for any agency
-                    return new ArrayList<>(gtx.snapshots.values());
+                    return VersionedDataStore.getAllSnapshots();
                 }
                 else {
                     // check view permissions
                     FeedSourceController.checkFeedSourcePermissions(req, Persistence.feedSources.getById(feedId), "view");
-                    return gtx.snapshots.subMap(new Tuple2(feedId, null), new Tuple2(feedId, Fun.HI)).values()
-                            .stream()
-                            .collect(Collectors.toList());
+                    return VersionedDataStore.getSnapshots(feedId);
                 }
             }
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
-        } finally {
-            if (gtx != null) gtx.rollbackIfOpen();
         }
         return null;
     }
 
     public static Object createSnapshot (Request req, Response res) {
-        GlobalTx gtx = null;
         try {
             // create a dummy snapshot from which to retrieveById values
             Snapshot original = Base.mapper.readValue(req.body(), Snapshot.class);
             Snapshot s = VersionedDataStore.takeSnapshot(original.feedId, original.name, original.comment);
             s.validFrom = original.validFrom;
             s.validTo = original.validTo;
-            gtx = VersionedDataStore.getGlobalTx();
 
             // the snapshot we have just taken is now current; make the others not current
-            Collection<Snapshot> snapshots = gtx.snapshots.subMap(new Tuple2(s.feedId, null), new Tuple2(s.feedId, Fun.HI)).values();
-            for (Snapshot o : snapshots) {
-                if (o.id.equals(s.id))
-                    continue;
-
-                Snapshot cloned = o.clone();
-                cloned.current = false;
-                gtx.snapshots.put(o.id, cloned);
-            }
-
-            gtx.commit();
+            Snapshot.deactivateSnapshots(s.feedId, s);
 
             return s;
         } catch (HaltException e) {
@@ -124,8 +103,6 @@ public class SnapshotController {
         } catch (IOException e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (gtx != null) gtx.rollbackIfOpen();
         }
         return null;
     }
@@ -162,7 +139,7 @@ public class SnapshotController {
 
     public static Object updateSnapshot (Request req, Response res) {
         String id = req.params("id");
-        GlobalTx gtx = null;
+        FeedSnapshotsTx stx = null;
         try {
             Snapshot s = Base.mapper.readValue(req.body(), Snapshot.class);
 
@@ -173,14 +150,13 @@ public class SnapshotController {
                 halt(400);
             }
 
-            gtx = VersionedDataStore.getGlobalTx();
-
-            if (!gtx.snapshots.containsKey(s.id)) {
+            if (Snapshot.get(s.id) == null) {
                 halt(404);
             }
 
-            gtx.snapshots.put(s.id, s);
-            gtx.commit();
+            stx = VersionedDataStore.getFeedSnapshotsTx(s.id.a);
+            stx.snapshots.put(s.id.b, s);
+            stx.commit();
             return s;
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
@@ -189,7 +165,39 @@ public class SnapshotController {
             e.printStackTrace();
             halt(400);
         } finally {
-            if (gtx != null) gtx.rollbackIfOpen();
+            if (stx != null) stx.rollbackIfOpen();
+        }
+        return null;
+    }
+
+    /**
+     * Get the differences between the snapshot given by the id parameter and the snapshot of the same feed given by the
+     * to parameter or, if to is not given, the feed as it is now (see VersionedDataStore.diff).
+     */
+    public static FeedDiff getSnapshotDiff (Request req, Response res) {
+        Tuple2<String, Integer> fromId = null;
+        Tuple2<String, Integer> toId = null;
+        try {
+            fromId = JacksonSerializers.Tuple2IntDeserializer.deserialize(req.params("id"));
+            if (req.queryParams("to") != null)
+                toId = JacksonSerializers.Tuple2IntDeserializer.deserialize(req.queryParams("to"));
+        } catch (IOException e) {
+            halt(400, SparkUtils.formatJSON("Invalid snapshot ID"));
+        }
+
+        if (Snapshot.get(fromId) == null || (toId != null && Snapshot.get(toId) == null)) {
+            halt(404, SparkUtils.formatJSON("Snapshot does not exist"));
+        }
+
+        if (toId != null && !fromId.a.equals(toId.a)) {
+            halt(400, SparkUtils.formatJSON("Snapshots must be of the same feed"));
+        }
+
+        try {
+            return VersionedDataStore.diff(fromId.a, fromId.b, toId != null ? toId.b : null);
+        } catch (Exception e) {
+            LOG.error("Could not compare snapshot {}", req.params("id"), e);
+            halt(400, SparkUtils.formatJSON("Could not compare snapshots"));
         }
         return null;
     }
@@ -203,43 +211,28 @@ public class SnapshotController {
             halt(400);
         }
 
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        Snapshot local;
-        try {
-            if (!gtx.snapshots.containsKey(decodedId)) {
-                halt(404);
-            }
-
-            local = gtx.snapshots.get(decodedId);
+        Snapshot local = Snapshot.get(decodedId);
+        if (local == null) {
+            halt(404);
+        }
 
+        try {
             List<Stop> stops = VersionedDataStore.restore(local);
 
             // the snapshot we have just restored is now current; make the others not current
-            // TODO: add this loop back in... taken out in order to compile
-            Collection<Snapshot> snapshots = Snapshot.getSnapshots(local.feedId);
-            for (Snapshot o : snapshots) {
-                if (o.id.equals(local.id))
-                    continue;
-
-                Snapshot cloned = o.clone();
-                cloned.current = false;
-                gtx.snapshots.put(o.id, cloned);
-            }
-
-            Snapshot clone = local.clone();
-            clone.current = true;
-            gtx.snapshots.put(local.id, clone);
-            gtx.commit();
+            Snapshot.deactivateSnapshots(local.feedId, local);
 
             return stops;
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
+        } catch (IllegalStateException e) {
+            // e.g. the feed was still being edited, so its database could not be replaced
+            LOG.warn("Could not restore snapshot {}", id, e);
+            halt(409, SparkUtils.formatJSON(e.getMessage(), 409));
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            gtx.rollbackIfOpen();
         }
         return json;
     }
@@ -258,26 +251,17 @@ public class SnapshotController {
             return null;
         }
 
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        Snapshot snapshot;
-        String filePrefix;
-        String key;
-
         // check that snapshot exists for the id
-        try {
-            if (!gtx.snapshots.containsKey(decodedId)) {
-                halt(404);
-                return null;
-            }
-            snapshot = gtx.snapshots.get(decodedId);
-            filePrefix = snapshot.feedId + "_" + snapshot.snapshotTime;
-            key = "snapshots/" + filePrefix + ".zip";
-
-            // ensure user has permission to download snapshot, otherwise halt them
-            FeedSourceController.checkFeedSourcePermissions(req, Persistence.feedSources.getById(snapshot.feedId), "view");
-        } finally {
-            gtx.rollbackIfOpen();
+        Snapshot snapshot = Snapshot.get(decodedId);
+        if (snapshot == null) {
+            halt(404);
+            return null;
         }
+        String filePrefix = snapshot.feedId + "_" + snapshot.snapshotTime;
+        String key = "snapshots/" + filePrefix + ".zip";
+
+        // ensure user has permission to download snapshot, otherwise halt them
+        FeedSourceController.checkFeedSourcePermissions(req, Persistence.feedSources.getById(snapshot.feedId), "view");
         // if storing feeds on S3, first write the snapshot to GTFS file and upload to S3
         // this needs to be completed before the credentials are delivered, so that the client has
         // an actual object to download.
@@ -320,10 +304,12 @@ public class SnapshotController {
             return null;
         }
 
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-
-        gtx.snapshots.remove(decodedId);
-        gtx.commit();
+        // don't create a snapshot metadata database just to remove nothing from it
+        if (Snapshot.get(decodedId) != null) {
+            FeedSnapshotsTx stx = VersionedDataStore.getFeedSnapshotsTx(decodedId.a);
+            stx.snapshots.remove(decodedId.b);
+            stx.commit();
+        }
 
         return true;
     }
@@ -364,6 +350,7 @@ public class SnapshotController {
         post(apiPrefix + "secure/snapshot/import", SnapshotController::importSnapshot, json::write);
         put(apiPrefix + "secure/snapshot/:id", SnapshotController::updateSnapshot, json::write);
         post(apiPrefix + "secure/snapshot/:id/restore", SnapshotController::restoreSnapshot, json::write);
+        get(apiPrefix + "secure/snapshot/:id/diff", SnapshotController::getSnapshotDiff, json::write);
         get(apiPrefix + "secure/snapshot/:id/downloadtoken", SnapshotController::getSnapshotToken, json::write);
         delete(apiPrefix + "secure/snapshot/:id", SnapshotController::deleteSnapshot, json::write);
 
@@ -6,6 +6,7 @@ import com.conveyal.datatools.manager.utils.json.JsonManager;
 import com.conveyal.datatools.editor.controllers.Base;
 import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.models.transit.*;
+import com.vividsolutions.jts.geom.Coordinate;
 import org.geotools.referencing.GeodeticCalculator;
 
 import java.io.IOException;
@@ -17,6 +18,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.json.simple.JSONObject;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.HaltException;
@@ -54,7 +56,9 @@ public class StopController {
             halt(400);
         }
 
-        final FeedTx tx = VersionedDataStore.getFeedTx(feedId);
+        Base.checkETag(req, res, feedId);
+
+        final FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
  
         try {
               if (id != null) {
@@ -91,8 +95,7 @@ public class StopController {
             }
             // return all
             else {
-                  Collection<Stop> matchedStops = new ArrayList<>(tx.stops.values());
-                  return matchedStops;
+                  return Base.writeCollection(req, res, tx.stops, json);
             }
 
         } catch (HaltException e) {
@@ -108,9 +111,9 @@ public class StopController {
     }
 
     public static Object createStop(Request req, Response res) {
-        FeedTx tx = null;
+        Stop stop = null;
         try {
-            Stop stop = Base.mapper.readValue(req.body(), Stop.class);
+            stop = Base.mapper.readValue(req.body(), Stop.class);
             
             if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(stop.feedId))
                 halt(400);
@@ -119,15 +122,12 @@ public class StopController {
                 halt(400, "Stop must reference feed source ID");
             }
             
-            tx = VersionedDataStore.getFeedTx(stop.feedId);
-            
-            if (tx.stops.containsKey(stop.id)) {
-                halt(400);
-            }
-            
-            tx.stops.put(stop.id, stop);
-            tx.commit();
-            return stop;
+            final Stop created = stop;
+            return VersionedDataStore.writeFeed(stop.feedId, tx -> insertStop(tx, created));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating stop {}", stop.id, e);
+            final String stopId = stop.id;
+            Base.haltWithConflict(stop.feedId, "Feed was modified concurrently", tx -> tx.stops.get(stopId));
         } catch (IOException e) {
             e.printStackTrace();
             halt(400);
@@ -136,6 +136,59 @@ public class StopController {
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
+            halt(400);
+        }
+        return null;
+    }
+
+    /**
+     * Get the k stops nearest to a point (lat, lon), nearest first. If a patternId is given instead, return the k stops
+     * nearest to each vertex of the pattern shape, in the order of the vertices, for snapping the shape to stops.
+     * maxDistance (meters) optionally limits how far away stops may be.
+     */
+    public static Object getNearestStops(Request req, Response res) {
+        String feedId = req.queryParams("feedId");
+        String patternId = req.queryParams("patternId");
+        int k = req.queryParams("k") != null ? Integer.parseInt(req.queryParams("k")) : 1;
+        double maxDistance = req.queryParams("maxDistance") != null ? Double.parseDouble(req.queryParams("maxDistance")) : Double.POSITIVE_INFINITY;
+
+        if (feedId == null || k < 1) {
+            halt(400);
+        }
+
+        if (patternId == null && (req.queryParams("lat") == null || req.queryParams("lon") == null)) {
+            halt(400, "Must provide lat and lon, or pattern ID");
+        }
+
+        FeedTx tx = null;
+        try {
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+
+            if (patternId == null) {
+                double lat = Double.parseDouble(req.queryParams("lat"));
+                double lon = Double.parseDouble(req.queryParams("lon"));
+                return tx.getNearestStops(lat, lon, k, maxDistance);
+            }
+
+            if (!tx.tripPatterns.containsKey(patternId)) {
+                halt(404);
+            }
+
+            TripPattern pattern = tx.tripPatterns.get(patternId);
+
+            List<List<Stop>> ret = new ArrayList<>();
+            if (pattern.shape != null) {
+                for (Coordinate coord : pattern.shape.getCoordinates()) {
+                    ret.add(tx.getNearestStops(coord.y, coord.x, k, maxDistance));
+                }
+            }
+            return ret;
+        } catch (HaltException e) {
+            LOG.error("Halt encountered", e);
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            halt(400);
         } finally {
             if (tx != null) tx.rollbackIfOpen();
         }
@@ -155,7 +208,7 @@ public class StopController {
 
         FeedTx tx = null;
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if (!tx.stops.containsKey(id)) {
                 halt(404);
             }
@@ -173,7 +226,6 @@ public class StopController {
 
 
     public static Object updateStop(Request req, Response res) throws IOException {
-        FeedTx tx = null;
         Stop stop = Base.mapper.readValue(req.body(), Stop.class);
         String feedId = req.queryParams("feedId");
         if (feedId == null) {
@@ -184,22 +236,15 @@ public class StopController {
             halt(400, "Feed ID ("+feedId+") does not exist");
         }
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if (!tx.stops.containsKey(stop.id)) {
-                halt(400);
-            }
-
-            tx.stops.put(stop.id, stop);
-            tx.commit();
-            return stop;
+            return VersionedDataStore.writeFeed(feedId, tx -> replaceStop(tx, stop));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to stop {}", stop.id, e);
+            Base.haltWithConflict(feedId, "Stop was modified concurrently", tx -> tx.stops.get(stop.id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -212,33 +257,17 @@ public class StopController {
             halt(400);
         }
 
-        FeedTx tx = null;
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-            if (!tx.stops.containsKey(id)) {
-                halt(404);
-            }
-
-            if (!tx.getTripPatternsByStop(id).isEmpty()) {
-                Set<String> patterns = tx.getTripPatternsByStop(id).stream()
-                        .map(tripPattern -> tripPattern.name)
-                        .collect(Collectors.toSet());
-                Set<String> routes = tx.getTripPatternsByStop(id).stream()
-                        .map(tripPattern -> tripPattern.routeId)
-                        .collect(Collectors.toSet());
-                halt(400, errorMessage("Trip patterns ("+patterns.toString()+") for routes "+routes.toString()+" reference stop ID" + id));
-            }
-
-            Stop s = tx.stops.remove(id);
-            tx.commit();
-            return s;
+            return VersionedDataStore.writeFeed(feedId, tx -> removeStop(tx, id));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting stop {}", id, e);
+            Base.haltWithConflict(feedId, "Stop was modified concurrently", tx -> tx.stops.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
+            halt(400);
         }
         return null;
     }
@@ -251,6 +280,45 @@ public class StopController {
     }
 
 
+    /** add a new stop to a feed */
+    static Stop insertStop (FeedTx tx, Stop stop) {
+        if (tx.stops.containsKey(stop.id)) {
+            halt(400);
+        }
+
+        tx.stops.put(stop.id, stop);
+        return stop;
+    }
+
+    /** replace an existing stop */
+    static Stop replaceStop (FeedTx tx, Stop stop) {
+        if (!tx.stops.containsKey(stop.id)) {
+            halt(400);
+        }
+
+        tx.stops.put(stop.id, stop);
+        return stop;
+    }
+
+    /** delete a stop, which must not be used by any trip patterns */
+    static Stop removeStop (FeedTx tx, String id) {
+        if (!tx.stops.containsKey(id)) {
+            halt(404);
+        }
+
+        if (!tx.getTripPatternsByStop(id).isEmpty()) {
+            Set<String> patterns = tx.getTripPatternsByStop(id).stream()
+                    .map(tripPattern -> tripPattern.name)
+                    .collect(Collectors.toSet());
+            Set<String> routes = tx.getTripPatternsByStop(id).stream()
+                    .map(tripPattern -> tripPattern.routeId)
+                    .collect(Collectors.toSet());
+            halt(400, errorMessage("Trip patterns ("+patterns.toString()+") for routes "+routes.toString()+" reference stop ID" + id));
+        }
+
+        return tx.stops.remove(id);
+    }
+
     public static Object findDuplicateStops(Request req, Response res) {
         String feedId = req.queryParams("feedId");
 
@@ -261,7 +329,7 @@ public class StopController {
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
 
             List<List<Stop>> ret = new ArrayList<List<Stop>>();
 
@@ -323,19 +391,21 @@ public class StopController {
             halt(400);
         }
 
-        FeedTx tx = null;
-
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-            Stop.merge(mergedStopIds, tx);
-            tx.commit();
-            return true;
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
+            return VersionedDataStore.writeFeed(feedId, tx -> {
+                Stop.merge(mergedStopIds, tx);
+                return true;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications merging stops {}", mergedStopIds, e);
+            Base.haltWithConflict(feedId, "Stops were modified concurrently", tx -> tx.stops.get(mergedStopIds.get(0)));
         }
+        return null;
     }
 
     public static void register (String apiPrefix) {
+        // must be registered before secure/stop/:id so that "nearest" is not treated as a stop ID
+        get(apiPrefix + "secure/stop/nearest", StopController::getNearestStops, json::write);
         get(apiPrefix + "secure/stop/:id", StopController::getStop, json::write);
         get(apiPrefix + "secure/stop/:id/patterns", StopController::getPatternsForStop, json::write);
         options(apiPrefix + "secure/stop", (q, s) -> "");
@@ -0,0 +1,343 @@
+package com.conveyal.datatools.editor.controllers.api;
+
+import com.conveyal.datatools.common.utils.SparkUtils;
+import com.conveyal.datatools.editor.controllers.Base;
+import com.conveyal.datatools.editor.datastore.FeedTx;
+import com.conveyal.datatools.editor.datastore.VersionedDataStore;
+import com.conveyal.datatools.editor.models.transit.Route;
+import com.conveyal.datatools.editor.models.transit.Stop;
+import com.conveyal.datatools.editor.models.transit.TripPattern;
+import com.conveyal.datatools.editor.models.transit.TripPatternStop;
+import com.conveyal.datatools.editor.utils.VectorTileEncoder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+
+import static spark.Spark.*;
+
+/**
+ * Serves the stops and trip pattern geometries of a feed as Mapbox Vector Tiles, so that the editor map can draw a
+ * large feed at any zoom level without downloading every stop and pattern shape as JSON. Pattern geometries are
+ * simplified to the resolution of the tile, and stops are only included from MIN_STOP_ZOOM.
+ *
+ * The pattern geometries of each feed are kept in memory with a spatial index, and the tiles made from them are cached,
+ * until the feed is modified (see FeedTx.getRevision). The geometries are then updated from the change log of the feed,
+ * so that one edit does not mean reading every pattern again.
+ */
+public class TileController {
+    private static final Logger LOG = LoggerFactory.getLogger(TileController.class);
+
+    /** stops are not drawn when zoomed out further than this, as they would be too dense to be useful */
+    private static final int MIN_STOP_ZOOM = 12;
+
+    private static final int MAX_ZOOM = 22;
+
+    /** features are clipped to the tile plus this margin (in tile coordinates), so lines join up across tiles */
+    private static final int BUFFER = 64;
+
+    /** tolerance for simplifying pattern geometries, in tile coordinates (a quarter of a pixel of a 256 pixel tile) */
+    private static final double SIMPLIFY_TOLERANCE = VectorTileEncoder.EXTENT / 1024.0;
+
+    private static final String STOP_LAYER = "stops";
+    private static final String PATTERN_LAYER = "patterns";
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /** pattern geometries and tiles of the feeds that have been drawn recently */
+    private static final Cache<String, FeedTiles> feedTiles = CacheBuilder.newBuilder()
+            .maximumSize(20)
+            .build();
+
+    /** Get the tile at the z, x and y parameters (y may have a .mvt extension) of the feed given by feedId. */
+    public static Object getTile(Request req, Response res) {
+        String feedId = req.queryParams("feedId");
+
+        if (feedId == null) {
+            halt(400, SparkUtils.formatJSON("Must provide feedId"));
+        }
+
+        int z = 0, x = 0, y = 0;
+        try {
+            z = Integer.parseInt(req.params("z"));
+            x = Integer.parseInt(req.params("x"));
+            y = Integer.parseInt(req.params("y").replaceFirst("\\.mvt$", ""));
+        } catch (NumberFormatException e) {
+            halt(400, SparkUtils.formatJSON("Tile coordinates must be integers"));
+        }
+
+        if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+            halt(404, SparkUtils.formatJSON("No such tile"));
+        }
+
+        Base.checkETag(req, res, feedId);
+        res.type("application/vnd.mapbox-vector-tile");
+
+        String tileKey = z + "/" + x + "/" + y;
+        FeedTiles tiles = null;
+        FeedTx tx = null;
+
+        try {
+            tiles = feedTiles.get(feedId, FeedTiles::new);
+
+            // the tile may already have been made from the current revision of the feed
+            byte[] tile = tiles.getCachedTile(tileKey, VersionedDataStore.getFeedRevision(feedId));
+            if (tile != null)
+                return tile;
+
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+            return tiles.getTile(tx, tileKey, z, x, y);
+        } catch (HaltException e) {
+            LOG.error("Halt encountered", e);
+            throw e;
+        } catch (Exception e) {
+            LOG.error("Error making tile {} of feed {}", tileKey, feedId, e);
+            halt(400, SparkUtils.formatJSON("Could not make tile"));
+        } finally {
+            if (tx != null) tx.rollbackIfOpen();
+        }
+        return null;
+    }
+
+    /** the pattern geometries of a feed, as of a revision of the feed, and the tiles made from them */
+    private static class FeedTiles {
+        /** the revision of the feed that the geometries are from, or -1 if they have not been read */
+        private long revision = -1;
+
+        /** pattern ID -> geometry */
+        private final Map<String, PatternGeometry> patterns = new HashMap<>();
+
+        /** spatial index of the pattern geometries, in longitude and latitude; replaced when they are all read again */
+        private Quadtree patternIndex = new Quadtree();
+
+        /** encoded tiles by z/x/y, for the current revision */
+        private final Cache<String, byte[]> tiles = CacheBuilder.newBuilder()
+                .maximumWeight(32 * 1024 * 1024)
+                .<String, byte[]>weigher((key, tile) -> tile.length + key.length())
+                .build();
+
+        /** get a tile if it has been made from the given revision of the feed */
+        synchronized byte[] getCachedTile (String tileKey, long revision) {
+            return revision == this.revision ? tiles.getIfPresent(tileKey) : null;
+        }
+
+        /** get a tile, bringing the geometries up to date with the feed as seen by the given transaction first */
+        synchronized byte[] getTile (FeedTx tx, String tileKey, int z, int x, int y) {
+            update(tx);
+
+            byte[] tile = tiles.getIfPresent(tileKey);
+            if (tile == null) {
+                tile = makeTile(tx, z, x, y);
+                tiles.put(tileKey, tile);
+            }
+            return tile;
+        }
+
+        /** apply the modifications made to the feed since the geometries were read, or read them all again */
+        private void update (FeedTx tx) {
+            long currentRevision = tx.getRevision();
+            if (currentRevision == revision)
+                return;
+
+            List<FeedTx.Change> changes = revision != -1 ? tx.getChangesSince(revision) : null;
+
+            if (changes == null) {
+                long startTime = System.currentTimeMillis();
+                patterns.clear();
+                patternIndex = new Quadtree();
+                for (String patternId : tx.tripPatterns.keySet()) {
+                    updatePattern(tx, patternId);
+                }
+                LOG.info("Read {} pattern geometries in {} ms", patterns.size(), System.currentTimeMillis() - startTime);
+            } else {
+                // the patterns whose geometry or attributes may have changed
+                Set<String> patternIds = new HashSet<>();
+                for (FeedTx.Change change : changes) {
+                    switch (change.type) {
+                        case "tripPatterns":
+                            patternIds.add(change.id);
+                            break;
+                        case "routes":
+                            patternIds.addAll(patternIdsFor(tx.tripPatternsByRoute, change.id));
+                            break;
+                        case "stops":
+                            // moving a stop moves the patterns that are drawn as straight lines between their stops
+                            patternIds.addAll(patternIdsFor(tx.tripPatternsByStop, change.id));
+                            break;
+                    }
+                }
+
+                for (String patternId : patternIds) {
+                    updatePattern(tx, patternId);
+                }
+            }
+
+            tiles.invalidateAll();
+            revision = currentRevision;
+        }
+
+        private static Set<String> patternIdsFor (NavigableSet<Tuple2<String, String>> index, String key) {
+            Set<String> ret = new HashSet<>();
+            for (Tuple2<String, String> t : index.subSet(new Tuple2(key, null), new Tuple2(key, Fun.HI))) {
+                ret.add(t.b);
+            }
+            return ret;
+        }
+
+        /** read the geometry of a pattern again, or remove it if the pattern has been deleted */
+        private void updatePattern (FeedTx tx, String patternId) {
+            PatternGeometry old = patterns.remove(patternId);
+            if (old != null)
+                patternIndex.remove(old.geometry.getEnvelopeInternal(), old);
+
+            TripPattern pattern = tx.tripPatterns.get(patternId);
+            if (pattern == null)
+                return;
+
+            LineString geometry = pattern.shape;
+            if (geometry == null) {
+                // draw a straight line between the stops, as the editor does
+                List<Coordinate> coords = new ArrayList<>();
+                for (TripPatternStop patternStop : pattern.patternStops) {
+                    Stop stop = tx.stops.get(patternStop.stopId);
+                    if (stop != null && stop.location != null) coords.add(stop.location.getCoordinate());
+                }
+
+                if (coords.size() < 2)
+                    return;
+
+                geometry = geometryFactory.createLineString(coords.toArray(new Coordinate[coords.size()]));
+            }
+
+            PatternGeometry pg = new PatternGeometry();
+            pg.id = pattern.id;
+            pg.name = pattern.name;
+            pg.routeId = pattern.routeId;
+            Route route = pattern.routeId != null ? tx.routes.get(pattern.routeId) : null;
+            pg.routeColor = route != null ? route.routeColor : null;
+            pg.geometry = geometry;
+
+            patterns.put(patternId, pg);
+            patternIndex.insert(geometry.getEnvelopeInternal(), pg);
+        }
+
+        private byte[] makeTile (FeedTx tx, int z, int x, int y) {
+            TileProjection projection = new TileProjection(z, x, y);
+            Envelope bounds = projection.getBufferedBounds();
+            Geometry clip = geometryFactory.toGeometry(new Envelope(-BUFFER, VectorTileEncoder.EXTENT + BUFFER,
+                    -BUFFER, VectorTileEncoder.EXTENT + BUFFER));
+
+            VectorTileEncoder encoder = new VectorTileEncoder();
+
+            for (Object o : patternIndex.query(bounds)) {
+                PatternGeometry pattern = (PatternGeometry) o;
+                // the quadtree returns everything that might intersect
+                if (!pattern.geometry.getEnvelopeInternal().intersects(bounds))
+                    continue;
+
+                Geometry geometry = DouglasPeuckerSimplifier.simplify(projection.project(pattern.geometry), SIMPLIFY_TOLERANCE);
+
+                try {
+                    geometry = geometry.intersection(clip);
+                } catch (RuntimeException e) {
+                    LOG.warn("Could not clip geometry of pattern {}", pattern.id, e);
+                    continue;
+                }
+
+                Map<String, Object> attributes = new HashMap<>();
+                attributes.put("id", pattern.id);
+                attributes.put("name", pattern.name);
+                attributes.put("routeId", pattern.routeId);
+                attributes.put("routeColor", pattern.routeColor);
+                encoder.addFeature(PATTERN_LAYER, attributes, geometry);
+            }
+
+            if (z >= MIN_STOP_ZOOM) {
+                for (Stop stop : tx.getStopsWithinBoundingBox(bounds.getMaxY(), bounds.getMaxX(), bounds.getMinY(), bounds.getMinX())) {
+                    Map<String, Object> attributes = new HashMap<>();
+                    attributes.put("id", stop.id);
+                    attributes.put("name", stop.stopName);
+                    attributes.put("code", stop.stopCode);
+                    attributes.put("majorStop", stop.majorStop);
+                    encoder.addFeature(STOP_LAYER, attributes, projection.project(
+                            geometryFactory.createPoint(new Coordinate(stop.getLon(), stop.getLat()))));
+                }
+            }
+
+            return encoder.encode();
+        }
+    }
+
+    /** the geometry and attributes of a pattern that are drawn on the map */
+    private static class PatternGeometry {
+        String id;
+        String name;
+        String routeId;
+        String routeColor;
+        LineString geometry;
+    }
+
+    /** Projects longitude and latitude into the coordinates of a (web mercator) tile */
+    private static class TileProjection {
+        private final double scale;
+        private final int x;
+        private final int y;
+
+        TileProjection (int z, int x, int y) {
+            this.scale = 1 << z;
+            this.x = x;
+            this.y = y;
+        }
+
+        /** the bounds of the tile plus BUFFER, in longitude and latitude */
+        Envelope getBufferedBounds () {
+            double buffer = (double) BUFFER / VectorTileEncoder.EXTENT;
+            return new Envelope(lon(x - buffer), lon(x + 1 + buffer), lat(y + 1 + buffer), lat(y - buffer));
+        }
+
+        private double lon (double tileX) {
+            return tileX / scale * 360 - 180;
+        }
+
+        private double lat (double tileY) {
+            return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * tileY / scale))));
+        }
+
+        /** project a geometry in longitude and latitude into tile coordinates */
+        Geometry project (Geometry geometry) {
+            Geometry ret = (Geometry) geometry.clone();
+            ret.apply((Coordinate c) -> {
+                double lat = Math.max(Math.min(c.y, 85.0511), -85.0511);
+                double latRad = Math.toRadians(lat);
+                c.x = ((c.x + 180) / 360 * scale - x) * VectorTileEncoder.EXTENT;
+                c.y = ((1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * scale - y) * VectorTileEncoder.EXTENT;
+            });
+            ret.geometryChanged();
+            return ret;
+        }
+    }
+
+    public static void register (String apiPrefix) {
+        get(apiPrefix + "secure/tile/:z/:x/:y", TileController::getTile);
+    }
+}
@@ -4,6 +4,7 @@ import com.conveyal.datatools.common.utils.SparkUtils;
 import com.conveyal.datatools.editor.controllers.Base;
 import com.conveyal.datatools.editor.datastore.FeedTx;
 import com.conveyal.datatools.editor.datastore.VersionedDataStore;
+import com.conveyal.datatools.editor.models.transit.PackedStopTimes;
 import com.conveyal.datatools.editor.models.transit.StopTime;
 import com.conveyal.datatools.editor.models.transit.Trip;
 import com.conveyal.datatools.editor.models.transit.TripPattern;
@@ -11,14 +12,19 @@ import com.conveyal.datatools.editor.models.transit.TripPatternStop;
 import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
 import com.fasterxml.jackson.core.type.TypeReference;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import spark.HaltException;
 import spark.Request;
@@ -43,10 +49,12 @@ public class TripController {
             halt(400);
         }
 
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if (id != null) {
                 if (tx.trips.containsKey(id))
                     return Base.toJson(tx.trips.get(id), false);
@@ -67,7 +75,7 @@ public class TripController {
                 return tx.getTripsByPattern(patternId);
             }
             else {
-                return new ArrayList<>(tx.trips.values());
+                return Base.writeCollection(req, res, tx.trips, json);
             }
                 
         } catch (IOException e) {
@@ -86,7 +94,6 @@ public class TripController {
     }
 
     private static Object createTrip(Request req, Response res) {
-        FeedTx tx = null;
         String createMultiple = req.queryParams("multiple");
         try {
             List<Trip> trips = new ArrayList<>();
@@ -96,29 +103,33 @@ public class TripController {
                 Trip trip = Base.mapper.readValue(req.body(), Trip.class);
                 trips.add(trip);
             }
+
+            if (trips.isEmpty()) {
+                halt(400, SparkUtils.formatJSON("No trips to create"));
+            }
+
+            // all the trips are created in a single transaction, so they must be in the same feed
+            String feedId = trips.get(0).feedId;
             for (Trip trip : trips) {
                 if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(trip.feedId))
                     halt(400);
 
-                if (!VersionedDataStore.feedExists(trip.feedId)) {
-                    halt(400);
+                if (feedId == null || !feedId.equals(trip.feedId)) {
+                    halt(400, SparkUtils.formatJSON("Trips must all belong to the same feed"));
                 }
+            }
 
-                tx = VersionedDataStore.getFeedTx(trip.feedId);
-
-                String errorMessage;
-                if (tx.trips.containsKey(trip.id)) {
-                    errorMessage = "Trip ID " + trip.id + " already exists.";
-                    LOG.error(errorMessage);
-                    halt(400, SparkUtils.formatJSON(errorMessage));
-
-                }
-                validateTrip(tx, trip);
-                tx.trips.put(trip.id, trip);
+            if (!VersionedDataStore.feedExists(feedId)) {
+                halt(400);
             }
-            tx.commit();
 
-            return trips;
+            final List<Trip> created = trips;
+            return VersionedDataStore.writeFeed(feedId, tx -> {
+                for (Trip trip : created) {
+                    insertTrip(tx, trip);
+                }
+                return created;
+            });
         } catch (IOException e) {
             e.printStackTrace();
             halt(400);
@@ -128,28 +139,26 @@ public class TripController {
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
     
     private static Object updateTrip(Request req, Response res) {
-        FeedTx tx = null;
+        Trip trip = null;
 
         try {
-            Trip trip = Base.mapper.readValue(req.body(), Trip.class);
+            trip = Base.mapper.readValue(req.body(), Trip.class);
 
             if (!VersionedDataStore.feedExists(trip.feedId)) {
                 halt(400);
             }
 
-            tx = VersionedDataStore.getFeedTx(trip.feedId);
-            validateTrip(tx, trip);
-            tx.trips.put(trip.id, trip);
-            tx.commit();
-
-            return trip;
+            final Trip updated = trip;
+            return VersionedDataStore.writeFeed(trip.feedId, tx -> replaceTrip(tx, updated));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to trip {}", trip.id, e);
+            final String tripId = trip.id;
+            Base.haltWithConflict(trip.feedId, "Trip was modified concurrently", tx -> tx.trips.get(tripId));
         } catch (IOException e) {
             e.printStackTrace();
             halt(400, SparkUtils.formatJSON("Unknown IO error occurred saving trip"));
@@ -159,12 +168,39 @@ public class TripController {
         } catch (Exception e) {
             e.printStackTrace();
             halt(400, SparkUtils.formatJSON("Unknown error occurred saving trip"));
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
+    /** add a new trip to a feed */
+    static Trip insertTrip (FeedTx tx, Trip trip) {
+        if (tx.trips.containsKey(trip.id)) {
+            String errorMessage = "Trip ID " + trip.id + " already exists.";
+            LOG.error(errorMessage);
+            halt(400, SparkUtils.formatJSON(errorMessage));
+        }
+
+        validateTrip(tx, trip);
+        tx.trips.put(trip.id, trip);
+        return trip;
+    }
+
+    /** save a trip, replacing the existing trip with the same ID if there is one */
+    static Trip replaceTrip (FeedTx tx, Trip trip) {
+        validateTrip(tx, trip);
+        tx.trips.put(trip.id, trip);
+        return trip;
+    }
+
+    /** delete a trip */
+    static Trip removeTrip (FeedTx tx, String id) {
+        if (!tx.trips.containsKey(id)) {
+            halt(404, SparkUtils.formatJSON("Trip ID " + id + " does not exist.", 404));
+        }
+
+        return tx.trips.remove(id);
+    }
+
     /**
      * Validates that a saved trip will not cause issues with referenced pattern primarily due to
      * mismatched stops.
@@ -181,20 +217,25 @@ public class TripController {
         } else {
             patt = tx.tripPatterns.get(trip.patternId);
         }
+
+        // Confirm that the trips of the pattern are not being updated to match new pattern stops
+        TripPatternController.haltIfReconciling(trip.patternId);
+
         // Confirm that # of stops in trip and pattern match.
-        if (trip.stopTimes.size() != patt.patternStops.size()) {
+        List<StopTime> stopTimes = trip.getStopTimes();
+        if (stopTimes.size() != patt.patternStops.size()) {
             errorMessage = String.format(
                     "Number of stops in trip %d does not equal number of stops in pattern (%d)",
-                    trip.stopTimes.size(),
+                    stopTimes.size(),
                     patt.patternStops.size()
             );
             LOG.error(errorMessage);
             halt(400, SparkUtils.formatJSON(errorMessage));
         }
         // Confirm that each stop ID in the trip matches the stop ID in the pattern.
-        for (int i = 0; i < trip.stopTimes.size(); i++) {
+        for (int i = 0; i < stopTimes.size(); i++) {
             TripPatternStop ps = patt.patternStops.get(i);
-            StopTime st =  trip.stopTimes.get(i);
+            StopTime st =  stopTimes.get(i);
 
             if (st == null)
                 // null StopTime for a trip indicates a skipped stop
@@ -216,43 +257,266 @@ public class TripController {
     private static Object deleteTrip(Request req, Response res) {
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
-        String[] idList = req.queryParams("tripIds").split(",");
+        String tripIds = req.queryParams("tripIds");
 
         if (feedId == null) {
             halt(400, SparkUtils.formatJSON("Must provide feedId"));
         }
 
-        FeedTx tx = null;
-        try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+        if (id == null && tripIds == null) {
+            halt(400, SparkUtils.formatJSON("Must provide trip ID or tripIds"));
+        }
 
+        try {
             // for a single trip
             if (id != null) {
-                Trip trip = tx.trips.remove(id);
-                return trip;
+                return VersionedDataStore.writeFeed(feedId, tx -> removeTrip(tx, id));
             }
-            if (idList.length > 0) {
+
+            String[] idList = tripIds.split(",");
+            return VersionedDataStore.writeFeed(feedId, tx -> {
                 Set<Trip> trips = new HashSet<>();
                 for (String tripId : idList) {
                     Trip trip = tx.trips.remove(tripId);
                     trips.add(trip);
                 }
-                tx.commit();
                 return trips;
+            });
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting trips in feed {}", feedId, e);
+            Base.haltWithConflict(feedId, "Trips were modified concurrently", tx -> id != null ? tx.trips.get(id) : null);
+        } catch (HaltException e) {
+            LOG.error("Halt encountered", e);
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            halt(400);
+        }
+        return null;
+    }
+
+    /** The result of a timetable operation, which is returned instead of the trips, as there may be many of them */
+    public static class TimetableSummary {
+        /** number of trips modified or created */
+        public int tripCount;
+
+        /** number of selected trips left unchanged because the operation could not be applied to them */
+        public int skippedTripCount;
+    }
+
+    /**
+     * Move the times of the trips on a pattern and calendar (or the trips given by tripIds among them) by offset
+     * seconds, which may be negative.
+     */
+    private static Object offsetTrips(Request req, Response res) {
+        String feedId = getFeedId(req);
+        int offset = getIntParam(req, "offset");
+
+        return updateTimetable(req, feedId, tx -> {
+            TimetableSummary summary = new TimetableSummary();
+            for (Trip trip : selectTrips(req, tx)) {
+                trip = copyTrip(trip);
+                PackedStopTimes stopTimes = trip.getPackedStopTimes();
+                if (stopTimes != null)
+                    trip.setPackedStopTimes(stopTimes.offset(offset));
+
+                if (trip.startTime != null) trip.startTime += offset;
+                if (trip.endTime != null) trip.endTime += offset;
+
+                tx.trips.put(trip.id, trip);
+                summary.tripCount++;
             }
+            return summary;
+        });
+    }
 
+    /**
+     * Set the dwell time (seconds) at a stop, given by its position in the pattern, for the trips on a pattern and
+     * calendar (or the trips given by tripIds among them). Later times on each trip move by the change in dwell time.
+     */
+    private static Object setDwellTime(Request req, Response res) {
+        String feedId = getFeedId(req);
+        int position = getIntParam(req, "position");
+        int dwellTime = getIntParam(req, "dwellTime");
+
+        if (dwellTime < 0) {
+            halt(400, SparkUtils.formatJSON("Dwell time must not be negative"));
+        }
+
+        return updateTimetable(req, feedId, tx -> {
+            TimetableSummary summary = new TimetableSummary();
+            for (Trip trip : selectTrips(req, tx)) {
+                PackedStopTimes stopTimes = trip.getPackedStopTimes();
+                if (stopTimes == null || position < 0 || position >= stopTimes.size()) {
+                    halt(400, SparkUtils.formatJSON("Position " + position + " is not a stop of trip " + trip.id));
+                }
+
+                PackedStopTimes updated = stopTimes.withDwellTime(position, dwellTime);
+                if (updated == null) {
+                    // trip skips this stop or has no time there
+                    summary.skippedTripCount++;
+                    continue;
+                }
+
+                trip = copyTrip(trip);
+                trip.setPackedStopTimes(updated);
+                tx.trips.put(trip.id, trip);
+                summary.tripCount++;
+            }
+            return summary;
+        });
+    }
+
+    /** Move the trips on a pattern and calendar (or the trips given by tripIds among them) to another calendar */
+    private static Object assignCalendar(Request req, Response res) {
+        String feedId = getFeedId(req);
+        String newCalendarId = req.queryParams("newCalendarId");
+
+        if (newCalendarId == null) {
+            halt(400, SparkUtils.formatJSON("Must provide newCalendarId"));
+        }
+
+        return updateTimetable(req, feedId, tx -> {
+            if (!tx.calendars.containsKey(newCalendarId)) {
+                halt(400, SparkUtils.formatJSON("Calendar ID " + newCalendarId + " does not exist."));
+            }
+
+            TimetableSummary summary = new TimetableSummary();
+            for (Trip trip : selectTrips(req, tx)) {
+                trip = copyTrip(trip);
+                trip.calendarId = newCalendarId;
+                tx.trips.put(trip.id, trip);
+                summary.tripCount++;
+            }
+            return summary;
+        });
+    }
+
+    /**
+     * Create count copies of a trip, each departing headway seconds after the one before. The copies get new IDs and
+     * no GTFS trip ID, so that the GTFS trip ID is generated from the ID.
+     */
+    private static Object duplicateTrip(Request req, Response res) {
+        String id = req.params("id");
+        String feedId = getFeedId(req);
+        int headway = getIntParam(req, "headway");
+        int count = getIntParam(req, "count");
+
+        if (headway <= 0 || count <= 0) {
+            halt(400, SparkUtils.formatJSON("Headway and count must be positive"));
+        }
+
+        return updateTimetable(req, feedId, tx -> {
+            Trip trip = tx.trips.get(id);
+            if (trip == null) {
+                halt(404, SparkUtils.formatJSON("Trip ID " + id + " does not exist.", 404));
+            }
+
+            TripPatternController.haltIfReconciling(trip.patternId);
+
+            TimetableSummary summary = new TimetableSummary();
+            PackedStopTimes stopTimes = trip.getPackedStopTimes();
+            for (int i = 1; i <= count; i++) {
+                Trip copy = copyTrip(trip);
+                int offset = i * headway;
+                copy.generateId();
+                copy.gtfsTripId = null;
+                if (stopTimes != null)
+                    copy.setPackedStopTimes(stopTimes.offset(offset));
+                if (copy.startTime != null) copy.startTime += offset;
+                if (copy.endTime != null) copy.endTime += offset;
+
+                tx.trips.put(copy.id, copy);
+                summary.tripCount++;
+            }
+            return summary;
+        });
+    }
+
+    /**
+     * Copy a trip read from a feed so that it can be modified. The trips read from a transaction may be shared with
+     * the database's cache and the modification listeners compare them with the new values, so they must not be
+     * modified in place.
+     */
+    private static Trip copyTrip (Trip trip) {
+        try {
+            return trip.clone();
+        } catch (CloneNotSupportedException e) {
+            // not likely
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** apply a timetable operation to a feed, with the usual error handling */
+    private static TimetableSummary updateTimetable(Request req, String feedId, Function<FeedTx, TimetableSummary> operation) {
+        if (!VersionedDataStore.feedExists(feedId)) {
+            halt(400, SparkUtils.formatJSON("Feed ID (" + feedId + ") does not exist"));
+        }
+
+        try {
+            long startTime = System.currentTimeMillis();
+            TimetableSummary summary = VersionedDataStore.writeFeed(feedId, operation);
+            LOG.info("{} updated {} trips in feed {} in {} ms", req.pathInfo(), summary.tripCount, feedId,
+                    System.currentTimeMillis() - startTime);
+            return summary;
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
-            halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
+            halt(400, SparkUtils.formatJSON("Unknown error occurred updating trips"));
         }
         return null;
     }
 
+    /**
+     * Select the trips on the pattern and calendar given by the patternId and calendarId parameters. If the tripIds
+     * parameter is given (a comma-separated list) only those trips among them are selected.
+     */
+    private static Collection<Trip> selectTrips(Request req, FeedTx tx) {
+        String patternId = req.queryParams("patternId");
+        String calendarId = req.queryParams("calendarId");
+        String tripIds = req.queryParams("tripIds");
+
+        if (patternId == null || calendarId == null) {
+            halt(400, SparkUtils.formatJSON("Must provide patternId and calendarId"));
+        }
+
+        TripPatternController.haltIfReconciling(patternId);
+
+        if (!tx.tripPatterns.containsKey(patternId) || !tx.calendars.containsKey(calendarId)) {
+            halt(404);
+        }
+
+        Collection<Trip> trips = tx.getTripsByPatternAndCalendar(patternId, calendarId);
+
+        if (tripIds != null) {
+            Set<String> selected = new HashSet<>(Arrays.asList(tripIds.split(",")));
+            trips = trips.stream()
+                    .filter(trip -> selected.contains(trip.id))
+                    .collect(Collectors.toList());
+        }
+
+        return trips;
+    }
+
+    private static String getFeedId(Request req) {
+        String feedId = req.queryParams("feedId");
+        if (feedId == null) {
+            halt(400, SparkUtils.formatJSON("Must provide feedId"));
+        }
+        return feedId;
+    }
+
+    private static int getIntParam(Request req, String name) {
+        try {
+            return Integer.parseInt(req.queryParams(name));
+        } catch (NumberFormatException e) {
+            halt(400, SparkUtils.formatJSON("Must provide an integer " + name));
+            return 0;
+        }
+    }
+
     public static void register (String apiPrefix) {
         get(apiPrefix + "secure/trip/:id", TripController::getTrip, json::write);
         options(apiPrefix + "secure/trip", (q, s) -> "");
@@ -261,5 +525,11 @@ public class TripController {
         put(apiPrefix + "secure/trip/:id", TripController::updateTrip, json::write);
         delete(apiPrefix + "secure/trip", TripController::deleteTrip, json::write);
         delete(apiPrefix + "secure/trip/:id", TripController::deleteTrip, json::write);
+
+        // timetable operations on many trips at once
+        post(apiPrefix + "secure/trip/offset", TripController::offsetTrips, json::write);
+        post(apiPrefix + "secure/trip/dwell", TripController::setDwellTime, json::write);
+        post(apiPrefix + "secure/trip/calendar", TripController::assignCalendar, json::write);
+        post(apiPrefix + "secure/trip/:id/duplicate", TripController::duplicateTrip, json::write);
     }
 }
@@ -1,5 +1,8 @@
 package com.conveyal.datatools.editor.controllers.api;
 
+import com.conveyal.datatools.common.utils.SparkUtils;
+import com.conveyal.datatools.editor.jobs.ReconcilePatternJob;
+import com.conveyal.datatools.manager.auth.Auth0UserProfile;
 import com.conveyal.datatools.manager.models.JsonViews;
 import com.conveyal.datatools.manager.utils.json.JsonManager;
 import com.conveyal.datatools.editor.controllers.Base;
@@ -7,13 +10,21 @@ import com.conveyal.datatools.editor.datastore.FeedTx;
 import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.models.transit.Trip;
 import com.conveyal.datatools.editor.models.transit.TripPattern;
+import com.conveyal.datatools.editor.utils.GeoUtils;
+import com.conveyal.datatools.editor.utils.PolylineEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
 import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
+import org.mapdb.TxRollbackException;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +40,14 @@ public class TripPatternController {
     public static final JsonManager<TripPattern> json =
             new JsonManager<>(TripPattern.class, JsonViews.UserInterface.class);
 
+    /** patterns with more trips than this whose stops change are saved in a background job */
+    private static final int MAX_SYNCHRONOUS_RECONCILE_TRIPS = 500;
+
+    private static final String RECONCILING_MESSAGE = "The trips of this pattern are being updated, try again when that has finished";
+
+    /** type of a shape given as an encoded polyline rather than as GeoJSON */
+    public static final String ENCODED_POLYLINE = "EncodedPolyline";
+
     public static Object getTripPattern(Request req, Response res) {
         String id = req.params("id");
         String routeId = req.queryParams("routeId");
@@ -38,17 +57,21 @@ public class TripPatternController {
             halt(400);
         }
 
+        Integer precision = getPolylinePrecision(req);
+
+        Base.checkETag(req, res, feedId);
+
         FeedTx tx = null;
 
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
+            tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
             if(id != null) {
                if (!tx.tripPatterns.containsKey(id))
                    halt(404);
                else {
                    TripPattern tp = tx.tripPatterns.get(id);
                    tp.addDerivedInfo(tx);
-                   return Base.toJson(tp, false);
+                   return precision != null ? toJson(tp, precision).toString() : Base.toJson(tp, false);
                }
             }
             else if (routeId != null) {
@@ -63,15 +86,18 @@ public class TripPatternController {
                         tp.addDerivedInfo(tx);
                         patts.add(tp);
                     }
+
+                    if (precision != null)
+                        return patts.stream().map(tp -> toJson(tp, precision)).collect(Collectors.toList());
+
                     return patts;
                 }
             }
             else { // retrieveById all patterns
 
-                // put values into a new ArrayList to avoid returning MapDB BTreeMap
-                // (and possible access error once transaction is closed)
-                Collection<TripPattern> patts = new ArrayList<>(tx.tripPatterns.values());
-                return patts;
+                // streamed while the transaction is open, rather than copied out of the MapDB BTreeMap
+                return Base.writeCollection(req, res, tx.tripPatterns, json,
+                        precision != null ? (tp, node) -> encodeShape(tp, node, precision) : null);
             }
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
@@ -85,12 +111,12 @@ public class TripPatternController {
         return null;
     }
 
-    public static TripPattern createTripPattern(Request req, Response res) {
-        TripPattern tripPattern;
-        FeedTx tx = null;
+    public static Object createTripPattern(Request req, Response res) {
+        TripPattern tripPattern = null;
         String feedId = req.queryParams("feedId");
+        Integer precision = getPolylinePrecision(req);
         try {
-            tripPattern = Base.mapper.readValue(req.body(), TripPattern.class);
+            tripPattern = readTripPattern(Base.mapper.readTree(req.body()));
             
             if (feedId == null)
                 halt(400);
@@ -99,26 +125,20 @@ public class TripPatternController {
                 halt(400);
             }
             
-            tx = VersionedDataStore.getFeedTx(tripPattern.feedId);
-            
-            if (tx.tripPatterns.containsKey(tripPattern.id)) {
-                halt(400);
-            }
-            
-            tripPattern.calcShapeDistTraveled(tx);
-            
-            tx.tripPatterns.put(tripPattern.id, tripPattern);
-            tx.commit();
+            final TripPattern created = tripPattern;
+            VersionedDataStore.writeFeed(tripPattern.feedId, tx -> insertTripPattern(tx, created));
 
-            return tripPattern;
+            return precision != null ? toJson(tripPattern, precision) : tripPattern;
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications creating trip pattern {}", tripPattern.id, e);
+            final String patternId = tripPattern.id;
+            Base.haltWithConflict(tripPattern.feedId, "Feed was modified concurrently", tx -> tx.tripPatterns.get(patternId));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
@@ -130,11 +150,11 @@ public class TripPatternController {
      * @param res
      * @return
      */
-    public static TripPattern updateTripPattern(Request req, Response res) {
-        TripPattern tripPattern;
-        FeedTx tx = null;
+    public static Object updateTripPattern(Request req, Response res) {
+        TripPattern tripPattern = null;
+        Integer precision = getPolylinePrecision(req);
         try {
-            tripPattern = Base.mapper.readValue(req.body(), TripPattern.class);
+            tripPattern = readTripPattern(Base.mapper.readTree(req.body()));
             
             if (req.session().attribute("feedId") != null && !req.session().attribute("feedId").equals(tripPattern.feedId))
                 halt(400);
@@ -146,56 +166,171 @@ public class TripPatternController {
             if (tripPattern.id == null) {
                 halt(400);
             }
-            
-            tx = VersionedDataStore.getFeedTx(tripPattern.feedId);
-            
-            TripPattern originalTripPattern = tx.tripPatterns.get(tripPattern.id);
-            
-            if(originalTripPattern == null) {
-                halt(400);
-            }
 
-            // check if frequency value has changed for pattern and nuke trips created for old value
-            // double check that we're working with the same trip pattern here
-            if (originalTripPattern.useFrequency != tripPattern.useFrequency) {
-                for (Trip trip : tx.getTripsByPattern(originalTripPattern.id)) {
-                    if (originalTripPattern.useFrequency == trip.useFrequency) {
-                        LOG.info("Removing frequency={} trip {}", trip.useFrequency, trip.id);
-                        tx.trips.remove(trip.id);
-                    }
-                }
-            }
+            haltIfReconciling(tripPattern.id);
 
-            // update stop times
-            try {
-                TripPattern.reconcilePatternStops(originalTripPattern, tripPattern, tx);
-            } catch (IllegalStateException e) {
-                LOG.info("Could not save trip pattern", e);
-                halt(400);
+            // updating the stop times of a pattern with many trips takes too long to do in the request
+            ReconcilePatternJob job = startReconcileJob(req, tripPattern);
+            if (job != null) {
+                res.status(202);
+                ObjectNode body = Base.mapper.createObjectNode();
+                body.put("result", "OK");
+                body.put("message", "Updating trips of pattern");
+                body.put("code", 202);
+                body.put("jobId", job.jobId);
+                return body;
             }
-            
-            tripPattern.calcShapeDistTraveled(tx);
-            
-            tx.tripPatterns.put(tripPattern.id, tripPattern);
-
-            // return trip pattern with derived info
-            tripPattern.addDerivedInfo(tx);
-
-            tx.commit();
 
-            return tripPattern;
+            final TripPattern updated = tripPattern;
+            TripPattern saved = VersionedDataStore.writeFeed(tripPattern.feedId, tx -> replaceTripPattern(tx, updated));
+            return precision != null ? toJson(saved, precision) : saved;
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications to trip pattern {}", tripPattern.id, e);
+            final String patternId = tripPattern.id;
+            Base.haltWithConflict(tripPattern.feedId, "Trip pattern was modified concurrently", tx -> {
+                TripPattern current = tx.tripPatterns.get(patternId);
+                if (current != null) current.addDerivedInfo(tx);
+                return current;
+            });
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
+        }
+        return null;
+    }
+
+    /**
+     * If the stops of the given trip pattern have changed and it has more than MAX_SYNCHRONOUS_RECONCILE_TRIPS trips,
+     * start a job to save it and return the job; otherwise return null, and the pattern should be saved in the request.
+     */
+    private static ReconcilePatternJob startReconcileJob (Request req, TripPattern tripPattern) {
+        FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(tripPattern.feedId);
+        int tripCount;
+
+        try {
+            TripPattern originalTripPattern = tx.tripPatterns.get(tripPattern.id);
+
+            if (originalTripPattern == null) {
+                halt(400);
+            }
+
+            // check the change to the stops now, so that an unsupported change fails the request rather than the job
+            try {
+                if (TripPattern.getStopPositions(originalTripPattern, tripPattern) == null)
+                    return null;
+            } catch (IllegalStateException e) {
+                LOG.info("Could not save trip pattern", e);
+                halt(400, SparkUtils.formatJSON(e.getMessage()));
+            }
+
+            tripCount = tx.getTripIdsByPattern(tripPattern.id).size();
         } finally {
-            if (tx != null) tx.rollbackIfOpen();
+            tx.rollbackIfOpen();
+        }
+
+        if (tripCount <= MAX_SYNCHRONOUS_RECONCILE_TRIPS)
+            return null;
+
+        Auth0UserProfile userProfile = req.attribute("user");
+        ReconcilePatternJob job = ReconcilePatternJob.start(tripPattern, userProfile.getUser_id());
+        if (job == null) {
+            // another request started a job for the same pattern
+            halt(409, SparkUtils.formatJSON(RECONCILING_MESSAGE, 409));
+        }
+        LOG.info("Updating {} trips of pattern {} in job {}", tripCount, tripPattern.id, job.jobId);
+        return job;
+    }
+
+    /**
+     * Halt with 409 Conflict if the trips of a pattern are being updated by a ReconcilePatternJob: until it has finished
+     * the trips do not all match the pattern, so neither can be edited.
+     */
+    static void haltIfReconciling (String patternId) {
+        if (ReconcilePatternJob.isInProgress(patternId)) {
+            halt(409, SparkUtils.formatJSON(RECONCILING_MESSAGE, 409));
         }
+    }
+
+    /**
+     * Get the number of decimal places of the encoded polylines requested with the parameter geometry=polyline (the
+     * number is given by the precision parameter, default 5), or null if shapes should be GeoJSON (the default, or
+     * geometry=geojson). An encoded shape is much smaller than the GeoJSON coordinates of the same shape.
+     */
+    private static Integer getPolylinePrecision (Request req) {
+        String geometry = req.queryParams("geometry");
+
+        if (geometry == null || "geojson".equals(geometry))
+            return null;
+
+        if (!"polyline".equals(geometry))
+            halt(400, SparkUtils.formatJSON("geometry must be geojson or polyline"));
+
+        try {
+            int precision = req.queryParams("precision") != null ?
+                    Integer.parseInt(req.queryParams("precision")) : PolylineEncoder.DEFAULT_PRECISION;
+
+            if (precision >= PolylineEncoder.MIN_PRECISION && precision <= PolylineEncoder.MAX_PRECISION)
+                return precision;
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+
+        halt(400, SparkUtils.formatJSON("precision must be an integer from " + PolylineEncoder.MIN_PRECISION + " to " +
+                PolylineEncoder.MAX_PRECISION));
         return null;
     }
 
+    /** convert a trip pattern to JSON with its shape as an encoded polyline */
+    private static ObjectNode toJson (TripPattern tripPattern, int precision) {
+        ObjectNode node = Base.mapper.valueToTree(tripPattern);
+        encodeShape(tripPattern, node, precision);
+        return node;
+    }
+
+    /**
+     * Replace the GeoJSON shape in the JSON of a trip pattern with the shape as an encoded polyline, i.e.
+     * { "type": "EncodedPolyline", "points": "...", "precision": 5 }.
+     */
+    private static void encodeShape (TripPattern tripPattern, ObjectNode node, int precision) {
+        if (tripPattern.shape == null)
+            return;
+
+        ObjectNode shape = node.putObject("shape");
+        shape.put("type", ENCODED_POLYLINE);
+        shape.put("points", PolylineEncoder.encode(tripPattern.shape.getCoordinates(), precision));
+        shape.put("precision", precision);
+    }
+
+    /**
+     * Read a trip pattern from JSON, in which the shape may be GeoJSON or an encoded polyline in the form written by
+     * encodeShape (the precision may be left out, and is then 5).
+     */
+    static TripPattern readTripPattern (JsonNode node) throws IOException {
+        JsonNode shape = node.get("shape");
+        LineString polyline = null;
+
+        if (shape != null && shape.isObject() && ENCODED_POLYLINE.equals(shape.path("type").asText())) {
+            try {
+                List<Coordinate> coords = PolylineEncoder.decode(shape.path("points").asText(),
+                        shape.path("precision").asInt(PolylineEncoder.DEFAULT_PRECISION));
+                polyline = GeoUtils.geometyFactory.createLineString(coords.toArray(new Coordinate[coords.size()]));
+            } catch (RuntimeException e) {
+                LOG.info("Could not decode trip pattern shape", e);
+                halt(400, SparkUtils.formatJSON("Invalid encoded polyline shape"));
+            }
+
+            // the GeoJSON deserializer cannot read the encoded shape
+            ((ObjectNode) node).remove("shape");
+        }
+
+        TripPattern tripPattern = Base.mapper.treeToValue(node, TripPattern.class);
+        if (polyline != null) tripPattern.shape = polyline;
+        return tripPattern;
+    }
+
     public static TripPattern deleteTripPattern(Request req, Response res) {
         String id = req.params("id");
         String feedId = req.queryParams("feedId");
@@ -207,35 +342,71 @@ public class TripPatternController {
             halt(400);
         }
 
-        FeedTx tx = null;
+        haltIfReconciling(id);
 
+        final String patternFeedId = feedId;
         try {
-            tx = VersionedDataStore.getFeedTx(feedId);
-
-            if (!tx.tripPatterns.containsKey(id)) {
-                halt(404);
-            }
-
-            // first zap all trips on this trip pattern
-            for (Trip trip : tx.getTripsByPattern(id)) {
-                tx.trips.remove(trip.id);
-            }
-            TripPattern tp = tx.tripPatterns.get(id);
-            tx.tripPatterns.remove(id);
-            tx.commit();
-            return tp;
+            return VersionedDataStore.writeFeed(feedId, tx -> removeTripPattern(tx, id));
+        } catch (TxRollbackException e) {
+            LOG.warn("Conflicting modifications deleting trip pattern {}", id, e);
+            Base.haltWithConflict(patternFeedId, "Trip pattern was modified concurrently", tx -> tx.tripPatterns.get(id));
         } catch (HaltException e) {
             LOG.error("Halt encountered", e);
             throw e;
         } catch (Exception e) {
             e.printStackTrace();
             halt(400);
-        } finally {
-            if (tx != null) tx.rollbackIfOpen();
         }
         return null;
     }
 
+    /** add a new trip pattern to a feed */
+    static TripPattern insertTripPattern (FeedTx tx, TripPattern tripPattern) {
+        if (tx.tripPatterns.containsKey(tripPattern.id)) {
+            halt(400);
+        }
+
+        tripPattern.calcShapeDistTraveled(tx);
+
+        tx.tripPatterns.put(tripPattern.id, tripPattern);
+        return tripPattern;
+    }
+
+    /** replace an existing trip pattern, updating the stop times of its trips to match */
+    static TripPattern replaceTripPattern (FeedTx tx, TripPattern tripPattern) {
+        TripPattern originalTripPattern = tx.tripPatterns.get(tripPattern.id);
+
+        if(originalTripPattern == null) {
+            halt(400);
+        }
+
+        // update trips and save
+        try {
+            TripPattern.replace(originalTripPattern, tripPattern, tx);
+        } catch (IllegalStateException e) {
+            LOG.info("Could not save trip pattern", e);
+            halt(400, SparkUtils.formatJSON(e.getMessage()));
+        }
+
+        // return trip pattern with derived info
+        tripPattern.addDerivedInfo(tx);
+
+        return tripPattern;
+    }
+
+    /** delete a trip pattern and its trips */
+    static TripPattern removeTripPattern (FeedTx tx, String id) {
+        if (!tx.tripPatterns.containsKey(id)) {
+            halt(404);
+        }
+
+        // first zap all trips on this trip pattern
+        for (Trip trip : tx.getTripsByPattern(id)) {
+            tx.trips.remove(trip.id);
+        }
+        return tx.tripPatterns.remove(id);
+    }
+
     public static void register (String apiPrefix) {
         get(apiPrefix + "secure/trippattern/:id", TripPatternController::getTripPattern, json::write);
         get(apiPrefix + "secure/trippattern", TripPatternController::getTripPattern, json::write);
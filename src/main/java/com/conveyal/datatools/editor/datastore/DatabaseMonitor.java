@@ -0,0 +1,304 @@
+package com.conveyal.datatools.editor.datastore;
+
+import com.conveyal.datatools.manager.DataManager;
+import com.google.common.collect.MapMaker;
+import org.mapdb.DB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Instrumentation of the editor datastore: how long transactions take to open, commit and roll back, how many commits
+ * conflict, which transactions are slow and where they were opened, and which are never closed.
+ *
+ * A transaction that becomes unreachable without being committed or rolled back has leaked: until it is rolled back it
+ * keeps its database from being closed (see FeedDatabaseCache). Each DatabaseTx is tracked by a phantom reference that
+ * the garbage collector enqueues once the transaction is unreachable, at which point a transaction that is still open
+ * is rolled back and logged with the stack trace of where it was opened. This is how java.lang.ref.Cleaner works, but
+ * the editor is built for Java 8, which does not have it.
+ */
+public class DatabaseMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseMonitor.class);
+
+    /**
+     * transactions open for at least this long are sampled as slow (config modules.editor.slow_transaction_millis)
+     */
+    private static final long SLOW_TRANSACTION_MILLIS = DataManager.hasConfigProperty("modules.editor.slow_transaction_millis") ?
+            DataManager.getConfigProperty("modules.editor.slow_transaction_millis").asLong(1000) : 1000;
+
+    /** number of the most recent slow and leaked transactions kept */
+    private static final int MAX_SAMPLES = 50;
+
+    private static final Timer openTimer = new Timer();
+    private static final Timer commitTimer = new Timer();
+    private static final Timer rollbackTimer = new Timer();
+
+    private static final LongAdder conflicts = new LongAdder();
+    private static final LongAdder slow = new LongAdder();
+    private static final LongAdder leaks = new LongAdder();
+
+    /** the references to collected transactions are enqueued here */
+    private static final ReferenceQueue<DatabaseTx> collected = new ReferenceQueue<>();
+
+    /** the transactions that are open. This also keeps their references reachable, so that they are enqueued. */
+    private static final Set<TrackedTx> openTransactions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * names of the databases that transactions were started in (e.g. the feed ID), from when the transaction is started
+     * until it is wrapped in a DatabaseTx. Weak keys, which are compared by identity, so that a transaction that is never
+     * wrapped is not kept.
+     */
+    private static final ConcurrentMap<DB, String> databaseNames = new MapMaker().weakKeys().makeMap();
+
+    private static final Deque<TransactionSample> slowTransactions = new ArrayDeque<>();
+    private static final Deque<TransactionSample> leakedTransactions = new ArrayDeque<>();
+
+    /** start a transaction with the given function, timing it and remembering the name of the database */
+    static DB open (String database, Supplier<DB> opener) {
+        long start = System.nanoTime();
+        DB tx = opener.get();
+        openTimer.record(System.nanoTime() - start);
+        databaseNames.put(tx, database);
+        return tx;
+    }
+
+    /** start tracking a transaction that has just been wrapped */
+    static TrackedTx track (DatabaseTx wrapper, DB tx) {
+        // checking here finds leaks promptly when the datastore is busy; getStats (logged periodically) covers quiet times
+        checkForLeaks();
+
+        String database = databaseNames.remove(tx);
+        if (database == null)
+            // e.g. a snapshot, which is not opened through open()
+            database = wrapper.getClass().getSimpleName();
+
+        TrackedTx tracked = new TrackedTx(wrapper, tx, database);
+        openTransactions.add(tracked);
+        return tracked;
+    }
+
+    /** record that a transaction has been committed or rolled back, which took the given time */
+    static void closed (TrackedTx tracked, boolean committed, long nanos) {
+        // closing a transaction a second time is not recorded
+        if (!openTransactions.remove(tracked))
+            return;
+
+        (committed ? commitTimer : rollbackTimer).record(nanos);
+
+        double durationMillis = (System.nanoTime() - tracked.openedNanos) / 1e6;
+        if (durationMillis >= SLOW_TRANSACTION_MILLIS) {
+            slow.increment();
+            TransactionSample sample = new TransactionSample(tracked, durationMillis, committed ? "commit" : "rollback");
+            addSample(slowTransactions, sample);
+            LOG.debug("Slow transaction in {} opened by {} took {} ms", sample.database, sample.origin, Math.round(durationMillis));
+        }
+    }
+
+    /** stop tracking a transaction whose database was closed without committing or rolling back (e.g. a snapshot) */
+    static void untrack (TrackedTx tracked) {
+        openTransactions.remove(tracked);
+    }
+
+    /** record that committing a transaction failed because it conflicted with another; MapDB then rolls it back */
+    static void conflicted (TrackedTx tracked, long nanos) {
+        conflicts.increment();
+        closed(tracked, false, nanos);
+    }
+
+    /** roll back and log the transactions that were garbage collected while open */
+    static void checkForLeaks () {
+        Reference<? extends DatabaseTx> ref;
+        while ((ref = collected.poll()) != null) {
+            TrackedTx tracked = (TrackedTx) ref;
+            // transactions that were closed are no longer tracked, and are not enqueued
+            if (!openTransactions.remove(tracked) || tracked.tx.isClosed())
+                continue;
+
+            leaks.increment();
+            double durationMillis = (System.nanoTime() - tracked.openedNanos) / 1e6;
+            addSample(leakedTransactions, new TransactionSample(tracked, durationMillis, "leaked"));
+            LOG.error("Transaction in {} left unclosed, rolling it back. It was opened at:", tracked.database, tracked.origin);
+
+            try {
+                tracked.tx.rollback();
+            } catch (RuntimeException e) {
+                LOG.error("Error rolling back leaked transaction in {}", tracked.database, e);
+            }
+        }
+    }
+
+    private static void addSample (Deque<TransactionSample> samples, TransactionSample sample) {
+        synchronized (samples) {
+            if (samples.size() >= MAX_SAMPLES)
+                samples.removeFirst();
+
+            samples.addLast(sample);
+        }
+    }
+
+    private static List<TransactionSample> getSamples (Deque<TransactionSample> samples) {
+        synchronized (samples) {
+            return new ArrayList<>(samples);
+        }
+    }
+
+    /** Get the transaction statistics. The statistics of the databases themselves are added by VersionedDataStore. */
+    static Stats getStats () {
+        checkForLeaks();
+
+        Stats stats = new Stats();
+        stats.open = openTimer.getStats();
+        stats.commit = commitTimer.getStats();
+        stats.rollback = rollbackTimer.getStats();
+        stats.conflicts = conflicts.sum();
+        stats.openTransactions = openTransactions.size();
+        stats.slowTransactionMillis = SLOW_TRANSACTION_MILLIS;
+        stats.slowTransactionCount = slow.sum();
+        stats.leakedTransactionCount = leaks.sum();
+        stats.slowTransactions = getSamples(slowTransactions);
+        stats.leakedTransactions = getSamples(leakedTransactions);
+        return stats;
+    }
+
+    /** A DatabaseTx that is being tracked, and what is needed to roll it back once it has been collected */
+    static class TrackedTx extends PhantomReference<DatabaseTx> {
+        final DB tx;
+        final String database;
+        final long openedAt = System.currentTimeMillis();
+        final long openedNanos = System.nanoTime();
+
+        /** where the transaction was opened; the stack trace is filled in now but only converted if it is needed */
+        final Throwable origin = new Throwable("Transaction opened");
+
+        TrackedTx (DatabaseTx wrapper, DB tx, String database) {
+            super(wrapper, collected);
+            this.tx = tx;
+            this.database = database;
+        }
+    }
+
+    /** Counts and times an operation */
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record (long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        TimerStats getStats () {
+            TimerStats stats = new TimerStats();
+            stats.count = count.sum();
+            stats.meanMillis = stats.count > 0 ? totalNanos.sum() / 1e6 / stats.count : 0;
+            stats.maxMillis = maxNanos.get() / 1e6;
+            return stats;
+        }
+    }
+
+    /** The number of times an operation was done and how long it took, since the server started */
+    public static class TimerStats {
+        public long count;
+        public double meanMillis;
+        public double maxMillis;
+
+        @Override
+        public String toString () {
+            return String.format("%d (mean %.2f ms, max %.2f ms)", count, meanMillis, maxMillis);
+        }
+    }
+
+    /** A slow or leaked transaction */
+    public static class TransactionSample {
+        /** the database, e.g. a feed ID */
+        public String database;
+
+        /** the first method outside the datastore on the stack when the transaction was opened, e.g. a controller */
+        public String origin;
+
+        /** the stack when the transaction was opened; only kept for leaked transactions */
+        public List<String> stackTrace;
+
+        /** when the transaction was opened (millis since epoch) */
+        public long openedAt;
+
+        /** how long the transaction was open for, or until it was found to have leaked */
+        public double durationMillis;
+
+        /** how the transaction was closed: commit, rollback or leaked */
+        public String outcome;
+
+        TransactionSample (TrackedTx tracked, double durationMillis, String outcome) {
+            this.database = tracked.database;
+            this.openedAt = tracked.openedAt;
+            this.durationMillis = durationMillis;
+            this.outcome = outcome;
+
+            StackTraceElement[] stack = tracked.origin.getStackTrace();
+            for (StackTraceElement frame : stack) {
+                if (!frame.getClassName().startsWith(DatabaseMonitor.class.getPackage().getName())) {
+                    origin = frame.getClassName().substring(frame.getClassName().lastIndexOf('.') + 1) + "." +
+                            frame.getMethodName() + ":" + frame.getLineNumber();
+                    break;
+                }
+            }
+
+            if ("leaked".equals(outcome)) {
+                stackTrace = new ArrayList<>(stack.length);
+                for (StackTraceElement frame : stack) {
+                    stackTrace.add(frame.toString());
+                }
+            }
+        }
+    }
+
+    /** The state of the editor datastore, for monitoring */
+    public static class Stats {
+        public TimerStats open;
+        public TimerStats commit;
+        public TimerStats rollback;
+
+        /** commits that failed because they conflicted with another (which writeFeed then retries) */
+        public long conflicts;
+
+        /** transactions that have been opened and not yet closed */
+        public int openTransactions;
+
+        public long slowTransactionMillis;
+        public long slowTransactionCount;
+        public long leakedTransactionCount;
+
+        /** the most recent slow and leaked transactions */
+        public List<TransactionSample> slowTransactions;
+        public List<TransactionSample> leakedTransactions;
+
+        public FeedDatabaseCache.Stats feedDatabases;
+        public FeedDatabaseCache.Stats snapshotDatabases;
+
+        /** the open feed databases */
+        public List<FeedDatabaseCache.DatabaseStats> feeds;
+
+        /** a one line summary, for the log */
+        @Override
+        public String toString () {
+            return String.format("%s opened, %s committed, %s rolled back, %d conflicts, %d open, %d slow, %d leaked; " +
+                    "feed databases %s", open, commit, rollback, conflicts, openTransactions, slowTransactionCount,
+                    leakedTransactionCount, feedDatabases);
+        }
+    }
+}
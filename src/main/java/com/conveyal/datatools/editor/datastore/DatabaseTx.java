@@ -6,16 +6,20 @@ import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DB.BTreeMapMaker;
 import org.mapdb.Fun.Tuple2;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.conveyal.datatools.editor.utils.ClassLoaderSerializer;
+import com.conveyal.datatools.editor.utils.CompactModelSerializer;
 
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.NavigableSet;
 
-/** A wrapped transaction, so the database just looks like a POJO */
+/**
+ * A wrapped transaction, so the database just looks like a POJO. Transactions are timed, and a transaction that is never
+ * closed is rolled back once it has been garbage collected, see DatabaseMonitor.
+ */
 public class DatabaseTx {
     public static final Logger LOG = LoggerFactory.getLogger(DatabaseTx.class);
 
@@ -25,9 +29,21 @@ public class DatabaseTx {
     /** has this transaction been closed? */
     boolean closed = false;
 
+    /** tracks this transaction until it is closed */
+    final DatabaseMonitor.TrackedTx tracked;
+
     /** is this transaction read-only? */
     protected boolean readOnly;
 
+    /**
+     * is the database used by this transaction alone (e.g. a snapshot opened to read it, or a temporary database)? If so
+     * it is closed, rather than rolled back, when this transaction is rolled back.
+     */
+    boolean closeOnRollback = false;
+
+    /** number of keys sorted in memory at a time when pumping an unsorted source into a new collection */
+    private static final int PUMP_PRESORT_BATCH_SIZE = 100000;
+
     /** Convenience function to retrieve a map */
     protected final <T1, T2> BTreeMap<T1, T2> getMap (String name) {
         try {
@@ -39,11 +55,17 @@ public class DatabaseTx {
         }
     }
 
+    /** retrieve a map in the specified database */
+    protected static <K, V> BTreeMap<K, V> getMap (DB tx, String name) {
+        return getMapMaker(tx, name)
+                .makeOrGet();
+    }
+
     /** retrieve a map maker, that can then be further modified */
     private static final BTreeMapMaker getMapMaker (DB tx, String name) {
         return tx.createTreeMap(name)
-                // use java serialization to allow for schema upgrades
-                .valueSerializer(new ClassLoaderSerializer());
+                // tagged fields allow for schema upgrades, see CompactModelSerializer
+                .valueSerializer(new CompactModelSerializer());
     }
 
     /**
@@ -60,28 +82,60 @@ public class DatabaseTx {
         }
     }
 
+    /**
+     * Drop the named set and recreate it from the given (unsorted) source using the data pump, which sorts the source
+     * and writes the BTree in a single pass rather than inserting one key at a time. Duplicates are ignored.
+     */
+    protected final <T> NavigableSet<T> rebuildSet (String name, Iterator<T> source) {
+        if (tx.exists(name))
+            tx.delete(name);
+
+        // the pump cannot build an empty tree
+        if (!source.hasNext())
+            return getSet(name);
+
+        return tx.createTreeSet(name)
+                .pumpSource(source)
+                .pumpPresort(PUMP_PRESORT_BATCH_SIZE)
+                .pumpIgnoreDuplicates()
+                .make();
+    }
+
     protected DatabaseTx (DB tx) {
         this.tx = tx;
+        this.tracked = DatabaseMonitor.track(this, tx);
     }
 
     public void commit() {
+        long startTime = System.nanoTime();
         try {
             tx.commit();
         } catch (UnsupportedOperationException e) {
             // probably read only, but warn
             LOG.warn("Rollback failed; if this is a read-only database this is not unexpected");
+        } catch (TxRollbackException e) {
+            // MapDB has already rolled the transaction back
+            closed = true;
+            DatabaseMonitor.conflicted(tracked, System.nanoTime() - startTime);
+            throw e;
         }
         closed = true;
+        DatabaseMonitor.closed(tracked, true, System.nanoTime() - startTime);
     }
 
     public void rollback() {
+        long startTime = System.nanoTime();
         try {
-            tx.rollback();
+            if (closeOnRollback)
+                tx.close();
+            else
+                tx.rollback();
         } catch (UnsupportedOperationException e) {
             // probably read only, but warn
             LOG.warn("Rollback failed; if this is a read-only database this is not unexpected");
         }
         closed = true;
+        DatabaseMonitor.closed(tracked, false, System.nanoTime() - startTime);
     }
 
     /** roll this transaction back if it has not been committed or rolled back already */
@@ -105,6 +159,22 @@ public class DatabaseTx {
                 .size();
     }
 
+    /**
+     * from an iterator in any order, fill a new map in the specified database. The pump sorts the source in batches,
+     * spilling them to disk, so the memory used does not depend on the size of the source. Duplicate keys are ignored.
+     */
+    protected static <K, V> int pumpPresorted(DB tx, String mapName, Iterator<Tuple2<K, V>> pumpSource) {
+        if (!pumpSource.hasNext())
+            return 0;
+
+        return getMapMaker(tx, mapName)
+                .pumpSource(pumpSource)
+                .pumpPresort(PUMP_PRESORT_BATCH_SIZE)
+                .pumpIgnoreDuplicates()
+                .make()
+                .size();
+    }
+
     /** efficiently create a BTreeMap in the specified database from another BTreeMap */
     protected static <K, V> int pump (DB tx, String mapName, BTreeMap<K, V> source) {
         if (source.size() == 0)
@@ -113,6 +183,28 @@ public class DatabaseTx {
         return pump(tx, mapName, pumpSourceForMap(source));
     }
 
+    /**
+     * Rewrite the named map, if it exists, so that it uses the current value serializer. MapDB stores the serializer of
+     * a map when the map is created, so the values have to be copied into a new map, which then takes the place of the
+     * original. The caller should commit the transaction once the map has been rewritten, as it holds a copy of the map.
+     */
+    protected static <K, V> void reserializeMap (DB tx, String mapName) {
+        if (!tx.exists(mapName))
+            return;
+
+        String tempName = mapName + "_reserialize";
+        if (tx.exists(tempName))
+            tx.delete(tempName);
+
+        BTreeMap<K, V> original = tx.getTreeMap(mapName);
+        int count = pump(tx, tempName, original);
+        tx.delete(mapName);
+
+        // an empty map is not copied, and is created again with the current serializer when it is next used
+        if (count > 0)
+            tx.rename(tempName, mapName);
+    }
+
     /** retrieve a pump source from a map */
     protected static <K, V> Iterator<Tuple2<K, V>> pumpSourceForMap(BTreeMap source) {
         Iterator<Entry<K, V>> values = source.descendingMap().entrySet().iterator();
@@ -125,11 +217,4 @@ public class DatabaseTx {
 
         return valueTuples;
     }
-
-    protected final void finalize () {
-        if (!closed) {
-            LOG.error("DB transaction left unclosed, this signifies a memory leak!");
-            rollback();
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,366 @@
+package com.conveyal.datatools.editor.datastore;
+
+import org.mapdb.DB;
+import org.mapdb.Store;
+import org.mapdb.TxMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The open feed databases. Each open feed database has a memory-mapped file and an async writer thread, so only a
+ * limited number of them are kept open: when there are too many, or one has not been used for a while, the least
+ * recently used databases are closed, and they are reopened the next time they are used. A database is only closed
+ * once no transactions are open in it.
+ *
+ * The database of a single feed can also be closed and blocked (see closeAndBlock) while its files are worked on, e.g.
+ * copied; transactions in that feed wait until it is unblocked, and the other feeds are not affected.
+ */
+public class FeedDatabaseCache {
+    private static final Logger LOG = LoggerFactory.getLogger(FeedDatabaseCache.class);
+
+    private final int maxOpen;
+
+    private final long idleTimeoutMillis;
+
+    /** opens the database of a feed */
+    private final Function<String, TxMaker> opener;
+
+    /** the open databases, least recently used first */
+    private final LinkedHashMap<String, OpenDatabase> databases = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** the feeds whose databases are closed and blocked, in which transactions cannot start until they are unblocked */
+    private final Set<String> blocked = new HashSet<>();
+
+    /** the feeds whose databases are being opened, outside the lock on the cache */
+    private final Set<String> opening = new HashSet<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    FeedDatabaseCache (int maxOpen, long idleTimeoutMillis, Function<String, TxMaker> opener) {
+        this.maxOpen = maxOpen;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.opener = opener;
+    }
+
+    /**
+     * start a transaction in the database of the given feed, opening the database if it is not open. If the feed is
+     * blocked, wait until it is unblocked. The lock on the cache is released while waiting, and while opening the
+     * database (which can take a while, e.g. to finish an interrupted restore), so the other feeds are not held up;
+     * other transactions in the same feed wait for the database to be opened.
+     */
+    DB makeTx (String feedId) {
+        synchronized (this) {
+            waitWhileUnavailable(feedId);
+
+            OpenDatabase db = databases.get(feedId);
+            if (db != null) {
+                hits++;
+                return startTx(db);
+            }
+
+            misses++;
+            opening.add(feedId);
+        }
+
+        TxMaker txMaker = null;
+        try {
+            txMaker = opener.apply(feedId);
+        } finally {
+            if (txMaker == null) {
+                synchronized (this) {
+                    opening.remove(feedId);
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized (this) {
+            opening.remove(feedId);
+            notifyAll();
+
+            // the transaction starts even if the feed has been blocked in the meantime; closeAndBlock waits for it
+            OpenDatabase db = new OpenDatabase(txMaker);
+            databases.put(feedId, db);
+            return startTx(db);
+        }
+    }
+
+    /** wait while the feed is blocked or its database is being opened; the caller must hold the lock on the cache */
+    private void waitWhileUnavailable (String feedId) {
+        while (blocked.contains(feedId) || opening.contains(feedId)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the database of feed " + feedId, e);
+            }
+        }
+    }
+
+    /** start a transaction in an open database; the caller must hold the lock on the cache */
+    private DB startTx (OpenDatabase db) {
+        DB tx = db.txMaker.makeTx();
+        db.transactions.add(new WeakReference<>(tx));
+        db.lastUsed = System.currentTimeMillis();
+
+        // only once the new transaction is registered, so that its database is not closed
+        if (databases.size() > maxOpen)
+            closeLeastRecentlyUsed();
+
+        return tx;
+    }
+
+    /**
+     * Remove the database of the given feed from the cache without closing it, even if transactions are open in it.
+     * @return the TxMaker of the database, which the caller should close, or null if it was not open
+     */
+    synchronized TxMaker remove (String feedId) {
+        OpenDatabase db = databases.remove(feedId);
+        return db != null ? db.txMaker : null;
+    }
+
+    /**
+     * Block the given feed, so that no more transactions start in it, and close its database once the transactions
+     * open in it have finished, waiting up to the given time for them. The database stays closed until unblock() is
+     * called, which the caller must do once it is done with the database files (e.g. has copied them). The lock on
+     * the cache is released while waiting, so the other feeds can be used in the meantime.
+     * @return true if the database is closed and the feed blocked, false (and the feed is not blocked) if it was still
+     * in use after the timeout
+     */
+    synchronized boolean closeAndBlock (String feedId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        // wait for anything else working on the files of the feed to finish first
+        while (blocked.contains(feedId)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+
+            wait(remaining);
+        }
+
+        blocked.add(feedId);
+        try {
+            while (true) {
+                if (opening.contains(feedId)) {
+                    // the database is being opened by a transaction that started before the feed was blocked
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        unblock(feedId);
+                        return false;
+                    }
+
+                    wait(remaining);
+                    continue;
+                }
+
+                OpenDatabase db = databases.get(feedId);
+                if (db == null)
+                    return true;
+
+                if (!db.isInUse()) {
+                    databases.remove(feedId);
+                    close(feedId, db);
+                    return true;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    unblock(feedId);
+                    return false;
+                }
+
+                // closing a transaction does not notify the cache, so check again shortly
+                wait(Math.min(remaining, 50));
+            }
+        } catch (InterruptedException e) {
+            unblock(feedId);
+            throw e;
+        }
+    }
+
+    /** let transactions start in a feed blocked by closeAndBlock() again, reopening its database */
+    synchronized void unblock (String feedId) {
+        blocked.remove(feedId);
+        notifyAll();
+    }
+
+    /** close the least recently used databases that are not in use, until no more than the maximum are open */
+    private void closeLeastRecentlyUsed () {
+        for (Iterator<Map.Entry<String, OpenDatabase>> it = databases.entrySet().iterator();
+             it.hasNext() && databases.size() > maxOpen;) {
+            Map.Entry<String, OpenDatabase> e = it.next();
+            if (e.getValue().isInUse())
+                continue;
+
+            LOG.info("Closing least recently used feed database {}, {} are open", e.getKey(), databases.size());
+            it.remove();
+            evictions++;
+            close(e.getKey(), e.getValue());
+        }
+
+        if (databases.size() > maxOpen)
+            LOG.warn("{} feed databases are in use, more than the maximum of {}", databases.size(), maxOpen);
+    }
+
+    /** close the databases that have not been used for longer than the idle timeout and are not in use */
+    public synchronized void closeIdle () {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Map.Entry<String, OpenDatabase>> it = databases.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, OpenDatabase> e = it.next();
+            if (now - e.getValue().lastUsed < idleTimeoutMillis || e.getValue().isInUse())
+                continue;
+
+            LOG.info("Closing idle feed database {}", e.getKey());
+            it.remove();
+            evictions++;
+            close(e.getKey(), e.getValue());
+        }
+
+        LOG.debug("Feed database cache: {}", getStats());
+    }
+
+    /** close all the databases, e.g. on shutdown */
+    public synchronized void closeAll () {
+        for (Map.Entry<String, OpenDatabase> e : databases.entrySet()) {
+            close(e.getKey(), e.getValue());
+        }
+
+        databases.clear();
+    }
+
+    private void close (String feedId, OpenDatabase db) {
+        try {
+            db.txMaker.close();
+        } catch (RuntimeException e) {
+            LOG.error("Error closing feed database {}", feedId, e);
+        }
+    }
+
+    public synchronized Stats getStats () {
+        Stats stats = new Stats();
+        stats.open = databases.size();
+        stats.maxOpen = maxOpen;
+        stats.hits = hits;
+        stats.misses = misses;
+        stats.evictions = evictions;
+        return stats;
+    }
+
+    /**
+     * Get the number of open transactions in each open database, and the size and free space of its store. The store is
+     * measured outside the lock on the cache, as reading its free space takes a while; if the database is closed in the
+     * meantime it is reported with a size of -1.
+     */
+    List<DatabaseStats> getDatabaseStats () {
+        List<DatabaseStats> ret = new ArrayList<>();
+        List<TxMaker> txMakers = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (Map.Entry<String, OpenDatabase> e : databases.entrySet()) {
+                OpenDatabase db = e.getValue();
+                db.isInUse();
+
+                DatabaseStats stats = new DatabaseStats();
+                stats.feedId = e.getKey();
+                stats.openTransactions = db.transactions.size();
+                stats.idleSeconds = (now - db.lastUsed) / 1000;
+                ret.add(stats);
+                txMakers.add(db.txMaker);
+            }
+        }
+
+        for (int i = 0; i < ret.size(); i++) {
+            DatabaseStats stats = ret.get(i);
+            stats.storeSize = -1;
+            try {
+                DB tx = txMakers.get(i).makeTx();
+                try {
+                    Store store = Store.forDB(tx);
+                    stats.storeSize = store.getCurrSize();
+                    stats.freeFraction = stats.storeSize > 0 ? (double) store.getFreeSize() / stats.storeSize : 0;
+                } finally {
+                    tx.rollback();
+                }
+            } catch (RuntimeException e) {
+                LOG.debug("Could not measure the store of feed database {}", stats.feedId, e);
+            }
+        }
+
+        return ret;
+    }
+
+    /** An open feed database */
+    private static class OpenDatabase {
+        final TxMaker txMaker;
+
+        /**
+         * the transactions started in this database that may still be open. Weak references, so that a transaction that
+         * is never closed does not keep the database open forever (DatabaseMonitor rolls it back once it is collected).
+         */
+        final List<WeakReference<DB>> transactions = new ArrayList<>();
+
+        long lastUsed;
+
+        OpenDatabase (TxMaker txMaker) {
+            this.txMaker = txMaker;
+        }
+
+        /** are any transactions open in this database? Also forgets the transactions that have been closed. */
+        boolean isInUse () {
+            transactions.removeIf(ref -> {
+                DB tx = ref.get();
+                return tx == null || tx.isClosed();
+            });
+
+            return !transactions.isEmpty();
+        }
+    }
+
+    /** The transactions and store of an open feed database, for monitoring */
+    public static class DatabaseStats {
+        public String feedId;
+        public int openTransactions;
+        public long idleSeconds;
+
+        /** size of the store in bytes, or -1 if it could not be measured */
+        public long storeSize;
+
+        /** fraction of the store that is free space, which compacting the store would reclaim */
+        public double freeFraction;
+    }
+
+    /** Counts of open feed databases and of cache hits, misses and evictions, for monitoring */
+    public static class Stats {
+        public int open;
+        public int maxOpen;
+
+        /** transactions started in a database that was already open */
+        public long hits;
+
+        /** transactions that had to open the database first */
+        public long misses;
+
+        /** databases closed because they were idle, or to make room for others */
+        public long evictions;
+
+        @Override
+        public String toString () {
+            return String.format("%d of %d open, %d hits, %d misses, %d evictions", open, maxOpen, hits, misses, evictions);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.conveyal.datatools.editor.datastore;
+
+import com.conveyal.datatools.editor.models.Model;
+import com.conveyal.datatools.editor.utils.CompactModelSerializer;
+import org.mapdb.BTreeMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The differences between two versions of a feed (snapshots, or a snapshot and the feed as it is now), by kind of
+ * entity: the IDs of the entities that were added, removed or changed. See VersionedDataStore.diff.
+ *
+ * Entities are compared by their serialized form, so two entities are the same if every stored field is the same,
+ * whatever the derived (transient) fields are. Most are compared by the content hash stored with their records rather
+ * than by serializing them again.
+ */
+public class FeedDiff {
+    /** maximum number of IDs listed for each kind of change to each kind of entity; the counts are always complete */
+    public static final int MAX_IDS = 10000;
+
+    /** version of the snapshot compared from */
+    public int fromVersion;
+
+    /** version of the snapshot compared to, or null if compared to the feed as it is now */
+    public Integer toVersion;
+
+    /**
+     * true if only the entities recorded as modified between the two versions (by delta snapshots and the change
+     * tracking of the feed) were compared, rather than every entity
+     */
+    public boolean incremental;
+
+    /** number of entities compared */
+    public long compared;
+
+    /** the differences by map name, e.g. "trips" */
+    public Map<String, EntityDiff> entities = new LinkedHashMap<>();
+
+    /** The differences between the entities of a kind */
+    public static class EntityDiff {
+        public int addedCount;
+        public int removedCount;
+        public int changedCount;
+
+        public List<String> added = new ArrayList<>();
+        public List<String> removed = new ArrayList<>();
+        public List<String> changed = new ArrayList<>();
+
+        /** true if there were more than MAX_IDS entities for any kind of change, so not all of them are listed */
+        public boolean truncated;
+
+        private void add (List<String> ids, String id) {
+            if (ids.size() < MAX_IDS)
+                ids.add(id);
+            else
+                truncated = true;
+        }
+    }
+
+    private final transient CompactModelSerializer serializer = new CompactModelSerializer();
+    private final transient ByteArrayOutputStream fromBytes = new ByteArrayOutputStream();
+    private final transient ByteArrayOutputStream toBytes = new ByteArrayOutputStream();
+
+    FeedDiff (int fromVersion, Integer toVersion, boolean incremental) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.incremental = incremental;
+
+        for (String mapName : FeedTx.PRIMARY_MAPS) {
+            entities.put(mapName, new EntityDiff());
+        }
+    }
+
+    /**
+     * Compare every entity in two versions of a map, in a single pass over both in ID order (a merge join), so that no
+     * lookups are needed.
+     */
+    void compareAll (String mapName, BTreeMap<String, Object> from, BTreeMap<String, Object> to) {
+        Iterator<Map.Entry<String, Object>> fromIt = from.entrySet().iterator();
+        Iterator<Map.Entry<String, Object>> toIt = to.entrySet().iterator();
+        Map.Entry<String, Object> f = fromIt.hasNext() ? fromIt.next() : null;
+        Map.Entry<String, Object> t = toIt.hasNext() ? toIt.next() : null;
+
+        while (f != null || t != null) {
+            int order = f == null ? 1 : t == null ? -1 : f.getKey().compareTo(t.getKey());
+
+            if (order < 0) {
+                compare(mapName, f.getKey(), f.getValue(), null);
+                f = fromIt.hasNext() ? fromIt.next() : null;
+            } else if (order > 0) {
+                compare(mapName, t.getKey(), null, t.getValue());
+                t = toIt.hasNext() ? toIt.next() : null;
+            } else {
+                compare(mapName, f.getKey(), f.getValue(), t.getValue());
+                f = fromIt.hasNext() ? fromIt.next() : null;
+                t = toIt.hasNext() ? toIt.next() : null;
+            }
+        }
+    }
+
+    /** compare two versions of an entity, either of which may be null if the entity does not exist in that version */
+    void compare (String mapName, String id, Object from, Object to) {
+        EntityDiff diff = entities.get(mapName);
+        compared++;
+
+        if (from == null && to == null) {
+            // created and deleted again between the two versions
+            return;
+        } else if (from == null) {
+            diff.addedCount++;
+            diff.add(diff.added, id);
+        } else if (to == null) {
+            diff.removedCount++;
+            diff.add(diff.removed, id);
+        } else if (!sameContent(from, to)) {
+            diff.changedCount++;
+            diff.add(diff.changed, id);
+        }
+    }
+
+    /**
+     * do two entities have the same stored content? Entities read from records that carry a content hash (see
+     * Model.contentHash) are compared by hash; others are serialized again to compare them.
+     */
+    private boolean sameContent (Object from, Object to) {
+        if (from.getClass() != to.getClass())
+            return false;
+
+        if (from instanceof Model) {
+            long fromHash = ((Model) from).contentHash;
+            long toHash = ((Model) to).contentHash;
+            if (fromHash != 0 && toHash != 0)
+                return fromHash == toHash;
+        }
+
+        serialize(from, fromBytes);
+        serialize(to, toBytes);
+
+        return fromBytes.size() == toBytes.size() && Arrays.equals(fromBytes.toByteArray(), toBytes.toByteArray());
+    }
+
+    private void serialize (Object value, ByteArrayOutputStream out) {
+        out.reset();
+        try {
+            serializer.serialize(new DataOutputStream(out), value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
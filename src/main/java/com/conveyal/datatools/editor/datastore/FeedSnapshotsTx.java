@@ -0,0 +1,21 @@
+package com.conveyal.datatools.editor.datastore;
+
+import com.conveyal.datatools.editor.models.Snapshot;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+
+/**
+ * A transaction in the database holding the metadata (name, time, whether it is current, etc.) of the snapshots of a
+ * single feed. Each feed has its own, so that taking, listing and restoring the snapshots of different feeds do not
+ * contend on the global database. The contents of each snapshot are in a database of their own, see SnapshotTx.
+ */
+public class FeedSnapshotsTx extends DatabaseTx {
+    /** the snapshots of the feed, keyed by version */
+    public BTreeMap<Integer, Snapshot> snapshots;
+
+    public FeedSnapshotsTx (DB tx) {
+        super(tx);
+
+        snapshots = getMap("snapshots");
+    }
+}
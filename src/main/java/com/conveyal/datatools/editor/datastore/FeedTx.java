@@ -1,7 +1,9 @@
 package com.conveyal.datatools.editor.datastore;
 
+import com.conveyal.datatools.editor.models.Model;
 import com.conveyal.datatools.editor.models.transit.*;
-import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import java.time.LocalDate;
 import org.mapdb.Atomic;
@@ -11,21 +13,28 @@ import org.mapdb.DB;
 import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
 import com.conveyal.datatools.editor.utils.BindUtils;
+import com.conveyal.datatools.editor.utils.HilbertCurve;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.stream.Collectors;
 
 /** a transaction in an agency database */
 public class FeedTx extends DatabaseTx {
     // primary com.conveyal.datatools.editor.datastores
-    // if you add another, you MUST update SnapshotTx.java
+    // if you add another, you MUST add it to PRIMARY_MAPS below, which SnapshotTx uses to take and restore snapshots
     // if you don't, not only will your new data not be backed up, IT WILL BE THROWN AWAY WHEN YOU RESTORE!
-    // AND ALSO the duplicate() function below
+    // AND ALSO withFeedId() below, which duplicate() uses
     public BTreeMap<String, TripPattern> tripPatterns;
     public BTreeMap<String, Route> routes;
     public BTreeMap<String, Trip> trips;
@@ -66,21 +75,104 @@ public class FeedTx extends DatabaseTx {
     public ConcurrentMap<LocalDate, Long> scheduleExceptionCountByDate;
 
     /** number of trips on each tuple2<patternId, calendar id> */
-    public ConcurrentMap<Tuple2<String, String>, Long> tripCountByPatternAndCalendar;
+    public ConcurrentNavigableMap<Tuple2<String, String>, Long> tripCountByPatternAndCalendar;
 
     /** number of trips on each calendar */
     public ConcurrentMap<String, Long> tripCountByCalendar;
 
     /**
-     * Spatial index of stops. Set<Tuple2<Tuple2<Lon, Lat>, stop ID>>
-     * This is not a true spatial index, but should be sufficiently efficient for our purposes.
-     * Jan Kotek describes this approach here, albeit in Czech: https://groups.google.com/forum/#!msg/mapdb/ADgSgnXzkk8/Q8J9rWAWXyMJ
+     * Spatial index of stops. Set<Tuple2<Hilbert index of stop location, stop ID>>
+     * Stops are ordered along a Hilbert curve (see HilbertCurve), so a bounding box query only scans a handful of
+     * ranges of the curve that cover the box, rather than every stop in its longitude band.
      */
-    public NavigableSet<Tuple2<Tuple2<Double, Double>, String>> stopsGix;
+    public NavigableSet<Tuple2<Long, String>> stopsGix;
+
+    /**
+     * Catalog of the secondary indices stored in this feed database: index name -> version of the index definition it
+     * was built with. An index is only rebuilt when its entry is missing or out of date.
+     */
+    private BTreeMap<String, Integer> indexCatalog;
+
+    /**
+     * Current version of each secondary index definition. If you change the function that produces the keys of an
+     * index, bump its version here so that existing feed databases rebuild it the next time they are opened.
+     */
+    private static final Map<String, Integer> INDEX_VERSIONS = ImmutableMap.<String, Integer>builder()
+            .put("tripsByRoute", 1)
+            .put("tripPatternsByRoute", 1)
+            .put("tripsByTripPattern", 1)
+            .put("tripsByCalendar", 1)
+            .put("exceptionsByCalendar", 1)
+            .put("tripsByPatternAndCalendar", 1)
+            .put("majorStops", 1)
+            .put("tripPatternsByStop", 1)
+            .put("tripCountByPatternAndCalendar", 1)
+            .put("scheduleExceptionCountByDate", 1)
+            .put("tripCountByCalendar", 1)
+            .put("stopsGix", 2)
+            .build();
+
+    /** names of the primary maps */
+    static final String[] PRIMARY_MAPS =
+            { "tripPatterns", "routes", "trips", "calendars", "exceptions", "stops", "agencies", "fares" };
+
+    /**
+     * Storage format of the primary maps. 0 is Java serialization (ClassLoaderSerializer), 1 is CompactModelSerializer.
+     * If the value serializer in DatabaseTx changes, bump this so that existing feed databases are rewritten.
+     */
+    private static final int MODEL_FORMAT = 1;
+
+    /** set by a read-only transaction that found an index that is missing or out of date */
+    private boolean staleIndices = false;
+
+    /**
+     * Entities modified since the snapshot that this feed was last snapshotted to or restored from (the change tracking
+     * base): <map name, entity ID> -> modification version, which is incremented every time the entity is modified.
+     * These are the entities that the next (delta) snapshot records, see SnapshotTx. Only opened in writable
+     * transactions.
+     */
+    BTreeMap<Tuple2<String, String>, Long> modifiedEntities;
+
+    /** version of the snapshot that modifiedEntities is relative to, or 0 if there is none */
+    private Atomic.Integer changeTrackingBase;
 
     /** snapshot versions. we use an atomic value so that they are (roughly) sequential, instead of using unordered UUIDs */
     private Atomic.Integer snapshotVersion;
 
+    /**
+     * Log of the modifications to the primary maps, so that clients can catch up with the modifications since they last
+     * read the feed: <revision, map name, entity ID, ChangeType>. Only the modifications of the last
+     * CHANGE_LOG_REVISIONS revisions are kept. Only opened in writable transactions, or when it is read.
+     */
+    private NavigableSet<Fun.Tuple4<Long, String, String, String>> changeLog;
+
+    /**
+     * revision of the feed, incremented by every commit that modifies the primary maps. Revisions start from the time
+     * the database was created, in milliseconds, so that they do not repeat if a feed is deleted and created again.
+     */
+    private static final String REVISION = "revision";
+
+    /** the change log has all the modifications made after this revision */
+    private static final String CHANGE_LOG_START = "changeLogStart";
+
+    /** number of revisions kept in the change log */
+    static final int CHANGE_LOG_REVISIONS = 1000;
+
+    /**
+     * maximum number of entities modified by a commit for the modifications to be logged. A commit that modifies more
+     * (e.g. an import) resets the change log instead, so that clients reload the feed.
+     */
+    static final int MAX_LOGGED_CHANGES = 10000;
+
+    /** the entities modified by this transaction: <map name, entity ID> -> kind of modification */
+    private Map<Tuple2<String, String>, ChangeType> pendingChanges;
+
+    /** set when this transaction has modified too many entities to log them */
+    private boolean tooManyChanges = false;
+
+    /** number of entities updated per transaction when setting the feedId of a duplicated feed */
+    private static final int SET_FEED_ID_BATCH_SIZE = 10000;
+
 //    public Atomic.Boolean editedSinceSnapshot;
     /**
      * Create a feed tx.
@@ -91,7 +183,16 @@ public class FeedTx extends DatabaseTx {
 
     /** Create a feed tx, optionally without secondary indices */
     public FeedTx(DB tx, boolean buildSecondaryIndices) {
+        this(tx, buildSecondaryIndices, false);
+    }
+
+    /**
+     * Create a feed tx, optionally without secondary indices. A read-only feed tx opens the secondary indices but never
+     * binds listeners to the primary maps or rebuilds stale indices, and cannot be committed.
+     */
+    FeedTx(DB tx, boolean buildSecondaryIndices, boolean readOnly) {
         super(tx);
+        this.readOnly = readOnly;
 
         tripPatterns = getMap("tripPatterns");
         routes = getMap("routes");
@@ -106,53 +207,290 @@ public class FeedTx extends DatabaseTx {
         if (buildSecondaryIndices)
             buildSecondaryIndices();
 
+        if (buildSecondaryIndices && !readOnly)
+            trackChanges();
+
 //        editedSinceSnapshot = tx.getAtomicBoolean("editedSinceSnapshot") == null ? tx.createAtomicBoolean("editedSinceSnapshot", false) : editedSinceSnapshot;
     }
 
-    public void commit () {
+    /**
+     * Rewrite the primary maps of a feed database that was written in an older storage format. Each map is rewritten and
+     * committed in a transaction of its own, so that converting a large feed does not build up one huge transaction; a
+     * map that has not been converted yet is still read with the serializer it was written with. The format is recorded
+     * once all the maps have been converted, so if the conversion fails part way through (e.g. because a map is
+     * modified concurrently), it starts over the next time, which rewrites the converted maps again but is otherwise
+     * harmless. Returns true if the feed was converted.
+     */
+    static boolean upgradeModelFormat (String feedId) {
+        DB tx = VersionedDataStore.getRawFeedTx(feedId);
         try {
-//            editedSinceSnapshot.set(true);
+            if (tx.getAtomicInteger("modelFormat").get() >= MODEL_FORMAT)
+                return false;
+        } finally {
+            tx.rollback();
+        }
+
+        for (String mapName : PRIMARY_MAPS) {
+            tx = VersionedDataStore.getRawFeedTx(feedId);
+            try {
+                reserializeMap(tx, mapName);
+                tx.commit();
+            } finally {
+                if (!tx.isClosed()) tx.rollback();
+            }
+        }
+
+        tx = VersionedDataStore.getRawFeedTx(feedId);
+        try {
+            setCurrentModelFormat(tx);
             tx.commit();
-        } catch (UnsupportedOperationException e) {
-            // probably read only, but warn
-            LOG.warn("Rollback failed; if this is a read-only database this is not unexpected");
+        } finally {
+            if (!tx.isClosed()) tx.rollback();
+        }
+
+        return true;
+    }
+
+    /** Record that the primary maps of a feed database are in the current storage format, e.g. a new database. */
+    static void setCurrentModelFormat (DB tx) {
+        tx.getAtomicInteger("modelFormat").set(MODEL_FORMAT);
+    }
+
+    /** Record the modification of every entity in the primary maps in modifiedEntities. */
+    private void trackChanges () {
+        modifiedEntities = getMap("modifiedEntities");
+        changeTrackingBase = tx.getAtomicInteger("changeTrackingBase");
+        pendingChanges = new HashMap<>();
+
+        for (String mapName : PRIMARY_MAPS) {
+            trackChanges(mapName, getPrimaryMap(mapName));
         }
-        closed = true;
     }
 
+    private <V> void trackChanges (String mapName, BTreeMap<String, V> map) {
+        map.modificationListenerAdd((key, oldVal, newVal) -> {
+            Tuple2<String, String> entity = new Tuple2<>(mapName, key);
+            Long version = modifiedEntities.get(entity);
+            modifiedEntities.put(entity, version == null ? 1L : version + 1);
+
+            recordChange(entity, oldVal == null ? ChangeType.CREATE : newVal == null ? ChangeType.DELETE : ChangeType.UPDATE);
+        });
+    }
+
+    /** record a modification in pendingChanges, combined with any earlier modification of the same entity */
+    private void recordChange (Tuple2<String, String> entity, ChangeType change) {
+        if (tooManyChanges)
+            return;
+
+        ChangeType previous = pendingChanges.get(entity);
+        if (previous == ChangeType.CREATE && change == ChangeType.DELETE)
+            // created and deleted in this transaction, so nothing to log
+            pendingChanges.remove(entity);
+        else if (previous == ChangeType.DELETE && change == ChangeType.CREATE)
+            pendingChanges.put(entity, ChangeType.UPDATE);
+        else if (previous != ChangeType.CREATE)
+            pendingChanges.put(entity, change);
+
+        if (pendingChanges.size() > MAX_LOGGED_CHANGES) {
+            tooManyChanges = true;
+            pendingChanges.clear();
+        }
+    }
+
+    /**
+     * Increment the revision and add the modifications made by this transaction to the change log, or reset the change
+     * log if there are too many of them. Does nothing if this transaction has not modified the primary maps.
+     */
+    private void logChanges () {
+        Atomic.Long revision = tx.getAtomicLong(REVISION);
+        Atomic.Long changeLogStart = tx.getAtomicLong(CHANGE_LOG_START);
+
+        if (revision.get() == 0) {
+            // a new database
+            long now = System.currentTimeMillis();
+            revision.set(now);
+            changeLogStart.set(now);
+        }
+
+        if (pendingChanges.isEmpty() && !tooManyChanges)
+            return;
+
+        long rev = revision.incrementAndGet();
+        changeLog = getSet("changeLog");
+
+        if (tooManyChanges) {
+            changeLog.clear();
+            changeLogStart.set(rev);
+        } else {
+            for (Map.Entry<Tuple2<String, String>, ChangeType> e : pendingChanges.entrySet()) {
+                changeLog.add(new Fun.Tuple4<>(rev, e.getKey().a, e.getKey().b, e.getValue().name()));
+            }
+
+            // forget the oldest revisions
+            long oldest = rev - CHANGE_LOG_REVISIONS;
+            if (changeLogStart.get() < oldest) {
+                changeLog.headSet(new Fun.Tuple4(oldest, Fun.HI, Fun.HI, Fun.HI), true).clear();
+                changeLogStart.set(oldest);
+            }
+        }
+
+        pendingChanges.clear();
+        tooManyChanges = false;
+    }
+
+    /** Get the revision of the feed as of this transaction, see REVISION. */
+    public long getRevision () {
+        return getRevision(tx);
+    }
+
+    /** Get the revision of the feed database, see REVISION. */
+    static long getRevision (DB tx) {
+        return tx.exists(REVISION) ? tx.getAtomicLong(REVISION).get() : 0;
+    }
+
+    /**
+     * Set the revision of a database that replaces a feed database (see VersionedDataStore.replaceFeedDb), with an
+     * empty change log, so that clients of the feed reload it.
+     */
+    static void resetChangeLog (DB tx, long revision) {
+        if (tx.exists("changeLog"))
+            tx.delete("changeLog");
+
+        tx.getAtomicLong(REVISION).set(revision);
+        tx.getAtomicLong(CHANGE_LOG_START).set(revision);
+    }
+
+    /**
+     * Get the modifications made to the feed after the given revision, up to the revision of this transaction, oldest
+     * first. An entity appears once for each revision in which it was modified.
+     * @return the modifications, or null if they are not all in the change log (e.g. the revision is too old, or the
+     * feed has been replaced since), in which case the client should reload the whole feed.
+     */
+    public List<Change> getChangesSince (long since) {
+        long revision = getRevision();
+        long changeLogStart = tx.exists(CHANGE_LOG_START) ? tx.getAtomicLong(CHANGE_LOG_START).get() : 0;
+
+        if (since < changeLogStart || since > revision)
+            return null;
+
+        List<Change> ret = new ArrayList<>();
+        if (since == revision || !tx.exists("changeLog"))
+            return ret;
+
+        if (changeLog == null)
+            changeLog = getSet("changeLog");
+
+        for (Fun.Tuple4<Long, String, String, String> entry : changeLog.tailSet(new Fun.Tuple4(since, Fun.HI, Fun.HI, Fun.HI), false)) {
+            ret.add(new Change(entry.a, entry.b, entry.c, ChangeType.valueOf(entry.d)));
+        }
+
+        return ret;
+    }
+
+    /** get one of the primary maps by name */
+    <V> BTreeMap<String, V> getPrimaryMap (String mapName) {
+        return getMap(mapName);
+    }
+
+    /** Get the version of the snapshot that modifications to this feed are tracked against, or null if there is none. */
+    public Integer getChangeTrackingBase () {
+        // change tracking is not opened in read-only transactions
+        if (changeTrackingBase == null && !tx.exists("changeTrackingBase"))
+            return null;
+
+        int base = (changeTrackingBase != null ? changeTrackingBase : tx.getAtomicInteger("changeTrackingBase")).get();
+        return base > 0 ? base : null;
+    }
+
+    /**
+     * Get the entities modified since the change tracking base, as <map name, entity ID> (see modifiedEntities). Also
+     * works in a read-only transaction.
+     */
+    NavigableSet<Tuple2<String, String>> getModifiedEntities () {
+        if (modifiedEntities != null)
+            return modifiedEntities.keySet();
+
+        return tx.exists("modifiedEntities") ?
+                this.<Tuple2<String, String>, Long>getMap("modifiedEntities").keySet() :
+                Collections.emptyNavigableSet();
+    }
+
+    /**
+     * Record that the feed, as seen by this transaction, is identical to the given snapshot, so that the next snapshot
+     * only needs to record modifications made after this transaction. The modification records are removed one by one
+     * rather than by dropping the map, so that a concurrent transaction that modifies any of the same entities conflicts
+     * with this one on commit, and no modification can be missed by the next snapshot.
+     */
+    void resetChangeTracking (int snapshotVersion) {
+        modifiedEntities.clear();
+        changeTrackingBase.set(snapshotVersion);
+    }
+
+    /**
+     * Fill one of the primary maps of a new feed database (see VersionedDataStore.replaceFeedDb) with the given entities,
+     * which may be in any order, in a single pass of the data pump rather than inserting them one at a time. Secondary
+     * indices are not maintained; they are built when a FeedTx is first created on the database.
+     * @return the number of entities loaded
+     */
+    public static <V extends Model> int bulkLoad (DB db, String mapName, Iterator<V> entities) {
+        if (db.exists(mapName))
+            throw new IllegalStateException("Cannot bulk load into existing map " + mapName);
+
+        return pumpPresorted(db, mapName, Iterators.transform(entities, entity -> new Tuple2<String, V>(entity.id, entity)));
+    }
+
+    public void commit () {
+        if (readOnly) {
+            throw new IllegalStateException("Cannot commit a read-only feed transaction");
+        }
+
+        // only transactions that track their modifications can log them
+        if (pendingChanges != null)
+            logChanges();
+
+//        editedSinceSnapshot.set(true);
+        super.commit();
+    }
+
+    /**
+     * Open the secondary indices, rebuilding any whose definition has changed since they were last built, and (for
+     * writable transactions) bind them to the primary maps so that they are kept up to date.
+     */
     public void buildSecondaryIndices () {
         // build secondary indices
         // we store indices in the mapdb not because we care about persistence, but because then they
         // will be managed within the context of MapDB transactions
-        tripsByRoute = getSet("tripsByRoute");
+        indexCatalog = getMap("indexCatalog");
 
         // bind the trips to the routes
-        Bind.secondaryKeys(trips, tripsByRoute, (tripId, trip) -> new String[] { trip.routeId });
+        tripsByRoute = secondaryKeys("tripsByRoute", trips, (tripId, trip) -> new String[] { trip.routeId });
 
-        tripPatternsByRoute = getSet("tripPatternsByRoute");
-        Bind.secondaryKeys(tripPatterns, tripPatternsByRoute, (tripId, trip) -> new String[] { trip.routeId });
+        tripPatternsByRoute = secondaryKeys("tripPatternsByRoute", tripPatterns, (tripId, trip) -> new String[] { trip.routeId });
 
-        tripsByTripPattern = getSet("tripsByTripPattern");
-        Bind.secondaryKeys(trips, tripsByTripPattern, (tripId, trip) -> new String[] { trip.patternId });
+        tripsByTripPattern = secondaryKeys("tripsByTripPattern", trips, (tripId, trip) -> new String[] { trip.patternId });
 
-        tripsByCalendar = getSet("tripsByCalendar");
-        Bind.secondaryKeys(trips, tripsByCalendar, (tripId, trip) -> new String[] { trip.calendarId });
+        tripsByCalendar = secondaryKeys("tripsByCalendar", trips, (tripId, trip) -> new String[] { trip.calendarId });
 
-        exceptionsByCalendar = getSet("exceptionsByCalendar");
-        Bind.secondaryKeys(exceptions, exceptionsByCalendar, (key, ex) -> {
+        exceptionsByCalendar = secondaryKeys("exceptionsByCalendar", exceptions, (key, ex) -> {
             if (ex.customSchedule == null) return new String[0];
 
             return ex.customSchedule.toArray(new String[ex.customSchedule.size()]);
         });
 
-        tripsByPatternAndCalendar = getSet("tripsByPatternAndCalendar");
-        Bind.secondaryKeys(trips, tripsByPatternAndCalendar, (key, trip) -> new Tuple2[] { new Tuple2(trip.patternId, trip.calendarId) });
+        Fun.Function2<Tuple2<String, String>[], String, Trip> patternAndCalendarKeys =
+                (key, trip) -> new Tuple2[] { new Tuple2(trip.patternId, trip.calendarId) };
+        tripsByPatternAndCalendar = secondaryKeys("tripsByPatternAndCalendar", trips, patternAndCalendarKeys);
 
         majorStops = getSet("majorStops");
-        BindUtils.subsetIndex(stops, majorStops, (key, val) -> val.majorStop != null && val.majorStop);
+        Fun.Function2<Boolean, String, Stop> isMajorStop = (key, val) -> val.majorStop != null && val.majorStop;
+        if (needsRebuild("majorStops")) {
+            majorStops.clear();
+            BindUtils.fillSubsetIndex(stops, majorStops, isMajorStop);
+            markIndexCurrent("majorStops");
+        }
+        if (!readOnly) BindUtils.subsetIndexListener(stops, majorStops, isMajorStop);
 
-        tripPatternsByStop = getSet("tripPatternsByStop");
-        Bind.secondaryKeys(tripPatterns, tripPatternsByStop, (key, tp) -> {
+        tripPatternsByStop = secondaryKeys("tripPatternsByStop", tripPatterns, (key, tp) -> {
             String[] stops1 = new String[tp.patternStops.size()];
 
             for (int i = 0; i < stops1.length; i++) {
@@ -163,14 +501,23 @@ public class FeedTx extends DatabaseTx {
         });
 
         tripCountByPatternAndCalendar = getMap("tripCountByPatternAndCalendar");
-        Bind.histogram(trips, tripCountByPatternAndCalendar, (tripId, trip) -> new Tuple2(trip.patternId, trip.calendarId));
+        Fun.Function2<Tuple2<String, String>, String, Trip> patternAndCalendar =
+                (tripId, trip) -> new Tuple2<>(trip.patternId, trip.calendarId);
+        if (needsRebuild("tripCountByPatternAndCalendar")) {
+            tripCountByPatternAndCalendar.clear();
+            BindUtils.fillHistogram(trips, tripCountByPatternAndCalendar, patternAndCalendar);
+            markIndexCurrent("tripCountByPatternAndCalendar");
+        }
+        if (!readOnly) BindUtils.histogramListener(trips, tripCountByPatternAndCalendar, patternAndCalendar);
 
         // getting schedule exception map appears to be causing issues for some feeds
         // The names of the code writers have been changed to protect the innocent.
+        boolean scheduleExceptionMapReplaced = false;
         try {
             scheduleExceptionCountByDate = getMap("scheduleExceptionCountByDate");
         } catch (RuntimeException e1) {
             LOG.error("Error getting scheduleExceptionCountByDate map. Getting a new one.");
+            scheduleExceptionMapReplaced = true;
             int count = 0;
             final int NEW_MAP_LIMIT = 100;
             while (true) {
@@ -188,19 +535,81 @@ public class FeedTx extends DatabaseTx {
                 break;
             }
         }
-        BindUtils.multiHistogram(exceptions, scheduleExceptionCountByDate, (id, ex) -> ex.dates.toArray(new LocalDate[ex.dates.size()]));
+        Fun.Function2<LocalDate[], String, ScheduleException> exceptionDates = (id, ex) -> ex.dates.toArray(new LocalDate[ex.dates.size()]);
+        if ((scheduleExceptionMapReplaced && !readOnly) || needsRebuild("scheduleExceptionCountByDate")) {
+            scheduleExceptionCountByDate.clear();
+            BindUtils.fillMultiHistogram(exceptions, scheduleExceptionCountByDate, exceptionDates);
+            markIndexCurrent("scheduleExceptionCountByDate");
+        }
+        if (!readOnly) BindUtils.multiHistogramListener(exceptions, scheduleExceptionCountByDate, exceptionDates);
 
         tripCountByCalendar = getMap("tripCountByCalendar");
-        BindUtils.multiHistogram(trips, tripCountByCalendar, (key, trip) -> {
+        Fun.Function2<String[], String, Trip> tripCalendars = (key, trip) -> {
             if (trip.calendarId == null)
                 return new String[] {};
             else
                 return new String[] { trip.calendarId };
-        });
+        };
+        if (needsRebuild("tripCountByCalendar")) {
+            tripCountByCalendar.clear();
+            BindUtils.fillMultiHistogram(trips, tripCountByCalendar, tripCalendars);
+            markIndexCurrent("tripCountByCalendar");
+        }
+        if (!readOnly) BindUtils.multiHistogramListener(trips, tripCountByCalendar, tripCalendars);
 
         // "spatial index"
-        stopsGix = getSet("stopsGix");
-        Bind.secondaryKeys(stops, stopsGix, (stopId, stop) -> new Tuple2[] { new Tuple2(stop.location.getX(), stop.location.getY()) });
+        stopsGix = secondaryKeys("stopsGix", stops, (stopId, stop) -> new Long[] { HilbertCurve.index(stop.location.getX(), stop.location.getY()) });
+    }
+
+    /**
+     * Open a secondary key index, rebuilding it in one sorted pass if its definition has changed since it was built.
+     * For writable transactions, also bind it to the primary map so that it is kept up to date.
+     */
+    private <K, V, K2> NavigableSet<Tuple2<K2, K>> secondaryKeys (String name, BTreeMap<K, V> primary, Fun.Function2<K2[], K, V> fun) {
+        NavigableSet<Tuple2<K2, K>> index;
+
+        if (!needsRebuild(name)) {
+            index = getSet(name);
+        } else {
+            LOG.info("Rebuilding secondary index {}", name);
+            index = rebuildSet(name, BindUtils.secondaryKeysSource(primary, fun));
+            markIndexCurrent(name);
+        }
+
+        if (!readOnly) BindUtils.secondaryKeysListener(primary, index, fun);
+
+        return index;
+    }
+
+    /** Has the named index been built (in this feed database) using its current definition? */
+    private boolean indexIsCurrent (String name) {
+        Integer builtVersion = indexCatalog.get(name);
+        return builtVersion != null && builtVersion.equals(INDEX_VERSIONS.get(name));
+    }
+
+    /**
+     * Does the named index need to be rebuilt in this transaction? Read-only transactions never rebuild indices; they
+     * just remember that a stale index was found, so that the caller can rebuild it in a write transaction.
+     */
+    private boolean needsRebuild (String name) {
+        if (indexIsCurrent(name)) return false;
+
+        if (readOnly) {
+            staleIndices = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    /** Did this read-only transaction find secondary indices that need to be rebuilt in a write transaction? */
+    public boolean hasStaleIndices () {
+        return staleIndices;
+    }
+
+    /** Record in the index catalog that the named index has been built using its current definition. */
+    private void markIndexCurrent (String name) {
+        indexCatalog.put(name, INDEX_VERSIONS.get(name));
     }
 
     public Collection<Trip> getTripsByPattern(String patternId) {
@@ -211,6 +620,13 @@ public class FeedTx extends DatabaseTx {
                 .collect(Collectors.toList());
     }
 
+    /** Get the IDs of the trips of a pattern, without reading the trips themselves. */
+    public List<String> getTripIdsByPattern(String patternId) {
+        Set<Tuple2<String, String>> matchedKeys = tripsByTripPattern.subSet(new Tuple2(patternId, null), new Tuple2(patternId, Fun.HI));
+
+        return matchedKeys.stream().map(input -> input.b).collect(Collectors.toList());
+    }
+
     public Collection<Trip> getTripsByRoute(String routeId) {
         Set<Tuple2<String, String>> matchedKeys = tripsByRoute.subSet(new Tuple2(routeId, null), new Tuple2(routeId, Fun.HI));
 
@@ -229,6 +645,22 @@ public class FeedTx extends DatabaseTx {
         return matchedKeys.stream().map(input -> exceptions.get(input.b)).collect(Collectors.toList());
     }
 
+    /**
+     * Get the number of trips of a pattern on each calendar from the trip count histogram, without reading the trips.
+     * Trips that have no calendar are counted under a null key.
+     */
+    public Map<String, Long> getTripCountByCalendarForPattern(String patternId) {
+        Map<Tuple2<String, String>, Long> counts =
+                tripCountByPatternAndCalendar.subMap(new Tuple2(patternId, null), true, new Tuple2(patternId, Fun.HI), true);
+
+        Map<String, Long> ret = new HashMap<>();
+        for (Map.Entry<Tuple2<String, String>, Long> e : counts.entrySet()) {
+            // counts drop to zero rather than being removed when the last trip is removed
+            if (e.getValue() > 0) ret.put(e.getKey().b, e.getValue());
+        }
+        return ret;
+    }
+
     public Collection<Trip> getTripsByPatternAndCalendar(String patternId, String calendarId) {
         Set<Tuple2<Tuple2<String, String>, String>> matchedKeys =
                 tripsByPatternAndCalendar.subSet(new Tuple2(new Tuple2(patternId, calendarId), null), new Tuple2(new Tuple2(patternId, calendarId), Fun.HI));
@@ -238,18 +670,35 @@ public class FeedTx extends DatabaseTx {
 
     public Collection<Stop> getStopsWithinBoundingBox (double north, double east, double south, double west) {
         // find all the stops in this bounding box
-        // avert your gaze please as I write these generic types
-        Tuple2<Double, Double> min = new Tuple2<Double, Double>(west, south);
-        Tuple2<Double, Double> max = new Tuple2<Double, Double>(east, north);
+        List<Stop> matchedStops = new ArrayList<>();
 
-        Set<Tuple2<Tuple2<Double, Double>, String>> matchedKeys =
-                stopsGix.subSet(new Tuple2(min, null), new Tuple2(max, Fun.HI));
+        for (String stopId : HilbertCurve.keysWithin(stopsGix, west, south, east, north)) {
+            Stop stop = stops.get(stopId);
 
-        Collection<Stop> matchedStops = matchedKeys.stream().map(input -> stops.get(input.b)).collect(Collectors.toList());
+            // the index is only precise to the nearest cell, so check the exact location
+            if (stop != null && stop.getLon() >= west && stop.getLon() <= east && stop.getLat() >= south && stop.getLat() <= north)
+                matchedStops.add(stop);
+        }
 
         return matchedStops;
     }
 
+    /** Get the (up to) k stops nearest to the given point and within maxDistance meters of it, nearest first. */
+    public List<Stop> getNearestStops (double lat, double lon, int k, double maxDistance) {
+        // hold on to the stops we look at so they are not deserialized twice
+        Map<String, Stop> candidates = new HashMap<>();
+
+        List<String> stopIds = HilbertCurve.nearestKeys(stopsGix, lon, lat, k, maxDistance, stopId -> {
+            Stop stop = stops.get(stopId);
+            if (stop == null) return null;
+
+            candidates.put(stopId, stop);
+            return new double[] { stop.getLon(), stop.getLat() };
+        });
+
+        return stopIds.stream().map(candidates::get).collect(Collectors.toList());
+    }
+
     public Collection<TripPattern> getTripPatternsByStop (String id) {
         Collection<Tuple2<String, String>> matchedPatterns = tripPatternsByStop.subSet(new Tuple2(id, null), new Tuple2(id, Fun.HI));
         return matchedPatterns.stream()
@@ -262,184 +711,157 @@ public class FeedTx extends DatabaseTx {
         return snapshotVersion.incrementAndGet();
     }
 
-    /** duplicate an EditorFeed in its entirety. Return the new feed ID */
-    public static String duplicate (String feedId) {
-        final String newId = UUID.randomUUID().toString();
-
-        FeedTx feedTx = VersionedDataStore.getFeedTx(feedId);
-
-        DB newDb = VersionedDataStore.getRawFeedTx(newId);
-
-        copy(feedTx, newDb, newId);
-
-        // rebuild indices
-        FeedTx newTx = new FeedTx(newDb);
-        newTx.commit();
-
-        feedTx.rollback();
+    /**
+     * Duplicate an EditorFeed in its entirety as a new feed with the given ID. The feed database is copied file by file
+     * (see VersionedDataStore.copyFeedDb), then the feedId of every entity in the copy is updated in place, which takes
+     * time in proportion to the size of the feed, so this is run in the background by DuplicateFeedJob. The new feed is
+     * only added to the global database once that is done: edits are saved to the feed given by the feedId of the
+     * entity, so the entities of the copy must not be handed out while they still have the feedId of the original.
+     * @return false if the feed does not exist
+     */
+    public static boolean duplicate (String feedId, String newId) {
+        long startTime = System.currentTimeMillis();
 
         GlobalTx gtx = VersionedDataStore.getGlobalTx();
         EditorFeed feedCopy;
 
         try {
-            feedCopy = gtx.feeds.get(feedId).clone();
+            EditorFeed feed = gtx.feeds.get(feedId);
+            if (feed == null)
+                return false;
+
+            feedCopy = feed.clone();
         } catch (CloneNotSupportedException e) {
             // not likely
-            e.printStackTrace();
-            gtx.rollback();
-            return null;
+            throw new RuntimeException(e);
+        } finally {
+            gtx.rollbackIfOpen();
         }
 
+        VersionedDataStore.copyFeedDb(feedId, newId);
+        int count = setFeedId(newId);
+
         feedCopy.id = newId;
 //        a2.name = Messages.retrieveById("agency.copy-of", a2.name);
 
-        gtx.feeds.put(feedCopy.id, feedCopy);
+        gtx = VersionedDataStore.getGlobalTx();
+        try {
+            gtx.feeds.put(feedCopy.id, feedCopy);
+            gtx.commit();
+        } finally {
+            gtx.rollbackIfOpen();
+        }
 
-        gtx.commit();
+        LOG.info("Duplicated feed {} as {} ({} entities) in {} ms", feedId, newId, count, System.currentTimeMillis() - startTime);
 
-        return newId;
+        return true;
     }
 
-    /** copy a feed database */
-    static void copy (FeedTx feedTx, DB newDb, final String newFeedId) {
-        // copy everything
-        try {
-            Iterator<Tuple2<String, Stop>> stopSource = Iterators.transform(
-                    FeedTx.<String, Stop>pumpSourceForMap(feedTx.stops),
-                    (Function<Tuple2<String, Stop>, Tuple2<String, Stop>>) input -> {
-                        Stop st;
-                        try {
-                            st = input.b.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
-                        st.feedId = newFeedId;
-                        return new Tuple2(input.a, st);
-                    });
-            pump(newDb, "stops", stopSource);
-
-            Iterator<Tuple2<String, Trip>> tripSource = Iterators.transform(
-                    FeedTx.<String, Trip>pumpSourceForMap(feedTx.trips),
-                    (Function<Tuple2<String, Trip>, Tuple2<String, Trip>>) input -> {
-                        Trip st;
-                        try {
-                            st = input.b.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
-                        st.feedId = newFeedId;
-                        return new Tuple2(input.a, st);
-                    });
-            pump(newDb, "trips", tripSource);
-
-            Iterator<Tuple2<String, TripPattern>> pattSource = Iterators.transform(
-                    FeedTx.<String, TripPattern>pumpSourceForMap(feedTx.tripPatterns),
-                    (Function<Tuple2<String, TripPattern>, Tuple2<String, TripPattern>>) input -> {
-                        TripPattern st;
-                        try {
-                            st = input.b.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
-                        st.feedId = newFeedId;
-                        return new Tuple2(input.a, st);
-                    });
-            pump(newDb, "tripPatterns", pattSource);
-
-            Iterator<Tuple2<String, Route>> routeSource = Iterators.transform(
-                    FeedTx.<String, Route>pumpSourceForMap(feedTx.routes),
-                    (Function<Tuple2<String, Route>, Tuple2<String, Route>>) input -> {
-                        Route st;
-                        try {
-                            st = input.b.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
-                        st.feedId = newFeedId;
-                        return new Tuple2(input.a, st);
-                    });
-            pump(newDb, "routes", routeSource);
-
-            Iterator<Tuple2<String, ServiceCalendar>> calSource = Iterators.transform(
-                    FeedTx.<String, ServiceCalendar>pumpSourceForMap(feedTx.calendars),
-                    (Function<Tuple2<String, ServiceCalendar>, Tuple2<String, ServiceCalendar>>) input -> {
-                        ServiceCalendar st;
-                        try {
-                            st = input.b.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
-                        st.feedId = newFeedId;
-                        return new Tuple2(input.a, st);
-                    });
-            pump(newDb, "calendars", calSource);
-
-            Iterator<Tuple2<String, ScheduleException>> exSource = Iterators.transform(
-                    FeedTx.<String, ScheduleException>pumpSourceForMap(feedTx.exceptions),
-                    (Function<Tuple2<String, ScheduleException>, Tuple2<String, ScheduleException>>) input -> {
-                        ScheduleException st;
-                        try {
-                            st = input.b.clone();
-                        } catch (CloneNotSupportedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
-                        st.feedId = newFeedId;
-                        return new Tuple2(input.a, st);
-                    });
-            pump(newDb, "exceptions", exSource);
-
-            Iterator<Tuple2<String, Agency>> agencySource = Iterators.transform(
-                    FeedTx.pumpSourceForMap(feedTx.agencies),
-                    new Function<Tuple2<String, Agency>, Tuple2<String, Agency>>() {
-                        @Override
-                        public Tuple2<String, Agency> apply(Tuple2<String, Agency> input) {
-                            Agency agency;
-                            try {
-                                agency = input.b.clone();
-                            } catch (CloneNotSupportedException e) {
-                                e.printStackTrace();
-                                throw new RuntimeException(e);
-                            }
-                            agency.feedId = newFeedId;
-                            return new Tuple2(input.a, agency);
-                        }
-                    });
-            pump(newDb, "agencies", agencySource);
-
-            Iterator<Tuple2<String, Fare>> fareSource = Iterators.transform(
-                    FeedTx.pumpSourceForMap(feedTx.agencies),
-                    new Function<Tuple2<String, Fare>, Tuple2<String, Fare>>() {
-                        @Override
-                        public Tuple2<String, Fare> apply(Tuple2<String, Fare> input) {
-                            Fare fare;
-                            try {
-                                fare = input.b.clone();
-                            } catch (CloneNotSupportedException e) {
-                                e.printStackTrace();
-                                throw new RuntimeException(e);
-                            }
-                            fare.feedId = newFeedId;
-                            return new Tuple2(input.a, fare);
-                        }
-                    });
-            pump(newDb, "fares", fareSource);
-
-            // copy histograms
-            pump(newDb, "tripCountByCalendar", (BTreeMap) feedTx.tripCountByCalendar);
-            pump(newDb, "scheduleExceptionCountByDate", (BTreeMap) feedTx.scheduleExceptionCountByDate);
-            pump(newDb, "tripCountByPatternAndCalendar", (BTreeMap) feedTx.tripCountByPatternAndCalendar);
+    /**
+     * Set the feedId of every entity in the primary maps of a feed database, committing every SET_FEED_ID_BATCH_SIZE
+     * entities so that the modifications are not all held in memory. This uses raw transactions: feedId is in none of
+     * the secondary indices, and the modifications are neither tracked nor logged. The feed must not be in use.
+     * @return the number of entities updated
+     */
+    private static int setFeedId (String feedId) {
+        int count = 0;
+
+        for (String mapName : PRIMARY_MAPS) {
+            // the ID of the last entity updated, so that each batch carries on from the previous one
+            String last = null;
+            int batchSize;
+
+            do {
+                DB tx = VersionedDataStore.getRawFeedTx(feedId);
+                try {
+                    BTreeMap<String, Object> map = getMap(tx, mapName);
+                    Map<String, Object> batch = new LinkedHashMap<>();
+
+                    for (Map.Entry<String, Object> e : (last == null ? map : map.tailMap(last, false)).entrySet()) {
+                        if (batch.size() == SET_FEED_ID_BATCH_SIZE)
+                            break;
+
+                        batch.put(e.getKey(), withFeedId(e.getValue(), feedId));
+                    }
+
+                    map.putAll(batch);
+                    tx.commit();
 
+                    batchSize = batch.size();
+                    count += batchSize;
+                    if (batchSize > 0) last = Iterables.getLast(batch.keySet());
+                } finally {
+                    if (!tx.isClosed()) tx.rollback();
+                }
+            } while (batchSize == SET_FEED_ID_BATCH_SIZE);
         }
-        catch (Exception e) {
-            newDb.rollback();
-            feedTx.rollback();
+
+        return count;
+    }
+
+    /** copy an entity with its feedId set to the given feed (entities read from a map may be cached, so are not modified) */
+    private static Object withFeedId (Object entity, String feedId) {
+        try {
+            if (entity instanceof TripPattern) {
+                TripPattern ret = ((TripPattern) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof Route) {
+                Route ret = ((Route) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof Trip) {
+                Trip ret = ((Trip) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof ServiceCalendar) {
+                ServiceCalendar ret = ((ServiceCalendar) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof ScheduleException) {
+                ScheduleException ret = ((ScheduleException) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof Stop) {
+                Stop ret = ((Stop) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof Agency) {
+                Agency ret = ((Agency) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            } else if (entity instanceof Fare) {
+                Fare ret = ((Fare) entity).clone();
+                ret.feedId = feedId;
+                return ret;
+            }
+        } catch (CloneNotSupportedException e) {
             throw new RuntimeException(e);
         }
+
+        throw new IllegalArgumentException("Unknown entity type " + entity.getClass().getName());
+    }
+
+    /** The kinds of modification recorded in the change log */
+    public enum ChangeType { CREATE, UPDATE, DELETE }
+
+    /** A modification of an entity, from the change log */
+    public static class Change {
+        /** the revision of the feed that the modification was made in */
+        public long revision;
+
+        /** the kind of entity, as the name of its map, e.g. "stops" */
+        public String type;
+
+        public String id;
+
+        public ChangeType op;
+
+        public Change (long revision, String type, String id, ChangeType op) {
+            this.revision = revision;
+            this.type = type;
+            this.id = id;
+            this.op = op;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,14 @@
+package com.conveyal.datatools.editor.datastore;
+
+/**
+ * Thrown when a feed cannot be read right now, e.g. because its secondary indices are being rebuilt. Requests that
+ * throw it are answered with a 503, so the client can retry shortly.
+ */
+public class FeedUnavailableException extends RuntimeException {
+    public final String feedId;
+
+    public FeedUnavailableException (String feedId, String message) {
+        super(message);
+        this.feedId = feedId;
+    }
+}
@@ -8,7 +8,14 @@ import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.Fun.Tuple2;
 
-/** a transaction in the global database */
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * a transaction in the global database. The IDs of the feeds and the route types are also kept in memory by
+ * VersionedDataStore, so that they can be read without a transaction; they are updated when a transaction that
+ * modified them is committed.
+ */
 public class GlobalTx extends DatabaseTx {
     public BTreeMap<String, EditorFeed> feeds;
 
@@ -21,8 +28,10 @@ public class GlobalTx extends DatabaseTx {
     /** Route types */
     public BTreeMap<String, RouteType> routeTypes;
 
-    /** Snapshots of agency DBs, keyed by agency_id, version */
-    public BTreeMap<Tuple2<String, Integer>, Snapshot> snapshots;
+    /** IDs of the feeds added (true) or removed (false) in this transaction */
+    private final Map<String, Boolean> modifiedFeeds = new HashMap<>();
+
+    private boolean routeTypesModified = false;
 
     public GlobalTx (DB tx) {
         super(tx);
@@ -31,6 +40,31 @@ public class GlobalTx extends DatabaseTx {
 //        accounts = getMap("accounts");
 //        tokens = getMap("tokens");
         routeTypes = getMap("routeTypes");
-        snapshots = getMap("snapshots");
+
+        feeds.modificationListenerAdd((id, oldVal, newVal) -> modifiedFeeds.put(id, newVal != null));
+        routeTypes.modificationListenerAdd((id, oldVal, newVal) -> routeTypesModified = true);
+    }
+
+    @Override
+    public void commit () {
+        super.commit();
+
+        if (!modifiedFeeds.isEmpty())
+            VersionedDataStore.updateFeedIds(modifiedFeeds);
+
+        if (routeTypesModified)
+            VersionedDataStore.reloadRouteTypes();
+    }
+
+    /**
+     * Snapshot metadata, keyed by feed ID and version, as it was kept in the global database before each feed had its
+     * own (see FeedSnapshotsTx); null if there is none. Only used to move it to the feeds.
+     */
+    BTreeMap<Tuple2<String, Integer>, Snapshot> getLegacySnapshots () {
+        return tx.exists("snapshots") ? getMap("snapshots") : null;
+    }
+
+    void deleteLegacySnapshots () {
+        tx.delete("snapshots");
     }
 }
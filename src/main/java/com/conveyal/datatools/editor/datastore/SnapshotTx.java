@@ -1,54 +1,93 @@
 package com.conveyal.datatools.editor.datastore;
 
-import com.conveyal.gtfs.model.Calendar;
-import com.conveyal.datatools.editor.models.transit.Route;
-import com.conveyal.datatools.editor.models.transit.ScheduleException;
 import com.conveyal.datatools.editor.models.transit.Stop;
-import com.conveyal.datatools.editor.models.transit.Trip;
-import com.conveyal.datatools.editor.models.transit.TripPattern;
-import com.conveyal.datatools.editor.models.transit.TripPatternStop;
+import com.google.common.collect.Iterators;
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
+import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-
-/** represents a snapshot database. It's generally not actually a transaction, but rather writing to a transactionless db, for speed */
+import java.util.NavigableSet;
+import java.util.Set;
+
+/**
+ * represents a snapshot database. It's generally not actually a transaction, but rather writing to a transactionless db, for speed.
+ *
+ * A snapshot is either full, containing every entity in the feed, or a delta, containing only the entities that were
+ * modified since its parent snapshot was taken (as tracked by FeedTx.modifiedEntities), plus tombstones for the entities
+ * that were deleted. Restoring or reading a delta snapshot replays the chain of snapshots back to the last full one.
+ */
 public class SnapshotTx extends DatabaseTx {
     /** create a snapshot database */
     public static final Logger LOG = LoggerFactory.getLogger(SnapshotTx.class);
+
+    /** name of the atomic holding the version of the parent snapshot of a delta snapshot */
+    private static final String PARENT_VERSION = "parentVersion";
+
+    /** name of the atomic holding the number of delta snapshots between a delta snapshot and the last full snapshot */
+    private static final String DEPTH = "depth";
+
+    /** name of the set of <map name, entity ID> of the entities deleted since the parent snapshot */
+    private static final String DELETED = "deleted";
+
     public SnapshotTx(DB tx) {
         super(tx);
     }
 
-    /** make the snapshot */
-    public void make (FeedTx master) {
+    /**
+     * make the snapshot. If parentVersion is null this is a full snapshot; otherwise this is a delta snapshot of the
+     * entities modified since the snapshot with that version was taken, and depth is the length of the chain of delta
+     * snapshots leading back to a full snapshot.
+     */
+    public void make (FeedTx master, Integer parentVersion, int depth) {
         // make sure it's empty
         if (tx.getAll().size() != 0)
             throw new IllegalStateException("Cannot snapshot into non-empty db");
 
-        int acount = pump("agencies", (BTreeMap) master.agencies);
-        LOG.info("Snapshotted {} agencies", acount);
-        int rcount = pump("routes", (BTreeMap) master.routes);
-        LOG.info("Snapshotted {} routes", rcount);
-        int ccount = pump("calendars", (BTreeMap) master.calendars);
-        LOG.info("Snapshotted {} calendars", ccount);
-        int ecount = pump("exceptions", (BTreeMap) master.exceptions);
-        LOG.info("Snapshotted {} schedule exceptions", ecount);
-        int tpcount = pump("tripPatterns", (BTreeMap) master.tripPatterns);
-        LOG.info("Snapshotted {} patterns", tpcount);
-        int tcount = pump("trips", (BTreeMap) master.trips);
-        LOG.info("Snapshotted {} trips", tcount);
-        int scount = pump("stops", (BTreeMap) master.stops);
-        LOG.info("Snapshotted {} stops", scount);
-        int fcount = pump("fares", (BTreeMap) master.fares);
-        LOG.info("Snapshotted {} fares", fcount);
+        if (parentVersion == null) {
+            for (String mapName : FeedTx.PRIMARY_MAPS) {
+                int count = pump(mapName, master.getPrimaryMap(mapName));
+                LOG.info("Snapshotted {} {}", count, mapName);
+            }
+        } else {
+            NavigableSet<Tuple2<String, String>> deleted = getSet(DELETED);
+
+            for (String mapName : FeedTx.PRIMARY_MAPS) {
+                BTreeMap<String, Object> source = master.getPrimaryMap(mapName);
+
+                // the modified entities in this map, in descending order for the pump
+                Iterator<Tuple2<String, String>> modified = master.modifiedEntities
+                        .subMap(new Tuple2(mapName, null), new Tuple2(mapName, Fun.HI))
+                        .descendingMap()
+                        .keySet()
+                        .iterator();
+
+                // entities that no longer exist are recorded as tombstones rather than copied
+                Iterator<Tuple2<String, Object>> values = Iterators.filter(
+                        Iterators.transform(modified, entity -> new Tuple2<String, Object>(entity.b, source.get(entity.b))),
+                        entry -> {
+                            if (entry.b != null) return true;
+                            deleted.add(new Tuple2<>(mapName, entry.a));
+                            return false;
+                        });
+
+                int count = pump(tx, mapName, values);
+                LOG.info("Snapshotted {} modified {}", count, mapName);
+            }
+
+            LOG.info("Snapshotted {} deletions since snapshot {}", deleted.size(), parentVersion);
+
+            tx.getAtomicInteger(PARENT_VERSION).set(parentVersion);
+            tx.getAtomicInteger(DEPTH).set(depth);
+        }
 
         // while we don't snapshot indices, we do need to snapshot histograms as they aren't restored
-        // (mapdb ticket 453)
+        // (mapdb ticket 453). They are small, so they are copied in full even into a delta snapshot.
         pump("tripCountByCalendar", (BTreeMap) master.tripCountByCalendar);
         pump("scheduleExceptionCountByDate", (BTreeMap) master.scheduleExceptionCountByDate);
         pump("tripCountByPatternAndCalendar", (BTreeMap) master.tripCountByPatternAndCalendar);
@@ -57,92 +96,121 @@ public class SnapshotTx extends DatabaseTx {
         LOG.info("Snapshot finished");
     }
 
+    /** is the given snapshot database a delta snapshot? */
+    public static boolean isDelta (DB snapshot) {
+        return snapshot.exists(PARENT_VERSION);
+    }
+
+    /** get the version of the snapshot that this snapshot is a delta of, or null if this is a full snapshot */
+    public Integer getParentVersion () {
+        return isDelta(tx) ? tx.getAtomicInteger(PARENT_VERSION).get() : null;
+    }
+
+    /** get the number of delta snapshots between this snapshot and the last full snapshot, including this one */
+    public int getDepth () {
+        return tx.exists(DEPTH) ? tx.getAtomicInteger(DEPTH).get() : 0;
+    }
+
     /**
-     * restore into an agency. this will OVERWRITE ALL DATA IN THE AGENCY's MASTER BRANCH, with the exception of stops
-     * @return any stop IDs that had been deleted and were restored so that this snapshot would be valid.
+     * Copy the feed as of this snapshot into the target database, which should not contain any of the primary maps.
+     * @param ancestors the snapshots that this snapshot is a delta of, nearest first and ending with a full snapshot.
+     *                  Empty if this is a full snapshot.
+     */
+    void replay (DB target, List<SnapshotTx> ancestors) {
+        SnapshotTx root = ancestors.isEmpty() ? this : ancestors.get(ancestors.size() - 1);
+
+        for (String mapName : FeedTx.PRIMARY_MAPS) {
+            int count = root.tx.exists(mapName) ? pump(target, mapName, root.<String, Object>getMap(mapName)) : 0;
+            LOG.info("Restored {} {}", count, mapName);
+        }
+
+        if (!ancestors.isEmpty()) {
+            // apply the deltas, oldest first
+            for (int i = ancestors.size() - 2; i >= 0; i--) {
+                ancestors.get(i).applyDelta(target);
+            }
+            applyDelta(target);
+            LOG.info("Applied {} delta snapshots", ancestors.size());
+        }
+    }
+
+    /** apply the modifications recorded in this (delta) snapshot to the target database */
+    private void applyDelta (DB target) {
+        for (String mapName : FeedTx.PRIMARY_MAPS) {
+            if (tx.exists(mapName))
+                getMap(target, mapName).putAll(this.<String, Object>getMap(mapName));
+        }
+
+        if (tx.exists(DELETED)) {
+            for (Tuple2<String, String> entity : this.<Tuple2<String, String>>getSet(DELETED)) {
+                getMap(target, entity.a).remove(entity.b);
+            }
+        }
+    }
+
+    /**
+     * Add the entities recorded in this (delta) snapshot, i.e. those that were modified or deleted since its parent
+     * snapshot, to the given set of <map name, entity ID>.
      */
-    public List<Stop> restore (String agencyId) {
-        DB targetTx = VersionedDataStore.getRawFeedTx(agencyId);
-        try {
-            targetTx.getAll();
-        } catch (RuntimeException e) {
-            LOG.error("Target FeedTX for feed restore may be corrupted.  Consider wiping feed database editor/$FEED_ID/master.db*", e);
+    void addModifiedEntities (Set<Tuple2<String, String>> entities) {
+        for (String mapName : FeedTx.PRIMARY_MAPS) {
+            if (tx.exists(mapName)) {
+                for (String id : this.<String, Object>getMap(mapName).keySet()) {
+                    entities.add(new Tuple2<>(mapName, id));
+                }
+            }
         }
-        for (String obj : targetTx.getAll().keySet()) {
-            if (obj.equals("snapshotVersion")
-//                    || obj.equals("stops")
-                    )
-                // except don't overwrite the counter that keeps track of snapshot versions
-                // we also don't overwrite the stops completely, as we need to merge them
-                // NOTE: we are now overwriting the stops completely...
-                continue;
-            else
-                targetTx.delete(obj);
+
+        if (tx.exists(DELETED))
+            entities.addAll(this.<Tuple2<String, String>>getSet(DELETED));
+    }
+
+    /**
+     * Get an entity as of the first snapshot in a chain (see VersionedDataStore.openSnapshotChain), without replaying the
+     * chain: the entity is in the nearest snapshot that recorded it, or it has been deleted.
+     * @return the entity, or null if it does not exist as of the first snapshot
+     */
+    static Object get (List<SnapshotTx> chain, String mapName, String id) {
+        for (SnapshotTx snapshot : chain) {
+            DB db = snapshot.tx;
+
+            if (db.exists(mapName)) {
+                Object value = snapshot.getMap(mapName).get(id);
+                if (value != null) return value;
+            }
+
+            if (db.exists(DELETED) && snapshot.<Tuple2<String, String>>getSet(DELETED).contains(new Tuple2<>(mapName, id)))
+                return null;
         }
 
-        int acount, rcount, ccount, ecount, pcount, tcount, fcount, scount;
-
-        if (tx.exists("agencies"))
-            acount = pump(targetTx, "agencies", (BTreeMap) this.<String, Route>getMap("agencies"));
-        else
-            acount = 0;
-        LOG.info("Restored {} agencies", acount);
-
-        if (tx.exists("routes"))
-            rcount = pump(targetTx, "routes", (BTreeMap) this.<String, Route>getMap("routes"));
-        else
-            rcount = 0;
-        LOG.info("Restored {} routes", rcount);
-
-        if (tx.exists("stops"))
-            scount = pump(targetTx, "stops", (BTreeMap) this.<String, Route>getMap("stops"));
-        else
-            scount = 0;
-        LOG.info("Restored {} stops", scount);
-
-        if (tx.exists("calendars"))
-            ccount = pump(targetTx, "calendars", (BTreeMap) this.<String, Calendar>getMap("calendars"));
-        else
-            ccount = 0;
-        LOG.info("Restored {} calendars", ccount);
-
-        if (tx.exists("exceptions"))
-            ecount = pump(targetTx, "exceptions", (BTreeMap) this.<String, ScheduleException>getMap("exceptions"));
-        else
-            ecount = 0;
-        LOG.info("Restored {} schedule exceptions", ecount);
-
-        if (tx.exists("tripPatterns"))
-            pcount = pump(targetTx, "tripPatterns", (BTreeMap) this.<String, TripPattern>getMap("tripPatterns"));
-        else
-            pcount = 0;
-        LOG.info("Restored {} patterns", pcount);
-
-        if (tx.exists("trips"))
-            tcount = pump(targetTx, "trips", (BTreeMap) this.<String, Trip>getMap("trips"));
-        else
-            tcount = 0;
-        LOG.info("Restored {} trips", tcount);
-
-        if (tx.exists("fares"))
-            fcount = pump(targetTx, "fares", (BTreeMap) this.<String, Trip>getMap("fares"));
-        else
-            fcount = 0;
-        LOG.info("Restored {} fares", fcount);
-
-        // restore histograms, see jankotek/mapdb#453
-        if (tx.exists("tripCountByCalendar"))
-            pump(targetTx, "tripCountByCalendar", (BTreeMap) this.<String, Long>getMap("tripCountByCalendar"));
-
-        if (tx.exists("tripCountByPatternAndCalendar"))
-            pump(targetTx, "tripCountByPatternAndCalendar",
-                    (BTreeMap) this.<Tuple2<String, String>, Long>getMap("tripCountByPatternAndCalendar"));
-
-        // make an FeedTx to build indices and restore stops
+        return null;
+    }
+
+    /**
+     * restore into a new, empty feed database, which will replace the agency's master branch (see
+     * VersionedDataStore.restore). The secondary indices are built and the database is committed.
+     * @param version the version of this snapshot
+     * @param ancestors the snapshots that this snapshot is a delta of, see replay()
+     * @return any stop IDs that had been deleted and were restored so that this snapshot would be valid.
+     */
+    public List<Stop> restore (DB targetTx, int version, List<SnapshotTx> ancestors) {
+        if (targetTx.getAll().size() != 0)
+            throw new IllegalStateException("Cannot restore into non-empty db");
+
+        // the maps are written in the current format
+        FeedTx.setCurrentModelFormat(targetTx);
+
+        replay(targetTx, ancestors);
+
+        // make an FeedTx to build indices (including the histograms, as the database has no index catalog) and
+        // restore stops
         LOG.info("Rebuilding indices, this could take a little while . . . ");
         FeedTx atx = new FeedTx(targetTx);
         LOG.info("done.");
 
+        // the feed is now identical to this snapshot, so the next snapshot can be a delta of it
+        atx.resetChangeTracking(version);
+
         LOG.info("Restoring deleted stops");
 
 //        // restore any stops that have been deleted
@@ -172,5 +240,6 @@ public class SnapshotTx extends DatabaseTx {
     public void close () {
         tx.close();
         closed = true;
+        DatabaseMonitor.untrack(tracked);
     }
 }
@@ -2,22 +2,35 @@ package com.conveyal.datatools.editor.datastore;
 
 import com.conveyal.datatools.manager.DataManager;
 import com.conveyal.datatools.editor.models.Snapshot;
+import com.conveyal.datatools.editor.models.transit.RouteType;
 import com.conveyal.datatools.editor.models.transit.Stop;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.Fun.Tuple2;
 import org.mapdb.TxMaker;
+import org.mapdb.TxRollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.conveyal.datatools.editor.utils.ClassLoaderSerializer;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * Create a new versioned com.conveyal.datatools.editor.datastore. A versioned data store handles multiple databases,
@@ -31,8 +44,64 @@ public class VersionedDataStore {
     private static File dataDirectory = new File(DataManager.getConfigPropertyAsText("application.data.editor_mapdb"));
     private static TxMaker globalTxMaker;
 
-    // FIXME: is changing from Maps.newConcurrentMap() suitable here?  Check with mattwigway.
-    private static ConcurrentHashMap<String, TxMaker> feedTxMakers = new ConcurrentHashMap<>();
+    /**
+     * Maximum number of delta snapshots between a snapshot and the last full snapshot. Restoring a snapshot replays
+     * every delta back to the full snapshot, so once the chain gets this long the next snapshot is a full one.
+     */
+    static final int MAX_SNAPSHOT_DEPTH = 20;
+
+    /** extensions of the files that make up a MapDB store */
+    private static final String[] STORE_EXTENSIONS = {".db", ".db.p", ".db.t"};
+
+    /**
+     * name of the file that marks a replacement feed database (e.g. a restored snapshot) as complete and ready to be
+     * swapped into place
+     */
+    private static final String RESTORE_COMPLETE = "restore.complete";
+
+    /** number of times a feed modification is attempted before a conflicting commit is reported to the caller */
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+
+    /** delay before the first retry of a conflicting feed modification, doubled for each further retry */
+    private static final long WRITE_RETRY_BACKOFF_MILLIS = 25;
+
+    /** feed ID -> lock serializing the modifications of the feed made through writeFeed() */
+    private static final ConcurrentHashMap<String, ReentrantLock> feedWriteLocks = new ConcurrentHashMap<>();
+
+    /** time to wait for the transactions open in a feed database to finish before its files are copied or replaced */
+    private static final long COPY_IDLE_TIMEOUT_MILLIS = 30000;
+
+    /** locks preventing concurrent replacement of the same feed database, which would share the restore files */
+    private static ConcurrentHashMap<String, Object> replaceLocks = new ConcurrentHashMap<>();
+
+    /** maximum number of feed databases to keep open at once (config modules.editor.max_open_feeds) */
+    private static final int MAX_OPEN_FEEDS = getIntConfigProperty("modules.editor.max_open_feeds", 100);
+
+    /** close feed databases that have not been used for this long (config modules.editor.feed_idle_timeout) */
+    private static final int FEED_IDLE_TIMEOUT_SECONDS = getIntConfigProperty("modules.editor.feed_idle_timeout", 600);
+
+    /** log a summary of the datastore statistics this often, or never if zero (config modules.editor.stats_log_interval) */
+    private static final int STATS_LOG_INTERVAL_SECONDS = getIntConfigProperty("modules.editor.stats_log_interval", 300);
+
+    /** the open feed databases. A feed's database can be closed and blocked while its files are worked on. */
+    private static final FeedDatabaseCache feedDatabases =
+            new FeedDatabaseCache(MAX_OPEN_FEEDS, FEED_IDLE_TIMEOUT_SECONDS * 1000L, VersionedDataStore::openFeedDb);
+
+    /** the open snapshot metadata databases of the feeds (see FeedSnapshotsTx), opened and closed like feed databases */
+    private static final FeedDatabaseCache snapshotDatabases =
+            new FeedDatabaseCache(MAX_OPEN_FEEDS, FEED_IDLE_TIMEOUT_SECONDS * 1000L, VersionedDataStore::openSnapshotsDb);
+
+    /**
+     * IDs of the feeds in the global database, so that checking that a feed exists (which is done on every edit) does
+     * not need a global transaction. Kept up to date by GlobalTx.commit.
+     */
+    private static final Set<String> feedIds = ConcurrentHashMap.newKeySet();
+
+    /** the feeds whose stale secondary indices are being rebuilt (see rebuildIndices) */
+    private static final Set<String> rebuildingIndices = ConcurrentHashMap.newKeySet();
+
+    /** the route types in the global database, replaced as a whole when they are modified (see reloadRouteTypes) */
+    private static volatile ImmutableMap<String, RouteType> routeTypes = ImmutableMap.of();
 
     static {
         File globalDataDirectory = new File(dataDirectory, "global");
@@ -45,11 +114,50 @@ public class VersionedDataStore {
                 .compressionEnable()
                 .closeOnJvmShutdown()
                 .makeTxMaker();
+
+        // feed databases are opened and closed as they are used, so rather than registering a shutdown hook for
+        // each one (which would keep closed databases from being garbage collected), close them all at once
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            feedDatabases.closeAll();
+            snapshotDatabases.closeAll();
+        }));
+
+        // a timeout of zero or less keeps feed databases open until there are too many
+        if (FEED_IDLE_TIMEOUT_SECONDS > 0) {
+            long sweepInterval = Math.max(1, Math.min(FEED_IDLE_TIMEOUT_SECONDS / 2, 60));
+            DataManager.scheduler.scheduleWithFixedDelay(() -> {
+                feedDatabases.closeIdle();
+                snapshotDatabases.closeIdle();
+            }, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+        }
+
+        if (STATS_LOG_INTERVAL_SECONDS > 0) {
+            DataManager.scheduler.scheduleWithFixedDelay(() -> LOG.info("Datastore: {}", getDatastoreStats()),
+                    STATS_LOG_INTERVAL_SECONDS, STATS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        GlobalTx gtx = getGlobalTx();
+        try {
+            feedIds.addAll(gtx.feeds.keySet());
+        } finally {
+            gtx.rollbackIfOpen();
+        }
+
+        reloadRouteTypes();
+        migrateSnapshotMetadata();
+
+        Thread upgrade = new Thread(VersionedDataStore::upgradeFeedFormats, "feed-format-upgrade");
+        upgrade.setDaemon(true);
+        upgrade.start();
+    }
+
+    private static int getIntConfigProperty (String name, int defaultValue) {
+        return DataManager.hasConfigProperty(name) ? DataManager.getConfigProperty(name).asInt(defaultValue) : defaultValue;
     }
 
     /** Start a transaction in the global database */
     public static GlobalTx getGlobalTx () {
-        return new GlobalTx(globalTxMaker.makeTx());
+        return new GlobalTx(DatabaseMonitor.open("global", globalTxMaker::makeTx));
     }
 
     /**
@@ -60,31 +168,297 @@ public class VersionedDataStore {
         return new FeedTx(getRawFeedTx(feedId));
     }
 
+    /**
+     * Apply a modification to a feed in a new transaction and commit it. Modifications made through this method are
+     * applied to a feed one at a time, so they do not conflict with each other. They can still conflict with commits
+     * made elsewhere (e.g. a snapshot being taken); in that case the modification is applied again in a fresh
+     * transaction after a short, increasing delay, so it must not have side effects outside the transaction. Once
+     * MAX_WRITE_ATTEMPTS attempts have failed, the TxRollbackException is rethrown. The lock on the feed is released
+     * while waiting to retry, so other modifications of the feed can go ahead in the meantime.
+     */
+    public static <T> T writeFeed (String feedId, Function<FeedTx, T> modification) {
+        Lock lock = feedWriteLocks.computeIfAbsent(feedId, id -> new ReentrantLock());
+
+        for (int attempt = 1; ; attempt++) {
+            TxRollbackException conflict;
+            lock.lock();
+            FeedTx tx = null;
+            try {
+                tx = getFeedTx(feedId);
+                T ret = modification.apply(tx);
+                tx.commit();
+                return ret;
+            } catch (TxRollbackException e) {
+                if (attempt >= MAX_WRITE_ATTEMPTS)
+                    throw e;
+
+                conflict = e;
+                LOG.info("Conflicting commit in feed {}, retrying (attempt {} of {})", feedId, attempt + 1, MAX_WRITE_ATTEMPTS);
+            } finally {
+                if (tx != null) tx.rollbackIfOpen();
+                lock.unlock();
+            }
+
+            try {
+                // jitter, so that conflicting retries do not collide again
+                long backoff = WRITE_RETRY_BACKOFF_MILLIS << (attempt - 1);
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw conflict;
+            }
+        }
+    }
+
+    /**
+     * Start a read-only transaction in a feed database, for requests that do not modify the feed. Every MapDB
+     * transaction reads from a point-in-time snapshot of the store, so this sees a consistent view of the feed without
+     * blocking (or being blocked by) concurrent writers. Unlike getFeedTx, no modification listeners are bound to
+     * maintain the secondary indices; the transaction cannot be committed and should be closed with rollbackIfOpen().
+     * @throws FeedUnavailableException if the secondary indices of the feed are stale and cannot be rebuilt right now
+     */
+    public static FeedTx getReadOnlyFeedTx(String feedId) {
+        FeedTx tx = new FeedTx(getRawFeedTx(feedId), true, true);
+
+        if (tx.hasStaleIndices()) {
+            tx.rollbackIfOpen();
+            tx = rebuildIndices(feedId);
+        }
+
+        return tx;
+    }
+
+    /**
+     * Rebuild the stale secondary indices of a feed and return a read-only transaction that uses them. The indices are
+     * built by opening a write transaction, which is committed through writeFeed like any other modification. Only one
+     * rebuild of a feed runs at a time: while it runs, other reads of the feed fail fast with a FeedUnavailableException
+     * rather than building the indices again. If the rebuild cannot be saved, it is retried once in the background and
+     * this read fails as well; requests are never served from stale indices.
+     */
+    private static FeedTx rebuildIndices (String feedId) {
+        if (!rebuildingIndices.add(feedId))
+            throw new FeedUnavailableException(feedId, "Indices of feed " + feedId + " are being rebuilt, try again shortly");
+
+        boolean rebuilt = false;
+        try {
+            LOG.info("Secondary indices for feed {} are out of date, rebuilding", feedId);
+            writeFeed(feedId, tx -> null);
+
+            FeedTx tx = new FeedTx(getRawFeedTx(feedId), true, true);
+            if (!tx.hasStaleIndices()) {
+                rebuilt = true;
+                return tx;
+            }
+
+            tx.rollbackIfOpen();
+            LOG.warn("Secondary indices for feed {} are still out of date after rebuilding them", feedId);
+        } catch (TxRollbackException e) {
+            LOG.warn("Could not save rebuilt secondary indices for feed {}", feedId, e);
+        } finally {
+            if (rebuilt)
+                rebuildingIndices.remove(feedId);
+        }
+
+        // the feed stays in rebuildingIndices until the background rebuild finishes
+        DataManager.heavyExecutor.execute(() -> {
+            try {
+                writeFeed(feedId, tx -> null);
+                LOG.info("Rebuilt secondary indices for feed {} in the background", feedId);
+            } catch (RuntimeException e) {
+                LOG.error("Could not rebuild secondary indices for feed {}", feedId, e);
+            } finally {
+                rebuildingIndices.remove(feedId);
+            }
+        });
+
+        throw new FeedUnavailableException(feedId, "Indices of feed " + feedId + " are being rebuilt, try again shortly");
+    }
+
+    /**
+     * Get the current revision of a feed, which changes whenever the feed is modified, without opening its maps and
+     * indices. See FeedTx.getRevision.
+     */
+    public static long getFeedRevision (String feedId) {
+        DB tx = getRawFeedTx(feedId);
+        try {
+            return FeedTx.getRevision(tx);
+        } finally {
+            tx.rollback();
+        }
+    }
+
     /**
      * Get a raw MapDB transaction for the given database. Use at your own risk - doesn't properly handle indexing, etc.
-     * Intended for use primarily with database restore
+     * Intended for use primarily with database restore. The transaction must be committed or rolled back, otherwise the
+     * feed database cannot be closed until the transaction is garbage collected.
      */
     static DB getRawFeedTx(String feedId) {
-        if (!feedTxMakers.containsKey(feedId)) {
-            synchronized (feedTxMakers) {
-                if (!feedTxMakers.containsKey(feedId)) {
-                    File path = new File(dataDirectory, feedId);
-                    path.mkdirs();
-
-                    TxMaker agencyTxm = DBMaker.newFileDB(new File(path, "master.db"))
-                            .mmapFileEnable()
-                            .compressionEnable()
-                            .asyncWriteEnable()
-                            .closeOnJvmShutdown()
-                            .asyncWriteFlushDelay(5)
-                            .makeTxMaker();
-
-                    feedTxMakers.put(feedId, agencyTxm);
+        return DatabaseMonitor.open(feedId, () -> feedDatabases.makeTx(feedId));
+    }
+
+    /** Open the database of a feed. Called by the feed database cache when a feed database is not open. */
+    private static TxMaker openFeedDb (String feedId) {
+        File path = new File(dataDirectory, feedId);
+        path.mkdirs();
+
+        // complete a restore that was interrupted while swapping the restored database into place
+        finishRestore(path);
+
+        File file = new File(path, "master.db");
+        boolean created = !file.exists();
+
+        TxMaker agencyTxm = DBMaker.newFileDB(file)
+                .mmapFileEnable()
+                .compressionEnable()
+                .asyncWriteEnable()
+                .asyncWriteFlushDelay(5)
+                .makeTxMaker();
+
+        // a new database is written in the current storage format from the start; older databases are converted in
+        // the background (see upgradeFeedFormats), and can be read in the meantime
+        if (created) {
+            DB tx = agencyTxm.makeTx();
+            FeedTx.setCurrentModelFormat(tx);
+            tx.commit();
+        }
+
+        return agencyTxm;
+    }
+
+    /**
+     * Convert the feed databases written in an older storage format to the current one (see FeedTx.upgradeModelFormat).
+     * Run in the background when the server starts, one feed at a time, rather than when each feed is first opened, as
+     * converting a large feed takes a while. A feed that cannot be converted (e.g. because it is modified concurrently)
+     * is left as it is until the next start.
+     */
+    private static void upgradeFeedFormats () {
+        for (String feedId : feedIds) {
+            // do not create the databases of feeds that have never been opened
+            if (!new File(new File(dataDirectory, feedId), "master.db").exists())
+                continue;
+
+            try {
+                long startTime = System.currentTimeMillis();
+                if (FeedTx.upgradeModelFormat(feedId)) {
+                    LOG.info("Converted feed {} to the current storage format in {} ms", feedId,
+                            System.currentTimeMillis() - startTime);
                 }
+            } catch (RuntimeException e) {
+                LOG.error("Could not convert feed {} to the current storage format", feedId, e);
             }
         }
+    }
 
-        return feedTxMakers.get(feedId).makeTx();
+    /** Start a transaction in the snapshot metadata database of a feed, creating the database if it does not exist */
+    public static FeedSnapshotsTx getFeedSnapshotsTx (String feedId) {
+        return new FeedSnapshotsTx(DatabaseMonitor.open(feedId + "/snapshots", () -> snapshotDatabases.makeTx(feedId)));
+    }
+
+    /** Open the snapshot metadata database of a feed. Called by the cache when it is not open. */
+    private static TxMaker openSnapshotsDb (String feedId) {
+        File file = getSnapshotsFile(feedId);
+        file.getParentFile().mkdirs();
+
+        // there are only a few small records, so this does without the memory mapping and async writes of feed databases
+        return DBMaker.newFileDB(file)
+                .compressionEnable()
+                .makeTxMaker();
+    }
+
+    /** the main file of the snapshot metadata database of a feed, which is next to the feed database */
+    private static File getSnapshotsFile (String feedId) {
+        return new File(new File(dataDirectory, feedId), "snapshots.db");
+    }
+
+    /** Get the metadata of a snapshot, or null if there is no such snapshot */
+    public static Snapshot getSnapshot (String feedId, int version) {
+        // don't create snapshot metadata databases for feeds that have no snapshots (or don't exist)
+        if (!getSnapshotsFile(feedId).exists())
+            return null;
+
+        FeedSnapshotsTx stx = getFeedSnapshotsTx(feedId);
+        try {
+            return stx.snapshots.get(version);
+        } finally {
+            stx.rollbackIfOpen();
+        }
+    }
+
+    /** Get the metadata of the snapshots of a feed, in version order */
+    public static List<Snapshot> getSnapshots (String feedId) {
+        if (!getSnapshotsFile(feedId).exists())
+            return new ArrayList<>();
+
+        FeedSnapshotsTx stx = getFeedSnapshotsTx(feedId);
+        try {
+            return new ArrayList<>(stx.snapshots.values());
+        } finally {
+            stx.rollbackIfOpen();
+        }
+    }
+
+    /** Get the metadata of the snapshots of every feed, by feed ID and then version */
+    public static List<Snapshot> getAllSnapshots () {
+        List<Snapshot> ret = new ArrayList<>();
+        for (String feedId : new TreeSet<>(feedIds)) {
+            ret.addAll(getSnapshots(feedId));
+        }
+        return ret;
+    }
+
+    /**
+     * Snapshot metadata used to be kept in the global database, keyed by feed ID and version; move it to the snapshot
+     * metadata database of each feed. The metadata is only removed from the global database once every feed has been
+     * committed, so if this is interrupted it is simply done again.
+     */
+    private static void migrateSnapshotMetadata () {
+        GlobalTx gtx = getGlobalTx();
+        FeedSnapshotsTx stx = null;
+        try {
+            BTreeMap<Tuple2<String, Integer>, Snapshot> legacySnapshots = gtx.getLegacySnapshots();
+            if (legacySnapshots == null)
+                return;
+
+            LOG.info("Moving the metadata of {} snapshots out of the global database", legacySnapshots.size());
+
+            // the snapshots are in order by feed, so each feed is done in one transaction
+            String feedId = null;
+            for (Map.Entry<Tuple2<String, Integer>, Snapshot> e : legacySnapshots.entrySet()) {
+                if (!e.getKey().a.equals(feedId)) {
+                    if (stx != null) stx.commit();
+                    feedId = e.getKey().a;
+                    stx = getFeedSnapshotsTx(feedId);
+                }
+
+                stx.snapshots.put(e.getKey().b, e.getValue());
+            }
+
+            if (stx != null) stx.commit();
+
+            gtx.deleteLegacySnapshots();
+            gtx.commit();
+        } finally {
+            if (stx != null) stx.rollbackIfOpen();
+            gtx.rollbackIfOpen();
+        }
+    }
+
+    /** Counts of open feed databases and of hits, misses and evictions in the feed database cache */
+    public static FeedDatabaseCache.Stats getFeedDatabaseStats () {
+        return feedDatabases.getStats();
+    }
+
+    /**
+     * The state of the datastore, for monitoring: transaction timings, conflicts, slow and leaked transactions, and the
+     * open feed databases. Measuring the free space in each open feed database means reading its free lists, so this is
+     * not free; it is meant to be called every few minutes, not on every request.
+     */
+    public static DatabaseMonitor.Stats getDatastoreStats () {
+        DatabaseMonitor.Stats stats = DatabaseMonitor.getStats();
+        stats.feedDatabases = feedDatabases.getStats();
+        stats.snapshotDatabases = snapshotDatabases.getStats();
+        stats.feeds = feedDatabases.getDatabaseStats();
+        return stats;
     }
 
     /**
@@ -98,13 +472,13 @@ public class VersionedDataStore {
      */
     public static void wipeFeedDB(String feedId) {
         File path = new File(dataDirectory, feedId);
-        String[] extensions = {".db", ".db.p", ".db.t"};
         LOG.warn("Permanently deleting Feed DB for {}", feedId);
 
-        // remove entry for feedId in feedTxMaker
-        feedTxMakers.remove(feedId);
+        // close the feed database, if it is open
+        TxMaker txMaker = feedDatabases.remove(feedId);
+        if (txMaker != null) txMaker.close();
         // delete local cache files (including zip) when feed removed from cache
-        for (String type : extensions) {
+        for (String type : STORE_EXTENSIONS) {
             File file = new File(path, "master" + type);
             file.delete();
         }
@@ -114,17 +488,17 @@ public class VersionedDataStore {
         return takeSnapshot(feedId, null, name, comment);
     }
 
-    /** Take a snapshot of an agency database. The snapshot will be saved in the global database. */
+    /** Take a snapshot of an agency database. Its metadata will be saved in the snapshot metadata database of the feed. */
     public static Snapshot takeSnapshot (String feedId, String feedVersionId, String name, String comment) {
         FeedTx tx = null;
-        GlobalTx gtx = null;
+        FeedSnapshotsTx stx = null;
         boolean transactionCommitError = false;
         int version = -1;
         DB snapshot = null;
         Snapshot ret;
         try {
             tx = getFeedTx(feedId);
-            gtx = getGlobalTx();
+            stx = getFeedSnapshotsTx(feedId);
             version = tx.getNextSnapshotId();
             LOG.info("Creating snapshot {} for feed {}", version, feedId);
             long startTime = System.currentTimeMillis();
@@ -132,9 +506,9 @@ public class VersionedDataStore {
             ret = new Snapshot(feedId, version);
 
             // if we encounter a duplicate snapshot ID, increment until there is a safe one
-            if (gtx.snapshots.containsKey(ret.id)) {
+            if (stx.snapshots.containsKey(version)) {
                 LOG.error("Duplicate snapshot IDs, incrementing until we have a fresh one.");
-                while(gtx.snapshots.containsKey(ret.id)) {
+                while(stx.snapshots.containsKey(version)) {
                     version = tx.getNextSnapshotId();
                     LOG.info("Attempting to create snapshot {} for feed {}", version, feedId);
                     ret = new Snapshot(feedId, version);
@@ -147,6 +521,15 @@ public class VersionedDataStore {
             ret.comment = comment;
             ret.current = true;
 
+            // record only the entities modified since the last snapshot, unless there is no snapshot to record them
+            // against or the chain of delta snapshots leading back to a full snapshot is already long
+            Integer parentVersion = tx.getChangeTrackingBase();
+            int depth = parentVersion != null ? getSnapshotDepth(feedId, parentVersion) + 1 : 0;
+            if (depth <= 0 || depth > MAX_SNAPSHOT_DEPTH) {
+                parentVersion = null;
+                depth = 0;
+            }
+
             snapshot = getSnapshotDb(feedId, version, false);
 
             // if snapshot contains maps, increment the version ID until we find a snapshot that is empty
@@ -157,13 +540,19 @@ public class VersionedDataStore {
                 snapshot = getSnapshotDb(feedId, version, false);
             }
 
-            new SnapshotTx(snapshot).make(tx);
+            if (parentVersion != null)
+                LOG.info("Snapshot {} records changes since snapshot {}", version, parentVersion);
+
+            new SnapshotTx(snapshot).make(tx, parentVersion, depth);
             // for good measure
             snapshot.commit();
             snapshot.close();
 
-            gtx.snapshots.put(ret.id, ret);
-            gtx.commit();
+            stx.snapshots.put(version, ret);
+            stx.commit();
+
+            // later modifications are recorded against this snapshot
+            tx.resetChangeTracking(version);
 
             // unfortunately if a mapdb gets corrupted, trying to commit this transaction will cause things
             // to go all haywired. Further, if we try to rollback after this commit, the snapshot will fail.
@@ -200,32 +589,380 @@ public class VersionedDataStore {
             throw new RuntimeException(e);
         } finally {
             if (tx != null && !transactionCommitError) tx.rollbackIfOpen();
-            if (gtx != null) gtx.rollbackIfOpen();
+            if (stx != null) stx.rollbackIfOpen();
         }
     }
 
     /**
-     * restore a snapshot.
+     * restore a snapshot. The feed as of the snapshot is built in a new database, which then replaces the feed database
+     * (see replaceFeedDb).
      * @return a list of stops that were restored from deletion to make this snapshot valid.
      */
     public static List<Stop> restore (Snapshot s) {
-        SnapshotTx tx = new SnapshotTx(getSnapshotDb(s.feedId, s.version, true));
+        List<SnapshotTx> chain = openSnapshotChain(s.feedId, s.version);
         try {
             LOG.info("Restoring snapshot {} of agency {}", s.version, s.feedId);
             long startTime = System.currentTimeMillis();
-            List<Stop> ret = tx.restore(s.feedId);
+            List<Stop> ret = replaceFeedDb(s.feedId, db -> chain.get(0).restore(db, s.version, chain.subList(1, chain.size())));
             LOG.info(String.format("Restored snapshot in %.2f seconds", (System.currentTimeMillis() - startTime) / 1000D));
             return ret;
         } finally {
-            tx.close();
+            for (SnapshotTx tx : chain) {
+                tx.close();
+            }
+        }
+    }
+
+    /**
+     * Replace the database of a feed with a new one. The new database (with its secondary indices) is built by the given
+     * function next to the feed database, while the feed remains available, and is then swapped into place: once the
+     * transactions open in the feed have finished (new ones wait), the feed's TxMaker is closed and the database files
+     * are renamed. If the feed is still in use after COPY_IDLE_TIMEOUT_MILLIS, an IllegalStateException is thrown and
+     * the feed is left unchanged. The database passed to the function is empty and does not use transactions, so that writes go straight
+     * to disk; the function should commit it. The counter that keeps track of snapshot versions is preserved, and the
+     * revision of the feed is incremented, with an empty change log.
+     */
+    public static <T> T replaceFeedDb (String feedId, Function<DB, T> build) {
+        File path = new File(dataDirectory, feedId);
+
+        synchronized (replaceLocks.computeIfAbsent(feedId, id -> new Object())) {
+            // open the feed database first: opening it discards any partially built restore files, so it must not happen
+            // while they are being built
+            DB current = getRawFeedTx(feedId);
+            int snapshotVersion;
+            long revision;
+            try {
+                snapshotVersion = current.getAtomicInteger("snapshotVersion").get();
+                revision = FeedTx.getRevision(current);
+            } finally {
+                current.rollback();
+            }
+
+            DB replacement = null;
+            try {
+                deleteStore(path, "restore");
+                replacement = DBMaker.newFileDB(new File(path, "restore.db"))
+                        .mmapFileEnable()
+                        .compressionEnable()
+                        // the files are discarded if this fails, so there is no need for a write-ahead log
+                        .transactionDisable()
+                        .make();
+
+                T ret = build.apply(replacement);
+
+                replacement.getAtomicInteger("snapshotVersion").set(snapshotVersion);
+                FeedTx.setCurrentModelFormat(replacement);
+                // carry on from the revision of the current database, so that clients see that the feed has changed
+                FeedTx.resetChangeLog(replacement, Math.max(revision + 1, FeedTx.getRevision(replacement)));
+                replacement.commit();
+                replacement.close();
+
+                swapInReplacement(feedId);
+                return ret;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (replacement != null && !replacement.isClosed())
+                    replacement.close();
+            }
+        }
+    }
+
+    /**
+     * Copy the database of a feed to be the database of a new feed, by copying its files rather than its entities, so
+     * that the secondary indices and histograms are copied too rather than rebuilt. The database is closed once no
+     * transactions are open in it, and no transaction can start in the feed (or the new feed) while the files are
+     * copied, so that they are consistent; other feeds are not affected. The entities keep the feedId of the original feed; see FeedTx.duplicate. The copy has
+     * none of the snapshots of the original, so its snapshot version counter, change tracking and change log are reset.
+     */
+    static void copyFeedDb (String feedId, String newFeedId) {
+        File path = new File(dataDirectory, feedId);
+        File newPath = new File(dataDirectory, newFeedId);
+
+        if (new File(newPath, "master.db").exists())
+            throw new IllegalStateException("Feed " + newFeedId + " already has a database");
+
+        long startTime = System.currentTimeMillis();
+
+        try {
+            if (!feedDatabases.closeAndBlock(feedId, COPY_IDLE_TIMEOUT_MILLIS))
+                throw new IllegalStateException("Feed " + feedId + " is in use, could not copy its database");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        try {
+            // the new feed must not be opened (which would create an empty database) before its files are in place
+            if (!feedDatabases.closeAndBlock(newFeedId, COPY_IDLE_TIMEOUT_MILLIS))
+                throw new IllegalStateException("Feed " + newFeedId + " is in use, could not copy database to it");
+
+            try {
+                newPath.mkdirs();
+                for (String extension : STORE_EXTENSIONS) {
+                    File file = new File(path, "master" + extension);
+                    if (file.exists())
+                        Files.copy(file.toPath(), new File(newPath, "master" + extension).toPath());
+                }
+            } finally {
+                feedDatabases.unblock(newFeedId);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            feedDatabases.unblock(feedId);
+        }
+
+        LOG.info("Copied database of feed {} to feed {} in {} ms", feedId, newFeedId, System.currentTimeMillis() - startTime);
+
+        DB tx = getRawFeedTx(newFeedId);
+        try {
+            tx.getAtomicInteger("snapshotVersion").set(0);
+            tx.getAtomicInteger("changeTrackingBase").set(0);
+            if (tx.exists("modifiedEntities"))
+                tx.delete("modifiedEntities");
+            FeedTx.resetChangeLog(tx, System.currentTimeMillis());
+            tx.commit();
+        } finally {
+            if (!tx.isClosed()) tx.rollback();
+        }
+    }
+
+    /**
+     * Replace the database of a feed with the replacement database built by replaceFeedDb(), once the transactions open
+     * in the feed database have finished. If they do not finish in time the replacement is discarded and the feed is
+     * left as it was.
+     */
+    private static void swapInReplacement (String feedId) throws IOException {
+        File path = new File(dataDirectory, feedId);
+
+        try {
+            if (!feedDatabases.closeAndBlock(feedId, COPY_IDLE_TIMEOUT_MILLIS)) {
+                deleteStore(path, "restore");
+                throw new IllegalStateException("Feed " + feedId + " is in use, could not replace its database");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteStore(path, "restore");
+            throw new RuntimeException(e);
+        }
+
+        try {
+            // once the marker exists the restore is committed; if the swap is interrupted, it is completed the next
+            // time the feed database is opened (see finishRestore)
+            Files.createFile(new File(path, RESTORE_COMPLETE).toPath());
+
+            // new transactions wait until the feed is unblocked, then open the restored database
+            finishRestore(path);
+        } finally {
+            feedDatabases.unblock(feedId);
+        }
+    }
+
+    /**
+     * Move a completed replacement database (see swapInReplacement) into place in the given feed directory, or discard
+     * the files of one that was not completed. Must be called while the feed database is not open.
+     */
+    private static void finishRestore (File path) {
+        File marker = new File(path, RESTORE_COMPLETE);
+        try {
+            if (marker.exists()) {
+                LOG.info("Moving replacement feed database into place in {}", path);
+
+                // the write-ahead log of the old database must not be replayed onto the restored one
+                Files.deleteIfExists(new File(path, "master.db.t").toPath());
+
+                for (String extension : STORE_EXTENSIONS) {
+                    File restored = new File(path, "restore" + extension);
+                    if (restored.exists()) {
+                        Files.move(restored.toPath(), new File(path, "master" + extension).toPath(),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+
+                Files.delete(marker.toPath());
+            } else {
+                deleteStore(path, "restore");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** delete the files of the named MapDB store in the given directory, if they exist */
+    private static void deleteStore (File path, String name) throws IOException {
+        for (String extension : STORE_EXTENSIONS) {
+            Files.deleteIfExists(new File(path, name + extension).toPath());
+        }
+    }
+
+    /**
+     * Compare a snapshot of a feed with another snapshot of the feed, or with the feed as it is now if toVersion is null.
+     * If one version is derived from the other through a chain of delta snapshots (followed, for the feed as it is now,
+     * by the modifications tracked since its last snapshot), only the entities recorded as modified along the way can
+     * differ: just those are compared, reading them from the snapshots without replaying them. Otherwise every entity of
+     * both versions is compared.
+     */
+    public static FeedDiff diff (String feedId, int fromVersion, Integer toVersion) {
+        long startTime = System.currentTimeMillis();
+        List<SnapshotTx> fromChain = openSnapshotChain(feedId, fromVersion);
+        List<SnapshotTx> toChain = null;
+        FeedTx live = null;
+
+        try {
+            Set<Tuple2<String, String>> modified;
+
+            if (toVersion != null) {
+                toChain = openSnapshotChain(feedId, toVersion);
+                modified = getModifiedBetween(fromVersion, fromChain, toVersion, toChain);
+            } else {
+                live = new FeedTx(getRawFeedTx(feedId), false, true);
+                Integer base = live.getChangeTrackingBase();
+                modified = null;
+
+                if (base != null) {
+                    List<SnapshotTx> baseChain = openSnapshotChain(feedId, base);
+                    try {
+                        modified = getModifiedBetween(fromVersion, fromChain, base, baseChain);
+                    } finally {
+                        for (SnapshotTx tx : baseChain) {
+                            tx.close();
+                        }
+                    }
+
+                    if (modified != null)
+                        modified.addAll(live.getModifiedEntities());
+                }
+            }
+
+            FeedDiff diff = new FeedDiff(fromVersion, toVersion, modified != null);
+
+            if (modified != null) {
+                for (Tuple2<String, String> entity : modified) {
+                    Object from = SnapshotTx.get(fromChain, entity.a, entity.b);
+                    Object to = toChain != null ?
+                            SnapshotTx.get(toChain, entity.a, entity.b) :
+                            live.getPrimaryMap(entity.a).get(entity.b);
+                    diff.compare(entity.a, entity.b, from, to);
+                }
+            } else {
+                FeedTx fromTx = getFeedTx(feedId, fromVersion);
+                FeedTx toTx = toVersion != null ? getFeedTx(feedId, toVersion) : live;
+                try {
+                    for (String mapName : FeedTx.PRIMARY_MAPS) {
+                        diff.compareAll(mapName, fromTx.getPrimaryMap(mapName), toTx.getPrimaryMap(mapName));
+                    }
+                } finally {
+                    fromTx.rollbackIfOpen();
+                    toTx.rollbackIfOpen();
+                }
+            }
+
+            LOG.info("Compared {} entities of snapshot {} of feed {} with {} in {} ms ({})", diff.compared, fromVersion,
+                    feedId, toVersion != null ? "snapshot " + toVersion : "the feed", System.currentTimeMillis() - startTime,
+                    diff.incremental ? "incremental" : "full");
+
+            return diff;
+        } finally {
+            for (SnapshotTx tx : fromChain) {
+                tx.close();
+            }
+
+            if (toChain != null) {
+                for (SnapshotTx tx : toChain) {
+                    tx.close();
+                }
+            }
+
+            if (live != null) live.rollbackIfOpen();
+        }
+    }
+
+    /**
+     * Get the entities that may differ between two snapshots, if one is derived from the other through a chain of delta
+     * snapshots: those recorded by the delta snapshots in between, as <map name, entity ID>, in order. Otherwise null.
+     */
+    private static Set<Tuple2<String, String>> getModifiedBetween (int version, List<SnapshotTx> chain,
+                                                                   int otherVersion, List<SnapshotTx> otherChain) {
+        Set<Tuple2<String, String>> modified = getModifiedSince(version, otherVersion, otherChain);
+        return modified != null ? modified : getModifiedSince(otherVersion, version, chain);
+    }
+
+    /**
+     * Get the entities recorded by the delta snapshots of a chain (see openSnapshotChain) made after the snapshot with
+     * the given version, or null if that snapshot is not in the chain.
+     */
+    private static Set<Tuple2<String, String>> getModifiedSince (int ancestorVersion, int version, List<SnapshotTx> chain) {
+        Set<Tuple2<String, String>> modified = new TreeSet<>();
+        int nextVersion = version;
+
+        for (SnapshotTx snapshot : chain) {
+            if (nextVersion == ancestorVersion)
+                return modified;
+
+            Integer parentVersion = snapshot.getParentVersion();
+            if (parentVersion == null)
+                // reached the full snapshot at the end of the chain
+                return null;
+
+            snapshot.addModifiedEntities(modified);
+            nextVersion = parentVersion;
+        }
+
+        return null;
+    }
+
+    /**
+     * Open a snapshot, followed by the snapshots it is a delta of (if any), nearest first and ending with a full
+     * snapshot. The caller must close them.
+     */
+    private static List<SnapshotTx> openSnapshotChain (String feedId, int version) {
+        List<SnapshotTx> chain = new ArrayList<>();
+        try {
+            Integer nextVersion = version;
+            while (nextVersion != null) {
+                if (!getSnapshotFile(feedId, nextVersion).exists() || chain.size() > MAX_SNAPSHOT_DEPTH) {
+                    throw new IllegalStateException(String.format("Snapshot %d of feed %s is missing a snapshot it depends on (%d)",
+                            version, feedId, nextVersion));
+                }
+
+                SnapshotTx snapshot = new SnapshotTx(getSnapshotDb(feedId, nextVersion, true));
+                chain.add(snapshot);
+                nextVersion = snapshot.getParentVersion();
+            }
+        } catch (RuntimeException e) {
+            for (SnapshotTx tx : chain) {
+                tx.close();
+            }
+            throw e;
+        }
+
+        return chain;
+    }
+
+    /**
+     * Get the number of delta snapshots between a snapshot and the last full snapshot (0 if it is a full snapshot), or
+     * -1 if the snapshot does not exist.
+     */
+    private static int getSnapshotDepth (String feedId, int version) {
+        if (!getSnapshotFile(feedId, version).exists())
+            return -1;
+
+        SnapshotTx snapshot = new SnapshotTx(getSnapshotDb(feedId, version, true));
+        try {
+            return snapshot.getDepth();
+        } finally {
+            snapshot.close();
         }
     }
 
     /** retrieveById the directory in which to store a snapshot */
     public static DB getSnapshotDb (String feedId, int version, boolean readOnly) {
-        File thisSnapshotDir = getSnapshotDir(feedId, version);
-        thisSnapshotDir.mkdirs();
-        File snapshotFile = new File(thisSnapshotDir, "snapshot_" + version + ".db");
+        File snapshotFile = getSnapshotFile(feedId, version);
+        snapshotFile.getParentFile().mkdirs();
 
         // we don't use transactions for snapshots - makes them faster
         // and smaller.
@@ -241,6 +978,11 @@ public class VersionedDataStore {
         return maker.make();
     }
 
+    /** retrieveById the main file of a snapshot database */
+    private static File getSnapshotFile (String feedId, int version) {
+        return new File(getSnapshotDir(feedId, version), "snapshot_" + version + ".db");
+    }
+
     /** retrieveById the directory in which a snapshot is stored */
     public static File getSnapshotDir (String feedId, int version) {
         File agencyDir = new File(dataDirectory, feedId);
@@ -250,67 +992,74 @@ public class VersionedDataStore {
 
     /** Convenience function to check if a feed exists */
     public static boolean feedExists(String feedId) {
-        GlobalTx tx = getGlobalTx();
-        boolean exists = tx.feeds.containsKey(feedId);
-        tx.rollback();
-        return exists;
+        return feedId != null && feedIds.contains(feedId);
     }
 
-    /** Get a (read-only) agency TX into a particular snapshot version of an agency */
-    public static FeedTx getFeedTx(String feedId, int version) {
-        DB db = getSnapshotDb(feedId, version, true);
-        return new FeedTx(db, false);
-    }
-
-    /** A wrapped transaction, so the database just looks like a POJO */
-    public static class DatabaseTx {
-        /** the database (transaction). subclasses must initialize. */
-        protected final DB tx;
-
-        /** has this transaction been closed? */
-        boolean closed = false;
-
-        /** Convenience function to retrieveById a map */
-        protected final <T1, T2> BTreeMap<T1, T2> getMap (String name) {
-            return tx.createTreeMap(name)
-                    // use java serialization to allow for schema upgrades
-                    .valueSerializer(new ClassLoaderSerializer())
-                    .makeOrGet();
-        }
-
-        /**
-         * Convenience function to retrieveById a set. These are used as indices so they use the default serialization;
-         * if we make a schema change we drop and recreate them.
-         */
-        protected final <T> NavigableSet <T> getSet (String name) {
-            return tx.createTreeSet(name)
-                    .makeOrGet();
+    /** record feeds added to (true) or removed from (false) the global database by a committed transaction */
+    static void updateFeedIds (Map<String, Boolean> modifiedFeeds) {
+        for (Map.Entry<String, Boolean> e : modifiedFeeds.entrySet()) {
+            if (e.getValue())
+                feedIds.add(e.getKey());
+            else
+                feedIds.remove(e.getKey());
         }
+    }
 
-        protected DatabaseTx (DB tx) {
-            this.tx = tx;
-        }
+    /** Get the route types, by ID. The map is immutable, and is replaced rather than modified when they change. */
+    public static Map<String, RouteType> getRouteTypes () {
+        return routeTypes;
+    }
 
-        public void commit() {
-            tx.commit();
-            closed = true;
+    /**
+     * Read the route types from the global database again, after they have been modified. This is synchronized and
+     * starts a new transaction, so a reload that started before the latest commit cannot overwrite one that started
+     * after it.
+     */
+    static synchronized void reloadRouteTypes () {
+        GlobalTx gtx = getGlobalTx();
+        try {
+            routeTypes = ImmutableMap.copyOf(gtx.routeTypes);
+        } finally {
+            gtx.rollbackIfOpen();
         }
+    }
 
-        public void rollback() {
-            tx.rollback();
-            closed = true;
+    /**
+     * Get a (read-only) agency TX into a particular snapshot version of an agency. Rolling it back closes the snapshot.
+     * A delta snapshot only contains the entities that changed, so the whole feed as of the snapshot is replayed into a
+     * temporary database on disk (deleted when the transaction is rolled back), so that reading a snapshot of a large
+     * feed does not need memory in proportion to its size.
+     */
+    public static FeedTx getFeedTx(String feedId, int version) {
+        DB db = getSnapshotDb(feedId, version, true);
+        if (!SnapshotTx.isDelta(db)) {
+            FeedTx tx = new FeedTx(db, false);
+            tx.closeOnRollback = true;
+            return tx;
         }
 
-        /** roll this transaction back if it has not been committed or rolled back already */
-        public void rollbackIfOpen () {
-            if (!closed) rollback();
-        }
+        db.close();
+        DB replayed = DBMaker.newTempFileDB()
+                .deleteFilesAfterClose()
+                .mmapFileEnable()
+                .transactionDisable()
+                .compressionEnable()
+                .make();
 
-        protected final void finalize () {
-            if (!closed) {
-                LOG.error("DB transaction left unclosed, this signifies a memory leak!");
-                rollback();
+        List<SnapshotTx> chain = openSnapshotChain(feedId, version);
+        try {
+            chain.get(0).replay(replayed, chain.subList(1, chain.size()));
+        } catch (RuntimeException e) {
+            replayed.close();
+            throw e;
+        } finally {
+            for (SnapshotTx tx : chain) {
+                tx.close();
             }
         }
+
+        FeedTx tx = new FeedTx(replayed, false);
+        tx.closeOnRollback = true;
+        return tx;
     }
 }
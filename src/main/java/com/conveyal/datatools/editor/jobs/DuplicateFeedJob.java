@@ -0,0 +1,33 @@
+package com.conveyal.datatools.editor.jobs;
+
+import com.conveyal.datatools.common.status.MonitorableJob;
+import com.conveyal.datatools.editor.datastore.FeedTx;
+
+import java.util.UUID;
+
+/**
+ * Duplicate an editor feed (see FeedTx.duplicate). Copying the feed database takes seconds, but setting the feedId of
+ * every entity in the copy takes time in proportion to the size of the feed, so this is done in a job rather than in
+ * the request. The new feed exists once the job has completed.
+ */
+public class DuplicateFeedJob extends MonitorableJob {
+    public final String feedId;
+
+    /** the ID of the copy, chosen when the job is created so that the client can find the copy once it is done */
+    public final String newFeedId = UUID.randomUUID().toString();
+
+    public DuplicateFeedJob (String feedId, String owner) {
+        super(owner, "Duplicating feed " + feedId, JobType.DUPLICATE_FEED);
+        this.feedId = feedId;
+        status.update(false, "Waiting to begin job...", 0);
+    }
+
+    public void jobLogic () {
+        status.update(false, "Copying feed...", 10);
+
+        if (!FeedTx.duplicate(feedId, newFeedId))
+            throw new IllegalStateException("Feed " + feedId + " does not exist");
+
+        status.update(false, "Feed duplicated", 100);
+    }
+}
@@ -1,7 +1,7 @@
 package com.conveyal.datatools.editor.jobs;
 
+import com.conveyal.datatools.common.status.MonitorableJob;
 import com.conveyal.datatools.editor.datastore.FeedTx;
-import com.conveyal.datatools.manager.models.FeedSource;
 import com.google.common.io.Files;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -11,18 +11,19 @@ import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.models.transit.*;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
 import org.geotools.data.Transaction;
-import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.shapefile.ShapefileDataStoreFactory;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.data.simple.SimpleFeatureStore;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import com.conveyal.datatools.editor.utils.DirectoryZip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.Serializable;
@@ -31,186 +32,322 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Export the routes (as the shapes of their trip patterns) or stops of editor feeds as a zipped shapefile or GeoPackage.
+ * The feeds are read in parallel, and their features are handed over in batches to be written through a FeatureWriter
+ * as they are read. Only a few batches can be waiting to be written at any time, so the memory used does not depend on
+ * the size or number of the feeds.
+ */
+public class GisExport extends MonitorableJob {
+    public static final Logger LOG = LoggerFactory.getLogger(GisExport.class);
+
+    /** number of features read from a feed before they are handed over to be written */
+    private static final int BATCH_SIZE = 1000;
+
+    /** maximum number of batches of features waiting to be written; readers wait when there are this many */
+    private static final int MAX_QUEUED_BATCHES = 16;
+
+    /** maximum number of feeds read at once */
+    private static final int MAX_READERS = 4;
 
-/** Export routes or stops as a shapefile */
-public class GisExport implements Runnable {
     File file;
     Type type;
+    Format format;
     Collection<String> agencyIds;
 
-    public GisExport(Type type, File file, Collection<String> agencyIds) {
+    /** features written so far */
+    private long featureCount = 0;
+
+    /** number of feeds that have been read completely */
+    private final AtomicInteger feedsRead = new AtomicInteger();
+
+    public GisExport(Type type, Format format, File file, Collection<String> agencyIds, String owner) {
+        super(owner, "Exporting " + type.name().toLowerCase() + " of " + agencyIds.size() + " feeds", JobType.EXPORT_GIS);
         this.type = type;
+        this.format = format;
         this.file = file;
         this.agencyIds = agencyIds;
+        status.update(false, "Waiting to begin job...", 0);
     }
 
     @Override
-    public void run() {
+    public void jobLogic() {
+        long startTime = System.currentTimeMillis();
         File outDir = Files.createTempDir();
-        File outShp = new File(outDir, file.getName().replaceAll("\\.zip", "") + ".shp");
+        String name = file.getName().replaceAll("\\.zip", "");
 
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        FeedTx atx = null;
         try {
-            ShapefileDataStoreFactory dataStoreFactory = new ShapefileDataStoreFactory();
-
-            Map<String, Serializable> params = new HashMap<String, Serializable>();
-            params.put("url", outShp.toURI().toURL());
-            params.put("create spatial index", Boolean.TRUE);
-
-            ShapefileDataStore datastore = (ShapefileDataStore) dataStoreFactory.createNewDataStore(params);
-            datastore.forceSchemaCRS(DefaultGeographicCRS.WGS84);
-
-            SimpleFeatureType STOP_TYPE = DataUtilities.createType(
-                    "Stop",
-                    "the_geom:Point:srid=4326," +
-                    "name:String," +
-                    "code:String," +
-                    "desc:String," +
-                    "id:String," +
-                    "agency:String"
-            );
-
-            SimpleFeatureType ROUTE_TYPE = DataUtilities.createType(
-                    "Route",                   // <- the name for our feature type
-                    "the_geom:LineString:srid=4326," +
-                    "patternName:String," +
-                    "shortName:String," +
-                    "longName:String," +
-                    "desc:String," +
-                    "type:String," +
-                    "url:String," +
-                    "routeColor:String," +
-                    "routeTextColor:String," +
-                    "agency:String"
-            );
-
-            SimpleFeatureCollection collection;
-
-            SimpleFeatureType collectionType;
-
-            SimpleFeatureBuilder featureBuilder = null;
-            
-            List<SimpleFeature> features = new ArrayList<SimpleFeature>();
-
-            if (type.equals(Type.STOPS)) {
-                collectionType = STOP_TYPE;
-                datastore.createSchema(STOP_TYPE);
-                featureBuilder = new SimpleFeatureBuilder(STOP_TYPE);
+            SimpleFeatureType featureType = type == Type.STOPS ? createStopType() : createRouteType();
 
+            // read what is needed from the global database up front, rather than in each reader
+            Map<String, EditorFeed> feeds = new HashMap<>();
+            Map<String, String> routeTypes = new HashMap<>();
+            GlobalTx gtx = VersionedDataStore.getGlobalTx();
+            try {
                 for (String feedId : agencyIds) {
-                    EditorFeed fs = gtx.feeds.get(feedId);
-
-                    atx = VersionedDataStore.getFeedTx(feedId);
-                    for (Stop s : atx.stops.values()) {
-                        featureBuilder.add(s.location);
-                        featureBuilder.add(s.stopName);
-                        featureBuilder.add(s.stopCode);
-                        featureBuilder.add(s.stopDesc);
-                        featureBuilder.add(s.getGtfsId());
-                        featureBuilder.add(fs.feedPublisherName);
-                        SimpleFeature feature = featureBuilder.buildFeature(null);
-                        features.add(feature);
-                    }
-
-                    atx.rollback();
+                    feeds.put(feedId, gtx.feeds.get(feedId));
                 }
-            } else if (type.equals(Type.ROUTES)) {
-                collectionType = ROUTE_TYPE;
-                datastore.createSchema(ROUTE_TYPE);
-                featureBuilder = new SimpleFeatureBuilder(ROUTE_TYPE);
+            } finally {
+                gtx.rollbackIfOpen();
+            }
 
-                GeometryFactory gf = new GeometryFactory();
+            if (type == Type.ROUTES) {
+                for (RouteType routeType : VersionedDataStore.getRouteTypes().values()) {
+                    routeTypes.put(routeType.id, routeType.toString());
+                }
+            }
 
-                for (String feedId : agencyIds) {
-                    EditorFeed fs = gtx.feeds.get(feedId);
+            if (format == Format.GEOPACKAGE)
+                writeGeoPackage(new File(outDir, name + ".gpkg"), featureType, feeds, routeTypes);
+            else
+                writeShapefile(new File(outDir, name + ".shp"), featureType, feeds, routeTypes);
 
-                    atx = VersionedDataStore.getFeedTx(feedId);
+            status.update(false, "Compressing export...", 95);
+            DirectoryZip.zip(outDir, file);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            // clean up
+            for (File f : outDir.listFiles()) {
+                f.delete();
+            }
+            outDir.delete();
+        }
 
-                    // we loop over trip patterns. Note that this will yield several lines for routes that have
-                    // multiple patterns. There's no real good way to reconcile the shapes of multiple patterns.
-                    for (TripPattern tp : atx.tripPatterns.values()) {
-                        LineString shape;
-                        if (tp.shape != null) {
-                            shape = tp.shape;
-                        } else {
-                            // build the shape from the stops
-                            Coordinate[] coords = new Coordinate[tp.patternStops.size()];
+        status.update(false, String.format("Exported %d %s", featureCount, type.name().toLowerCase()), 100);
+        LOG.info("Exported {} {} of {} feeds as {} in {} ms", featureCount, type, agencyIds.size(), format,
+                System.currentTimeMillis() - startTime);
+    }
 
-                            for (int i = 0; i < coords.length; i++) {
-                                coords[i] = atx.stops.get(tp.patternStops.get(i).stopId).location.getCoordinate();
-                            }
+    private void writeShapefile (File outShp, SimpleFeatureType featureType, Map<String, EditorFeed> feeds,
+                                 Map<String, String> routeTypes) throws Exception {
+        ShapefileDataStoreFactory dataStoreFactory = new ShapefileDataStoreFactory();
 
-                            shape = gf.createLineString(coords);
-                        }
+        Map<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put("url", outShp.toURI().toURL());
+        params.put("create spatial index", Boolean.TRUE);
 
-                        Route r = atx.routes.get(tp.routeId);
-
-                        featureBuilder.add(shape);
-                        featureBuilder.add(tp.name);
-                        featureBuilder.add(r.routeShortName);
-                        featureBuilder.add(r.routeLongName);
-                        featureBuilder.add(r.routeDesc);
-
-                        if (r.routeTypeId != null)
-                            featureBuilder.add(gtx.routeTypes.get(r.routeTypeId).toString());
-                        else
-                            featureBuilder.add("");
-
-                        featureBuilder.add(r.routeUrl);
-                        featureBuilder.add(r.routeColor);
-                        featureBuilder.add(r.routeTextColor);
-                        featureBuilder.add(fs.feedPublisherName);
-                        SimpleFeature feature = featureBuilder.buildFeature(null);
-                        features.add(feature);
-                    }
+        ShapefileDataStore datastore = (ShapefileDataStore) dataStoreFactory.createNewDataStore(params);
+        try {
+            datastore.forceSchemaCRS(DefaultGeographicCRS.WGS84);
+            datastore.createSchema(featureType);
 
-                    atx.rollback();
+            Transaction transaction = new DefaultTransaction("create");
+            try {
+                // the spatial index is built when the writer is closed
+                FeatureWriter<SimpleFeatureType, SimpleFeature> writer =
+                        datastore.getFeatureWriterAppend(datastore.getTypeNames()[0], transaction);
+                try {
+                    write(writer, feeds, routeTypes);
+                } finally {
+                    writer.close();
                 }
+                transaction.commit();
+            } catch (Exception e) {
+                transaction.rollback();
+                throw e;
+            } finally {
+                transaction.close();
             }
-            else
-                throw new IllegalStateException("Invalid type");
+        } finally {
+            datastore.dispose();
+        }
+    }
 
-            // save the file
-            collection = new ListFeatureCollection(collectionType, features);
+    private void writeGeoPackage (File outGpkg, SimpleFeatureType featureType, Map<String, EditorFeed> feeds,
+                                  Map<String, String> routeTypes) throws Exception {
+        GeoPackage geopkg = new GeoPackage(outGpkg);
+        try {
+            geopkg.init();
+
+            FeatureEntry entry = new FeatureEntry();
+            entry.setSrid(4326);
+            entry.setBounds(new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84));
+            geopkg.create(entry, featureType);
 
             Transaction transaction = new DefaultTransaction("create");
+            try {
+                FeatureWriter<SimpleFeatureType, SimpleFeature> writer = geopkg.writer(entry, true, null, transaction);
+                try {
+                    write(writer, feeds, routeTypes);
+                } finally {
+                    writer.close();
+                }
+                transaction.commit();
+            } catch (Exception e) {
+                transaction.rollback();
+                throw e;
+            } finally {
+                transaction.close();
+            }
 
-            String typeName = datastore.getTypeNames()[0];
-            SimpleFeatureSource featureSource = datastore.getFeatureSource(typeName);
+            status.update(false, "Building spatial index...", 90);
+            geopkg.createSpatialIndex(entry);
+        } finally {
+            geopkg.close();
+        }
+    }
 
-            if (featureSource instanceof SimpleFeatureStore)
-            {
-                SimpleFeatureStore featureStore = (SimpleFeatureStore) featureSource;
+    /**
+     * Read the feeds in parallel and write their features as they are read. The writer is only used by this thread, as
+     * feature writers are not thread safe.
+     */
+    private void write (FeatureWriter<SimpleFeatureType, SimpleFeature> writer, Map<String, EditorFeed> feeds,
+                        Map<String, String> routeTypes) throws Exception {
+        BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES);
+        ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_READERS, agencyIds.size())));
 
-                featureStore.setTransaction(transaction);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (String feedId : agencyIds) {
+                results.add(readers.submit(() -> {
+                    readFeed(feedId, feeds.get(feedId), routeTypes, queue);
+                    return null;
+                }));
+            }
 
-                featureStore.addFeatures(collection);
-                transaction.commit();
+            while (true) {
+                // checked before polling, so that once the readers are done nothing more can be added to the queue
+                boolean done = results.stream().allMatch(Future::isDone);
+                List<Object[]> batch = queue.poll(100, TimeUnit.MILLISECONDS);
 
-                transaction.close();
+                if (batch == null) {
+                    if (done) break;
+                    continue;
+                }
+
+                for (Object[] values : batch) {
+                    SimpleFeature feature = writer.next();
+                    feature.setAttributes(values);
+                    writer.write();
+                }
+
+                featureCount += batch.size();
+                status.update(false, String.format("Exported %d %s, read %d of %d feeds", featureCount,
+                        type.name().toLowerCase(), feedsRead.get(), agencyIds.size()),
+                        feedsRead.get() * 85.0 / agencyIds.size());
             }
-            else
-            {
-                throw new Exception(typeName + " does not support read/write access");
+
+            // rethrow any failure of the readers
+            for (Future<?> result : results) {
+                result.get();
             }
+        } finally {
+            // readers still waiting to hand over features if the export failed are interrupted
+            readers.shutdownNow();
+        }
+    }
 
-            // zip the file
-            DirectoryZip.zip(outDir, file);
+    /** read the features of a feed, handing them over to be written in batches */
+    private void readFeed (String feedId, EditorFeed feed, Map<String, String> routeTypes,
+                           BlockingQueue<List<Object[]>> queue) throws InterruptedException {
+        FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+        String publisherName = feed != null ? feed.feedPublisherName : null;
+        List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
 
-            // clean up
-            for (File f : outDir.listFiles()) {
-                f.delete();
+        try {
+            if (type == Type.STOPS) {
+                for (Stop s : tx.stops.values()) {
+                    if (s.location == null)
+                        continue;
+
+                    batch.add(new Object[] { s.location, s.stopName, s.stopCode, s.stopDesc, s.getGtfsId(), publisherName });
+
+                    if (batch.size() == BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+            } else {
+                GeometryFactory gf = new GeometryFactory();
+
+                // we loop over trip patterns. Note that this will yield several lines for routes that have
+                // multiple patterns. There's no real good way to reconcile the shapes of multiple patterns.
+                for (TripPattern tp : tx.tripPatterns.values()) {
+                    Route r = tx.routes.get(tp.routeId);
+                    if (r == null)
+                        continue;
+
+                    LineString shape;
+                    if (tp.shape != null) {
+                        shape = tp.shape;
+                    } else {
+                        // build the shape from the stops
+                        List<Coordinate> coords = new ArrayList<>();
+                        for (TripPatternStop ps : tp.patternStops) {
+                            Stop stop = tx.stops.get(ps.stopId);
+                            if (stop != null && stop.location != null) coords.add(stop.location.getCoordinate());
+                        }
+
+                        if (coords.size() < 2)
+                            continue;
+
+                        shape = gf.createLineString(coords.toArray(new Coordinate[coords.size()]));
+                    }
+
+                    String routeType = r.routeTypeId != null ? routeTypes.get(r.routeTypeId) : null;
+
+                    batch.add(new Object[] { shape, tp.name, r.routeShortName, r.routeLongName, r.routeDesc,
+                            routeType != null ? routeType : "", r.routeUrl, r.routeColor, r.routeTextColor,
+                            publisherName });
+
+                    if (batch.size() == BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
             }
-            outDir.delete();
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!batch.isEmpty())
+                queue.put(batch);
+
+            feedsRead.incrementAndGet();
         } finally {
-            if (gtx != null) gtx.rollback();
-            if (atx != null) atx.rollbackIfOpen();
+            tx.rollbackIfOpen();
         }
     }
 
+    private static SimpleFeatureType createStopType () throws Exception {
+        return DataUtilities.createType(
+                "Stop",
+                "the_geom:Point:srid=4326," +
+                "name:String," +
+                "code:String," +
+                "desc:String," +
+                "id:String," +
+                "agency:String"
+        );
+    }
+
+    private static SimpleFeatureType createRouteType () throws Exception {
+        return DataUtilities.createType(
+                "Route",                   // <- the name for our feature type
+                "the_geom:LineString:srid=4326," +
+                "patternName:String," +
+                "shortName:String," +
+                "longName:String," +
+                "desc:String," +
+                "type:String," +
+                "url:String," +
+                "routeColor:String," +
+                "routeTextColor:String," +
+                "agency:String"
+        );
+    }
+
     public static enum Type { ROUTES, STOPS };
+
+    /**
+     * Output formats. A shapefile is limited to 2GB, and to 10 character attribute names (longer names are truncated);
+     * a GeoPackage is not. Both have a spatial index.
+     */
+    public static enum Format { SHAPEFILE, GEOPACKAGE };
 }
@@ -5,14 +5,10 @@ import com.conveyal.datatools.editor.models.transit.Agency;
 import com.conveyal.datatools.editor.models.transit.Fare;
 import com.conveyal.datatools.editor.models.transit.Route;
 import com.conveyal.datatools.editor.models.transit.Stop;
-import com.conveyal.datatools.editor.models.transit.StopTime;
 import com.conveyal.datatools.editor.models.transit.Trip;
-import com.conveyal.gtfs.GTFSFeed;
-import com.conveyal.gtfs.model.CalendarDate;
-import com.conveyal.gtfs.model.Entity;
-import com.conveyal.gtfs.model.Frequency;
-import com.conveyal.gtfs.model.ShapePoint;
-import com.google.common.collect.Maps;
+import com.conveyal.gtfs.model.FareAttribute;
+import com.conveyal.gtfs.model.FareRule;
+import com.csvreader.CsvWriter;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.conveyal.datatools.editor.datastore.FeedTx;
 import com.conveyal.datatools.editor.datastore.GlobalTx;
@@ -21,18 +17,33 @@ import com.conveyal.datatools.editor.models.Snapshot;
 import com.conveyal.datatools.editor.models.transit.*;
 import java.time.LocalDate;
 
-import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.conveyal.datatools.editor.utils.GeoUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Export editor feeds to GTFS. Rather than building a GTFSFeed in memory, each table is written as CSV while iterating
+ * over the MapDB maps, so the memory used does not grow with the number of trips and stop times. Stop times, by far the
+ * largest table, are streamed straight into the output zip; the other tables are spooled to temporary files and copied
+ * into the zip at the end, as a zip file can only have one entry open at a time.
+ */
 public class ProcessGtfsSnapshotExport implements Runnable {
     public static final Logger LOG = LoggerFactory.getLogger(ProcessGtfsSnapshotExport.class);
     private Collection<Tuple2<String, Integer>> snapshots;
@@ -72,255 +83,467 @@ public class ProcessGtfsSnapshotExport implements Runnable {
         this(Arrays.asList(new Tuple2[] { snapshot.id }), output, snapshot.validFrom, snapshot.validTo);
     }
 
+    // the tables being written, see GtfsTable
+    private GtfsTable agencyTable, calendarTable, calendarDatesTable, fareAttributesTable, fareRulesTable, routesTable,
+            tripsTable, stopTimesTable, stopsTable, shapesTable, frequenciesTable;
+
+    // IDs already written, to avoid duplicate entities when exporting several feeds
+    private final Set<String> agencyIds = new HashSet<>();
+    private final Set<String> routeIds = new HashSet<>();
+    private final Set<String> tripIds = new HashSet<>();
+    private final Set<String> stopIds = new HashSet<>();
+
     @Override
     public void run() {
-        GTFSFeed feed = new GTFSFeed();
-
         GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        FeedTx feedTx = null;
+        ZipOutputStream zip = null;
 
         try {
+            zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+
+            agencyTable = new GtfsTable("agency", "agency_id", "agency_name", "agency_url", "agency_timezone",
+                    "agency_lang", "agency_phone", "agency_fare_url", "agency_email", "agency_branding_url");
+            calendarTable = new GtfsTable("calendar", "service_id", "monday", "tuesday", "wednesday", "thursday",
+                    "friday", "saturday", "sunday", "start_date", "end_date");
+            calendarDatesTable = new GtfsTable("calendar_dates", "service_id", "date", "exception_type");
+            fareAttributesTable = new GtfsTable("fare_attributes", "fare_id", "price", "currency_type",
+                    "payment_method", "transfers", "transfer_duration");
+            fareRulesTable = new GtfsTable("fare_rules", "fare_id", "route_id", "origin_id", "destination_id",
+                    "contains_id");
+            routesTable = new GtfsTable("routes", "agency_id", "route_id", "route_short_name", "route_long_name",
+                    "route_desc", "route_type", "route_url", "route_color", "route_text_color", "route_branding_url");
+            tripsTable = new GtfsTable("trips", "route_id", "service_id", "trip_id", "trip_headsign",
+                    "trip_short_name", "direction_id", "block_id", "shape_id", "wheelchair_accessible");
+            stopsTable = new GtfsTable("stops", "stop_id", "stop_code", "stop_name", "stop_desc", "stop_lat",
+                    "stop_lon", "stop_url", "wheelchair_boarding");
+            shapesTable = new GtfsTable("shapes", "shape_id", "shape_pt_lat", "shape_pt_lon", "shape_pt_sequence",
+                    "shape_dist_traveled");
+            frequenciesTable = new GtfsTable("frequencies", "trip_id", "start_time", "end_time", "headway_secs",
+                    "exact_times");
+            stopTimesTable = new GtfsTable(zip, "stop_times", "trip_id", "arrival_time", "departure_time", "stop_id",
+                    "stop_sequence", "stop_headsign", "pickup_type", "drop_off_type", "shape_dist_traveled", "timepoint");
+
             for (Tuple2<String, Integer> ssid : snapshots) {
                 String feedId = ssid.a;
 
                 // retrieveById present feed database if no snapshot version provided
-                if (ssid.b == null) {
-                    feedTx = VersionedDataStore.getFeedTx(feedId);
-                }
                 // else retrieveById snapshot version data
-                else {
-                    feedTx = VersionedDataStore.getFeedTx(feedId, ssid.b);
+                FeedTx feedTx = ssid.b == null ?
+                        VersionedDataStore.getReadOnlyFeedTx(feedId) :
+                        VersionedDataStore.getFeedTx(feedId, ssid.b);
+
+                try {
+                    exportFeed(feedTx, gtx);
+                } finally {
+                    feedTx.rollbackIfOpen();
                 }
+            }
 
-                if (feedTx.agencies != null) {
-                    Collection<Agency> agencies = feedTx.agencies.values();
-
-                    for (Agency agency : agencies) {
-                        com.conveyal.gtfs.model.Agency gtfsAgency = agency.toGtfs();
-                        LOG.info("Exporting agency {}", gtfsAgency);
+            stopTimesTable.finish(zip, true);
+            agencyTable.finish(zip, true);
+            calendarTable.finish(zip, true);
+            calendarDatesTable.finish(zip, false);
+            fareAttributesTable.finish(zip, false);
+            fareRulesTable.finish(zip, false);
+            routesTable.finish(zip, true);
+            tripsTable.finish(zip, true);
+            stopsTable.finish(zip, true);
+            shapesTable.finish(zip, false);
+            frequenciesTable.finish(zip, false);
+
+            LOG.info("Exported {} trips and {} stop times to {}", tripsTable.rowCount, stopTimesTable.rowCount, output);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write GTFS export " + output, e);
+        } finally {
+            gtx.rollbackIfOpen();
 
-                        // if agencyId is null (allowed if there is only a single agency), set to empty string
-                        if (agency.agencyId == null) {
-                            if (feed.agency.containsKey("")) {
-                                LOG.error("Agency with empty id field already exists. Skipping agency {}", agency);
-                                continue;
-                            } else {
-                                agency.agencyId = "";
-                            }
-                        }
+            for (GtfsTable table : new GtfsTable[] { agencyTable, calendarTable, calendarDatesTable, fareAttributesTable,
+                    fareRulesTable, routesTable, tripsTable, stopsTable, shapesTable, frequenciesTable }) {
+                if (table != null) table.discard();
+            }
 
-                        // write the agency.txt entry
-                        feed.agency.put(agency.agencyId, agency.toGtfs());
-                    }
-                } else {
-                    LOG.error("Agency table should not be empty!");
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    LOG.error("Unable to close GTFS export {}", output, e);
                 }
+            }
+        }
+    }
 
-                if (feedTx.fares != null) {
-                    Collection<Fare> fares = feedTx.fares.values();
-                    for (Fare fare : fares) {
-                        com.conveyal.gtfs.model.Fare gtfsFare = fare.toGtfs();
-                        LOG.info("Exporting fare {}", gtfsFare);
-
-                        // write the feeds.txt entry
-                        feed.fares.put(fare.gtfsFareId, gtfsFare);
+    /** write the contents of a single feed to the tables */
+    private void exportFeed (FeedTx feedTx, GlobalTx gtx) throws IOException {
+        if (feedTx.agencies != null) {
+            Collection<Agency> agencies = feedTx.agencies.values();
+
+            for (Agency agency : agencies) {
+                com.conveyal.gtfs.model.Agency gtfsAgency = agency.toGtfs();
+                LOG.info("Exporting agency {}", gtfsAgency);
+
+                // if agencyId is null (allowed if there is only a single agency), set to empty string
+                if (agency.agencyId == null) {
+                    if (agencyIds.contains("")) {
+                        LOG.error("Agency with empty id field already exists. Skipping agency {}", agency);
+                        continue;
+                    } else {
+                        agency.agencyId = "";
+                        gtfsAgency.agency_id = "";
                     }
                 }
 
-                // write all of the calendars and calendar dates
-                if (feedTx.calendars != null) {
-                    for (ServiceCalendar cal : feedTx.calendars.values()) {
-
-                        int start = toGtfsDate(cal.startDate);
-                        int end = toGtfsDate(cal.endDate);
-                        com.conveyal.gtfs.model.Service gtfsService = cal.toGtfs(start, end);
-                        // note: not using user-specified IDs
-
-                        // add calendar dates
-                        if (feedTx.exceptions != null) {
-                            for (ScheduleException ex : feedTx.exceptions.values()) {
-                                if (ex.equals(ScheduleException.ExemplarServiceDescriptor.SWAP) && !ex.addedService.contains(cal.id) && !ex.removedService.contains(cal.id))
-                                    // skip swap exception if cal is not referenced by added or removed service
-                                    // this is not technically necessary, but the output is cleaner/more intelligible
-                                    continue;
-
-                                for (LocalDate date : ex.dates) {
-                                    if (date.isBefore(cal.startDate) || date.isAfter(cal.endDate))
-                                        // no need to write dates that do not apply
-                                        continue;
-
-                                    CalendarDate cd = new CalendarDate();
-                                    cd.date = date;
-                                    cd.service_id = gtfsService.service_id;
-                                    cd.exception_type = ex.serviceRunsOn(cal) ? 1 : 2;
-
-                                    if (gtfsService.calendar_dates.containsKey(date))
-                                        throw new IllegalArgumentException("Duplicate schedule exceptions on " + date.toString());
-
-                                    gtfsService.calendar_dates.put(date, cd);
-                                }
-                            }
-                        }
-                        feed.services.put(gtfsService.service_id, gtfsService);
-                    }
+                if (!agencyIds.add(agency.agencyId)) {
+                    LOG.warn("Agency {} has already been exported. Skipping agency {}", agency.agencyId, agency);
+                    continue;
                 }
 
-                Map<String, com.conveyal.gtfs.model.Route> gtfsRoutes = Maps.newHashMap();
-
-                // write the routes
-                if(feedTx.routes != null) {
-                    for (Route route : feedTx.routes.values()) {
-                        // only export approved routes
-                        // TODO: restore route approval check?
-                        if (route.status == StatusType.APPROVED) {
-                            com.conveyal.gtfs.model.Agency agency = route.agencyId != null ? feedTx.agencies.get(route.agencyId).toGtfs() : null;
-                            com.conveyal.gtfs.model.Route gtfsRoute = route.toGtfs(agency, gtx);
-                            feed.routes.put(route.getGtfsId(), gtfsRoute);
-                            gtfsRoutes.put(route.id, gtfsRoute);
-                            LOG.info("Exporting route {}", gtfsRoute);
-                        } else {
-                            LOG.warn("Route {} not approved", route.gtfsRouteId);
-                        }
-                    }
-                }
+                // write the agency.txt entry
+                agencyTable.writeRow(gtfsAgency.agency_id, gtfsAgency.agency_name, text(gtfsAgency.agency_url),
+                        gtfsAgency.agency_timezone, gtfsAgency.agency_lang, gtfsAgency.agency_phone,
+                        text(gtfsAgency.agency_fare_url), gtfsAgency.agency_email,
+                        text(gtfsAgency.agency_branding_url));
+            }
+        } else {
+            LOG.error("Agency table should not be empty!");
+        }
 
-                // write the trips on those routes
-                // we can't use the trips-by-route index because we may be exporting a snapshot database without indices
-                if(feedTx.trips != null) {
-                    for (Trip trip : feedTx.trips.values()) {
-                        if (!gtfsRoutes.containsKey(trip.routeId)) {
-                            LOG.warn("Trip {} has no matching route. This may be because route {} was not approved", trip, trip.routeId);
-                            continue;
-                        }
+        if (feedTx.fares != null) {
+            Collection<Fare> fares = feedTx.fares.values();
+            for (Fare fare : fares) {
+                com.conveyal.gtfs.model.Fare gtfsFare = fare.toGtfs();
+                LOG.info("Exporting fare {}", gtfsFare);
 
-                        com.conveyal.gtfs.model.Route gtfsRoute = gtfsRoutes.get(trip.routeId);
-                        Route route = feedTx.routes.get(trip.routeId);
+                // write the fare_attributes.txt and fare_rules.txt entries
+                FareAttribute fa = gtfsFare.fare_attribute;
+                fareAttributesTable.writeRow(fa.fare_id, decimal(fa.price), fa.currency_type,
+                        integer(fa.payment_method), integer(fa.transfers), integer(fa.transfer_duration));
 
-                        com.conveyal.gtfs.model.Trip gtfsTrip = new com.conveyal.gtfs.model.Trip();
+                for (FareRule rule : gtfsFare.fare_rules) {
+                    fareRulesTable.writeRow(fa.fare_id, rule.route_id, rule.origin_id, rule.destination_id,
+                            rule.contains_id);
+                }
+            }
+        }
 
-                        gtfsTrip.block_id = trip.blockId;
-                        gtfsTrip.route_id = gtfsRoute.route_id;
-                        gtfsTrip.trip_id = trip.getGtfsId();
-                        // TODO: figure out where a "" trip_id might have come from
-                        if (gtfsTrip.trip_id == null || gtfsTrip.trip_id.equals("")) {
-                            LOG.warn("Trip {} has no id for some reason (trip_id = {}). Skipping.", trip, gtfsTrip.trip_id);
+        // write all of the calendars and calendar dates
+        // note: not using user-specified IDs, so the service ID is the calendar ID
+        Set<String> serviceIds = new HashSet<>();
+        if (feedTx.calendars != null) {
+            for (ServiceCalendar cal : feedTx.calendars.values()) {
+                calendarTable.writeRow(cal.id, flag(cal.monday), flag(cal.tuesday), flag(cal.wednesday),
+                        flag(cal.thursday), flag(cal.friday), flag(cal.saturday), flag(cal.sunday),
+                        Integer.toString(toGtfsDate(cal.startDate)), Integer.toString(toGtfsDate(cal.endDate)));
+                serviceIds.add(cal.id);
+
+                // add calendar dates
+                if (feedTx.exceptions != null) {
+                    Set<LocalDate> dates = new HashSet<>();
+
+                    for (ScheduleException ex : feedTx.exceptions.values()) {
+                        if (ex.equals(ScheduleException.ExemplarServiceDescriptor.SWAP) && !ex.addedService.contains(cal.id) && !ex.removedService.contains(cal.id))
+                            // skip swap exception if cal is not referenced by added or removed service
+                            // this is not technically necessary, but the output is cleaner/more intelligible
                             continue;
-                        }
-                        // not using custom ids for calendars
-                        gtfsTrip.service_id = feed.services.get(trip.calendarId).service_id;
-                        gtfsTrip.trip_headsign = trip.tripHeadsign;
-                        gtfsTrip.trip_short_name = trip.tripShortName;
 
-                        TripPattern pattern = feedTx.tripPatterns.get(trip.patternId);
+                        for (LocalDate date : ex.dates) {
+                            if (date.isBefore(cal.startDate) || date.isAfter(cal.endDate))
+                                // no need to write dates that do not apply
+                                continue;
 
-                        // assign pattern direction if not null
-                        if (pattern.patternDirection != null) {
-                            gtfsTrip.direction_id = pattern.patternDirection.toGtfs();
-                        }
-                        else if (trip.tripDirection != null) {
-                            gtfsTrip.direction_id = trip.tripDirection.toGtfs();
-                        }
-                        Tuple2<String, Integer> nextKey = feed.shape_points.ceilingKey(new Tuple2(pattern.id, null));
-                        if ((nextKey == null || !pattern.id.equals(nextKey.a)) && pattern.shape != null && !pattern.useStraightLineDistances) {
-                            // this shape has not yet been saved
-                            double[] coordDistances = GeoUtils.getCoordDistances(pattern.shape);
-
-                            for (int i = 0; i < coordDistances.length; i++) {
-                                Coordinate coord = pattern.shape.getCoordinateN(i);
-                                ShapePoint shape = new ShapePoint(pattern.id, coord.y, coord.x, i + 1, coordDistances[i]);
-                                feed.shape_points.put(new Tuple2(pattern.id, shape.shape_pt_sequence), shape);
-                            }
+                            if (!dates.add(date))
+                                throw new IllegalArgumentException("Duplicate schedule exceptions on " + date.toString());
+
+                            calendarDatesTable.writeRow(cal.id, Integer.toString(toGtfsDate(date)),
+                                    ex.serviceRunsOn(cal) ? "1" : "2");
                         }
+                    }
+                }
+            }
+        }
 
-                        if (pattern.shape != null && !pattern.useStraightLineDistances)
-                            gtfsTrip.shape_id = pattern.id;
+        Map<String, com.conveyal.gtfs.model.Route> gtfsRoutes = new HashMap<>();
+        Map<String, Route> routes = new HashMap<>();
+
+        // write the routes
+        if(feedTx.routes != null) {
+            for (Route route : feedTx.routes.values()) {
+                // only export approved routes
+                // TODO: restore route approval check?
+                if (route.status == StatusType.APPROVED) {
+                    com.conveyal.gtfs.model.Agency agency = route.agencyId != null ? feedTx.agencies.get(route.agencyId).toGtfs() : null;
+                    com.conveyal.gtfs.model.Route gtfsRoute = route.toGtfs(agency, gtx);
+                    gtfsRoutes.put(route.id, gtfsRoute);
+                    routes.put(route.id, route);
+                    LOG.info("Exporting route {}", gtfsRoute);
+
+                    if (!routeIds.add(gtfsRoute.route_id)) {
+                        LOG.warn("Route {} has already been exported", gtfsRoute.route_id);
+                        continue;
+                    }
 
-                        // prefer trip wheelchair boarding value if available and not UNKNOWN
-                        if (trip.wheelchairBoarding != null && !trip.wheelchairBoarding.equals(AttributeAvailabilityType.UNKNOWN)) {
-                            gtfsTrip.wheelchair_accessible = trip.wheelchairBoarding.toGtfs();
-                        } else if (route.wheelchairBoarding != null) {
-                            gtfsTrip.wheelchair_accessible = route.wheelchairBoarding.toGtfs();
-                        }
+                    routesTable.writeRow(gtfsRoute.agency_id, gtfsRoute.route_id, gtfsRoute.route_short_name,
+                            gtfsRoute.route_long_name, gtfsRoute.route_desc, integer(gtfsRoute.route_type),
+                            text(gtfsRoute.route_url), gtfsRoute.route_color, gtfsRoute.route_text_color,
+                            text(gtfsRoute.route_branding_url));
+                } else {
+                    LOG.warn("Route {} not approved", route.gtfsRouteId);
+                }
+            }
+        }
 
-                        feed.trips.put(gtfsTrip.trip_id, gtfsTrip);
+        // patterns and stops are shared by many trips, so decode each only once. Their shapes and stops.txt entries
+        // are written the first time they are seen.
+        Map<String, TripPattern> patterns = new HashMap<>();
+        Map<String, Stop> stops = new HashMap<>();
+
+        // write the trips on those routes
+        // we can't use the trips-by-route index because we may be exporting a snapshot database without indices
+        if(feedTx.trips != null) {
+            for (Trip trip : feedTx.trips.values()) {
+                if (!gtfsRoutes.containsKey(trip.routeId)) {
+                    LOG.warn("Trip {} has no matching route. This may be because route {} was not approved", trip, trip.routeId);
+                    continue;
+                }
+
+                com.conveyal.gtfs.model.Route gtfsRoute = gtfsRoutes.get(trip.routeId);
+                Route route = routes.get(trip.routeId);
 
-                        TripPattern patt = feedTx.tripPatterns.get(trip.patternId);
+                String tripId = trip.getGtfsId();
+                // TODO: figure out where a "" trip_id might have come from
+                if (tripId == null || tripId.equals("")) {
+                    LOG.warn("Trip {} has no id for some reason (trip_id = {}). Skipping.", trip, tripId);
+                    continue;
+                }
 
-                        Iterator<TripPatternStop> psi = patt.patternStops.iterator();
+                if (!serviceIds.contains(trip.calendarId)) {
+                    LOG.warn("Trip {} has no matching calendar {}. Skipping.", trip, trip.calendarId);
+                    continue;
+                }
 
-                        int stopSequence = 1;
+                TripPattern pattern = patterns.get(trip.patternId);
+                if (pattern == null) {
+                    pattern = feedTx.tripPatterns.get(trip.patternId);
 
-                        // write the stop times
-                        for (StopTime st : trip.stopTimes) {
-                            TripPatternStop ps = psi.hasNext() ? psi.next() : null;
-                            if (st == null)
-                                continue;
+                    if (pattern == null) {
+                        LOG.warn("Trip {} has no matching pattern {}. Skipping.", trip, trip.patternId);
+                        continue;
+                    }
 
-                            Stop stop = feedTx.stops.get(st.stopId);
+                    patterns.put(pattern.id, pattern);
+                    writeShape(pattern);
+                }
 
-                            if (!st.stopId.equals(ps.stopId)) {
-                                throw new IllegalStateException("Trip " + trip.id + " does not match its pattern!");
-                            }
+                if (!tripIds.add(tripId)) {
+                    LOG.warn("Trip {} has already been exported. Skipping.", tripId);
+                    continue;
+                }
 
-                            com.conveyal.gtfs.model.StopTime gst = new com.conveyal.gtfs.model.StopTime();
-                            gst.arrival_time = st.arrivalTime != null ? st.arrivalTime : Entity.INT_MISSING;
-                            gst.departure_time = st.departureTime != null ? st.departureTime : Entity.INT_MISSING;
+                // assign pattern direction if not null
+                String directionId = null;
+                if (pattern.patternDirection != null) {
+                    directionId = Integer.toString(pattern.patternDirection.toGtfs());
+                }
+                else if (trip.tripDirection != null) {
+                    directionId = Integer.toString(trip.tripDirection.toGtfs());
+                }
 
-                            if (st.dropOffType != null)
-                                gst.drop_off_type = st.dropOffType.toGtfsValue();
-                            else if (stop.dropOffType != null)
-                                gst.drop_off_type = stop.dropOffType.toGtfsValue();
+                String shapeId = pattern.shape != null && !pattern.useStraightLineDistances ? pattern.id : null;
 
-                            if (st.pickupType != null)
-                                gst.pickup_type = st.pickupType.toGtfsValue();
-                            else if (stop.dropOffType != null)
-                                gst.drop_off_type = stop.dropOffType.toGtfsValue();
+                // prefer trip wheelchair boarding value if available and not UNKNOWN
+                String wheelchairAccessible = null;
+                if (trip.wheelchairBoarding != null && !trip.wheelchairBoarding.equals(AttributeAvailabilityType.UNKNOWN)) {
+                    wheelchairAccessible = Integer.toString(trip.wheelchairBoarding.toGtfs());
+                } else if (route.wheelchairBoarding != null) {
+                    wheelchairAccessible = Integer.toString(route.wheelchairBoarding.toGtfs());
+                }
 
-                            gst.shape_dist_traveled = ps.shapeDistTraveled;
-                            gst.stop_headsign = st.stopHeadsign;
-                            gst.stop_id = stop.getGtfsId();
+                tripsTable.writeRow(gtfsRoute.route_id, trip.calendarId, tripId, trip.tripHeadsign,
+                        trip.tripShortName, directionId, trip.blockId, shapeId, wheelchairAccessible);
 
-                            // write the stop as needed
-                            if (!feed.stops.containsKey(gst.stop_id)) {
-                                feed.stops.put(gst.stop_id, stop.toGtfs());
-                            }
+                Iterator<TripPatternStop> psi = pattern.patternStops.iterator();
 
-                            gst.stop_sequence = stopSequence++;
+                int stopSequence = 1;
 
-                            if (ps.timepoint != null)
-                                gst.timepoint = ps.timepoint ? 1 : 0;
-                            else
-                                gst.timepoint = Entity.INT_MISSING;
+                // write the stop times, straight from the packed columns
+                PackedStopTimes stopTimes = trip.getPackedStopTimes();
+                int stopTimeCount = stopTimes != null ? stopTimes.size() : 0;
+                for (int i = 0; i < stopTimeCount; i++) {
+                    TripPatternStop ps = psi.hasNext() ? psi.next() : null;
+                    if (stopTimes.isSkipped(i))
+                        continue;
 
-                            gst.trip_id = gtfsTrip.trip_id;
+                    String stopId = stopTimes.getStopId(i);
 
-                            feed.stop_times.put(new Tuple2(gtfsTrip.trip_id, gst.stop_sequence), gst);
-                        }
+                    if (ps == null || !stopId.equals(ps.stopId)) {
+                        throw new IllegalStateException("Trip " + trip.id + " does not match its pattern!");
+                    }
 
-                        // create frequencies as needed
-                        if (trip.useFrequency != null && trip.useFrequency) {
-                            Frequency f = new Frequency();
-                            f.trip_id = gtfsTrip.trip_id;
-                            f.start_time = trip.startTime;
-                            f.end_time = trip.endTime;
-                            f.exact_times = 0;
-                            f.headway_secs = trip.headway;
-                            feed.frequencies.add(Fun.t2(gtfsTrip.trip_id, f));
-                        }
+                    Stop stop = stops.get(stopId);
+                    if (stop == null) {
+                        stop = feedTx.stops.get(stopId);
+                        stops.put(stopId, stop);
+                        writeStop(stop);
                     }
+
+                    StopTimePickupDropOffType dropOffType = stopTimes.getDropOffType(i);
+                    if (dropOffType == null)
+                        dropOffType = stop.dropOffType;
+
+                    StopTimePickupDropOffType pickupType = stopTimes.getPickupType(i);
+                    if (pickupType == null)
+                        pickupType = stop.pickupType;
+
+                    stopTimesTable.writeRow(tripId, time(stopTimes.arrivalTimes[i]), time(stopTimes.departureTimes[i]),
+                            stop.getGtfsId(), Integer.toString(stopSequence++), stopTimes.getStopHeadsign(i),
+                            pickupType != null ? pickupType.toGtfsValue().toString() : null,
+                            dropOffType != null ? dropOffType.toGtfsValue().toString() : null,
+                            ps.shapeDistTraveled != null ? decimal(ps.shapeDistTraveled) : null,
+                            ps.timepoint != null ? flag(ps.timepoint) : null);
+                }
+
+                // create frequencies as needed
+                if (trip.useFrequency != null && trip.useFrequency) {
+                    frequenciesTable.writeRow(tripId, time(trip.startTime), time(trip.endTime),
+                            text(trip.headway), "0");
                 }
             }
+        }
+    }
 
+    /** write the shape of a pattern to shapes.txt, if it has one */
+    private void writeShape (TripPattern pattern) throws IOException {
+        if (pattern.shape == null || pattern.useStraightLineDistances)
+            return;
 
-            feed.toFile(output.getAbsolutePath());
-        } finally {
-            gtx.rollbackIfOpen();
-            if (feedTx != null) feedTx.rollbackIfOpen();
+        double[] coordDistances = GeoUtils.getCoordDistances(pattern.shape);
+
+        for (int i = 0; i < coordDistances.length; i++) {
+            Coordinate coord = pattern.shape.getCoordinateN(i);
+            shapesTable.writeRow(pattern.id, Double.toString(coord.y), Double.toString(coord.x),
+                    Integer.toString(i + 1), decimal(coordDistances[i]));
         }
     }
 
+    /** write a stop to stops.txt, unless a stop with the same GTFS ID has already been written */
+    private void writeStop (Stop stop) throws IOException {
+        com.conveyal.gtfs.model.Stop gtfsStop = stop.toGtfs();
+
+        if (!stopIds.add(gtfsStop.stop_id))
+            return;
+
+        stopsTable.writeRow(gtfsStop.stop_id, gtfsStop.stop_code, gtfsStop.stop_name, gtfsStop.stop_desc,
+                Double.toString(gtfsStop.stop_lat), Double.toString(gtfsStop.stop_lon), text(gtfsStop.stop_url),
+                gtfsStop.wheelchair_boarding);
+    }
+
     public static int toGtfsDate (LocalDate date) {
         return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
     }
-}
 
+    /** format a time in seconds since midnight as HH:MM:SS, which may be past 24:00:00 */
+    private static String time (Integer seconds) {
+        if (seconds == null || seconds == PackedStopTimes.MISSING)
+            return null;
+
+        int s = seconds;
+        StringBuilder sb = new StringBuilder(8);
+        twoDigits(sb, s / 3600).append(':');
+        twoDigits(sb, s % 3600 / 60).append(':');
+        return twoDigits(sb, s % 60).toString();
+    }
+
+    private static StringBuilder twoDigits (StringBuilder sb, int value) {
+        if (value < 10) sb.append('0');
+        return sb.append(value);
+    }
+
+    /** format an integer field, where Integer.MIN_VALUE means the field is missing */
+    private static String integer (int value) {
+        return value == Integer.MIN_VALUE ? null : Integer.toString(value);
+    }
+
+    /** format a floating point field, where NaN means the field is missing */
+    private static String decimal (double value) {
+        return Double.isNaN(value) ? null : Double.toString(value);
+    }
+
+    private static String flag (Boolean value) {
+        return value ? "1" : "0";
+    }
+
+    private static String text (Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * A GTFS table, written as CSV. The table may be streamed straight into an entry of the output zip, in which case
+     * no other table can be written into the zip until it is finished; otherwise it is spooled to a temporary file and
+     * copied into the zip when it is finished.
+     */
+    private static class GtfsTable {
+        private final String fileName;
+
+        /** the temporary file this table is spooled to, or null if it is streamed straight into the zip */
+        private final File spool;
+
+        private final CsvWriter writer;
+
+        int rowCount = 0;
+
+        /** create a table that is spooled to a temporary file */
+        GtfsTable (String name, String... columns) throws IOException {
+            this.fileName = name + ".txt";
+            this.spool = File.createTempFile(name, ".txt");
+            this.writer = new CsvWriter(new BufferedOutputStream(new FileOutputStream(spool)), ',', StandardCharsets.UTF_8);
+            writer.writeRecord(columns);
+        }
+
+        /** create a table that is streamed straight into a new entry of the zip */
+        GtfsTable (ZipOutputStream zip, String name, String... columns) throws IOException {
+            this.fileName = name + ".txt";
+            this.spool = null;
+            zip.putNextEntry(new ZipEntry(fileName));
+            this.writer = new CsvWriter(zip, ',', StandardCharsets.UTF_8);
+            writer.writeRecord(columns);
+        }
+
+        /** write a row. Null values are written as empty fields. */
+        void writeRow (String... values) throws IOException {
+            for (String value : values) {
+                writer.write(value != null ? value : "");
+            }
+            writer.endRecord();
+            rowCount++;
+        }
+
+        /** finish writing this table into the zip. Optional tables with no rows are left out of the zip. */
+        void finish (ZipOutputStream zip, boolean required) throws IOException {
+            if (spool == null) {
+                // don't close the writer, that would close the zip as well
+                writer.flush();
+                zip.closeEntry();
+                return;
+            }
+
+            writer.close();
+
+            if (required || rowCount > 0) {
+                zip.putNextEntry(new ZipEntry(fileName));
+                Files.copy(spool.toPath(), zip);
+                zip.closeEntry();
+            }
+
+            discard();
+        }
+
+        /** delete the temporary file this table is spooled to, if any */
+        void discard () {
+            if (spool == null)
+                return;
+
+            writer.close();
+            if (spool.exists() && !spool.delete())
+                LOG.warn("Unable to delete temporary file {}", spool);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.conveyal.datatools.editor.jobs;
+
+import com.conveyal.datatools.common.status.MonitorableJob;
+import com.conveyal.datatools.editor.datastore.FeedTx;
+import com.conveyal.datatools.editor.datastore.VersionedDataStore;
+import com.conveyal.datatools.editor.models.transit.Trip;
+import com.conveyal.datatools.editor.models.transit.TripPattern;
+import com.conveyal.datatools.manager.DataManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Save an edited trip pattern whose stops have changed, updating the stop times of all its trips to match the new
+ * pattern stops. This is done in a job for patterns with many trips, where it takes too long to do in the request.
+ *
+ * The trips are updated CHUNK_SIZE at a time, each chunk in a transaction of its own, so that the feed is not held by
+ * one long transaction and a conflict only redoes one chunk. The pattern itself is saved last. Until then the updated
+ * trips do not match the pattern, so the pattern and its trips cannot be edited while the job runs (see isInProgress),
+ * and each transaction checks that the pattern stops have not changed since the job started. All the trips are checked
+ * before any is updated, so that a trip that cannot be updated does not fail the job part way through.
+ */
+public class ReconcilePatternJob extends MonitorableJob {
+    public static final Logger LOG = LoggerFactory.getLogger(ReconcilePatternJob.class);
+
+    /** number of trips updated in each transaction */
+    private static final int CHUNK_SIZE = 500;
+
+    /** IDs of the patterns whose trips are being updated by a job */
+    private static final Set<String> patternsInProgress = ConcurrentHashMap.newKeySet();
+
+    private final TripPattern tripPattern;
+
+    private ReconcilePatternJob (TripPattern tripPattern, String owner) {
+        super(owner, "Updating trips of pattern " + (tripPattern.name != null ? tripPattern.name : tripPattern.id),
+                JobType.RECONCILE_PATTERN);
+        this.tripPattern = tripPattern;
+        status.update(false, "Waiting to begin job...", 0);
+    }
+
+    /**
+     * Start a job to save a trip pattern and update its trips.
+     * @return the job, or null if the trips of the pattern are already being updated by another job
+     */
+    public static ReconcilePatternJob start (TripPattern tripPattern, String owner) {
+        if (!patternsInProgress.add(tripPattern.id))
+            return null;
+
+        try {
+            ReconcilePatternJob job = new ReconcilePatternJob(tripPattern, owner);
+            DataManager.heavyExecutor.execute(job);
+            return job;
+        } catch (RuntimeException e) {
+            patternsInProgress.remove(tripPattern.id);
+            throw e;
+        }
+    }
+
+    /** are the trips of a pattern being updated by a job? If so, the pattern and its trips must not be edited. */
+    public static boolean isInProgress (String patternId) {
+        return patternId != null && patternsInProgress.contains(patternId);
+    }
+
+    public void jobLogic () {
+        try {
+            reconcile();
+        } finally {
+            patternsInProgress.remove(tripPattern.id);
+        }
+    }
+
+    private void reconcile () {
+        long startTime = System.currentTimeMillis();
+        String feedId = tripPattern.feedId;
+
+        final TripPattern originalTripPattern;
+        final TripPattern.StopTimesReconciliation reconciliation;
+        final List<String> tripIds;
+
+        status.update(false, "Checking trips...", 0);
+        FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+        try {
+            originalTripPattern = tx.tripPatterns.get(tripPattern.id);
+
+            if (originalTripPattern == null)
+                throw new IllegalStateException("Trip pattern " + tripPattern.id + " no longer exists");
+
+            reconciliation = TripPattern.getStopTimesReconciliation(originalTripPattern, tripPattern);
+            tripIds = tx.getTripIdsByPattern(tripPattern.id);
+
+            if (reconciliation != null) {
+                for (String tripId : tripIds) {
+                    Trip trip = tx.trips.get(tripId);
+                    if (!TripPattern.isRemovedByFrequencyChange(originalTripPattern, tripPattern, trip))
+                        reconciliation.check(trip);
+                }
+            }
+        } finally {
+            tx.rollbackIfOpen();
+        }
+
+        int updated = 0;
+        try {
+            while (updated < tripIds.size()) {
+                List<String> chunk = tripIds.subList(updated, Math.min(updated + CHUNK_SIZE, tripIds.size()));
+
+                VersionedDataStore.writeFeed(feedId, wtx -> {
+                    checkUnchanged(wtx, originalTripPattern);
+                    for (String tripId : chunk) {
+                        updateTrip(wtx, tripId, originalTripPattern, reconciliation);
+                    }
+                    return null;
+                });
+
+                updated += chunk.size();
+                // leave the last few percent for saving the pattern
+                status.update(false, String.format("Updated %d of %d trips", updated, tripIds.size()),
+                        updated * 95.0 / tripIds.size());
+            }
+
+            VersionedDataStore.writeFeed(feedId, wtx -> {
+                checkUnchanged(wtx, originalTripPattern);
+                tripPattern.calcShapeDistTraveled(wtx);
+                wtx.tripPatterns.put(tripPattern.id, tripPattern);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            if (updated > 0) {
+                LOG.error("Updated {} of {} trips of pattern {} of feed {} before failing; they no longer match the pattern",
+                        updated, tripIds.size(), tripPattern.id, feedId, e);
+            }
+            throw e;
+        }
+
+        status.update(false, "Trip pattern saved", 100);
+        LOG.info("Saved trip pattern {} of feed {} and updated {} trips in {} ms", tripPattern.id, feedId, tripIds.size(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** check that the stops of the pattern have not changed since the job started */
+    private void checkUnchanged (FeedTx tx, TripPattern originalTripPattern) {
+        TripPattern current = tx.tripPatterns.get(tripPattern.id);
+
+        if (current == null || !TripPattern.hasSameStops(current, originalTripPattern))
+            throw new IllegalStateException("Trip pattern " + tripPattern.id + " was modified while its trips were being updated");
+    }
+
+    /** update one of the trips of the pattern, or remove it if it is of the kind (frequency or timetable) no longer used */
+    private void updateTrip (FeedTx tx, String tripId, TripPattern originalTripPattern,
+                             TripPattern.StopTimesReconciliation reconciliation) {
+        Trip trip = tx.trips.get(tripId);
+
+        // deleted, or moved to another pattern, since the job started
+        if (trip == null || !tripPattern.id.equals(trip.patternId))
+            return;
+
+        if (TripPattern.isRemovedByFrequencyChange(originalTripPattern, tripPattern, trip)) {
+            LOG.info("Removing frequency={} trip {}", trip.useFrequency, trip.id);
+            tx.trips.remove(tripId);
+        } else if (reconciliation != null) {
+            tx.trips.put(tripId, reconciliation.reconcile(trip));
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.conveyal.datatools.editor.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import javax.persistence.MappedSuperclass;
 import java.io.Serializable;
 import java.util.UUID;
@@ -11,6 +13,14 @@ public class Model implements Cloneable, Serializable {
     /** not final for purposes of deserialization, but don't change it once data has been persisted */
     public String id;
 
+    /**
+     * Hash of the content of this entity as stored in a feed database, set when it is read or written by
+     * CompactModelSerializer, so that two stored versions of an entity can be compared without serializing them. 0 if
+     * unknown, e.g. for an entity that has not been stored or was stored by an older version.
+     */
+    @JsonIgnore
+    public transient long contentHash;
+
     /** Set the ID, unless it is null, in which case keep the generated ID */
     public void setId (String id) {
         if (id != null)
@@ -1,6 +1,6 @@
 package com.conveyal.datatools.editor.models;
 
-import com.conveyal.datatools.editor.datastore.GlobalTx;
+import com.conveyal.datatools.editor.datastore.FeedSnapshotsTx;
 import com.conveyal.datatools.editor.datastore.VersionedDataStore;
 import com.conveyal.datatools.editor.jobs.ProcessGtfsSnapshotExport;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -11,7 +11,6 @@ import java.io.File;
 import java.io.IOException;
 import java.time.LocalDate;
 
-import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
 import com.conveyal.datatools.editor.utils.JacksonSerializers;
 
@@ -87,20 +86,13 @@ public class Snapshot implements Cloneable, Serializable {
 
     /** Write snapshot to disk as GTFS */
     public static boolean writeSnapshotAsGtfs (Tuple2<String, Integer> decodedId, File outFile) {
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        Snapshot local;
-        try {
-            if (!gtx.snapshots.containsKey(decodedId)) {
-                return false;
-            }
-
-            local = gtx.snapshots.get(decodedId);
-
-            new ProcessGtfsSnapshotExport(local, outFile).run();
-        } finally {
-            gtx.rollbackIfOpen();
+        Snapshot local = get(decodedId);
+        if (local == null) {
+            return false;
         }
 
+        new ProcessGtfsSnapshotExport(local, outFile).run();
+
         return true;
     }
 
@@ -116,27 +108,30 @@ public class Snapshot implements Cloneable, Serializable {
 
     @JsonIgnore
     public static Collection<Snapshot> getSnapshots (String feedId) {
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        return gtx.snapshots.subMap(new Tuple2(feedId, null), new Tuple2(feedId, Fun.HI)).values();
+        return VersionedDataStore.getSnapshots(feedId);
     }
 
-    public static void deactivateSnapshots (String feedId, Snapshot ignore) {
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        Collection<Snapshot> snapshots = Snapshot.getSnapshots(feedId);
+    /**
+     * Make the given snapshot the current snapshot of a feed (e.g. once it has been restored) and the others not
+     * current, or make none of them current if it is null.
+     */
+    public static void deactivateSnapshots (String feedId, Snapshot current) {
+        FeedSnapshotsTx stx = VersionedDataStore.getFeedSnapshotsTx(feedId);
         try {
-            for (Snapshot o : snapshots) {
-                if (ignore != null && o.id.equals(ignore.id))
+            for (Snapshot o : stx.snapshots.values()) {
+                boolean isCurrent = current != null && o.version == current.version;
+                if (o.current == isCurrent)
                     continue;
 
                 Snapshot cloned = o.clone();
-                cloned.current = false;
-                gtx.snapshots.put(o.id, cloned);
+                cloned.current = isCurrent;
+                stx.snapshots.put(o.version, cloned);
             }
-            gtx.commit();
+            stx.commit();
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
-            gtx.rollbackIfOpen();
+            stx.rollbackIfOpen();
         }
     }
 
@@ -148,14 +143,10 @@ public class Snapshot implements Cloneable, Serializable {
             return null;
         }
 
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        if (!gtx.snapshots.containsKey(decodedId)) return null;
-        return gtx.snapshots.get(decodedId);
+        return get(decodedId);
     }
 
     public static Snapshot get(Tuple2<String, Integer> decodedId) {
-        GlobalTx gtx = VersionedDataStore.getGlobalTx();
-        if (!gtx.snapshots.containsKey(decodedId)) return null;
-        return gtx.snapshots.get(decodedId);
+        return VersionedDataStore.getSnapshot(decodedId.a, decodedId.b);
     }
 }
@@ -0,0 +1,220 @@
+package com.conveyal.datatools.editor.models.transit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The stop times of a trip, stored in columns indexed by position in the trip pattern rather than as a list of StopTime
+ * objects. A large feed has millions of stop times, and this avoids an object (plus boxed times) for each of them when
+ * trips are read in bulk, e.g. during export. Instances are not modified once created; use Trip.getStopTimes() to get
+ * them as a list of StopTime objects.
+ */
+public class PackedStopTimes implements Serializable {
+    public static final long serialVersionUID = 1;
+
+    /** value of a time that is not specified */
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    private static final StopTimePickupDropOffType[] PICKUP_DROP_OFF_TYPES = StopTimePickupDropOffType.values();
+
+    /** arrival times in seconds since midnight, or MISSING */
+    public final int[] arrivalTimes;
+
+    /** departure times in seconds since midnight, or MISSING */
+    public final int[] departureTimes;
+
+    /** pickup types, as the ordinal of the StopTimePickupDropOffType + 1, or 0 if not specified */
+    public final byte[] pickupTypes;
+
+    /** drop off types, as the ordinal of the StopTimePickupDropOffType + 1, or 0 if not specified */
+    public final byte[] dropOffTypes;
+
+    public final String[] stopIds;
+
+    /** stop headsigns, or null if no stop time on this trip has a headsign */
+    public final String[] stopHeadsigns;
+
+    /** positions in the pattern that this trip skips (i.e. null StopTimes) */
+    public final BitSet skipped;
+
+    public PackedStopTimes(int[] arrivalTimes, int[] departureTimes, byte[] pickupTypes, byte[] dropOffTypes,
+                           String[] stopIds, String[] stopHeadsigns, BitSet skipped) {
+        this.arrivalTimes = arrivalTimes;
+        this.departureTimes = departureTimes;
+        this.pickupTypes = pickupTypes;
+        this.dropOffTypes = dropOffTypes;
+        this.stopIds = stopIds;
+        this.stopHeadsigns = stopHeadsigns;
+        this.skipped = skipped;
+    }
+
+    /** Pack a list of stop times, which may contain nulls for skipped stops. */
+    public static PackedStopTimes pack (List<StopTime> stopTimes) {
+        int size = stopTimes.size();
+        int[] arrivalTimes = new int[size];
+        int[] departureTimes = new int[size];
+        byte[] pickupTypes = new byte[size];
+        byte[] dropOffTypes = new byte[size];
+        String[] stopIds = new String[size];
+        String[] stopHeadsigns = null;
+        BitSet skipped = new BitSet(size);
+
+        for (int i = 0; i < size; i++) {
+            StopTime st = stopTimes.get(i);
+
+            if (st == null) {
+                skipped.set(i);
+                arrivalTimes[i] = MISSING;
+                departureTimes[i] = MISSING;
+                continue;
+            }
+
+            arrivalTimes[i] = st.arrivalTime != null ? st.arrivalTime : MISSING;
+            departureTimes[i] = st.departureTime != null ? st.departureTime : MISSING;
+            pickupTypes[i] = toCode(st.pickupType);
+            dropOffTypes[i] = toCode(st.dropOffType);
+            stopIds[i] = st.stopId;
+
+            if (st.stopHeadsign != null) {
+                if (stopHeadsigns == null) stopHeadsigns = new String[size];
+                stopHeadsigns[i] = st.stopHeadsign;
+            }
+        }
+
+        return new PackedStopTimes(arrivalTimes, departureTimes, pickupTypes, dropOffTypes, stopIds, stopHeadsigns, skipped);
+    }
+
+    /** Unpack into a new list of StopTimes, with nulls for skipped stops. */
+    public List<StopTime> unpack () {
+        List<StopTime> ret = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            ret.add(get(i));
+        }
+        return ret;
+    }
+
+    public int size () {
+        return stopIds.length;
+    }
+
+    public boolean isSkipped (int i) {
+        return skipped.get(i);
+    }
+
+    public Integer getArrivalTime (int i) {
+        return arrivalTimes[i] != MISSING ? arrivalTimes[i] : null;
+    }
+
+    public Integer getDepartureTime (int i) {
+        return departureTimes[i] != MISSING ? departureTimes[i] : null;
+    }
+
+    public StopTimePickupDropOffType getPickupType (int i) {
+        return fromCode(pickupTypes[i]);
+    }
+
+    public StopTimePickupDropOffType getDropOffType (int i) {
+        return fromCode(dropOffTypes[i]);
+    }
+
+    public String getStopId (int i) {
+        return stopIds[i];
+    }
+
+    public String getStopHeadsign (int i) {
+        return stopHeadsigns != null ? stopHeadsigns[i] : null;
+    }
+
+    /** Get the stop time at position i as a new StopTime, or null if this trip skips that stop. */
+    public StopTime get (int i) {
+        if (isSkipped(i)) return null;
+
+        StopTime st = new StopTime();
+        st.arrivalTime = getArrivalTime(i);
+        st.departureTime = getDepartureTime(i);
+        st.pickupType = getPickupType(i);
+        st.dropOffType = getDropOffType(i);
+        st.stopId = getStopId(i);
+        st.stopHeadsign = getStopHeadsign(i);
+        return st;
+    }
+
+    /** Get a copy of these stop times with all the times moved by the given number of seconds. */
+    public PackedStopTimes offset (int seconds) {
+        return new PackedStopTimes(offset(arrivalTimes, seconds, 0), offset(departureTimes, seconds, 0), pickupTypes,
+                dropOffTypes, stopIds, stopHeadsigns, skipped);
+    }
+
+    /**
+     * Get a copy of these stop times with the dwell time at position i set to the given number of seconds. The times
+     * after the departure from position i move by the change in dwell time, so that the travel times are unchanged.
+     * @return the new stop times, or null if the stop at position i is skipped or has no arrival and departure time.
+     */
+    public PackedStopTimes withDwellTime (int i, int dwellTime) {
+        if (isSkipped(i) || arrivalTimes[i] == MISSING || departureTimes[i] == MISSING)
+            return null;
+
+        int change = arrivalTimes[i] + dwellTime - departureTimes[i];
+        int[] newArrivalTimes = offset(arrivalTimes, change, i + 1);
+        int[] newDepartureTimes = offset(departureTimes, change, i);
+        return new PackedStopTimes(newArrivalTimes, newDepartureTimes, pickupTypes, dropOffTypes, stopIds, stopHeadsigns,
+                skipped);
+    }
+
+    /**
+     * Get a copy of these stop times rearranged to match a change in the stops of the trip pattern.
+     * @param positions for each position in the new pattern, the position of the same stop in these stop times, or -1
+     *                  for a stop that was added to the pattern (which the new stop times skip)
+     */
+    public PackedStopTimes remap (int[] positions) {
+        int size = positions.length;
+        int[] newArrivalTimes = new int[size];
+        int[] newDepartureTimes = new int[size];
+        byte[] newPickupTypes = new byte[size];
+        byte[] newDropOffTypes = new byte[size];
+        String[] newStopIds = new String[size];
+        String[] newStopHeadsigns = stopHeadsigns != null ? new String[size] : null;
+        BitSet newSkipped = new BitSet(size);
+
+        for (int i = 0; i < size; i++) {
+            int from = positions[i];
+
+            if (from == -1 || isSkipped(from)) {
+                newSkipped.set(i);
+                newArrivalTimes[i] = MISSING;
+                newDepartureTimes[i] = MISSING;
+                continue;
+            }
+
+            newArrivalTimes[i] = arrivalTimes[from];
+            newDepartureTimes[i] = departureTimes[from];
+            newPickupTypes[i] = pickupTypes[from];
+            newDropOffTypes[i] = dropOffTypes[from];
+            newStopIds[i] = stopIds[from];
+            if (newStopHeadsigns != null) newStopHeadsigns[i] = stopHeadsigns[from];
+        }
+
+        return new PackedStopTimes(newArrivalTimes, newDepartureTimes, newPickupTypes, newDropOffTypes, newStopIds,
+                newStopHeadsigns, newSkipped);
+    }
+
+    /** copy the given times, moving the specified times and all times after them by the given number of seconds */
+    private static int[] offset (int[] times, int seconds, int from) {
+        int[] ret = times.clone();
+        for (int i = from; i < ret.length; i++) {
+            if (ret[i] != MISSING)
+                ret[i] += seconds;
+        }
+        return ret;
+    }
+
+    public static byte toCode (StopTimePickupDropOffType type) {
+        return type != null ? (byte) (type.ordinal() + 1) : 0;
+    }
+
+    public static StopTimePickupDropOffType fromCode (byte code) {
+        return code > 0 && code <= PICKUP_DROP_OFF_TYPES.length ? PICKUP_DROP_OFF_TYPES[code - 1] : null;
+    }
+}
@@ -177,7 +177,7 @@ public class Stop extends Model implements Cloneable, Serializable {
                     }
 
                     // stop times have been cloned, so this is safe
-                    trip.stopTimes.stream()
+                    trip.getStopTimes().stream()
                             .filter(st -> source.id.equals(st.stopId))
                             .forEach(st -> {
                                 // stop times have been cloned, so this is safe
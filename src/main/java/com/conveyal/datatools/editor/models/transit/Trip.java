@@ -39,7 +39,18 @@ public class Trip extends Model implements Cloneable, Serializable {
     public Integer headway;
     public Boolean invalid;
     
-    public List<StopTime> stopTimes;
+    /**
+     * Stop times packed into columns, as read from the database. Null if the stop times have been set as StopTime
+     * objects, or if there are none.
+     */
+    private PackedStopTimes packedStopTimes;
+
+    /**
+     * Stop times as objects, only when they have been set with setStopTimes (or copied from such a trip by clone). When
+     * present this is the authoritative copy, as callers may modify it. (Trips Java-serialized by older versions only
+     * have this field.)
+     */
+    private List<StopTime> stopTimes;
 
     public String feedId;
 
@@ -68,6 +79,37 @@ public class Trip extends Model implements Cloneable, Serializable {
         useFrequency = false;
     }
 
+    /**
+     * Get the stop times of this trip, with nulls for skipped stops. If they were set with setStopTimes this is the list
+     * that was set, and modifying it modifies the trip. Otherwise they are unpacked into a new list on every call,
+     * without modifying the trip: a trip read from the database may be shared with other threads by the database's
+     * cache. To change the stop times of such a trip, clone it and set them. Code that only reads the stop times of many
+     * trips should use getPackedStopTimes, which does not create a StopTime object for each stop time.
+     */
+    public List<StopTime> getStopTimes () {
+        if (stopTimes != null)
+            return stopTimes;
+
+        return packedStopTimes != null ? packedStopTimes.unpack() : null;
+    }
+
+    public void setStopTimes (List<StopTime> stopTimes) {
+        this.stopTimes = stopTimes;
+        this.packedStopTimes = null;
+    }
+
+    /** Get the stop times of this trip in packed form, or null if it has none. Do not modify the returned value. */
+    @JsonIgnore
+    public PackedStopTimes getPackedStopTimes () {
+        return stopTimes != null ? PackedStopTimes.pack(stopTimes) : packedStopTimes;
+    }
+
+    @JsonIgnore
+    public void setPackedStopTimes (PackedStopTimes packedStopTimes) {
+        this.packedStopTimes = packedStopTimes;
+        this.stopTimes = null;
+    }
+
     @JsonIgnore
     public String getGtfsId () {
         if (gtfsTripId != null && !gtfsTripId.isEmpty())
@@ -132,11 +174,13 @@ public class Trip extends Model implements Cloneable, Serializable {
     public Trip clone () throws CloneNotSupportedException {
         Trip ret = (Trip) super.clone();
 
-        // duplicate the stop times
-        ret.stopTimes = new ArrayList<StopTime>();
+        // duplicate the stop times. packed stop times are never modified, so they can be shared.
+        if (stopTimes != null) {
+            ret.stopTimes = new ArrayList<StopTime>();
 
-        for (StopTime st : stopTimes) {
-            ret.stopTimes.add(st == null ? null : st.clone());
+            for (StopTime st : stopTimes) {
+                ret.stopTimes.add(st == null ? null : st.clone());
+            }
         }
 
         return ret;
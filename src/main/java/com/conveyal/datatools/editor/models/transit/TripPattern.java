@@ -18,10 +18,8 @@ import com.conveyal.datatools.editor.utils.GeoUtils;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import static com.conveyal.datatools.editor.utils.GeoUtils.getCoordDistances;
 
@@ -29,6 +27,7 @@ import static com.conveyal.datatools.editor.utils.GeoUtils.getCoordDistances;
 public class TripPattern extends Model implements Cloneable, Serializable {
     public static final long serialVersionUID = 1;
     public static final Logger LOG = LoggerFactory.getLogger(TripPattern.class);
+
     public String name;
     public String headsign;
 
@@ -69,11 +68,10 @@ public class TripPattern extends Model implements Cloneable, Serializable {
 
     /** add transient info for UI with number of routes, number of trips */
     public void addDerivedInfo(final FeedTx tx) {
-        Collection<Trip> trips = tx.getTripsByPattern(this.id);
-        numberOfTrips = trips.size();
-        tripCountByCalendar = trips.stream()
-                .filter(t -> t != null && t.calendarId != null)
-                .collect(Collectors.groupingBy(t -> t.calendarId, Collectors.counting()));
+        // from the trip count histogram, as patterns can have thousands of trips
+        tripCountByCalendar = tx.getTripCountByCalendarForPattern(this.id);
+        numberOfTrips = (int) tripCountByCalendar.values().stream().mapToLong(Long::longValue).sum();
+        tripCountByCalendar.remove(null);
     }
 
 //    /**
@@ -144,15 +142,180 @@ public class TripPattern extends Model implements Cloneable, Serializable {
     
     
     /**
-     * update the trip pattern stops and the associated stop times
+     * Replace the original version of a trip pattern with a new one in the given transaction, updating its trips to
+     * match: if the pattern has switched between frequencies and timetables the trips of the old kind are removed, and
+     * the stop times of the remaining trips are reconciled with the new pattern stops. Patterns with many trips are
+     * saved by ReconcilePatternJob instead, which does the same in several transactions.
+     * @throws IllegalStateException if the pattern stops have changed in a way that is not supported
+     */
+    public static void replace (TripPattern originalTripPattern, TripPattern newTripPattern, FeedTx tx) {
+        // check if frequency value has changed for pattern and nuke trips created for old value
+        // double check that we're working with the same trip pattern here
+        if (originalTripPattern.useFrequency != newTripPattern.useFrequency) {
+            for (Trip trip : tx.getTripsByPattern(originalTripPattern.id)) {
+                if (isRemovedByFrequencyChange(originalTripPattern, newTripPattern, trip)) {
+                    LOG.info("Removing frequency={} trip {}", trip.useFrequency, trip.id);
+                    tx.trips.remove(trip.id);
+                }
+            }
+        }
+
+        reconcilePatternStops(originalTripPattern, newTripPattern, tx);
+
+        newTripPattern.calcShapeDistTraveled(tx);
+
+        tx.tripPatterns.put(newTripPattern.id, newTripPattern);
+    }
+
+    /**
+     * Is a trip of the original version of a pattern removed when the pattern is replaced with a new version, because the
+     * pattern has switched between frequencies and timetables and the trip is of the old kind?
+     */
+    public static boolean isRemovedByFrequencyChange (TripPattern originalTripPattern, TripPattern newTripPattern, Trip trip) {
+        return originalTripPattern.useFrequency != newTripPattern.useFrequency &&
+                originalTripPattern.useFrequency == trip.useFrequency;
+    }
+
+    /**
+     * update the trip pattern stops and the associated stop times, see getStopPositions. The trips are read and
+     * rewritten one at a time, as a pattern may have thousands of them, and the stop times are rearranged in packed
+     * form, without creating StopTimes.
+     */
+    public static void reconcilePatternStops(TripPattern originalTripPattern, TripPattern newTripPattern, FeedTx tx) {
+        StopTimesReconciliation reconciliation = getStopTimesReconciliation(originalTripPattern, newTripPattern);
+
+        if (reconciliation == null)
+            return;
+
+        for (String tripId : tx.getTripIdsByPattern(originalTripPattern.id)) {
+            Trip trip = tx.trips.get(tripId);
+            tx.trips.put(trip.id, reconciliation.reconcile(trip));
+        }
+    }
+
+    /**
+     * Get how the stop times of the trips of a pattern change when its stops change, or null if they do not need to.
+     * @throws IllegalStateException if the stops have changed in a way that is not supported
+     */
+    public static StopTimesReconciliation getStopTimesReconciliation (TripPattern originalTripPattern, TripPattern newTripPattern) {
+        int[] positions = getStopPositions(originalTripPattern, newTripPattern);
+        return positions != null ? new StopTimesReconciliation(originalTripPattern.patternStops, positions) : null;
+    }
+
+    /**
+     * How the stop times of the trips of a pattern change when its stops change (see getStopPositions). Trips are not
+     * modified in place: the trips read from a transaction may be shared with the database's cache.
+     */
+    public static class StopTimesReconciliation {
+        private final List<TripPatternStop> originalStops;
+
+        /** for each new pattern stop, the position of the same stop in the original pattern, or -1 if it was added */
+        private final int[] positions;
+
+        /** which of the original stops were kept */
+        private final boolean[] retained;
+
+        /** were any of the original stops moved? If so the times of the trips are no longer in order. */
+        private final boolean moved;
+
+        StopTimesReconciliation (List<TripPatternStop> originalStops, int[] positions) {
+            this.originalStops = originalStops;
+            this.positions = positions;
+
+            retained = new boolean[originalStops.size()];
+            boolean moved = false;
+            int previous = -1;
+            for (int from : positions) {
+                if (from == -1) continue;
+                retained[from] = true;
+                if (from < previous) moved = true;
+                previous = from;
+            }
+            this.moved = moved;
+        }
+
+        /**
+         * Check that the stop times of a trip match the original pattern stops, so that they can be reconciled.
+         * @throws IllegalStateException if they do not
+         */
+        public void check (Trip trip) {
+            PackedStopTimes stopTimes = trip.getPackedStopTimes();
+
+            if (stopTimes == null)
+                return;
+
+            if (stopTimes.size() != originalStops.size()) {
+                throw new IllegalStateException("Trip " + trip.id + " has " + stopTimes.size() +
+                        " stop times but its pattern has " + originalStops.size() + " stops");
+            }
+
+            // the stop time for a removed pattern stop can be null if it was skipped, otherwise it must be at the
+            // removed stop
+            for (int i = 0; i < retained.length; i++) {
+                if (!retained[i] && !stopTimes.isSkipped(i) && !originalStops.get(i).stopId.equals(stopTimes.getStopId(i))) {
+                    throw new IllegalStateException("Attempted to remove wrong stop!");
+                }
+            }
+        }
+
+        /**
+         * Get a copy of a trip with its stop times rearranged to match the new pattern stops.
+         * @throws IllegalStateException if the stop times of the trip do not match the original pattern stops
+         */
+        public Trip reconcile (Trip trip) {
+            check(trip);
+
+            Trip ret;
+            try {
+                ret = trip.clone();
+            } catch (CloneNotSupportedException e) {
+                // not likely
+                throw new RuntimeException(e);
+            }
+
+            PackedStopTimes stopTimes = ret.getPackedStopTimes();
+            if (stopTimes != null)
+                ret.setPackedStopTimes(stopTimes.remap(positions));
+
+            // the times of a moved stop are no longer in order
+            if (moved)
+                ret.invalid = true;
+
+            return ret;
+        }
+    }
+
+    /**
+     * Do two versions of a pattern have the same stops and kind of trips (frequencies or timetables), so that the same
+     * trips are valid for both?
+     */
+    public static boolean hasSameStops (TripPattern a, TripPattern b) {
+        if (a.useFrequency != b.useFrequency || a.patternStops.size() != b.patternStops.size())
+            return false;
+
+        for (int i = 0; i < a.patternStops.size(); i++) {
+            if (!a.patternStops.get(i).stopId.equals(b.patternStops.get(i).stopId))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Work out how the trip pattern stops have changed, so that the stop times of its trips can be updated to match.
      * see extensive discussion in ticket #102
      * basically, we assume only one stop has changed---either it's been removed, added or moved
+     * (or that stops have been added at the end)
      * this is consistent with the use of Backbone.save in the UI, and
      * also with the principle of least magic possible
      * of course, we check to ensure that that is the case and fail if it's not
      * this lets us easily detect what has happened simply by length
+     *
+     * @return for each stop of the new pattern, the position of the same stop in the original pattern, or -1 if the stop
+     *         was added; or null if the stop times do not need to change.
+     * @throws IllegalStateException if the stops have changed in a way that is not supported
      */
-    public static void reconcilePatternStops(TripPattern originalTripPattern, TripPattern newTripPattern, FeedTx tx) {
+    public static int[] getStopPositions(TripPattern originalTripPattern, TripPattern newTripPattern) {
         // convenience
         List<TripPatternStop> originalStops = originalTripPattern.patternStops;
         List<TripPatternStop> newStops = newTripPattern.patternStops;
@@ -160,8 +323,10 @@ public class TripPattern extends Model implements Cloneable, Serializable {
         // no need to do anything
         // see #174
         if (originalStops.size() == 0)
-            return;
-        
+            return null;
+
+        int[] positions = new int[newStops.size()];
+
         // ADDITIONS (IF DIFF == 1)
         if (originalStops.size() == newStops.size() - 1) {
             // we have an addition; find it
@@ -184,12 +349,9 @@ public class TripPattern extends Model implements Cloneable, Serializable {
             }
 
             // insert a skipped stop at the difference location
-            
-            for (Trip trip : tx.getTripsByPattern(originalTripPattern.id)) {
-                trip.stopTimes.add(differenceLocation, null);
-                // TODO: safe?
-                tx.trips.put(trip.id, trip);
-            }            
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i < differenceLocation ? i : i == differenceLocation ? -1 : i - 1;
+            }
         }
         
         // DELETIONS
@@ -210,21 +372,10 @@ public class TripPattern extends Model implements Cloneable, Serializable {
                     differenceLocation = i;
                 }
             }
-            
-            // remove stop times for removed pattern stop
-            String removedStopId = originalStops.get(differenceLocation).stopId;
-            
-            for (Trip trip : tx.getTripsByPattern(originalTripPattern.id)) {
-                StopTime removed = trip.stopTimes.remove(differenceLocation);
 
-                // the removed stop can be null if it was skipped. trip.stopTimes.remove will throw an exception
-                // rather than returning null if we try to do a remove out of bounds.
-                if (removed != null && !removed.stopId.equals(removedStopId)) {
-                    throw new IllegalStateException("Attempted to remove wrong stop!");
-                }
-
-                // TODO: safe?
-                tx.trips.put(trip.id, trip);
+            // drop the stop times for the removed pattern stop
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i < differenceLocation ? i : i + 1;
             }
         }
         
@@ -247,7 +398,7 @@ public class TripPattern extends Model implements Cloneable, Serializable {
                 
                 if (firstDifferentIndex == originalStops.size())
                     // trip patterns do not differ at all, nothing to do
-                    return;
+                    return null;
             }
             
             // find the right bound of the changed region
@@ -282,14 +433,17 @@ public class TripPattern extends Model implements Cloneable, Serializable {
             else {
                 throw new IllegalStateException("not a simple, single move!");
             }
-            
-            for (Trip trip : tx.getTripsByPattern(originalTripPattern.id)) {
-                StopTime moved = trip.stopTimes.remove(from);
-                trip.stopTimes.add(to, moved);
-                trip.invalid = true;
 
-                // TODO: safe?
-                tx.trips.put(trip.id, trip);
+            // the stops between the old and new positions of the moved stop shift one place towards its old position
+            for (int i = 0; i < positions.length; i++) {
+                if (i == to)
+                    positions[i] = from;
+                else if (from < to && i >= from && i < to)
+                    positions[i] = i + 1;
+                else if (from > to && i > to && i <= from)
+                    positions[i] = i - 1;
+                else
+                    positions[i] = i;
             }
         }
         // CHECK IF SET OF STOPS ADDED TO END OF LIST
@@ -302,20 +456,17 @@ public class TripPattern extends Model implements Cloneable, Serializable {
             if (firstDifferentIndex != originalStops.size())
                 throw new IllegalStateException("When adding multiple stops to patterns, new stops must all be at the end");
 
-            for (Trip trip : tx.getTripsByPattern(originalTripPattern.id)) {
-
-                // insert a skipped stop for each new element in newStops
-                for (int i = firstDifferentIndex; i < newStops.size(); i++) {
-                    trip.stopTimes.add(i, null);
-                }
-                // TODO: safe?
-                tx.trips.put(trip.id, trip);
+            // insert a skipped stop for each new element in newStops
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i < firstDifferentIndex ? i : -1;
             }
         }
         // OTHER STUFF IS NOT SUPPORTED
         else {
             throw new IllegalStateException("Changes to trip pattern stops must be made one at a time");
         }
+
+        return positions;
     }
 
     // cast generic Geometry object to LineString because jackson2-geojson library only returns generic Geometry objects
@@ -1,12 +1,25 @@
 package com.conveyal.datatools.editor.utils;
 
+import com.google.common.collect.Iterators;
 import org.mapdb.Bind.MapListener;
 import org.mapdb.Bind.MapWithModificationListener;
+import org.mapdb.Fun;
 import org.mapdb.Fun.Function2;
+import org.mapdb.Fun.Tuple2;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Utilities for maintaining secondary indices on MapDB maps. Filling an index and keeping it up to date are separate
+ * operations here (unlike org.mapdb.Bind, which fills any empty index every time it is bound), so that indices that
+ * are persisted in the feed database are only rebuilt when their definition changes.
+ */
 public class BindUtils {
     /**
      * Index the map keys of a subset of the given map. The set contains all of the keys for which filter returns true.
@@ -14,13 +27,23 @@ public class BindUtils {
     public static <K, V> void subsetIndex (MapWithModificationListener<K, V> map, final Set<K> subset, final Function2<Boolean, K, V> filter) {
         // fill if empty
         if (subset.isEmpty()) {
-            for (Map.Entry<K, V> e : map.entrySet()) {
-                if (filter.run(e.getKey(), e.getValue())) {
-                    subset.add(e.getKey());
-                }
+            fillSubsetIndex(map, subset, filter);
+        }
+
+        subsetIndexListener(map, subset, filter);
+    }
+
+    /** Add all of the keys of the given map for which filter returns true to the subset. */
+    public static <K, V> void fillSubsetIndex (Map<K, V> map, final Set<K> subset, final Function2<Boolean, K, V> filter) {
+        for (Map.Entry<K, V> e : map.entrySet()) {
+            if (filter.run(e.getKey(), e.getValue())) {
+                subset.add(e.getKey());
             }
         }
+    }
 
+    /** Keep a subset index up to date with modifications to the map, without filling it. */
+    public static <K, V> void subsetIndexListener (MapWithModificationListener<K, V> map, final Set<K> subset, final Function2<Boolean, K, V> filter) {
         map.modificationListenerAdd(new MapListener<K, V>() {
             @Override
             public void update(K key, V oldVal, V newVal) {
@@ -42,16 +65,34 @@ public class BindUtils {
     public static <K, V, C> void multiHistogram (MapWithModificationListener<K, V> map,
             final Map<C, Long> histogram, final Function2<C[], K, V> categories) {
         if (histogram.isEmpty()) {
-            for (Map.Entry<K, V> e : map.entrySet()) {
-                for (C cat : categories.run(e.getKey(), e.getValue())) {
-                    if (!histogram.containsKey(cat))
-                        histogram.put(cat, 1L);
-                    else
-                        histogram.put(cat, histogram.get(cat) + 1);
-                }
+            fillMultiHistogram(map, histogram, categories);
+        }
+
+        multiHistogramListener(map, histogram, categories);
+    }
+
+    /**
+     * Count the members of each category in the given map into the histogram. Counts are accumulated on the heap and
+     * written once per category, rather than once per item.
+     */
+    public static <K, V, C> void fillMultiHistogram (Map<K, V> map, final Map<C, Long> histogram, final Function2<C[], K, V> categories) {
+        Map<C, Long> counts = new HashMap<>();
+        for (Map.Entry<K, V> e : map.entrySet()) {
+            C[] cats = categories.run(e.getKey(), e.getValue());
+            if (cats == null) continue;
+
+            for (C cat : cats) {
+                Long count = counts.get(cat);
+                counts.put(cat, count == null ? 1L : count + 1);
             }
         }
 
+        histogram.putAll(counts);
+    }
+
+    /** Keep a multi-category histogram up to date with modifications to the map, without filling it. */
+    public static <K, V, C> void multiHistogramListener (MapWithModificationListener<K, V> map,
+            final Map<C, Long> histogram, final Function2<C[], K, V> categories) {
         map.modificationListenerAdd(new MapListener<K, V>() {
             @Override
             public void update(K key, V oldVal, V newVal) {
@@ -72,4 +113,103 @@ public class BindUtils {
             }
         });
     }
+
+    /** Count the items of the given map in each category into the histogram. */
+    public static <K, V, C> void fillHistogram (Map<K, V> map, final Map<C, Long> histogram, final Function2<C, K, V> category) {
+        Map<C, Long> counts = new HashMap<>();
+        for (Map.Entry<K, V> e : map.entrySet()) {
+            C cat = category.run(e.getKey(), e.getValue());
+            Long count = counts.get(cat);
+            counts.put(cat, count == null ? 1L : count + 1);
+        }
+
+        histogram.putAll(counts);
+    }
+
+    /**
+     * Keep a single-category histogram up to date with modifications to the map, without filling it. This is
+     * equivalent to org.mapdb.Bind.histogram, except that an item that changes category is moved from its old category
+     * to its new one (MapDB 1.0 increments the old category again).
+     */
+    public static <K, V, C> void histogramListener (MapWithModificationListener<K, V> map,
+            final ConcurrentMap<C, Long> histogram, final Function2<C, K, V> category) {
+        map.modificationListenerAdd(new MapListener<K, V>() {
+            @Override
+            public void update(K key, V oldVal, V newVal) {
+                if (newVal == null) {
+                    // removal
+                    increment(category.run(key, oldVal), -1);
+                }
+                else if (oldVal == null) {
+                    // insertion
+                    increment(category.run(key, newVal), 1);
+                }
+                else {
+                    C oldCat = category.run(key, oldVal);
+                    C newCat = category.run(key, newVal);
+                    if (oldCat == newCat || (oldCat != null && oldCat.equals(newCat)))
+                        return;
+
+                    increment(oldCat, -1);
+                    increment(newCat, 1);
+                }
+            }
+
+            private void increment (C cat, long delta) {
+                while (true) {
+                    Long oldCount = histogram.get(cat);
+                    if (oldCount == null) {
+                        if (histogram.putIfAbsent(cat, delta) == null) return;
+                    }
+                    else if (histogram.replace(cat, oldCount, oldCount + delta)) return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Produce all of the <secondary key, primary key> tuples for the given map, e.g. to pump into a freshly created
+     * secondary index. The tuples are not sorted.
+     */
+    public static <K, V, K2> Iterator<Tuple2<K2, K>> secondaryKeysSource (Map<K, V> map, final Function2<K2[], K, V> fun) {
+        return Iterators.concat(Iterators.transform(map.entrySet().iterator(), e -> {
+            K2[] keys = fun.run(e.getKey(), e.getValue());
+            if (keys == null) return Collections.<Tuple2<K2, K>>emptyIterator();
+
+            Set<Tuple2<K2, K>> tuples = new HashSet<>();
+            for (K2 key : keys) {
+                tuples.add(new Tuple2<>(key, e.getKey()));
+            }
+            return tuples.iterator();
+        }));
+    }
+
+    /**
+     * Keep a secondary key index up to date with modifications to the map, without filling it. The logic mirrors that
+     * of org.mapdb.Bind.secondaryKeys.
+     */
+    public static <K, V, K2> void secondaryKeysListener (MapWithModificationListener<K, V> map,
+            final Set<Tuple2<K2, K>> secondary, final Function2<K2[], K, V> fun) {
+        map.modificationListenerAdd(new MapListener<K, V>() {
+            @Override
+            public void update(K key, V oldVal, V newVal) {
+                K2[] oldKeys = oldVal != null ? fun.run(key, oldVal) : null;
+                K2[] newKeys = newVal != null ? fun.run(key, newVal) : null;
+
+                Set<K2> removed = new HashSet<>();
+                if (oldKeys != null) Collections.addAll(removed, oldKeys);
+
+                if (newKeys != null) {
+                    for (K2 k2 : newKeys) {
+                        // no need to touch the index for keys that have not changed
+                        if (!removed.remove(k2)) secondary.add(Fun.t2(k2, key));
+                    }
+                }
+
+                for (K2 k2 : removed) {
+                    secondary.remove(Fun.t2(k2, key));
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,904 @@
+package com.conveyal.datatools.editor.utils;
+
+import com.conveyal.datatools.editor.models.Model;
+import com.conveyal.datatools.editor.models.transit.AttributeAvailabilityType;
+import com.conveyal.datatools.editor.models.transit.GtfsRouteType;
+import com.conveyal.datatools.editor.models.transit.LocationType;
+import com.conveyal.datatools.editor.models.transit.PackedStopTimes;
+import com.conveyal.datatools.editor.models.transit.Route;
+import com.conveyal.datatools.editor.models.transit.ServiceCalendar;
+import com.conveyal.datatools.editor.models.transit.StatusType;
+import com.conveyal.datatools.editor.models.transit.Stop;
+import com.conveyal.datatools.editor.models.transit.StopTime;
+import com.conveyal.datatools.editor.models.transit.StopTimePickupDropOffType;
+import com.conveyal.datatools.editor.models.transit.Trip;
+import com.conveyal.datatools.editor.models.transit.TripDirection;
+import com.conveyal.datatools.editor.models.transit.TripPattern;
+import com.conveyal.datatools.editor.models.transit.TripPatternStop;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.hash.Hashing;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.mapdb.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A compact binary serializer for the editor models that make up the bulk of a feed database: stops, trips, trip
+ * patterns, routes and calendars. Java serialization writes class descriptors along with every record and is slow in
+ * both directions; this writes each non-null field as a tag and a value, using variable length integers, and packs
+ * stop times, pattern stops and shapes into compact arrays.
+ *
+ * A record is a marker byte, the type of the record and the schema version of that type (varints), the fields, a hash
+ * of the record so far (see CONTENT_HASH_TAG), and a zero. Each field is a varint key (tag << 3 | wire type) followed
+ * by the value. Readers skip fields with unknown tags, so fields may be added with new tags without changing the
+ * schema version. If the meaning of an existing tag changes, bump the schema version of the type and keep reading the
+ * old version. Enums are stored by ordinal, so new constants must be added at the end of an enum.
+ *
+ * Anything else is written with Java serialization, and records written by ClassLoaderSerializer can still be read,
+ * which allows maps to be migrated from ClassLoaderSerializer to this serializer.
+ */
+public class CompactModelSerializer implements Serializer<Object>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** first byte of a compact record. Java serialization streams always start with 0xAC. */
+    private static final int MARKER = 0x01;
+
+    // record types
+    private static final int STOP = 1;
+    private static final int TRIP = 2;
+    private static final int TRIP_PATTERN = 3;
+    private static final int ROUTE = 4;
+    private static final int SERVICE_CALENDAR = 5;
+
+    // current schema version of each record type
+    private static final int STOP_VERSION = 1;
+    /** version 1 stored stop times stop time by stop time (tag 17), version 2 stores them in columns (tag 19) */
+    private static final int TRIP_VERSION = 2;
+    private static final int TRIP_PATTERN_VERSION = 1;
+    private static final int ROUTE_VERSION = 1;
+    private static final int SERVICE_CALENDAR_VERSION = 1;
+
+    // wire types
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int BYTES = 2;
+
+    /** key that terminates the fields of a record */
+    private static final int END = 0;
+
+    /**
+     * tag of the content hash field, which is reserved in every record type. It is written last, and holds a hash of
+     * the bytes of the record before it, so that two records can be compared without reading all their fields (see
+     * Model.contentHash).
+     */
+    private static final int CONTENT_HASH_TAG = 127;
+
+    /**
+     * Trip pattern shape coordinates are stored as fixed point numbers with this many units per degree, i.e. rounded to
+     * seven decimal places (about 1cm), which is far finer than GTFS shapes are drawn or exported, and the deltas between
+     * successive points fit in a byte or two. So a shape read back can differ from the one written by up to half a unit;
+     * their z coordinates are not stored at all. Stop locations are stored as exact doubles.
+     */
+    private static final double COORDINATE_PRECISION = 1e7;
+
+    // flags for packed stop times and pattern stops
+    private static final int PRESENT = 1;
+    private static final int HAS_ARRIVAL = 1 << 1;
+    private static final int HAS_DEPARTURE = 1 << 2;
+    private static final int HAS_STOP_ID = 1 << 3;
+    private static final int HAS_HEADSIGN = 1 << 4;
+    private static final int HAS_TIMEPOINT = 1 << 5;
+    private static final int TIMEPOINT = 1 << 6;
+    private static final int HAS_SHAPE_DIST = 1 << 7;
+
+    // enum values, cached because values() copies the array on every call
+    private static final AttributeAvailabilityType[] ATTRIBUTE_AVAILABILITY_TYPES = AttributeAvailabilityType.values();
+    private static final GtfsRouteType[] GTFS_ROUTE_TYPES = GtfsRouteType.values();
+    private static final LocationType[] LOCATION_TYPES = LocationType.values();
+    private static final StatusType[] STATUS_TYPES = StatusType.values();
+    private static final StopTimePickupDropOffType[] PICKUP_DROP_OFF_TYPES = StopTimePickupDropOffType.values();
+    private static final TripDirection[] TRIP_DIRECTIONS = TripDirection.values();
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private static final Interner<String> stopIdInterner = Interners.newWeakInterner();
+
+    private static final ClassLoaderSerializer javaSerializer = new ClassLoaderSerializer();
+
+    @Override
+    public void serialize(DataOutput out, Object value) throws IOException {
+        Class<?> type = value.getClass();
+        Output output = new Output();
+
+        // exact class matches only, a subclass may have fields we do not know about
+        if (type == Trip.class)
+            writeTrip(output, (Trip) value);
+        else if (type == Stop.class)
+            writeStop(output, (Stop) value);
+        else if (type == TripPattern.class)
+            writeTripPattern(output, (TripPattern) value);
+        else if (type == Route.class)
+            writeRoute(output, (Route) value);
+        else if (type == ServiceCalendar.class)
+            writeServiceCalendar(output, (ServiceCalendar) value);
+        else {
+            javaSerializer.serialize(out, value);
+            return;
+        }
+
+        // the stored content of the entity is now the content it has in memory
+        ((Model) value).contentHash = output.contentHash;
+        out.write(output.buf, 0, output.length);
+    }
+
+    @Override
+    public Object deserialize(DataInput in, int available) throws IOException {
+        int first = in.readUnsignedByte();
+
+        if (first != MARKER)
+            return readJavaSerialized(in, first, available);
+
+        Input input = new Input(in);
+        int type = input.readVarInt();
+        int version = input.readVarInt();
+
+        Model record;
+        int currentVersion;
+        switch (type) {
+            case TRIP:
+                checkVersion(type, version, currentVersion = TRIP_VERSION);
+                record = readTrip(input);
+                break;
+            case STOP:
+                checkVersion(type, version, currentVersion = STOP_VERSION);
+                record = readStop(input);
+                break;
+            case TRIP_PATTERN:
+                checkVersion(type, version, currentVersion = TRIP_PATTERN_VERSION);
+                record = readTripPattern(input);
+                break;
+            case ROUTE:
+                checkVersion(type, version, currentVersion = ROUTE_VERSION);
+                record = readRoute(input);
+                break;
+            case SERVICE_CALENDAR:
+                checkVersion(type, version, currentVersion = SERVICE_CALENDAR_VERSION);
+                record = readServiceCalendar(input);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+
+        // a record of an older schema version would be written differently now, so its hash cannot be compared
+        record.contentHash = version == currentVersion ? input.contentHash : 0;
+        return record;
+    }
+
+    @Override
+    public int fixedSize() {
+        return -1;
+    }
+
+    /**
+     * Read a Java serialized record, whose first byte has already been consumed. MapDB reads records from a DataInput
+     * that is also an InputStream, so the byte is put back in front of the stream; otherwise the rest of the record is
+     * read into memory, which requires its size to be known.
+     */
+    private static Object readJavaSerialized (DataInput in, int first, int available) throws IOException {
+        InputStream rest;
+        if (in instanceof InputStream) {
+            rest = (InputStream) in;
+        } else if (available > 0) {
+            byte[] bytes = new byte[available - 1];
+            in.readFully(bytes);
+            rest = new ByteArrayInputStream(bytes);
+        } else {
+            throw new IOException("Cannot read a Java serialized record of unknown size from a " + in.getClass().getName());
+        }
+
+        InputStream stream = new SequenceInputStream(new ByteArrayInputStream(new byte[] { (byte) first }), rest);
+        return javaSerializer.deserialize(new DataInputStream(stream), available);
+    }
+
+    private static void checkVersion (int type, int version, int currentVersion) throws IOException {
+        if (version < 1 || version > currentVersion)
+            throw new IOException("Record type " + type + " has unsupported schema version " + version);
+    }
+
+    private static void writeStop (Output out, Stop stop) {
+        out.writeHeader(STOP, STOP_VERSION);
+        out.writeString(1, stop.id);
+        out.writeString(2, stop.gtfsStopId);
+        out.writeString(3, stop.stopCode);
+        out.writeString(4, stop.stopName);
+        out.writeString(5, stop.stopDesc);
+        out.writeString(6, stop.zoneId);
+        out.writeString(7, stop.stopUrl);
+        out.writeString(8, stop.stopIconUrl);
+        out.writeString(9, stop.feedId);
+        out.writeEnum(10, stop.locationType);
+        out.writeEnum(11, stop.bikeParking);
+        out.writeEnum(12, stop.carParking);
+        out.writeEnum(13, stop.wheelchairBoarding);
+        out.writeEnum(14, stop.pickupType);
+        out.writeEnum(15, stop.dropOffType);
+        out.writeString(16, stop.parentStation);
+        out.writeString(17, stop.stopTimezone);
+        out.writeBoolean(18, stop.majorStop);
+
+        if (stop.location != null) {
+            Output location = new Output();
+            location.writeVarInt(stop.location.getSRID());
+            location.writeDouble(stop.location.getX());
+            location.writeDouble(stop.location.getY());
+            out.writeBytes(19, location);
+        }
+
+        out.writeEnd();
+    }
+
+    private static Stop readStop (Input in) throws IOException {
+        Stop stop = new Stop();
+        stop.id = null;
+
+        int key;
+        while ((key = in.readKey()) != END) {
+            switch (key >>> 3) {
+                case 1: stop.id = in.readString(); break;
+                case 2: stop.gtfsStopId = in.readString(); break;
+                case 3: stop.stopCode = in.readString(); break;
+                case 4: stop.stopName = in.readString(); break;
+                case 5: stop.stopDesc = in.readString(); break;
+                case 6: stop.zoneId = in.readString(); break;
+                case 7: stop.stopUrl = in.readString(); break;
+                case 8: stop.stopIconUrl = in.readString(); break;
+                case 9: stop.feedId = in.readString(); break;
+                case 10: stop.locationType = in.readEnum(LOCATION_TYPES); break;
+                case 11: stop.bikeParking = in.readEnum(ATTRIBUTE_AVAILABILITY_TYPES); break;
+                case 12: stop.carParking = in.readEnum(ATTRIBUTE_AVAILABILITY_TYPES); break;
+                case 13: stop.wheelchairBoarding = in.readEnum(ATTRIBUTE_AVAILABILITY_TYPES); break;
+                case 14: stop.pickupType = in.readEnum(PICKUP_DROP_OFF_TYPES); break;
+                case 15: stop.dropOffType = in.readEnum(PICKUP_DROP_OFF_TYPES); break;
+                case 16: stop.parentStation = in.readString(); break;
+                case 17: stop.stopTimezone = in.readString(); break;
+                case 18: stop.majorStop = in.readBoolean(); break;
+                case 19:
+                    in.readVarInt(); // length
+                    int srid = in.readVarInt();
+                    double x = in.readDouble();
+                    double y = in.readDouble();
+                    stop.location = geometryFactory.createPoint(new Coordinate(x, y));
+                    stop.location.setSRID(srid);
+                    break;
+                default: in.skip(key);
+            }
+        }
+
+        return stop;
+    }
+
+    private static void writeTrip (Output out, Trip trip) {
+        out.writeHeader(TRIP, TRIP_VERSION);
+        out.writeString(1, trip.id);
+        out.writeString(2, trip.gtfsTripId);
+        out.writeString(3, trip.tripHeadsign);
+        out.writeString(4, trip.tripShortName);
+        out.writeString(5, trip.tripDescription);
+        out.writeEnum(6, trip.tripDirection);
+        out.writeString(7, trip.blockId);
+        out.writeString(8, trip.routeId);
+        out.writeString(9, trip.patternId);
+        out.writeString(10, trip.calendarId);
+        out.writeEnum(11, trip.wheelchairBoarding);
+        out.writeBoolean(12, trip.useFrequency);
+        out.writeInteger(13, trip.startTime);
+        out.writeInteger(14, trip.endTime);
+        out.writeInteger(15, trip.headway);
+        out.writeBoolean(16, trip.invalid);
+
+        PackedStopTimes packed = trip.getPackedStopTimes();
+        if (packed != null) {
+            // stop times, column by column, which compresses better than stop time by stop time
+            int size = packed.size();
+            Output stopTimes = new Output();
+            stopTimes.writeVarInt(size);
+
+            byte[] flags = new byte[size];
+            for (int i = 0; i < size; i++) {
+                if (packed.isSkipped(i)) continue;
+
+                flags[i] = PRESENT;
+                if (packed.arrivalTimes[i] != PackedStopTimes.MISSING) flags[i] |= HAS_ARRIVAL;
+                if (packed.departureTimes[i] != PackedStopTimes.MISSING) flags[i] |= HAS_DEPARTURE;
+                if (packed.stopIds[i] != null) flags[i] |= HAS_STOP_ID;
+                if (packed.getStopHeadsign(i) != null) flags[i] |= HAS_HEADSIGN;
+            }
+            stopTimes.writeBytes(flags);
+
+            // arrivals are stored relative to the previous arrival, and departures relative to the arrival at the same
+            // stop (i.e. the dwell time, usually zero) or else the previous departure, so the values are small
+            long previousArrival = 0;
+            for (int i = 0; i < size; i++) {
+                if ((flags[i] & HAS_ARRIVAL) == 0) continue;
+                stopTimes.writeZigZag(packed.arrivalTimes[i] - previousArrival);
+                previousArrival = packed.arrivalTimes[i];
+            }
+
+            long previousDeparture = 0;
+            for (int i = 0; i < size; i++) {
+                if ((flags[i] & HAS_DEPARTURE) == 0) continue;
+                long base = (flags[i] & HAS_ARRIVAL) != 0 ? packed.arrivalTimes[i] : previousDeparture;
+                stopTimes.writeZigZag(packed.departureTimes[i] - base);
+                previousDeparture = packed.departureTimes[i];
+            }
+
+            stopTimes.writeBytes(packed.pickupTypes);
+            stopTimes.writeBytes(packed.dropOffTypes);
+
+            for (int i = 0; i < size; i++) {
+                if ((flags[i] & HAS_STOP_ID) != 0) stopTimes.writeString(packed.stopIds[i]);
+            }
+
+            for (int i = 0; i < size; i++) {
+                if ((flags[i] & HAS_HEADSIGN) != 0) stopTimes.writeString(packed.getStopHeadsign(i));
+            }
+
+            out.writeBytes(19, stopTimes);
+        }
+
+        out.writeString(18, trip.feedId);
+        out.writeEnd();
+    }
+
+    private static Trip readTrip (Input in) throws IOException {
+        Trip trip = new Trip();
+        trip.id = null;
+
+        int key;
+        while ((key = in.readKey()) != END) {
+            switch (key >>> 3) {
+                case 1: trip.id = in.readString(); break;
+                case 2: trip.gtfsTripId = in.readString(); break;
+                case 3: trip.tripHeadsign = in.readString(); break;
+                case 4: trip.tripShortName = in.readString(); break;
+                case 5: trip.tripDescription = in.readString(); break;
+                case 6: trip.tripDirection = in.readEnum(TRIP_DIRECTIONS); break;
+                case 7: trip.blockId = in.readString(); break;
+                case 8: trip.routeId = in.readString(); break;
+                case 9: trip.patternId = in.readString(); break;
+                case 10: trip.calendarId = in.readString(); break;
+                case 11: trip.wheelchairBoarding = in.readEnum(ATTRIBUTE_AVAILABILITY_TYPES); break;
+                case 12: trip.useFrequency = in.readBoolean(); break;
+                case 13: trip.startTime = in.readInteger(); break;
+                case 14: trip.endTime = in.readInteger(); break;
+                case 15: trip.headway = in.readInteger(); break;
+                case 16: trip.invalid = in.readBoolean(); break;
+                case 17:
+                    // stop times in schema version 1, stop time by stop time
+                    in.readVarInt(); // length
+                    int size = in.readVarInt();
+                    List<StopTime> stopTimes = new ArrayList<>(size);
+                    long previousTime = 0;
+                    for (int i = 0; i < size; i++) {
+                        int flags = in.readVarInt();
+                        if (flags == 0) {
+                            stopTimes.add(null);
+                            continue;
+                        }
+
+                        StopTime st = new StopTime();
+                        if ((flags & HAS_ARRIVAL) != 0) {
+                            previousTime += in.readZigZag();
+                            st.arrivalTime = (int) previousTime;
+                        }
+                        if ((flags & HAS_DEPARTURE) != 0) {
+                            previousTime += in.readZigZag();
+                            st.departureTime = (int) previousTime;
+                        }
+                        if ((flags & HAS_STOP_ID) != 0) st.stopId = in.readString();
+                        if ((flags & HAS_HEADSIGN) != 0) st.stopHeadsign = in.readString();
+                        st.pickupType = in.readOptionalEnum(PICKUP_DROP_OFF_TYPES);
+                        st.dropOffType = in.readOptionalEnum(PICKUP_DROP_OFF_TYPES);
+                        stopTimes.add(st);
+                    }
+                    trip.setPackedStopTimes(PackedStopTimes.pack(stopTimes));
+                    break;
+                case 18: trip.feedId = in.readString(); break;
+                case 19:
+                    in.readVarInt(); // length
+                    trip.setPackedStopTimes(readPackedStopTimes(in));
+                    break;
+                default: in.skip(key);
+            }
+        }
+
+        return trip;
+    }
+
+    /** read the columns written by writeTrip, without creating StopTime objects */
+    private static PackedStopTimes readPackedStopTimes (Input in) throws IOException {
+        int size = in.readVarInt();
+        byte[] flags = in.readBytes(size);
+
+        int[] arrivalTimes = new int[size];
+        long previousArrival = 0;
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & HAS_ARRIVAL) != 0) {
+                previousArrival += in.readZigZag();
+                arrivalTimes[i] = (int) previousArrival;
+            } else {
+                arrivalTimes[i] = PackedStopTimes.MISSING;
+            }
+        }
+
+        int[] departureTimes = new int[size];
+        long previousDeparture = 0;
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & HAS_DEPARTURE) != 0) {
+                long base = (flags[i] & HAS_ARRIVAL) != 0 ? arrivalTimes[i] : previousDeparture;
+                previousDeparture = base + in.readZigZag();
+                departureTimes[i] = (int) previousDeparture;
+            } else {
+                departureTimes[i] = PackedStopTimes.MISSING;
+            }
+        }
+
+        byte[] pickupTypes = in.readBytes(size);
+        byte[] dropOffTypes = in.readBytes(size);
+
+        // the same stop IDs appear in every trip on a pattern, keep only one copy of each in memory
+        String[] stopIds = new String[size];
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & HAS_STOP_ID) != 0) stopIds[i] = stopIdInterner.intern(in.readString());
+        }
+
+        String[] stopHeadsigns = null;
+        BitSet skipped = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & PRESENT) == 0) skipped.set(i);
+
+            if ((flags[i] & HAS_HEADSIGN) != 0) {
+                if (stopHeadsigns == null) stopHeadsigns = new String[size];
+                stopHeadsigns[i] = in.readString();
+            }
+        }
+
+        return new PackedStopTimes(arrivalTimes, departureTimes, pickupTypes, dropOffTypes, stopIds, stopHeadsigns, skipped);
+    }
+
+    private static void writeTripPattern (Output out, TripPattern pattern) {
+        out.writeHeader(TRIP_PATTERN, TRIP_PATTERN_VERSION);
+        out.writeString(1, pattern.id);
+        out.writeString(2, pattern.name);
+        out.writeString(3, pattern.headsign);
+
+        if (pattern.shape != null) {
+            // packed coordinates, as deltas of fixed point numbers
+            Output shape = new Output();
+            shape.writeVarInt(pattern.shape.getSRID());
+            Coordinate[] coords = pattern.shape.getCoordinates();
+            shape.writeVarInt(coords.length);
+            long previousX = 0, previousY = 0;
+            for (Coordinate coord : coords) {
+                long x = Math.round(coord.x * COORDINATE_PRECISION);
+                long y = Math.round(coord.y * COORDINATE_PRECISION);
+                shape.writeZigZag(x - previousX);
+                shape.writeZigZag(y - previousY);
+                previousX = x;
+                previousY = y;
+            }
+            out.writeBytes(4, shape);
+        }
+
+        out.writeBoolean(5, pattern.useStraightLineDistances);
+        out.writeBoolean(6, pattern.useFrequency);
+        out.writeString(7, pattern.routeId);
+        out.writeString(8, pattern.feedId);
+        out.writeEnum(9, pattern.patternDirection);
+
+        if (pattern.patternStops != null) {
+            Output patternStops = new Output();
+            patternStops.writeVarInt(pattern.patternStops.size());
+            for (TripPatternStop ps : pattern.patternStops) {
+                if (ps == null) {
+                    patternStops.writeVarInt(0);
+                    continue;
+                }
+
+                int flags = PRESENT;
+                if (ps.stopId != null) flags |= HAS_STOP_ID;
+                if (ps.timepoint != null) flags |= HAS_TIMEPOINT;
+                if (Boolean.TRUE.equals(ps.timepoint)) flags |= TIMEPOINT;
+                if (ps.shapeDistTraveled != null) flags |= HAS_SHAPE_DIST;
+                patternStops.writeVarInt(flags);
+
+                if (ps.stopId != null) patternStops.writeString(ps.stopId);
+                patternStops.writeZigZag(ps.defaultTravelTime);
+                patternStops.writeZigZag(ps.defaultDwellTime);
+                if (ps.shapeDistTraveled != null) patternStops.writeDouble(ps.shapeDistTraveled);
+            }
+            out.writeBytes(10, patternStops);
+        }
+
+        out.writeEnd();
+    }
+
+    private static TripPattern readTripPattern (Input in) throws IOException {
+        TripPattern pattern = new TripPattern();
+        pattern.id = null;
+        pattern.patternStops = null;
+
+        int key;
+        while ((key = in.readKey()) != END) {
+            switch (key >>> 3) {
+                case 1: pattern.id = in.readString(); break;
+                case 2: pattern.name = in.readString(); break;
+                case 3: pattern.headsign = in.readString(); break;
+                case 4:
+                    in.readVarInt(); // length
+                    int srid = in.readVarInt();
+                    Coordinate[] coords = new Coordinate[in.readVarInt()];
+                    long x = 0, y = 0;
+                    for (int i = 0; i < coords.length; i++) {
+                        x += in.readZigZag();
+                        y += in.readZigZag();
+                        coords[i] = new Coordinate(x / COORDINATE_PRECISION, y / COORDINATE_PRECISION);
+                    }
+                    pattern.shape = geometryFactory.createLineString(coords);
+                    pattern.shape.setSRID(srid);
+                    break;
+                case 5: pattern.useStraightLineDistances = in.readBoolean(); break;
+                case 6: pattern.useFrequency = in.readBoolean(); break;
+                case 7: pattern.routeId = in.readString(); break;
+                case 8: pattern.feedId = in.readString(); break;
+                case 9: pattern.patternDirection = in.readEnum(TRIP_DIRECTIONS); break;
+                case 10:
+                    in.readVarInt(); // length
+                    int size = in.readVarInt();
+                    pattern.patternStops = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        int flags = in.readVarInt();
+                        if (flags == 0) {
+                            pattern.patternStops.add(null);
+                            continue;
+                        }
+
+                        TripPatternStop ps = new TripPatternStop();
+                        if ((flags & HAS_STOP_ID) != 0) ps.stopId = in.readString();
+                        ps.defaultTravelTime = (int) in.readZigZag();
+                        ps.defaultDwellTime = (int) in.readZigZag();
+                        if ((flags & HAS_TIMEPOINT) != 0) ps.timepoint = (flags & TIMEPOINT) != 0;
+                        if ((flags & HAS_SHAPE_DIST) != 0) ps.shapeDistTraveled = in.readDouble();
+                        pattern.patternStops.add(ps);
+                    }
+                    break;
+                default: in.skip(key);
+            }
+        }
+
+        return pattern;
+    }
+
+    private static void writeRoute (Output out, Route route) {
+        out.writeHeader(ROUTE, ROUTE_VERSION);
+        out.writeString(1, route.id);
+        out.writeString(2, route.gtfsRouteId);
+        out.writeString(3, route.routeShortName);
+        out.writeString(4, route.routeLongName);
+        out.writeString(5, route.routeDesc);
+        out.writeString(6, route.routeTypeId);
+        out.writeEnum(7, route.gtfsRouteType);
+        out.writeString(8, route.routeUrl);
+        out.writeString(9, route.routeColor);
+        out.writeString(10, route.routeTextColor);
+        out.writeString(11, route.routeBrandingUrl);
+        out.writeString(12, route.comments);
+        out.writeEnum(13, route.status);
+        out.writeBoolean(14, route.publiclyVisible);
+        out.writeString(15, route.agencyId);
+        out.writeString(16, route.feedId);
+        out.writeEnum(17, route.wheelchairBoarding);
+        out.writeEnd();
+    }
+
+    private static Route readRoute (Input in) throws IOException {
+        Route route = new Route();
+        route.id = null;
+
+        int key;
+        while ((key = in.readKey()) != END) {
+            switch (key >>> 3) {
+                case 1: route.id = in.readString(); break;
+                case 2: route.gtfsRouteId = in.readString(); break;
+                case 3: route.routeShortName = in.readString(); break;
+                case 4: route.routeLongName = in.readString(); break;
+                case 5: route.routeDesc = in.readString(); break;
+                case 6: route.routeTypeId = in.readString(); break;
+                case 7: route.gtfsRouteType = in.readEnum(GTFS_ROUTE_TYPES); break;
+                case 8: route.routeUrl = in.readString(); break;
+                case 9: route.routeColor = in.readString(); break;
+                case 10: route.routeTextColor = in.readString(); break;
+                case 11: route.routeBrandingUrl = in.readString(); break;
+                case 12: route.comments = in.readString(); break;
+                case 13: route.status = in.readEnum(STATUS_TYPES); break;
+                case 14: route.publiclyVisible = in.readBoolean(); break;
+                case 15: route.agencyId = in.readString(); break;
+                case 16: route.feedId = in.readString(); break;
+                case 17: route.wheelchairBoarding = in.readEnum(ATTRIBUTE_AVAILABILITY_TYPES); break;
+                default: in.skip(key);
+            }
+        }
+
+        return route;
+    }
+
+    private static void writeServiceCalendar (Output out, ServiceCalendar calendar) {
+        out.writeHeader(SERVICE_CALENDAR, SERVICE_CALENDAR_VERSION);
+        out.writeString(1, calendar.id);
+        out.writeString(2, calendar.feedId);
+        out.writeString(3, calendar.gtfsServiceId);
+        out.writeString(4, calendar.description);
+        out.writeBoolean(5, calendar.monday);
+        out.writeBoolean(6, calendar.tuesday);
+        out.writeBoolean(7, calendar.wednesday);
+        out.writeBoolean(8, calendar.thursday);
+        out.writeBoolean(9, calendar.friday);
+        out.writeBoolean(10, calendar.saturday);
+        out.writeBoolean(11, calendar.sunday);
+        out.writeDate(12, calendar.startDate);
+        out.writeDate(13, calendar.endDate);
+        out.writeEnd();
+    }
+
+    private static ServiceCalendar readServiceCalendar (Input in) throws IOException {
+        ServiceCalendar calendar = new ServiceCalendar();
+        calendar.id = null;
+
+        int key;
+        while ((key = in.readKey()) != END) {
+            switch (key >>> 3) {
+                case 1: calendar.id = in.readString(); break;
+                case 2: calendar.feedId = in.readString(); break;
+                case 3: calendar.gtfsServiceId = in.readString(); break;
+                case 4: calendar.description = in.readString(); break;
+                case 5: calendar.monday = in.readBoolean(); break;
+                case 6: calendar.tuesday = in.readBoolean(); break;
+                case 7: calendar.wednesday = in.readBoolean(); break;
+                case 8: calendar.thursday = in.readBoolean(); break;
+                case 9: calendar.friday = in.readBoolean(); break;
+                case 10: calendar.saturday = in.readBoolean(); break;
+                case 11: calendar.sunday = in.readBoolean(); break;
+                case 12: calendar.startDate = in.readDate(); break;
+                case 13: calendar.endDate = in.readDate(); break;
+                default: in.skip(key);
+            }
+        }
+
+        return calendar;
+    }
+
+    /** A growable byte buffer with methods to write fields */
+    private static class Output {
+        byte[] buf = new byte[128];
+        int length = 0;
+
+        /** hash of the record, set by writeEnd */
+        long contentHash;
+
+        private void ensureCapacity (int additional) {
+            if (length + additional > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + additional));
+        }
+
+        void writeByte (int b) {
+            ensureCapacity(1);
+            buf[length++] = (byte) b;
+        }
+
+        void writeHeader (int type, int version) {
+            writeByte(MARKER);
+            writeVarInt(type);
+            writeVarInt(version);
+        }
+
+        void writeVarInt (long value) {
+            // unsigned LEB128, seven bits at a time
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        /** zigzag encoding keeps small negative numbers small */
+        void writeZigZag (long value) {
+            writeVarInt((value << 1) ^ (value >> 63));
+        }
+
+        void writeDouble (double value) {
+            writeLong(Double.doubleToLongBits(value));
+        }
+
+        /** write a fixed size long, big endian like DataOutput */
+        void writeLong (long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        /** write raw bytes, without a length */
+        void writeBytes (byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, length, bytes.length);
+            length += bytes.length;
+        }
+
+        void writeString (String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeKey (int tag, int wireType) {
+            writeVarInt(tag << 3 | wireType);
+        }
+
+        void writeString (int tag, String value) {
+            if (value == null) return;
+            writeKey(tag, BYTES);
+            writeString(value);
+        }
+
+        void writeInteger (int tag, Integer value) {
+            if (value == null) return;
+            writeKey(tag, VARINT);
+            writeZigZag(value);
+        }
+
+        void writeBoolean (int tag, Boolean value) {
+            if (value == null) return;
+            writeKey(tag, VARINT);
+            writeVarInt(value ? 1 : 0);
+        }
+
+        void writeEnum (int tag, Enum<?> value) {
+            if (value == null) return;
+            writeKey(tag, VARINT);
+            writeVarInt(value.ordinal());
+        }
+
+        void writeDate (int tag, LocalDate value) {
+            if (value == null) return;
+            writeKey(tag, VARINT);
+            writeZigZag(value.toEpochDay());
+        }
+
+        /** write the content hash of the record so far, and the key that terminates the fields of the record */
+        void writeEnd () {
+            contentHash = Hashing.murmur3_128().hashBytes(buf, 0, length).asLong();
+            writeKey(CONTENT_HASH_TAG, FIXED64);
+            writeLong(contentHash);
+            writeVarInt(END);
+        }
+
+        void writeBytes (int tag, Output value) {
+            writeKey(tag, BYTES);
+            writeVarInt(value.length);
+            ensureCapacity(value.length);
+            System.arraycopy(value.buf, 0, buf, length, value.length);
+            length += value.length;
+        }
+    }
+
+    /** Reads the values written by Output */
+    private static class Input {
+        private final DataInput in;
+
+        /** the content hash of the record, or 0 if it has none (it was written by an older version) */
+        long contentHash;
+
+        Input (DataInput in) {
+            this.in = in;
+        }
+
+        /** read the key of the next field of a record, consuming the content hash field if it is next */
+        int readKey () throws IOException {
+            int key = readVarInt();
+            if (key == (CONTENT_HASH_TAG << 3 | FIXED64)) {
+                contentHash = in.readLong();
+                key = readVarInt();
+            }
+            return key;
+        }
+
+        long readVarLong () throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readVarInt () throws IOException {
+            return (int) readVarLong();
+        }
+
+        long readZigZag () throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        double readDouble () throws IOException {
+            return in.readDouble();
+        }
+
+        byte[] readBytes (int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        String readString () throws IOException {
+            return new String(readBytes(readVarInt()), StandardCharsets.UTF_8);
+        }
+
+        Integer readInteger () throws IOException {
+            return (int) readZigZag();
+        }
+
+        Boolean readBoolean () throws IOException {
+            return readVarLong() != 0;
+        }
+
+        LocalDate readDate () throws IOException {
+            return LocalDate.ofEpochDay(readZigZag());
+        }
+
+        /** read an enum stored by ordinal, returning null for constants this version of the code does not know */
+        <E extends Enum<E>> E readEnum (E[] values) throws IOException {
+            int ordinal = readVarInt();
+            return ordinal >= 0 && ordinal < values.length ? values[ordinal] : null;
+        }
+
+        /** read an enum stored by ordinal + 1, with 0 representing null */
+        <E extends Enum<E>> E readOptionalEnum (E[] values) throws IOException {
+            int value = readVarInt();
+            return value > 0 && value <= values.length ? values[value - 1] : null;
+        }
+
+        /** skip the value of a field we do not know */
+        void skip (int key) throws IOException {
+            switch (key & 0x7) {
+                case VARINT:
+                    readVarLong();
+                    break;
+                case FIXED64:
+                    in.readLong();
+                    break;
+                case BYTES:
+                    in.readFully(new byte[readVarInt()]);
+                    break;
+                default:
+                    throw new IOException("Unknown wire type " + (key & 0x7));
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.conveyal.datatools.editor.utils;
+
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Maps geographic coordinates onto a Hilbert curve, so that a spatial index can be stored as an ordinary sorted set of
+ * <Hilbert index, key> tuples in MapDB. Points that are close together on the ground are (mostly) close together on
+ * the curve, and every quadtree cell covers one contiguous range of the curve, so a bounding box query becomes a small
+ * number of range scans rather than a scan of everything in a longitude band.
+ */
+public class HilbertCurve {
+    /**
+     * Bits of precision per axis. Cells at full precision are 360 / 2^24 degrees of longitude (about 2.4m at the
+     * equator) by 180 / 2^24 degrees of latitude.
+     */
+    public static final int ORDER = 24;
+
+    private static final long SIDE = 1L << ORDER;
+
+    /**
+     * Bounding boxes are decomposed into quadtree cells no smaller than about 1/QUERY_CELLS_PER_SIDE of the larger
+     * side of the box, which bounds the number of ranges scanned per query to a few dozen.
+     */
+    private static final int QUERY_CELLS_PER_SIDE = 4;
+
+    /**
+     * During a nearest neighbor search, cells containing no more than this many keys are not subdivided further, their
+     * keys are ranked individually instead.
+     */
+    private static final int NEAREST_LEAF_SIZE = 32;
+
+    /** meters per degree of latitude (and of longitude at the equator), on a spherical earth */
+    private static final double METERS_PER_DEGREE = 111195;
+
+    /** Get the position on the Hilbert curve of the given point. */
+    public static long index (double lon, double lat) {
+        return xy2d(ORDER, lonToCell(lon), latToCell(lat));
+    }
+
+    /**
+     * Get the keys in a spatial index of <Hilbert index, key> tuples that fall in cells intersecting the given bounding
+     * box. Points within about a meter of the edge of the box may be included, so callers that need an exact answer
+     * should check the coordinates of the returned features.
+     */
+    public static <K> List<K> keysWithin (NavigableSet<Tuple2<Long, K>> index, double west, double south, double east, double north) {
+        long xmin = lonToCell(west);
+        long xmax = lonToCell(east);
+        long ymin = latToCell(south);
+        long ymax = latToCell(north);
+
+        List<K> ret = new ArrayList<>();
+
+        for (long[] range : ranges(xmin, ymin, xmax, ymax)) {
+            NavigableSet<Tuple2<Long, K>> matches = index.subSet(new Tuple2(range[0], null), true, new Tuple2(range[1], Fun.HI), true);
+
+            for (Tuple2<Long, K> match : matches) {
+                // cells on the edge of the query may extend beyond the box, check the cell of each match
+                long[] cell = d2xy(ORDER, match.a);
+                if (cell[0] >= xmin && cell[0] <= xmax && cell[1] >= ymin && cell[1] <= ymax)
+                    ret.add(match.b);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the (up to) k keys in a spatial index of <Hilbert index, key> tuples nearest to the given point and no more
+     * than maxDistance meters from it, nearest first. This is a best-first search of the quadtree implied by the curve:
+     * cells are explored in order of their minimum possible distance from the point, and only cells that contain keys
+     * are ever visited, so the cost depends on the density of keys around the point rather than the size of the index.
+     *
+     * Distances are computed in an equirectangular projection centered on the point, which is accurate over the
+     * distances at which one looks for nearby stops. locate should return {lon, lat} for a key, or null to skip it.
+     */
+    public static <K> List<K> nearestKeys (NavigableSet<Tuple2<Long, K>> index, double lon, double lat, int k,
+                                           double maxDistance, Function<K, double[]> locate) {
+        double cosLat = Math.cos(Math.toRadians(lat));
+
+        PriorityQueue<Candidate<K>> queue = new PriorityQueue<>();
+        queue.add(new Candidate<>(0, 0, 0, 0, null));
+
+        List<K> ret = new ArrayList<>();
+
+        while (!queue.isEmpty() && ret.size() < k) {
+            Candidate<K> candidate = queue.poll();
+
+            // everything else in the queue is at least this far away
+            if (candidate.distance > maxDistance)
+                break;
+
+            if (candidate.key != null) {
+                ret.add(candidate.key);
+                continue;
+            }
+
+            // a cell, either rank the keys in it or subdivide it
+            int shift = 2 * (ORDER - candidate.level);
+            long d = xy2d(candidate.level, candidate.cx, candidate.cy);
+            NavigableSet<Tuple2<Long, K>> keys = index.subSet(new Tuple2(d << shift, null), true, new Tuple2(((d + 1) << shift) - 1, Fun.HI), true);
+
+            if (candidate.level == ORDER || isSmall(keys)) {
+                for (Tuple2<Long, K> key : keys) {
+                    double[] location = locate.apply(key.b);
+                    if (location == null) continue;
+
+                    double dx = (location[0] - lon) * cosLat;
+                    double dy = location[1] - lat;
+                    queue.add(new Candidate<>(Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE, 0, 0, 0, key.b));
+                }
+            }
+            else {
+                int level = candidate.level + 1;
+                for (int i = 0; i < 2; i++) {
+                    for (int j = 0; j < 2; j++) {
+                        long cx = candidate.cx * 2 + i;
+                        long cy = candidate.cy * 2 + j;
+
+                        // don't bother queueing empty cells
+                        int childShift = 2 * (ORDER - level);
+                        long childD = xy2d(level, cx, cy);
+                        Tuple2<Long, K> first = index.ceiling(new Tuple2(childD << childShift, null));
+                        if (first == null || first.a > ((childD + 1) << childShift) - 1)
+                            continue;
+
+                        queue.add(new Candidate<>(distanceToCell(level, cx, cy, lon, lat, cosLat), level, cx, cy, null));
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /** does this set have few enough members to rank them individually? */
+    private static boolean isSmall (NavigableSet<?> keys) {
+        int count = 0;
+        for (Object key : keys) {
+            if (++count > NEAREST_LEAF_SIZE)
+                return false;
+        }
+        return true;
+    }
+
+    /** the minimum distance in meters from the given point to any point in a cell */
+    private static double distanceToCell (int level, long cx, long cy, double lon, double lat, double cosLat) {
+        double size = 1d / (1L << level);
+        double west = cx * size * 360 - 180;
+        double east = (cx + 1) * size * 360 - 180;
+        double south = cy * size * 180 - 90;
+        double north = (cy + 1) * size * 180 - 90;
+
+        double dx = Math.max(0, Math.max(west - lon, lon - east)) * cosLat;
+        double dy = Math.max(0, Math.max(south - lat, lat - north));
+        return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+    }
+
+    /** A cell (at the given level of the quadtree) or a key in a nearest neighbor search. */
+    private static class Candidate<K> implements Comparable<Candidate<K>> {
+        final double distance;
+        final int level;
+        final long cx, cy;
+        final K key;
+
+        Candidate (double distance, int level, long cx, long cy, K key) {
+            this.distance = distance;
+            this.level = level;
+            this.cx = cx;
+            this.cy = cy;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo (Candidate<K> other) {
+            int cmp = Double.compare(distance, other.distance);
+            if (cmp != 0) return cmp;
+
+            // keys before cells at the same distance, so a key is never returned ahead of a nearer one in a cell
+            return Boolean.compare(key == null, other.key == null);
+        }
+    }
+
+    /**
+     * Find the ranges of the Hilbert curve that cover the given box of cells (inclusive). The ranges are sorted and
+     * adjacent ranges are merged.
+     */
+    static List<long[]> ranges (long xmin, long ymin, long xmax, long ymax) {
+        long extent = Math.max(xmax - xmin, ymax - ymin) + 1;
+
+        // the coarsest level at which cells are no larger than extent / QUERY_CELLS_PER_SIDE
+        int maxLevel = ORDER;
+        while (maxLevel > 0 && (1L << (ORDER - maxLevel + 1)) <= extent / QUERY_CELLS_PER_SIDE) {
+            maxLevel--;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        addRanges(0, 0, 0, maxLevel, xmin, ymin, xmax, ymax, ranges);
+
+        Collections.sort(ranges, Comparator.comparingLong(r -> r[0]));
+
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[1] + 1 >= range[0])
+                last[1] = Math.max(last[1], range[1]);
+            else
+                merged.add(range);
+        }
+
+        return merged;
+    }
+
+    /** recursively descend the quadtree, adding the curve ranges of cells that intersect the box */
+    private static void addRanges (int level, long cx, long cy, int maxLevel, long xmin, long ymin, long xmax, long ymax, List<long[]> ranges) {
+        int shift = ORDER - level;
+        long x0 = cx << shift;
+        long y0 = cy << shift;
+        long x1 = ((cx + 1) << shift) - 1;
+        long y1 = ((cy + 1) << shift) - 1;
+
+        // disjoint
+        if (x1 < xmin || x0 > xmax || y1 < ymin || y0 > ymax)
+            return;
+
+        boolean contained = x0 >= xmin && x1 <= xmax && y0 >= ymin && y1 <= ymax;
+
+        if (contained || level == maxLevel) {
+            // a cell at a coarser level covers a contiguous range of the full-precision curve
+            long d = xy2d(level, cx, cy);
+            ranges.add(new long[] { d << (2 * shift), ((d + 1) << (2 * shift)) - 1 });
+            return;
+        }
+
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                addRanges(level + 1, cx * 2 + i, cy * 2 + j, maxLevel, xmin, ymin, xmax, ymax, ranges);
+            }
+        }
+    }
+
+    /** Convert a cell (x, y) on a grid of 2^order by 2^order cells to its distance along the Hilbert curve */
+    static long xy2d (int order, long x, long y) {
+        long n = 1L << order;
+        long d = 0;
+        for (long s = n / 2; s > 0; s /= 2) {
+            long rx = (x & s) > 0 ? 1 : 0;
+            long ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+
+            // rotate the quadrant so that the curve within it has the standard orientation
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /** Convert a distance along the Hilbert curve to the cell {x, y} on a grid of 2^order by 2^order cells */
+    static long[] d2xy (int order, long d) {
+        long n = 1L << order;
+        long x = 0;
+        long y = 0;
+        long t = d;
+        for (long s = 1; s < n; s *= 2) {
+            long rx = 1 & (t / 2);
+            long ry = 1 & (t ^ rx);
+
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                long tmp = x;
+                x = y;
+                y = tmp;
+            }
+
+            x += s * rx;
+            y += s * ry;
+            t /= 4;
+        }
+        return new long[] { x, y };
+    }
+
+    private static long lonToCell (double lon) {
+        return clamp((long) Math.floor((lon + 180) / 360 * SIDE));
+    }
+
+    private static long latToCell (double lat) {
+        return clamp((long) Math.floor((lat + 90) / 180 * SIDE));
+    }
+
+    private static long clamp (long cell) {
+        return Math.max(0, Math.min(SIDE - 1, cell));
+    }
+}
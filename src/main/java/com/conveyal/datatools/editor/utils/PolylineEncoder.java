@@ -24,6 +24,13 @@ import java.util.List;
 
 public class PolylineEncoder {
 
+    /** number of decimal places in the coordinates of a polyline, if not otherwise specified */
+    public static final int DEFAULT_PRECISION = 5;
+
+    public static final int MIN_PRECISION = 1;
+
+    public static final int MAX_PRECISION = 6;
+
     public static EncodedPolylineBean createEncodings(double[] lat, double[] lon) {
         return createEncodings(new PointAdapterList(lat, lon));
     }
@@ -94,11 +101,43 @@ public class PolylineEncoder {
     }
 
     public static List<Coordinate> decode(EncodedPolylineBean polyline) {
+        return decode(polyline.getPoints(), DEFAULT_PRECISION);
+    }
 
-        String pointString = polyline.getPoints();
+    /**
+     * Encode points as a polyline with the given number of decimal places (the original polyline format has 5, some
+     * routing engines use 6 for more precise shapes).
+     */
+    public static String encode(Coordinate[] points, int precision) {
+        checkPrecision(precision);
+        double factor = Math.pow(10, precision);
 
-        double lat = 0;
-        double lon = 0;
+        StringBuilder encodedPoints = new StringBuilder();
+
+        int plat = 0;
+        int plng = 0;
+
+        for (Coordinate point : points) {
+            int lat = (int) Math.round(point.y * factor);
+            int lng = (int) Math.round(point.x * factor);
+
+            encodedPoints.append(encodeSignedNumber(lat - plat)).append(encodeSignedNumber(lng - plng));
+
+            plat = lat;
+            plng = lng;
+        }
+
+        return encodedPoints.toString();
+    }
+
+    /** Decode a polyline encoded with the given number of decimal places. */
+    public static List<Coordinate> decode(String pointString, int precision) {
+        checkPrecision(precision);
+        double factor = Math.pow(10, precision);
+
+        // sum the offsets as integers, so that rounding errors do not accumulate along the line
+        int lat = 0;
+        int lon = 0;
 
         int strIndex = 0;
         List<Coordinate> points = new ArrayList<Coordinate>();
@@ -106,14 +145,14 @@ public class PolylineEncoder {
         while (strIndex < pointString.length()) {
 
             int[] rLat = decodeSignedNumberWithIndex(pointString, strIndex);
-            lat = lat + rLat[0] * 1e-5;
+            lat = lat + rLat[0];
             strIndex = rLat[1];
 
             int[] rLon = decodeSignedNumberWithIndex(pointString, strIndex);
-            lon = lon + rLon[0] * 1e-5;
+            lon = lon + rLon[0];
             strIndex = rLon[1];
 
-            points.add(new Coordinate(lon, lat));
+            points.add(new Coordinate(lon / factor, lat / factor));
         }
 
         return points;
@@ -123,6 +162,12 @@ public class PolylineEncoder {
      * Private Methods
      ****************************************************************************/
 
+    /** with more than this many decimal places, the differences between coordinates can overflow an int */
+    private static void checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("Polyline precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION);
+    }
+
     private static final int floor1e5(double coordinate) {
         return (int) Math.floor(coordinate * 1e5);
     }
@@ -0,0 +1,240 @@
+package com.conveyal.datatools.editor.utils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes points and lines as a Mapbox Vector Tile (version 2.1 of the specification), which is a protocol buffer
+ * message. There are few enough message types that they are written by hand here, rather than by generated protobuf
+ * classes. Geometries must already be in tile coordinates, i.e. from 0 to EXTENT across the tile with y increasing
+ * downwards; coordinates are rounded to integers. Polygons are not supported, as the editor has none to draw.
+ */
+public class VectorTileEncoder {
+    /** size of a tile in tile coordinates */
+    public static final int EXTENT = 4096;
+
+    // MVT geometry types and commands
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+
+    private final Map<String, Layer> layers = new LinkedHashMap<>();
+
+    /**
+     * Add a feature to the named layer, which is created when it is first used. Parts of the geometry that are not
+     * points or lines are ignored, and so is a geometry with no points or lines (e.g. one that has been clipped away).
+     * @param attributes attribute values, which may be strings, numbers or booleans; null values are left out
+     */
+    public void addFeature (String layerName, Map<String, ?> attributes, Geometry geometry) {
+        List<Integer> commands = new ArrayList<>();
+        int type = encodeGeometry(geometry, commands);
+        if (type == 0)
+            return;
+
+        Layer layer = layers.computeIfAbsent(layerName, Layer::new);
+
+        List<Integer> tags = new ArrayList<>();
+        for (Map.Entry<String, ?> e : attributes.entrySet()) {
+            if (e.getValue() == null)
+                continue;
+
+            tags.add(layer.keys.computeIfAbsent(e.getKey(), k -> layer.keys.size()));
+            tags.add(layer.values.computeIfAbsent(e.getValue(), v -> layer.values.size()));
+        }
+
+        Feature feature = new Feature();
+        feature.type = type;
+        feature.tags = tags;
+        feature.geometry = commands;
+        layer.features.add(feature);
+    }
+
+    /** Encode the tile. A tile with no features is empty (zero bytes), which is a valid tile. */
+    public byte[] encode () {
+        ProtobufWriter tile = new ProtobufWriter();
+
+        for (Layer layer : layers.values()) {
+            ProtobufWriter l = new ProtobufWriter();
+            l.writeVarintField(15, 2);
+            l.writeBytesField(1, layer.name.getBytes(StandardCharsets.UTF_8));
+
+            for (Feature feature : layer.features) {
+                ProtobufWriter f = new ProtobufWriter();
+                f.writePackedField(2, feature.tags);
+                f.writeVarintField(3, feature.type);
+                f.writePackedField(4, feature.geometry);
+                l.writeBytesField(2, f.toByteArray());
+            }
+
+            for (String key : layer.keys.keySet()) {
+                l.writeBytesField(3, key.getBytes(StandardCharsets.UTF_8));
+            }
+
+            for (Object value : layer.values.keySet()) {
+                l.writeBytesField(4, encodeValue(value));
+            }
+
+            l.writeVarintField(5, EXTENT);
+            tile.writeBytesField(3, l.toByteArray());
+        }
+
+        return tile.toByteArray();
+    }
+
+    /** encode the points and lines of a geometry as MVT commands, returning the geometry type, or 0 if there are none */
+    private static int encodeGeometry (Geometry geometry, List<Integer> commands) {
+        // the cursor carries on from the end of one part to the start of the next
+        int[] cursor = new int[2];
+        int type = 0;
+
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Geometry part = geometry.getGeometryN(i);
+
+            if (part instanceof Point && !part.isEmpty() && type != LINESTRING) {
+                // all the points of a multipoint go in a single MoveTo
+                if (type == 0) commands.add(command(MOVE_TO, 0));
+                Coordinate c = part.getCoordinate();
+                moveCursor(cursor, (int) Math.round(c.x), (int) Math.round(c.y), commands);
+                type = POINT;
+            }
+
+            else if (part instanceof LineString && type != POINT) {
+                List<int[]> points = new ArrayList<>();
+                for (Coordinate c : part.getCoordinates()) {
+                    int x = (int) Math.round(c.x);
+                    int y = (int) Math.round(c.y);
+                    int[] last = points.isEmpty() ? null : points.get(points.size() - 1);
+                    // rounding can make consecutive points identical, and a repeated point is a wasted command
+                    if (last == null || last[0] != x || last[1] != y) points.add(new int[] { x, y });
+                }
+
+                if (points.size() < 2)
+                    continue;
+
+                commands.add(command(MOVE_TO, 1));
+                moveCursor(cursor, points.get(0)[0], points.get(0)[1], commands);
+                commands.add(command(LINE_TO, points.size() - 1));
+                for (int[] p : points.subList(1, points.size())) {
+                    moveCursor(cursor, p[0], p[1], commands);
+                }
+                type = LINESTRING;
+            }
+        }
+
+        // set the number of points in the MoveTo of a (multi)point
+        if (type == POINT)
+            commands.set(0, command(MOVE_TO, (commands.size() - 1) / 2));
+
+        return type;
+    }
+
+    private static void moveCursor (int[] cursor, int x, int y, List<Integer> commands) {
+        commands.add(zigZag(x - cursor[0]));
+        commands.add(zigZag(y - cursor[1]));
+        cursor[0] = x;
+        cursor[1] = y;
+    }
+
+    private static int command (int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigZag (int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /** encode an attribute value as an MVT Value message */
+    private static byte[] encodeValue (Object value) {
+        ProtobufWriter v = new ProtobufWriter();
+
+        if (value instanceof Boolean) {
+            v.writeVarintField(7, (Boolean) value ? 1 : 0);
+        } else if (value instanceof Integer || value instanceof Long) {
+            long n = ((Number) value).longValue();
+            // sint64_value
+            v.writeVarintField(6, (n << 1) ^ (n >> 63));
+        } else if (value instanceof Number) {
+            v.writeFixed64Field(3, Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else {
+            v.writeBytesField(1, value.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        return v.toByteArray();
+    }
+
+    private static class Layer {
+        final String name;
+        final List<Feature> features = new ArrayList<>();
+
+        /** the keys and values used by the features of this layer, and their indices in the layer */
+        final Map<String, Integer> keys = new LinkedHashMap<>();
+        final Map<Object, Integer> values = new LinkedHashMap<>();
+
+        Layer (String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Feature {
+        int type;
+        List<Integer> tags;
+        List<Integer> geometry;
+    }
+
+    /** Writes the fields of a protocol buffer message */
+    private static class ProtobufWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void writeVarintField (int field, long value) {
+            writeVarint((field << 3) | 0);
+            writeVarint(value);
+        }
+
+        void writeFixed64Field (int field, long value) {
+            writeVarint((field << 3) | 1);
+            for (int i = 0; i < 8; i++) {
+                out.write((int) (value >>> (8 * i)) & 0xff);
+            }
+        }
+
+        void writeBytesField (int field, byte[] bytes) {
+            writeVarint((field << 3) | 2);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        /** write a packed repeated uint32 field, or nothing if there are no values */
+        void writePackedField (int field, List<Integer> values) {
+            if (values.isEmpty())
+                return;
+
+            ProtobufWriter packed = new ProtobufWriter();
+            for (int value : values) {
+                packed.writeVarint(value & 0xffffffffL);
+            }
+            writeBytesField(field, packed.toByteArray());
+        }
+
+        void writeVarint (long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        byte[] toByteArray () {
+            return out.toByteArray();
+        }
+    }
+}
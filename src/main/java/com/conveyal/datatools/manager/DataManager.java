@@ -6,6 +6,7 @@ import com.conveyal.datatools.manager.auth.Auth0Connection;
 import com.conveyal.datatools.manager.controllers.DumpController;
 import com.conveyal.datatools.manager.controllers.api.*;
 import com.conveyal.datatools.editor.controllers.api.*;
+import com.conveyal.datatools.editor.datastore.FeedUnavailableException;
 
 import com.conveyal.datatools.manager.extensions.ExternalFeedResource;
 import com.conveyal.datatools.manager.extensions.mtc.MtcFeedResource;
@@ -158,12 +159,23 @@ public class DataManager {
             SnapshotController.register(EDITOR_API_PREFIX);
             FeedInfoController.register(EDITOR_API_PREFIX);
             FareController.register(EDITOR_API_PREFIX);
+            BatchController.register(EDITOR_API_PREFIX);
+            ChangeController.register(EDITOR_API_PREFIX);
+            TileController.register(EDITOR_API_PREFIX);
+            DatastoreController.register(EDITOR_API_PREFIX);
 //            GisController.register(EDITOR_API_PREFIX);
         }
 
         // log all exceptions to system.out
         exception(Exception.class, (e, req, res) -> LOG.error("error", e));
 
+        // a feed that is temporarily unavailable (e.g. its indices are being rebuilt) can be retried shortly
+        exception(FeedUnavailableException.class, (e, req, res) -> {
+            res.status(503);
+            res.header("Retry-After", "5");
+            res.body(SparkUtils.formatJSON(e.getMessage(), 503));
+        });
+
         // module-specific controllers
         if (isModuleEnabled("deployment")) {
             DeploymentController.register(API_PREFIX);
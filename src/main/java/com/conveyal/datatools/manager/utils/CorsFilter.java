@@ -19,7 +19,8 @@ public final class CorsFilter {
     static {
         corsHeaders.put("Access-Control-Allow-Methods", "GET,PUT,POST,DELETE,OPTIONS");
         corsHeaders.put("Access-Control-Allow-Origin", "*");
-        corsHeaders.put("Access-Control-Allow-Headers", "Content-Type,Authorization,X-Requested-With,Content-Length,Accept,Origin,");
+        corsHeaders.put("Access-Control-Allow-Headers", "Content-Type,Authorization,X-Requested-With,Content-Length,Accept,Origin,If-None-Match");
+        corsHeaders.put("Access-Control-Expose-Headers", "ETag");
         corsHeaders.put("Access-Control-Allow-Credentials", "true");
     }
 
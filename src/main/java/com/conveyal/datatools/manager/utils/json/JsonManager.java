@@ -2,13 +2,18 @@ package com.conveyal.datatools.manager.utils.json;
 
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.LocalDate;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 import com.conveyal.datatools.editor.models.transit.GtfsRouteType;
 import com.conveyal.datatools.editor.utils.JacksonSerializers;
 import com.conveyal.geojson.GeoJsonModule;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -16,9 +21,14 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.AnnotatedClass;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
 import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 /**
  * Helper methods for writing REST API routines
@@ -26,6 +36,12 @@ import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
  *
  */
 public class JsonManager<T> {
+    /**
+     * ID of the property filter that applies to the class of this manager, which selects the properties written by
+     * writeArray when only some fields are requested, and otherwise writes them all
+     */
+    private static final String FIELDS_FILTER = "fields";
+
     private ObjectWriter ow;
     private ObjectMapper om;
 
@@ -37,6 +53,14 @@ public class JsonManager<T> {
     public JsonManager (Class<T> theClass, Class view) {
         this.theClass = theClass;
         this.om = new ObjectMapper();
+        // the class of this manager uses the fields filter, without needing an annotation (or a mixin, see addMixin)
+        om.setAnnotationIntrospector(new JacksonAnnotationIntrospector() {
+            @Override
+            public Object findFilterId (Annotated a) {
+                Object id = super.findFilterId(a);
+                return id == null && a instanceof AnnotatedClass && a.getRawType() == theClass ? FIELDS_FILTER : id;
+            }
+        });
         // previous model for gtfs validation errors
 //        om.addMixIn(InvalidValue.class, InvalidValueMixIn.class);
         om.addMixIn(Rectangle2D.class, Rectangle2DMixIn.class);
@@ -53,9 +77,15 @@ public class JsonManager<T> {
         om.registerModule(deser);
         om.getSerializerProvider().setNullKeySerializer(new JacksonSerializers.MyDtoNullKeySerializer());
 //        om.registerModule(new JavaTimeModule());
+        this.ow = om.writer(getFilters(SimpleBeanPropertyFilter.serializeAll())).withView(view);
+    }
+
+    /** the property filters, with the given filter for the properties of the class of this manager */
+    private static SimpleFilterProvider getFilters (SimpleBeanPropertyFilter fieldsFilter) {
         SimpleFilterProvider filters = new SimpleFilterProvider();
         filters.addFilter("bbox", SimpleBeanPropertyFilter.filterOutAllExcept("west", "east", "south", "north"));
-        this.ow = om.writer(filters).withView(view);
+        filters.addFilter(FIELDS_FILTER, fieldsFilter);
+        return filters;
     }
 
     private Class<T> theClass;
@@ -98,6 +128,44 @@ public class JsonManager<T> {
         return ow.writeValueAsString(map);
     }
 
+    /**
+     * Write the values to the output stream as a JSON array, serializing them one at a time as they are read from the
+     * iterator, so that they need not all be in memory.
+     * @param fields if not null, only these properties of each value are written. They are selected by a property
+     *               filter as each value is serialized, so the other properties are never serialized.
+     * @param transform if not null, called with each value and its JSON, which it may modify before it is written. The
+     *                  JSON of each value is then built as a tree, so only use this when the JSON has to be changed.
+     */
+    public void writeArray (Iterator<? extends T> values, Set<String> fields, BiConsumer<? super T, ObjectNode> transform,
+                            OutputStream out) throws IOException {
+        ObjectWriter writer = fields != null ? ow.with(getFilters(SimpleBeanPropertyFilter.filterOutAllExcept(fields))) : ow;
+
+        JsonGenerator gen = om.getFactory().createGenerator(out);
+        gen.writeStartArray();
+
+        while (values.hasNext()) {
+            T value = values.next();
+
+            if (transform == null) {
+                writer.writeValue(gen, value);
+            } else {
+                // serialize in the usual way, then transform the result
+                TokenBuffer buffer = new TokenBuffer(om, false);
+                writer.writeValue(buffer, value);
+                JsonNode node = om.readTree(buffer.asParser());
+                if (node.isObject()) {
+                    transform.accept(value, (ObjectNode) node);
+                    // the transform may have added properties that were not requested
+                    if (fields != null) ((ObjectNode) node).retain(fields);
+                }
+                om.writeTree(gen, node);
+            }
+        }
+
+        gen.writeEndArray();
+        gen.flush();
+    }
+
     public T read (String s) throws JsonParseException, JsonMappingException, IOException {
         return om.readValue(s, theClass);
     }
@@ -0,0 +1,108 @@
+package com.conveyal.datatools.editor;
+
+import com.conveyal.datatools.editor.utils.HilbertCurve;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old stop index (a set of <<lon, lat>, stop ID> tuples, queried by scanning the whole longitude band of
+ * the box) with the Hilbert curve index used by FeedTx, for viewport-sized boxes over a metro-area-sized set of stops.
+ * This is not run as part of the test suite; run main() from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StopSpatialIndexBenchmark {
+    private static final int STOP_COUNT = 60000;
+
+    // roughly the extent of a large metro area
+    private static final double WEST = -77.6, EAST = -76.6, SOUTH = 38.5, NORTH = 39.3;
+
+    /** size of the query box in degrees, about the size of the editor map at street level */
+    private static final double QUERY_SIZE = 0.02;
+
+    private DB db;
+    private NavigableSet<Tuple2<Tuple2<Double, Double>, String>> lonLatIndex;
+    private NavigableSet<Tuple2<Long, String>> hilbertIndex;
+    private double[][] queries;
+    private int query = 0;
+
+    @Setup
+    public void setUp () {
+        db = DBMaker.newMemoryDB().transactionDisable().make();
+        lonLatIndex = db.createTreeSet("lonLatIndex").make();
+        hilbertIndex = db.createTreeSet("hilbertIndex").make();
+
+        Random random = new Random(42);
+        for (int i = 0; i < STOP_COUNT; i++) {
+            double lon = WEST + random.nextDouble() * (EAST - WEST);
+            double lat = SOUTH + random.nextDouble() * (NORTH - SOUTH);
+            String stopId = "stop" + i;
+            lonLatIndex.add(new Tuple2<>(new Tuple2<>(lon, lat), stopId));
+            hilbertIndex.add(new Tuple2<>(HilbertCurve.index(lon, lat), stopId));
+        }
+
+        queries = new double[1000][];
+        for (int i = 0; i < queries.length; i++) {
+            double west = WEST + random.nextDouble() * (EAST - WEST - QUERY_SIZE);
+            double south = SOUTH + random.nextDouble() * (NORTH - SOUTH - QUERY_SIZE);
+            queries[i] = new double[] { west, south, west + QUERY_SIZE, south + QUERY_SIZE };
+        }
+    }
+
+    @TearDown
+    public void tearDown () {
+        db.close();
+    }
+
+    /** the query FeedTx.getStopsWithinBoundingBox used to run */
+    @Benchmark
+    public List<String> lonLatBand () {
+        double[] q = nextQuery();
+        List<String> ret = new ArrayList<>();
+        for (Tuple2<Tuple2<Double, Double>, String> stop : lonLatIndex.subSet(new Tuple2(new Tuple2(q[0], null), null), true, new Tuple2(new Tuple2(q[2], Fun.HI), Fun.HI), true)) {
+            if (stop.a.b >= q[1] && stop.a.b <= q[3])
+                ret.add(stop.b);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public List<String> hilbert () {
+        double[] q = nextQuery();
+        return HilbertCurve.keysWithin(hilbertIndex, q[0], q[1], q[2], q[3]);
+    }
+
+    private double[] nextQuery () {
+        query = (query + 1) % queries.length;
+        return queries[query];
+    }
+
+    public static void main (String... args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StopSpatialIndexBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(10)
+                .build()).run();
+    }
+}
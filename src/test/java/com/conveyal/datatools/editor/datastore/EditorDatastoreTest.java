@@ -0,0 +1,71 @@
+package com.conveyal.datatools.editor.datastore;
+
+import com.conveyal.datatools.editor.models.transit.Stop;
+import com.conveyal.datatools.manager.DataManager;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+
+/**
+ * Base of the tests of the editor datastore. Unless a configuration has already been loaded (e.g. by DatatoolsTest),
+ * the datastore is created in a temporary directory, without starting the server. Each test uses feeds of its own.
+ */
+public abstract class EditorDatastoreTest {
+    @BeforeClass
+    public static void setUpDatastore () throws IOException {
+        if (DataManager.hasConfigProperty("application.data.editor_mapdb"))
+            return;
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode serverConfig = mapper.createObjectNode();
+        serverConfig.putObject("application").putObject("data")
+                .put("editor_mapdb", Files.createTempDirectory("editor").toString());
+        serverConfig.putObject("modules").putObject("editor")
+                .put("stats_log_interval", 0);
+
+        DataManager.config = mapper.createObjectNode();
+        DataManager.serverConfig = serverConfig;
+    }
+
+    /** a feed ID that no other test uses */
+    static String newFeedId () {
+        return "test-" + UUID.randomUUID();
+    }
+
+    static Stop newStop (String feedId, String name) {
+        Stop stop = Stop.fromJson(37.77, -122.42);
+        stop.feedId = feedId;
+        stop.stopName = name;
+        return stop;
+    }
+
+    /** save a copy of a stop with a new name, as the editor would */
+    static Stop renameStop (String feedId, String id, String name) {
+        return VersionedDataStore.writeFeed(feedId, tx -> {
+            Stop stop;
+            try {
+                stop = tx.stops.get(id).clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+            stop.stopName = name;
+            tx.stops.put(id, stop);
+            return stop;
+        });
+    }
+
+    /** the name of a stop in the feed as it is now, or null if there is no such stop */
+    static String getStopName (String feedId, String id) {
+        FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+        try {
+            Stop stop = tx.stops.get(id);
+            return stop != null ? stop.stopName : null;
+        } finally {
+            tx.rollbackIfOpen();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.conveyal.datatools.editor.datastore;
+
+import com.conveyal.datatools.editor.controllers.Base;
+import com.conveyal.datatools.editor.models.transit.Stop;
+import org.junit.Test;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests of the revisions and change log of a feed (see FeedTx.getChangesSince), and of the ETags based on them. */
+public class FeedChangeLogTest extends EditorDatastoreTest {
+    /** Each commit that modifies the feed is a new revision, and its modifications are logged under it. */
+    @Test
+    public void testChangesSince () {
+        String feedId = newFeedId();
+        long initial = VersionedDataStore.getFeedRevision(feedId);
+
+        Stop stop = newStop(feedId, "a");
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.put(stop.id, stop));
+        long created = VersionedDataStore.getFeedRevision(feedId);
+        assertTrue(created > initial);
+
+        renameStop(feedId, stop.id, "b");
+        long updated = VersionedDataStore.getFeedRevision(feedId);
+        assertEquals(created + 1, updated);
+
+        // a commit that does not modify the feed is not a revision
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.get(stop.id));
+        assertEquals(updated, VersionedDataStore.getFeedRevision(feedId));
+
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.remove(stop.id));
+        long deleted = VersionedDataStore.getFeedRevision(feedId);
+        assertEquals(updated + 1, deleted);
+
+        List<FeedTx.Change> changes = getChangesSince(feedId, created - 1);
+        assertNotNull(changes);
+        assertEquals(3, changes.size());
+        assertChange(changes.get(0), created, stop.id, FeedTx.ChangeType.CREATE);
+        assertChange(changes.get(1), updated, stop.id, FeedTx.ChangeType.UPDATE);
+        assertChange(changes.get(2), deleted, stop.id, FeedTx.ChangeType.DELETE);
+
+        changes = getChangesSince(feedId, updated);
+        assertEquals(1, changes.size());
+        assertChange(changes.get(0), deleted, stop.id, FeedTx.ChangeType.DELETE);
+
+        assertEquals(Collections.emptyList(), getChangesSince(feedId, deleted));
+
+        // revisions the client cannot have seen
+        assertNull(getChangesSince(feedId, deleted + 1));
+    }
+
+    /** Only the last CHANGE_LOG_REVISIONS revisions are kept; clients that are further behind must reload the feed. */
+    @Test
+    public void testChangeLogCutoff () {
+        String feedId = newFeedId();
+        Stop stop = newStop(feedId, "0");
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.put(stop.id, stop));
+        long first = VersionedDataStore.getFeedRevision(feedId);
+
+        for (int i = 1; i <= FeedTx.CHANGE_LOG_REVISIONS; i++) {
+            renameStop(feedId, stop.id, Integer.toString(i));
+        }
+
+        long last = VersionedDataStore.getFeedRevision(feedId);
+        assertEquals(first + FeedTx.CHANGE_LOG_REVISIONS, last);
+
+        // the first revision is still the start of the log
+        assertEquals(FeedTx.CHANGE_LOG_REVISIONS, getChangesSince(feedId, first).size());
+
+        renameStop(feedId, stop.id, "last");
+        assertNull(getChangesSince(feedId, first));
+        assertEquals(FeedTx.CHANGE_LOG_REVISIONS, getChangesSince(feedId, first + 1).size());
+    }
+
+    /** A commit that modifies more than MAX_LOGGED_CHANGES entities resets the change log. */
+    @Test
+    public void testTooManyChanges () {
+        String feedId = newFeedId();
+        Stop first = newStop(feedId, "first");
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.put(first.id, first));
+        long before = VersionedDataStore.getFeedRevision(feedId);
+
+        VersionedDataStore.writeFeed(feedId, tx -> {
+            for (int i = 0; i <= FeedTx.MAX_LOGGED_CHANGES; i++) {
+                Stop stop = newStop(feedId, Integer.toString(i));
+                tx.stops.put(stop.id, stop);
+            }
+            return null;
+        });
+
+        long after = VersionedDataStore.getFeedRevision(feedId);
+        assertEquals(before + 1, after);
+        assertNull(getChangesSince(feedId, before));
+        assertEquals(Collections.emptyList(), getChangesSince(feedId, after));
+
+        // later modifications are logged as usual
+        renameStop(feedId, first.id, "renamed");
+        assertEquals(1, getChangesSince(feedId, after).size());
+    }
+
+    /** Replacing the feed database (e.g. restoring a snapshot) continues the revisions, with an empty change log. */
+    @Test
+    public void testRevisionAfterReplace () {
+        String feedId = newFeedId();
+        Stop stop = newStop(feedId, "a");
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.put(stop.id, stop));
+        long before = VersionedDataStore.getFeedRevision(feedId);
+
+        Stop replacement = newStop(feedId, "b");
+        VersionedDataStore.replaceFeedDb(feedId, db -> {
+            FeedTx.bulkLoad(db, "stops", Collections.singletonList(replacement).iterator());
+            db.commit();
+            return null;
+        });
+
+        long after = VersionedDataStore.getFeedRevision(feedId);
+        assertTrue(after > before);
+        assertNull(getChangesSince(feedId, before));
+        assertEquals(Collections.emptyList(), getChangesSince(feedId, after));
+        assertNull(getStopName(feedId, stop.id));
+        assertEquals("b", getStopName(feedId, replacement.id));
+
+        renameStop(feedId, replacement.id, "c");
+        assertEquals(after + 1, VersionedDataStore.getFeedRevision(feedId));
+        assertEquals(1, getChangesSince(feedId, after).size());
+    }
+
+    /** A request whose If-None-Match has the current ETag of the feed gets a 304 Not Modified. */
+    @Test
+    public void testETag () {
+        String feedId = newFeedId();
+        Stop stop = newStop(feedId, "a");
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.put(stop.id, stop));
+
+        TestResponse res = new TestResponse();
+        Base.checkETag(new TestRequest(null), res, feedId);
+        String etag = res.headers.get("ETag");
+        assertNotNull(etag);
+
+        assertNotModified(new TestRequest(etag), feedId);
+        assertNotModified(new TestRequest("\"other\", " + etag), feedId);
+        assertNotModified(new TestRequest("*"), feedId);
+
+        // once the feed is modified the ETag changes, and the old one no longer matches
+        renameStop(feedId, stop.id, "b");
+        res = new TestResponse();
+        Base.checkETag(new TestRequest(etag), res, feedId);
+        assertNotNull(res.headers.get("ETag"));
+        assertNotEquals(etag, res.headers.get("ETag"));
+    }
+
+    private static void assertNotModified (Request req, String feedId) {
+        try {
+            Base.checkETag(req, new TestResponse(), feedId);
+            fail("Expected 304 for If-None-Match " + req.headers("If-None-Match"));
+        } catch (HaltException e) {
+            assertEquals(304, e.statusCode());
+        }
+    }
+
+    private static void assertChange (FeedTx.Change change, long revision, String id, FeedTx.ChangeType op) {
+        assertEquals(revision, change.revision);
+        assertEquals("stops", change.type);
+        assertEquals(id, change.id);
+        assertEquals(op, change.op);
+    }
+
+    private static List<FeedTx.Change> getChangesSince (String feedId, long since) {
+        FeedTx tx = VersionedDataStore.getReadOnlyFeedTx(feedId);
+        try {
+            List<FeedTx.Change> changes = tx.getChangesSince(since);
+            return changes != null ? new ArrayList<>(changes) : null;
+        } finally {
+            tx.rollbackIfOpen();
+        }
+    }
+
+    /** a request with only an If-None-Match header */
+    private static class TestRequest extends Request {
+        private final String ifNoneMatch;
+
+        TestRequest (String ifNoneMatch) {
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public String headers (String header) {
+            return "If-None-Match".equals(header) ? ifNoneMatch : null;
+        }
+    }
+
+    /** a response that records the headers set on it */
+    private static class TestResponse extends Response {
+        final Map<String, String> headers = new HashMap<>();
+
+        @Override
+        public void header (String header, String value) {
+            headers.put(header, value);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.conveyal.datatools.editor.datastore;
+
+import com.conveyal.datatools.editor.models.Snapshot;
+import com.conveyal.datatools.editor.models.transit.Stop;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests of full and delta snapshots (see SnapshotTx), and of restoring and comparing them. */
+public class SnapshotTest extends EditorDatastoreTest {
+    /**
+     * Take a full snapshot, modify the feed, take a delta snapshot, and check that restoring each of them gives the feed
+     * as it was when it was taken.
+     */
+    @Test
+    public void testRestoreDeltaSnapshot () {
+        String feedId = newFeedId();
+        Stop a = newStop(feedId, "a");
+        Stop b = newStop(feedId, "b");
+        Stop c = newStop(feedId, "c");
+        insertStops(feedId, a, b, c);
+
+        Snapshot full = VersionedDataStore.takeSnapshot(feedId, "full", null);
+        assertEquals(0, getDepth(feedId, full.version));
+
+        renameStop(feedId, b.id, "b2");
+        deleteStop(feedId, c.id);
+        Stop d = newStop(feedId, "d");
+        insertStops(feedId, d);
+
+        Snapshot delta = VersionedDataStore.takeSnapshot(feedId, "delta", null);
+        assertEquals(1, getDepth(feedId, delta.version));
+
+        // only the modified stops are recorded
+        SnapshotTx snapshot = openSnapshot(feedId, delta.version);
+        try {
+            assertEquals(Integer.valueOf(full.version), snapshot.getParentVersion());
+            assertEquals(new HashSet<>(Arrays.asList(b.id, d.id)), getStopIds(snapshot));
+        } finally {
+            snapshot.close();
+        }
+
+        // modifications after the delta snapshot are undone by restoring it
+        renameStop(feedId, a.id, "a2");
+        deleteStop(feedId, b.id);
+
+        VersionedDataStore.restore(delta);
+        assertEquals("a", getStopName(feedId, a.id));
+        assertEquals("b2", getStopName(feedId, b.id));
+        assertNull(getStopName(feedId, c.id));
+        assertEquals("d", getStopName(feedId, d.id));
+
+        VersionedDataStore.restore(full);
+        assertEquals("a", getStopName(feedId, a.id));
+        assertEquals("b", getStopName(feedId, b.id));
+        assertEquals("c", getStopName(feedId, c.id));
+        assertNull(getStopName(feedId, d.id));
+    }
+
+    /** An entity deleted since the parent snapshot is recorded as a tombstone, which hides it in the parent. */
+    @Test
+    public void testDeletionIsTombstone () {
+        String feedId = newFeedId();
+        Stop a = newStop(feedId, "a");
+        Stop b = newStop(feedId, "b");
+        insertStops(feedId, a, b);
+
+        Snapshot full = VersionedDataStore.takeSnapshot(feedId, "full", null);
+        deleteStop(feedId, b.id);
+        Snapshot delta = VersionedDataStore.takeSnapshot(feedId, "delta", null);
+
+        SnapshotTx deltaTx = openSnapshot(feedId, delta.version);
+        SnapshotTx fullTx = openSnapshot(feedId, full.version);
+        try {
+            // the deleted stop is not copied, and the unmodified one is left to the parent
+            assertTrue(getStopIds(deltaTx).isEmpty());
+            assertTrue(getStopIds(fullTx).contains(b.id));
+
+            List<SnapshotTx> chain = Arrays.asList(deltaTx, fullTx);
+            assertNull(SnapshotTx.get(chain, "stops", b.id));
+            assertNotNull(SnapshotTx.get(chain, "stops", a.id));
+        } finally {
+            deltaTx.close();
+            fullTx.close();
+        }
+
+        VersionedDataStore.restore(delta);
+        assertEquals("a", getStopName(feedId, a.id));
+        assertNull(getStopName(feedId, b.id));
+    }
+
+    /**
+     * Once the chain of delta snapshots leading back to a full snapshot reaches MAX_SNAPSHOT_DEPTH, the next snapshot is
+     * a full one. Snapshots at the end of a long chain can still be restored.
+     */
+    @Test
+    public void testLongSnapshotChain () {
+        String feedId = newFeedId();
+        Stop stop = newStop(feedId, "0");
+        insertStops(feedId, stop);
+
+        Snapshot first = VersionedDataStore.takeSnapshot(feedId, "0", null);
+        assertEquals(0, getDepth(feedId, first.version));
+
+        Snapshot deepest = null;
+        for (int i = 1; i <= VersionedDataStore.MAX_SNAPSHOT_DEPTH; i++) {
+            renameStop(feedId, stop.id, Integer.toString(i));
+            deepest = VersionedDataStore.takeSnapshot(feedId, Integer.toString(i), null);
+            assertEquals(i, getDepth(feedId, deepest.version));
+        }
+
+        renameStop(feedId, stop.id, "full");
+        Snapshot next = VersionedDataStore.takeSnapshot(feedId, "full", null);
+        assertEquals(0, getDepth(feedId, next.version));
+        SnapshotTx nextTx = openSnapshot(feedId, next.version);
+        try {
+            assertNull(nextTx.getParentVersion());
+        } finally {
+            nextTx.close();
+        }
+
+        renameStop(feedId, stop.id, "after");
+        VersionedDataStore.restore(deepest);
+        assertEquals(Integer.toString(VersionedDataStore.MAX_SNAPSHOT_DEPTH), getStopName(feedId, stop.id));
+
+        VersionedDataStore.restore(first);
+        assertEquals("0", getStopName(feedId, stop.id));
+
+        VersionedDataStore.restore(next);
+        assertEquals("full", getStopName(feedId, stop.id));
+    }
+
+    /** Compare a snapshot with the feed as it is now, using the modifications tracked since the snapshot. */
+    @Test
+    public void testDiffWithFeed () {
+        String feedId = newFeedId();
+        Stop a = newStop(feedId, "a");
+        Stop b = newStop(feedId, "b");
+        Stop c = newStop(feedId, "c");
+        insertStops(feedId, a, b, c);
+
+        Snapshot snapshot = VersionedDataStore.takeSnapshot(feedId, "snapshot", null);
+
+        renameStop(feedId, b.id, "b2");
+        deleteStop(feedId, c.id);
+        Stop d = newStop(feedId, "d");
+        insertStops(feedId, d);
+
+        FeedDiff diff = VersionedDataStore.diff(feedId, snapshot.version, null);
+        assertTrue(diff.incremental);
+
+        FeedDiff.EntityDiff stops = diff.entities.get("stops");
+        assertEquals(Collections.singletonList(d.id), stops.added);
+        assertEquals(Collections.singletonList(c.id), stops.removed);
+        assertEquals(Collections.singletonList(b.id), stops.changed);
+        assertEquals(0, diff.entities.get("routes").addedCount);
+
+        // a modification that is undone is not a difference
+        renameStop(feedId, b.id, "b");
+        diff = VersionedDataStore.diff(feedId, snapshot.version, null);
+        assertTrue(diff.entities.get("stops").changed.isEmpty());
+
+        // the same changes are found by comparing with a later delta snapshot
+        Snapshot later = VersionedDataStore.takeSnapshot(feedId, "later", null);
+        diff = VersionedDataStore.diff(feedId, snapshot.version, later.version);
+        assertTrue(diff.incremental);
+        assertEquals(Collections.singletonList(d.id), diff.entities.get("stops").added);
+        assertEquals(Collections.singletonList(c.id), diff.entities.get("stops").removed);
+        assertFalse(diff.entities.get("stops").changed.contains(a.id));
+    }
+
+    private static void insertStops (String feedId, Stop... stops) {
+        VersionedDataStore.writeFeed(feedId, tx -> {
+            for (Stop stop : stops) {
+                tx.stops.put(stop.id, stop);
+            }
+            return null;
+        });
+    }
+
+    private static void deleteStop (String feedId, String id) {
+        VersionedDataStore.writeFeed(feedId, tx -> tx.stops.remove(id));
+    }
+
+    private static SnapshotTx openSnapshot (String feedId, int version) {
+        return new SnapshotTx(VersionedDataStore.getSnapshotDb(feedId, version, true));
+    }
+
+    /** the IDs of the stops recorded in a snapshot itself, not in the snapshots it is a delta of */
+    private static Set<String> getStopIds (SnapshotTx snapshot) {
+        // the map is not created in a read-only database
+        if (!snapshot.tx.exists("stops"))
+            return Collections.emptySet();
+
+        return new HashSet<>(snapshot.<String, Object>getMap("stops").keySet());
+    }
+
+    private static int getDepth (String feedId, int version) {
+        SnapshotTx snapshot = openSnapshot(feedId, version);
+        try {
+            return snapshot.getDepth();
+        } finally {
+            snapshot.close();
+        }
+    }
+}
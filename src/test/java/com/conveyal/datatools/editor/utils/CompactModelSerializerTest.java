@@ -0,0 +1,252 @@
+package com.conveyal.datatools.editor.utils;
+
+import com.conveyal.datatools.editor.models.transit.Agency;
+import com.conveyal.datatools.editor.models.transit.PackedStopTimes;
+import com.conveyal.datatools.editor.models.transit.ServiceCalendar;
+import com.conveyal.datatools.editor.models.transit.Stop;
+import com.conveyal.datatools.editor.models.transit.StopTime;
+import com.conveyal.datatools.editor.models.transit.StopTimePickupDropOffType;
+import com.conveyal.datatools.editor.models.transit.Trip;
+import com.conveyal.datatools.editor.models.transit.TripDirection;
+import com.conveyal.datatools.editor.models.transit.TripPattern;
+import com.conveyal.datatools.editor.models.transit.TripPatternStop;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import org.junit.Test;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactModelSerializerTest {
+    private static final GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private static Object roundTrip (Serializer<Object> writer, Object value) throws IOException {
+        DataOutput2 out = new DataOutput2();
+        writer.serialize(out, value);
+        return new CompactModelSerializer().deserialize(new DataInput2(ByteBuffer.wrap(out.copyBytes()), 0), -1);
+    }
+
+    @Test
+    public void testTrip () throws IOException {
+        Trip trip = new Trip();
+        trip.tripHeadsign = "Downtown";
+        trip.tripDirection = TripDirection.B;
+        trip.patternId = "pattern";
+        trip.useFrequency = false;
+        trip.headway = 600;
+        trip.setStopTimes(new ArrayList<>());
+
+        StopTime first = new StopTime();
+        first.stopId = "a";
+        first.arrivalTime = 25 * 3600;
+        first.departureTime = 25 * 3600 + 30;
+        first.pickupType = StopTimePickupDropOffType.SCHEDULED;
+        trip.getStopTimes().add(first);
+
+        // skipped stop
+        trip.getStopTimes().add(null);
+
+        // times that go backwards should survive as well
+        StopTime last = new StopTime();
+        last.stopId = "c";
+        last.arrivalTime = 3600;
+        last.stopHeadsign = "Terminal";
+        last.dropOffType = StopTimePickupDropOffType.NONE;
+        trip.getStopTimes().add(last);
+
+        Trip copy = (Trip) roundTrip(new CompactModelSerializer(), trip);
+
+        assertEquals(trip.id, copy.id);
+        assertEquals("Downtown", copy.tripHeadsign);
+        assertEquals(TripDirection.B, copy.tripDirection);
+        assertEquals("pattern", copy.patternId);
+        assertEquals(false, copy.useFrequency);
+        assertEquals(Integer.valueOf(600), copy.headway);
+        assertNull(copy.routeId);
+        assertNull(copy.startTime);
+
+        // stop times are read in packed form, without creating StopTimes
+        PackedStopTimes packed = copy.getPackedStopTimes();
+        assertEquals(3, packed.size());
+        assertTrue(packed.isSkipped(1));
+        assertEquals(25 * 3600 + 30, packed.departureTimes[0]);
+        assertEquals(PackedStopTimes.MISSING, packed.departureTimes[2]);
+
+        assertEquals(3, copy.getStopTimes().size());
+
+        assertEquals("a", copy.getStopTimes().get(0).stopId);
+        assertEquals(first.arrivalTime, copy.getStopTimes().get(0).arrivalTime);
+        assertEquals(first.departureTime, copy.getStopTimes().get(0).departureTime);
+        assertEquals(StopTimePickupDropOffType.SCHEDULED, copy.getStopTimes().get(0).pickupType);
+        assertNull(copy.getStopTimes().get(0).dropOffType);
+
+        assertNull(copy.getStopTimes().get(1));
+
+        assertEquals(Integer.valueOf(3600), copy.getStopTimes().get(2).arrivalTime);
+        assertNull(copy.getStopTimes().get(2).departureTime);
+        assertEquals("Terminal", copy.getStopTimes().get(2).stopHeadsign);
+        assertEquals(StopTimePickupDropOffType.NONE, copy.getStopTimes().get(2).dropOffType);
+    }
+
+    @Test
+    public void testStop () throws IOException {
+        Stop stop = new Stop();
+        stop.generateId();
+        stop.stopName = "Main St & 1st Ave";
+        stop.majorStop = true;
+        stop.location = geometryFactory.createPoint(new Coordinate(-77.0365298, 38.8976763));
+
+        Stop copy = (Stop) roundTrip(new CompactModelSerializer(), stop);
+
+        assertEquals(stop.id, copy.id);
+        assertEquals(stop.stopName, copy.stopName);
+        assertEquals(true, copy.majorStop);
+        assertNull(copy.stopCode);
+        assertEquals(stop.getLon(), copy.getLon(), 0);
+        assertEquals(stop.getLat(), copy.getLat(), 0);
+        assertEquals(4326, copy.location.getSRID());
+    }
+
+    @Test
+    public void testTripPattern () throws IOException {
+        TripPattern pattern = new TripPattern();
+        pattern.name = "Outbound";
+        pattern.shape = geometryFactory.createLineString(new Coordinate[] {
+                new Coordinate(-77.0365298, 38.8976763),
+                new Coordinate(-77.0091, 38.8899),
+                new Coordinate(-76.9, 38.95)
+        });
+
+        TripPatternStop ps = new TripPatternStop();
+        ps.stopId = "a";
+        ps.defaultTravelTime = 120;
+        ps.defaultDwellTime = 30;
+        ps.timepoint = false;
+        ps.shapeDistTraveled = 1234.5;
+        pattern.patternStops.add(ps);
+        pattern.patternStops.add(new TripPatternStop());
+
+        TripPattern copy = (TripPattern) roundTrip(new CompactModelSerializer(), pattern);
+
+        assertEquals("Outbound", copy.name);
+        assertEquals(3, copy.shape.getNumPoints());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(pattern.shape.getCoordinateN(i).x, copy.shape.getCoordinateN(i).x, 1e-7);
+            assertEquals(pattern.shape.getCoordinateN(i).y, copy.shape.getCoordinateN(i).y, 1e-7);
+        }
+
+        assertEquals(2, copy.patternStops.size());
+        assertEquals("a", copy.patternStops.get(0).stopId);
+        assertEquals(120, copy.patternStops.get(0).defaultTravelTime);
+        assertEquals(30, copy.patternStops.get(0).defaultDwellTime);
+        assertEquals(false, copy.patternStops.get(0).timepoint);
+        assertEquals(1234.5, copy.patternStops.get(0).shapeDistTraveled, 0);
+        assertNull(copy.patternStops.get(1).timepoint);
+        assertNull(copy.patternStops.get(1).shapeDistTraveled);
+    }
+
+    @Test
+    public void testServiceCalendar () throws IOException {
+        ServiceCalendar calendar = new ServiceCalendar();
+        calendar.monday = true;
+        calendar.sunday = false;
+        calendar.startDate = LocalDate.of(2017, 1, 1);
+        calendar.endDate = LocalDate.of(2017, 12, 31);
+
+        ServiceCalendar copy = (ServiceCalendar) roundTrip(new CompactModelSerializer(), calendar);
+
+        assertEquals(true, copy.monday);
+        assertEquals(false, copy.sunday);
+        assertNull(copy.tuesday);
+        assertEquals(calendar.startDate, copy.startDate);
+        assertEquals(calendar.endDate, copy.endDate);
+    }
+
+    /** other types are Java serialized, and records written by ClassLoaderSerializer are still readable */
+    @Test
+    public void testJavaSerialization () throws IOException {
+        Agency agency = new Agency();
+        agency.name = "Metro";
+
+        assertEquals("Metro", ((Agency) roundTrip(new CompactModelSerializer(), agency)).name);
+        assertEquals("Metro", ((Agency) roundTrip(new ClassLoaderSerializer(), agency)).name);
+
+        Trip trip = new Trip();
+        trip.setStopTimes(Arrays.asList(new StopTime()));
+        Trip copy = (Trip) roundTrip(new ClassLoaderSerializer(), trip);
+        assertEquals(trip.id, copy.id);
+        assertEquals(1, copy.getStopTimes().size());
+    }
+
+    /** a Java serialized record of known size can be read from a DataInput that is not an InputStream */
+    @Test
+    public void testJavaSerializationFromDataInput () throws IOException {
+        Agency agency = new Agency();
+        agency.name = "Metro";
+
+        DataOutput2 out = new DataOutput2();
+        new ClassLoaderSerializer().serialize(out, agency);
+        byte[] bytes = out.copyBytes();
+
+        File file = File.createTempFile("record", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(bytes);
+            raf.seek(0);
+
+            Agency copy = (Agency) new CompactModelSerializer().deserialize(raf, bytes.length);
+            assertEquals("Metro", copy.name);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** records carry a hash of their content, which is the same for the same content */
+    @Test
+    public void testContentHash () throws IOException {
+        ServiceCalendar calendar = new ServiceCalendar();
+        calendar.monday = true;
+
+        ServiceCalendar copy = (ServiceCalendar) roundTrip(new CompactModelSerializer(), calendar);
+        assertTrue(copy.contentHash != 0);
+        assertEquals(calendar.contentHash, copy.contentHash);
+        assertEquals(copy.contentHash, ((ServiceCalendar) roundTrip(new CompactModelSerializer(), copy)).contentHash);
+
+        copy.tuesday = true;
+        assertNotEquals(calendar.contentHash, ((ServiceCalendar) roundTrip(new CompactModelSerializer(), copy)).contentHash);
+    }
+
+    /** compact records should be much smaller than Java serialized ones */
+    @Test
+    public void testSize () throws IOException {
+        Trip trip = new Trip();
+        trip.setStopTimes(new ArrayList<>());
+        for (int i = 0; i < 50; i++) {
+            StopTime st = new StopTime();
+            st.stopId = "stop" + i;
+            st.arrivalTime = st.departureTime = 8 * 3600 + i * 90;
+            st.pickupType = st.dropOffType = StopTimePickupDropOffType.SCHEDULED;
+            trip.getStopTimes().add(st);
+        }
+
+        DataOutput2 compact = new DataOutput2();
+        new CompactModelSerializer().serialize(compact, trip);
+        DataOutput2 java = new DataOutput2();
+        new ClassLoaderSerializer().serialize(java, trip);
+
+        assertTrue(compact.pos * 3 < java.pos);
+    }
+}
@@ -0,0 +1,98 @@
+package com.conveyal.datatools.editor.utils;
+
+import org.junit.Test;
+import org.mapdb.Fun.Tuple2;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HilbertCurveTest {
+    /** the curve should visit every cell exactly once, moving to an adjacent cell at each step */
+    @Test
+    public void testCurveIsContinuous () {
+        int order = 5;
+        long side = 1L << order;
+        long[] last = null;
+        for (long d = 0; d < side * side; d++) {
+            long[] cell = HilbertCurve.d2xy(order, d);
+            assertEquals(d, HilbertCurve.xy2d(order, cell[0], cell[1]));
+
+            if (last != null)
+                assertEquals(1, Math.abs(cell[0] - last[0]) + Math.abs(cell[1] - last[1]));
+
+            last = cell;
+        }
+    }
+
+    /** a bounding box query should find every point in the box, compared with a brute force search */
+    @Test
+    public void testKeysWithin () {
+        Random random = new Random(42);
+        TreeSet<Tuple2<Long, Integer>> index = new TreeSet<>();
+        double[][] points = new double[10000][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[] { -77.6 + random.nextDouble(), 38.5 + random.nextDouble() };
+            index.add(new Tuple2<>(HilbertCurve.index(points[i][0], points[i][1]), i));
+        }
+
+        for (int q = 0; q < 100; q++) {
+            double west = -77.6 + random.nextDouble() * 0.9;
+            double south = 38.5 + random.nextDouble() * 0.9;
+            double east = west + random.nextDouble() * 0.1;
+            double north = south + random.nextDouble() * 0.1;
+
+            List<Integer> found = HilbertCurve.keysWithin(index, west, south, east, north);
+            Set<Integer> foundSet = new HashSet<>(found);
+            assertEquals("keys should not be returned more than once", found.size(), foundSet.size());
+
+            for (int i = 0; i < points.length; i++) {
+                if (points[i][0] >= west && points[i][0] <= east && points[i][1] >= south && points[i][1] <= north)
+                    assertTrue(foundSet.contains(i));
+            }
+        }
+    }
+
+    /** nearest neighbor search should agree with a brute force search */
+    @Test
+    public void testNearestKeys () {
+        Random random = new Random(42);
+        TreeSet<Tuple2<Long, Integer>> index = new TreeSet<>();
+        double[][] points = new double[10000][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[] { -77.6 + random.nextDouble(), 38.5 + random.nextDouble() };
+            index.add(new Tuple2<>(HilbertCurve.index(points[i][0], points[i][1]), i));
+        }
+
+        for (int q = 0; q < 100; q++) {
+            double lon = -77.7 + random.nextDouble() * 1.2;
+            double lat = 38.4 + random.nextDouble() * 1.2;
+            int k = 1 + random.nextInt(10);
+
+            List<Integer> found = HilbertCurve.nearestKeys(index, lon, lat, k, Double.POSITIVE_INFINITY, i -> points[i]);
+
+            double cosLat = Math.cos(Math.toRadians(lat));
+            List<Integer> expected = IntStream.range(0, points.length).boxed()
+                    .sorted(Comparator.comparingDouble(i -> {
+                        double dx = (points[i][0] - lon) * cosLat;
+                        double dy = points[i][1] - lat;
+                        return dx * dx + dy * dy;
+                    }))
+                    .limit(k)
+                    .collect(Collectors.toList());
+
+            assertEquals(expected, found);
+        }
+
+        // nothing within a meter of a point far from all the others
+        assertTrue(HilbertCurve.nearestKeys(index, 0, 0, 5, 1, i -> points[i]).isEmpty());
+    }
+}